@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2015-2018 University of Sheffield.
+ * 
+ * This file is part of gateplugin-Evaluation 
+ * (see https://github.com/GateNLP/gateplugin-Evaluation).
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package gate.plugin.evaluation.api;
+
+/**
+ * How the statistics over all annotation types get calculated when more than one type is 
+ * evaluated.
+ * <p>
+ * COMPARE_ALL compares all the keys with all the responses of all types again, in addition to
+ * the comparisons for each type. This is the traditional method and the default.
+ * <p>
+ * SUM_OF_TYPES just adds up the statistics for each of the types. This means that keys and 
+ * responses of different types never get paired, so a response which overlaps with a key of a
+ * different type is counted as spurious instead of incorrect and the key as missing.
+ * <p>
+ * SUM_OF_TYPES_EXACT gives the same statistics as COMPARE_ALL. It adds up the statistics for 
+ * each of the types, but for the groups of keys and responses connected by overlapping spans 
+ * which contain a key and a response of different types, it replaces the statistics of the types
+ * by the statistics of comparing all the annotations of the group.
+ * There is one exception: if the containing set and type are the key set and one of the key
+ * types, the keys of that type are not restricted to the containing annotations when comparing
+ * that type, but they are when comparing all types with COMPARE_ALL. Keys which are not selected 
+ * by the containment type for themselves, like keys of length zero for OVERLAPPING, then 
+ * still get counted by SUM_OF_TYPES_EXACT.
+ *
+ * @author Johann Petrak
+ */
+public enum AllTypesStrategy {
+  COMPARE_ALL, SUM_OF_TYPES, SUM_OF_TYPES_EXACT
+}
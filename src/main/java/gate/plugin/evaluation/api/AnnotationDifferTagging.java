@@ -21,18 +21,23 @@ package gate.plugin.evaluation.api;
 
 import gate.Annotation;
 import gate.AnnotationSet;
+import gate.Document;
 import gate.FeatureMap;
 import gate.Utils;
 import gate.annotation.AnnotationSetImpl;
 import gate.annotation.ImmutableAnnotationSetImpl;
 import gate.util.GateRuntimeException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.NavigableSet;
 import java.util.Set;
 import java.util.TreeSet;
@@ -126,6 +131,21 @@ public class AnnotationDifferTagging {
     return featureComparison;
   }
 
+  private MatchingStrategy matchingStrategy = MatchingStrategy.GREEDY;
+
+  // the compiled feature matcher, kept as long as the features, comparison and type specs
+  // do not change when this differ is used several times
+  private FeatureMatcher featureMatcher;
+
+  /**
+   * Returns the strategy used for choosing the final pairings for this differ.
+   *
+   * @return the matching strategy
+   */
+  public MatchingStrategy getMatchingStrategy() {
+    return matchingStrategy;
+  }
+
   /**
    * Create a differ for the two sets and the given, potentially empty/null list of features.
    *
@@ -159,6 +179,31 @@ public class AnnotationDifferTagging {
     this(targets, responses, features, fcm, null, Double.NaN, annotationTypeSpecs);
   }
 
+  /**
+   * Create a differ for the two sets, using the given strategy for choosing the pairings.
+   * <p>
+   * This is the same as {@link #AnnotationDifferTagging(AnnotationSet, AnnotationSet, Set, FeatureComparison, AnnotationTypeSpecs) }
+   * but allows to choose between the greedy and the optimal matching of keys and responses.
+   *
+   * @param targets target annotation set
+   * @param responses response annotation set
+   * @param features features to use
+   * @param fcm feature comparison to use
+   * @param annotationTypeSpecs an AnnotationTypeSpecs instance or null if key and response types
+   * should be equal
+   * @param matchingStrategy how to choose the pairings, if null, GREEDY is used
+   */
+  public AnnotationDifferTagging(
+          AnnotationSet targets,
+          AnnotationSet responses,
+          Set<String> features,
+          FeatureComparison fcm,
+          AnnotationTypeSpecs annotationTypeSpecs,
+          MatchingStrategy matchingStrategy
+  ) {
+    this(targets, responses, features, fcm, null, Double.NaN, annotationTypeSpecs, matchingStrategy);
+  }
+
   /**
    * Create a differ that will calculate the stats for a specific score threshold. This does the
    * same as the constructor AnnotationDiffer(targets,responses,features) but will in addition also
@@ -187,9 +232,39 @@ public class AnnotationDifferTagging {
           String scoreFeature,
           double thresholdValue,
           AnnotationTypeSpecs annotationTypeSpecs
+  ) {
+    this(targets, responses, features, fcmp, scoreFeature, thresholdValue, annotationTypeSpecs, 
+            MatchingStrategy.GREEDY);
+  }
+
+  /**
+   * Create a differ that will calculate the stats for a specific score threshold, using the 
+   * given strategy for choosing the pairings.
+   *
+   * @param targets target annotation set
+   * @param responses response annotation set
+   * @param features set of features to use
+   * @param fcmp feature comparison to use
+   * @param scoreFeature name of the score feature
+   * @param thresholdValue the threshold value
+   * @param annotationTypeSpecs annotation type specification instance
+   * @param matchingStrategy how to choose the pairings, if null, GREEDY is used
+   */
+  public AnnotationDifferTagging(
+          AnnotationSet targets,
+          AnnotationSet responses,
+          Set<String> features,
+          FeatureComparison fcmp,
+          String scoreFeature,
+          double thresholdValue,
+          AnnotationTypeSpecs annotationTypeSpecs,
+          MatchingStrategy matchingStrategy
   ) {
     this.features = features;
     this.featureComparison = fcmp;
+    if (matchingStrategy != null) {
+      this.matchingStrategy = matchingStrategy;
+    }
     evalStats = calculateDiff(targets, responses, features, fcmp, scoreFeature,
             thresholdValue, null, null, annotationTypeSpecs);
   }
@@ -227,6 +302,39 @@ public class AnnotationDifferTagging {
           ThresholdsToUse thToUse,
           ByThEvalStatsTagging existingByThresholdEvalStats,
           AnnotationTypeSpecs annotationTypeSpecs
+  ) {
+    return calculateByThEvalStatsTagging(targets, responses, featureSet, fcmp, scoreFeature, 
+            thToUse, existingByThresholdEvalStats, annotationTypeSpecs, MatchingStrategy.GREEDY);
+  }
+
+  /**
+   * Calculate a new or add to an existing ByThEvalStatsTagging object, using the given strategy
+   * for choosing the pairings. 
+   * <p>
+   * This is the same as {@link #calculateByThEvalStatsTagging(AnnotationSet, AnnotationSet, Set, FeatureComparison, String, ThresholdsToUse, ByThEvalStatsTagging, AnnotationTypeSpecs) }
+   * but allows to choose between the greedy and the optimal matching of keys and responses.
+   *
+   * @param targets target annotation set
+   * @param responses response annotation set
+   * @param featureSet set of feature names to use
+   * @param fcmp feature comparison to use
+   * @param scoreFeature score feature name
+   * @param thToUse threshold to use
+   * @param existingByThresholdEvalStats existing eval stats instance
+   * @param annotationTypeSpecs annotation type specification instance
+   * @param matchingStrategy how to choose the pairings, if null, GREEDY is used
+   * @return new or updated stats instance
+   */
+  public static ByThEvalStatsTagging calculateByThEvalStatsTagging(
+          AnnotationSet targets,
+          AnnotationSet responses,
+          Set<String> featureSet,
+          FeatureComparison fcmp,
+          String scoreFeature,
+          ThresholdsToUse thToUse,
+          ByThEvalStatsTagging existingByThresholdEvalStats,
+          AnnotationTypeSpecs annotationTypeSpecs,
+          MatchingStrategy matchingStrategy
   ) {
     ByThEvalStatsTagging byThresholdEvalStats = null;
     if (existingByThresholdEvalStats == null) {
@@ -268,15 +376,13 @@ public class AnnotationDifferTagging {
     // to the thresholds collection.
     thresholds.add(Double.POSITIVE_INFINITY);
 
-    // Run for all thresholds
-    ByThEvalStatsTagging newMap = new ByThEvalStatsTagging();
-    AnnotationDifferTagging tmpAD = new AnnotationDifferTagging();
-    tmpAD.createAdditionalData = false;
-    for (double t : thresholds) {
-      EvalStatsTagging es = tmpAD.calculateDiff(targets, responses, featureSet, fcmp,
-              scoreFeature, t, null, null, annotationTypeSpecs);
-      newMap.put(t, es);
-    }
+    // Run for all thresholds: instead of running calculateDiff for each threshold, the 
+    // pairs are found and compared only once and the counts for all thresholds get calculated
+    // in one sweep from the highest to the lowest threshold. This gives the same counts as
+    // running calculateDiff for each threshold without creating the additional data.
+    ScoreThresholdSweep sweep = new ScoreThresholdSweep(targets, responses, featureSet, fcmp,
+            scoreFeature, annotationTypeSpecs, matchingStrategy);
+    ByThEvalStatsTagging newMap = sweep.calculate(thresholds);
     // add the new map to our Map
     byThresholdEvalStats.add(newMap);
 
@@ -365,8 +471,8 @@ public class AnnotationDifferTagging {
 
     if (allScores != null) {
       for (CandidateList listOfCandList : responseCandidatesLists) {
-        for (Annotation ann : listOfCandList.getList()) {
-          double score = object2Double(ann.getFeatures().get(scoreFeature));
+        for (int i = 0; i < listOfCandList.size(); i++) {
+          double score = listOfCandList.getScore(i);
           if (thToUse == ThresholdsToUse.USE_ALLROUNDED) {
             score = round(score, 100.0);
           }
@@ -476,7 +582,17 @@ public class AnnotationDifferTagging {
     ByRankEvalStatsTagging newMap = new ByRankEvalStatsTagging();
     AnnotationDifferTagging tmpAD = new AnnotationDifferTagging();
     tmpAD.createAdditionalData = false;
+    // All the ranks from 0 up to the highest finite rank are calculated in one sweep, where 
+    // going to the next rank only compares the keys with the candidates which become visible.
+    // Only the remaining ranks, which always includes the extreme value that also creates the 
+    // additional data, are calculated by running the differ for each rank.
+    NavigableSet<Integer> sweepRanks = thresholds.subSet(0, true, Integer.MAX_VALUE, false);
+    tmpAD.calculateListByRanks(targets, featureSet, fcmp, sweepRanks, responseCandidatesLists, 
+            typeSpecs, newMap);
     for (int rank : thresholds) {
+      if (sweepRanks.contains(rank)) {
+        continue;
+      }
       logger.debug("DEBUG: running differ for th " + rank + " nr targets is " + targets.size() + " nr responseCands is " + responseCandidatesLists.size());
       // TODO!!! CHECK: can we ignore the annotation type specs here??? Because we handle lists?
       if(rank == Integer.MAX_VALUE) {
@@ -537,7 +653,8 @@ public class AnnotationDifferTagging {
     return tmpAD;
   }
 
-  // the sets we record in case the threshold is NaN
+  // The sets for the outcome of the last calculateDiff: these only get created from the 
+  // final pairings when they are first requested.
   private AnnotationSet correctStrictAnns,
           correctPartialAnns,
           singleCorrectStrictAnns,
@@ -547,12 +664,21 @@ public class AnnotationDifferTagging {
           trueMissingLenientAnns,
           trueSpuriousLenientAnns,
           targetAnns;
+  // the document of the key annotations, needed to create the sets
+  private Document document;
+  // the indices of the final pairings which are single correct, strict or partial
+  private BitSet singleCorrectPairings;
+  // the ids of the targets, created from the final pairings when first requested
+  private Map<Integer, Integer> targetIds;
 
   /**
    * TODO
    * @return TODO
    */
   public AnnotationSet getCorrectStrictAnnotations() {
+    if (correctStrictAnns == null) {
+      correctStrictAnns = createPairingAnnotationSet(CORRECT_TYPE, NO_CHOICE, false);
+    }
     return correctStrictAnns;
   }
 
@@ -561,6 +687,9 @@ public class AnnotationDifferTagging {
    * @return TODO
    */
   public AnnotationSet getCorrectPartialAnnotations() {
+    if (correctPartialAnns == null) {
+      correctPartialAnns = createPairingAnnotationSet(PARTIALLY_CORRECT_TYPE, NO_CHOICE, false);
+    }
     return correctPartialAnns;
   }
 
@@ -569,6 +698,9 @@ public class AnnotationDifferTagging {
    * @return TODO
    */
   public AnnotationSet getIncorrectStrictAnnotations() {
+    if (incorrectStrictAnns == null) {
+      incorrectStrictAnns = createPairingAnnotationSet(MISMATCH_TYPE, MISMATCH_VALUE, false);
+    }
     return incorrectStrictAnns;
   }
 
@@ -577,6 +709,9 @@ public class AnnotationDifferTagging {
    * @return TODO
    */
   public AnnotationSet getIncorrectPartialAnnotations() {
+    if (incorrectPartialAnns == null) {
+      incorrectPartialAnns = createPairingAnnotationSet(MISMATCH_TYPE, WRONG_VALUE, false);
+    }
     return incorrectPartialAnns;
   }
 
@@ -585,6 +720,9 @@ public class AnnotationDifferTagging {
    * @return TODO
    */
   public AnnotationSet getTrueMissingLenientAnnotations() {
+    if (trueMissingLenientAnns == null) {
+      trueMissingLenientAnns = createPairingAnnotationSet(MISSING_TYPE, NO_CHOICE, false);
+    }
     return trueMissingLenientAnns;
   }
 
@@ -593,6 +731,9 @@ public class AnnotationDifferTagging {
    * @return TODO
    */
   public AnnotationSet getTrueSpuriousLenientAnnotations() {
+    if (trueSpuriousLenientAnns == null) {
+      trueSpuriousLenientAnns = createPairingAnnotationSet(SPURIOUS_TYPE, NO_CHOICE, false);
+    }
     return trueSpuriousLenientAnns;
   }
 
@@ -601,6 +742,9 @@ public class AnnotationDifferTagging {
    * @return TODO
    */
   public AnnotationSet getSingleCorrectStrictAnnotations() {
+    if (singleCorrectStrictAnns == null) {
+      singleCorrectStrictAnns = createPairingAnnotationSet(CORRECT_TYPE, NO_CHOICE, true);
+    }
     return singleCorrectStrictAnns;
   }
 
@@ -609,6 +753,9 @@ public class AnnotationDifferTagging {
    * @return TODO
    */
   public AnnotationSet getSingleCorrectPartialAnnotations() {
+    if (singleCorrectPartialAnns == null) {
+      singleCorrectPartialAnns = createPairingAnnotationSet(PARTIALLY_CORRECT_TYPE, NO_CHOICE, true);
+    }
     return singleCorrectPartialAnns;
   }
 
@@ -617,9 +764,105 @@ public class AnnotationDifferTagging {
    * @return TODO
    */ 
   public AnnotationSet getTargetAnnotations() {
+    if (targetAnns == null) {
+      // the targets are only known if the final pairings have been kept
+      targetAnns = new ImmutableAnnotationSetImpl(document,
+              finalPairings == null ? null : keyList);
+    }
     return targetAnns;
   }
 
+  /**
+   * Return the ids of the target annotations the annotations of the final pairings have been
+   * paired with. The map contains the id of each response which has been paired with a target
+   * (correct or incorrect) and the id of each missed target, which is mapped to itself. 
+   * Spurious responses are not included.
+   * <p>
+   * This records the pairings without modifying any of the annotations, use
+   * {@link #addTargetIdFeatures()} to also store them as annotation features.
+   *
+   * @return an unmodifiable map from annotation id to target annotation id, empty if no final
+   * pairings have been kept
+   */
+  public Map<Integer, Integer> getTargetIds() {
+    if (targetIds == null) {
+      Map<Integer, Integer> ids = new HashMap<Integer, Integer>();
+      if (finalPairings != null) {
+        for (int c = 0; c < finalPairings.size(); c++) {
+          int i = finalPairings.getKeyIndex(c);
+          int j = finalPairings.getResponseIndex(c);
+          if (i < 0) {
+            continue;
+          }
+          Integer targetId = keyList.get(i).getId();
+          if (j < 0) {
+            ids.put(targetId, targetId);
+          } else {
+            ids.put(responseList.get(j).getId(), targetId);
+          }
+        }
+      }
+      targetIds = Collections.unmodifiableMap(ids);
+    }
+    return targetIds;
+  }
+
+  /**
+   * Set the feature {@link #TARGET_ID_FEATURE} of all annotations in {@link #getTargetIds()}
+   * to the id of their target. This modifies the features of the response and key 
+   * annotations and should therefore only be used as an explicit output step, it is not 
+   * done by the differ itself.
+   */
+  public void addTargetIdFeatures() {
+    if (finalPairings == null) {
+      return;
+    }
+    for (int c = 0; c < finalPairings.size(); c++) {
+      int i = finalPairings.getKeyIndex(c);
+      int j = finalPairings.getResponseIndex(c);
+      if (i < 0) {
+        continue;
+      }
+      Annotation target = keyList.get(i);
+      Annotation ann = j < 0 ? target : responseList.get(j);
+      ann.getFeatures().put(TARGET_ID_FEATURE, target.getId());
+    }
+  }
+
+  /**
+   * Create the immutable set of annotations for those final pairings which have the given
+   * pairing type and value. For missing pairings, the key annotation is used, for all others
+   * the response annotation.
+   *
+   * @param pairingType the type of pairing to use
+   * @param value the value of the pairings to use, or NO_CHOICE for any value
+   * @param singleCorrectOnly if true, only use the single correct pairings
+   * @return the immutable annotation set, empty if no final pairings have been kept
+   */
+  private AnnotationSet createPairingAnnotationSet(int pairingType, int value,
+          boolean singleCorrectOnly) {
+    List<Annotation> anns = new ArrayList<Annotation>();
+    if (finalPairings != null) {
+      for (int c = 0; c < finalPairings.size(); c++) {
+        if (finalPairings.getType(c) != pairingType) {
+          continue;
+        }
+        if (value != NO_CHOICE && finalPairings.getValue(c) != value) {
+          continue;
+        }
+        if (singleCorrectOnly && !singleCorrectPairings.get(c)) {
+          continue;
+        }
+        if (pairingType == MISSING_TYPE) {
+          anns.add(keyList.get(finalPairings.getKeyIndex(c)));
+        } else {
+          anns.add(responseList.get(finalPairings.getResponseIndex(c)));
+        }
+      }
+    }
+    return new ImmutableAnnotationSetImpl(document, anns);
+  }
+
   /**
    * Add the annotations that indicate correct/incorrect etc to the output set. This will create one
    * annotation in the outSet for each annotation returned by getXXXAnnotations() but will change
@@ -636,12 +879,13 @@ public class AnnotationDifferTagging {
     if (prefix == null) {
       prefix = "";
     }
-    addAnnsWithTypeSuffix(outSet, getCorrectStrictAnnotations(), prefix + "_CS", null);
-    addAnnsWithTypeSuffix(outSet, getCorrectPartialAnnotations(), prefix + "_CP", null);
-    addAnnsWithTypeSuffix(outSet, getIncorrectStrictAnnotations(), prefix + "_IS", null);
-    addAnnsWithTypeSuffix(outSet, getIncorrectPartialAnnotations(), prefix + "_IP", null);
-    addAnnsWithTypeSuffix(outSet, getTrueMissingLenientAnnotations(), prefix + "_ML", null);
-    addAnnsWithTypeSuffix(outSet, getTrueSpuriousLenientAnnotations(), prefix + "_SL", null);
+    Map<Integer, Integer> ids = getTargetIds();
+    addAnnsWithTypeSuffix(outSet, getCorrectStrictAnnotations(), prefix + "_CS", null, ids);
+    addAnnsWithTypeSuffix(outSet, getCorrectPartialAnnotations(), prefix + "_CP", null, ids);
+    addAnnsWithTypeSuffix(outSet, getIncorrectStrictAnnotations(), prefix + "_IS", null, ids);
+    addAnnsWithTypeSuffix(outSet, getIncorrectPartialAnnotations(), prefix + "_IP", null, ids);
+    addAnnsWithTypeSuffix(outSet, getTrueMissingLenientAnnotations(), prefix + "_ML", null, ids);
+    addAnnsWithTypeSuffix(outSet, getTrueSpuriousLenientAnnotations(), prefix + "_SL", null, ids);
   }
 
   /**
@@ -751,6 +995,9 @@ public class AnnotationDifferTagging {
 
     Set<String> fs = responses.getFeatureSet();
     FeatureComparison fc = FeatureComparison.FEATURE_EQUALITY;
+    // all the annotations for which we add indicator annotations below are from the responses,
+    // except the spurious annotations from the reference set which never have a target
+    Map<Integer, Integer> ids = responses.getTargetIds();
 
     AnnotationSet allRefs = new AnnotationSetImpl(reference.getCorrectPartialAnnotations().getDocument());
     allRefs.addAll(reference.getCorrectPartialAnnotations());
@@ -764,61 +1011,61 @@ public class AnnotationDifferTagging {
     for (Annotation ann : reference.getCorrectStrictAnnotations()) {
       AnnotationSet tmpSet;
       tmpSet = getOverlappingAnnsNotIn(responses.getCorrectPartialAnnotations(), ann, allRefs, fs, fc);
-      addAnnsWithTypeSuffix(outSet, tmpSet, "_CS_CP", "-");
+      addAnnsWithTypeSuffix(outSet, tmpSet, "_CS_CP", "-", ids);
       tmpSet = getOverlappingAnnsNotIn(responses.getIncorrectStrictAnnotations(), ann, allRefs, fs, fc);
-      addAnnsWithTypeSuffix(outSet, tmpSet, "_CS_IS", "-");
+      addAnnsWithTypeSuffix(outSet, tmpSet, "_CS_IS", "-", ids);
       tmpSet = getOverlappingAnnsNotIn(responses.getIncorrectPartialAnnotations(), ann, allRefs, fs, fc);
-      addAnnsWithTypeSuffix(outSet, tmpSet, "_CS_IP", "-");
+      addAnnsWithTypeSuffix(outSet, tmpSet, "_CS_IP", "-", ids);
       tmpSet = getOverlappingAnnsNotIn(responses.getTrueMissingLenientAnnotations(), ann, allRefs, fs, fc);
-      addAnnsWithTypeSuffix(outSet, tmpSet, "_CS_ML", "-");
+      addAnnsWithTypeSuffix(outSet, tmpSet, "_CS_ML", "-", ids);
     }
     // CP -> CS, IS, IP, ML
     for (Annotation ann : reference.getCorrectPartialAnnotations()) {
       AnnotationSet tmpSet;
       tmpSet = getOverlappingAnnsNotIn(responses.getCorrectStrictAnnotations(), ann, allRefs, fs, fc);
-      addAnnsWithTypeSuffix(outSet, tmpSet, "_CP_CS", "+");
+      addAnnsWithTypeSuffix(outSet, tmpSet, "_CP_CS", "+", ids);
       tmpSet = getOverlappingAnnsNotIn(responses.getIncorrectStrictAnnotations(), ann, allRefs, fs, fc);
-      addAnnsWithTypeSuffix(outSet, tmpSet, "_CP_IS", "-");
+      addAnnsWithTypeSuffix(outSet, tmpSet, "_CP_IS", "-", ids);
       tmpSet = getOverlappingAnnsNotIn(responses.getIncorrectPartialAnnotations(), ann, allRefs, fs, fc);
-      addAnnsWithTypeSuffix(outSet, tmpSet, "_CP_IP", "-");
+      addAnnsWithTypeSuffix(outSet, tmpSet, "_CP_IP", "-", ids);
       tmpSet = getOverlappingAnnsNotIn(responses.getTrueMissingLenientAnnotations(), ann, allRefs, fs, fc);
-      addAnnsWithTypeSuffix(outSet, tmpSet, "_CP_ML", "-");
+      addAnnsWithTypeSuffix(outSet, tmpSet, "_CP_ML", "-", ids);
     }
     // IS -> IP, CS, CP, ML
     for (Annotation ann : reference.getIncorrectStrictAnnotations()) {
       AnnotationSet tmpSet;
       tmpSet = getOverlappingAnnsNotIn(responses.getIncorrectPartialAnnotations(), ann, allRefs, fs, fc);
-      addAnnsWithTypeSuffix(outSet, tmpSet, "_IS_IP", "+-");
+      addAnnsWithTypeSuffix(outSet, tmpSet, "_IS_IP", "+-", ids);
       tmpSet = getOverlappingAnnsNotIn(responses.getCorrectStrictAnnotations(), ann, allRefs, fs, fc);
-      addAnnsWithTypeSuffix(outSet, tmpSet, "_IS_CS", "+");
+      addAnnsWithTypeSuffix(outSet, tmpSet, "_IS_CS", "+", ids);
       tmpSet = getOverlappingAnnsNotIn(responses.getCorrectPartialAnnotations(), ann, allRefs, fs, fc);
-      addAnnsWithTypeSuffix(outSet, tmpSet, "_IS_CP", "+");
+      addAnnsWithTypeSuffix(outSet, tmpSet, "_IS_CP", "+", ids);
       tmpSet = getOverlappingAnnsNotIn(responses.getTrueMissingLenientAnnotations(), ann, allRefs, fs, fc);
-      addAnnsWithTypeSuffix(outSet, tmpSet, "_IS_ML", "+-");
+      addAnnsWithTypeSuffix(outSet, tmpSet, "_IS_ML", "+-", ids);
     }
     // IP -> IS, CS, CP, ML
     for (Annotation ann : reference.getIncorrectPartialAnnotations()) {
       AnnotationSet tmpSet;
       tmpSet = getOverlappingAnnsNotIn(responses.getIncorrectStrictAnnotations(), ann, allRefs, fs, fc);
-      addAnnsWithTypeSuffix(outSet, tmpSet, "_IP_IS", "+-");
+      addAnnsWithTypeSuffix(outSet, tmpSet, "_IP_IS", "+-", ids);
       tmpSet = getOverlappingAnnsNotIn(responses.getCorrectStrictAnnotations(), ann, allRefs, fs, fc);
-      addAnnsWithTypeSuffix(outSet, tmpSet, "_IP_CS", "+");
+      addAnnsWithTypeSuffix(outSet, tmpSet, "_IP_CS", "+", ids);
       tmpSet = getOverlappingAnnsNotIn(responses.getCorrectPartialAnnotations(), ann, allRefs, fs, fc);
-      addAnnsWithTypeSuffix(outSet, tmpSet, "_IP_CP", "+");
+      addAnnsWithTypeSuffix(outSet, tmpSet, "_IP_CP", "+", ids);
       tmpSet = getOverlappingAnnsNotIn(responses.getTrueMissingLenientAnnotations(), ann, allRefs, fs, fc);
-      addAnnsWithTypeSuffix(outSet, tmpSet, "_IP_ML", "+-");
+      addAnnsWithTypeSuffix(outSet, tmpSet, "_IP_ML", "+-", ids);
     }
     // ML -> CS, CP, IS, IP
     for (Annotation ann : reference.getTrueMissingLenientAnnotations()) {
       AnnotationSet tmpSet;
       tmpSet = getOverlappingAnnsNotIn(responses.getCorrectStrictAnnotations(), ann, allRefs, fs, fc);
-      addAnnsWithTypeSuffix(outSet, tmpSet, "_ML_CS", "+");
+      addAnnsWithTypeSuffix(outSet, tmpSet, "_ML_CS", "+", ids);
       tmpSet = getOverlappingAnnsNotIn(responses.getCorrectPartialAnnotations(), ann, allRefs, fs, fc);
-      addAnnsWithTypeSuffix(outSet, tmpSet, "_ML_CP", "+");
+      addAnnsWithTypeSuffix(outSet, tmpSet, "_ML_CP", "+", ids);
       tmpSet = getOverlappingAnnsNotIn(responses.getIncorrectStrictAnnotations(), ann, allRefs, fs, fc);
-      addAnnsWithTypeSuffix(outSet, tmpSet, "_ML_IS", "+-");
+      addAnnsWithTypeSuffix(outSet, tmpSet, "_ML_IS", "+-", ids);
       tmpSet = getOverlappingAnnsNotIn(responses.getIncorrectPartialAnnotations(), ann, allRefs, fs, fc);
-      addAnnsWithTypeSuffix(outSet, tmpSet, "_ML_IP", "+-");
+      addAnnsWithTypeSuffix(outSet, tmpSet, "_ML_IP", "+-", ids);
     }
     // SL -> A (absent)
     for (Annotation ann : reference.getTrueSpuriousLenientAnnotations()) {
@@ -870,9 +1117,6 @@ public class AnnotationDifferTagging {
   //  ContingencyTableInteger toIncrement, AnnotationDifferTagging responseDiffer, AnnotationDifferTagging referenceDiffer) {
   //  
   //}
-  // this contains the final choices calculated by this object.
-  protected List<Pairing> choices = new ArrayList<Pairing>();
-
   // TODO: figure out how to support calculating Krippendorff's alpha and Fleiss's Kappa too!
   // Ideally all these things would incrementally calculate whatever contingency tables they need,
   // so the method would take an existing table and two differs and increment the counts.
@@ -922,21 +1166,13 @@ public class AnnotationDifferTagging {
       es = new EvalStatsTagging4Score(scoreThreshold);
     }
 
-    if (createAdditionalData) {
-      correctStrictAnns = new AnnotationSetImpl(keyAnns.getDocument());
-      correctPartialAnns = new AnnotationSetImpl(keyAnns.getDocument());
-      incorrectStrictAnns = new AnnotationSetImpl(keyAnns.getDocument());
-      incorrectPartialAnns = new AnnotationSetImpl(keyAnns.getDocument());
-      trueMissingLenientAnns = new AnnotationSetImpl(keyAnns.getDocument());
-      trueSpuriousLenientAnns = new AnnotationSetImpl(keyAnns.getDocument());
-      targetAnns = new AnnotationSetImpl(keyAnns.getDocument());
-      targetAnns.addAll(keyAnns);
-      singleCorrectPartialAnns = new AnnotationSetImpl(keyAnns.getDocument());
-      singleCorrectStrictAnns = new AnnotationSetImpl(keyAnns.getDocument());
-    }
-    keyList = new ArrayList<Annotation>(keyAnns);
+    // the offsets, ids and types of the keys and responses are taken from the annotations 
+    // only once, the types of the keys and responses get ids from the same map
+    Map<String, Integer> typeIds = new HashMap<String, Integer>();
     // sort to avoid non-determinism
-    Collections.sort(keyList,new OffsetAndMoreComparator(features));
+    keySpans = new DocumentSpanSnapshot(keyAnns, typeIds, typeSpecs, false, null)
+            .sortedByOffset(features);
+    keyList = keySpans.getAnnotations();
     responseList = null;
     // If we do list processing, this records, for each response annotation, what the corresponding
     // index of the candidate list is. Since the responeList only contains annotations from those
@@ -953,13 +1189,13 @@ public class AnnotationDifferTagging {
       // adding the highest score candidate to the response list if the candidate list 
       // still has entries for the scoreThreshold. That candidate may get replaced later ...
       responseList = new ArrayList<Annotation>(responseAnns.size());
+      if (rankThreshold != null) {
+        CandidateList.setRank(candidateLists, rankThreshold);
+      } else {
+        CandidateList.setThreshold(candidateLists, scoreThreshold);
+      }
       int cidx = 0;
       for (CandidateList cand : candidateLists) {
-        if(rankThreshold != null) {
-          cand.setRank(rankThreshold);
-        } else {
-          cand.setThreshold(scoreThreshold);
-        }
         //System.out.println("DEBUG after setting to "+rankThreshold+"/"+scoreThreshold+" size="+cand.size());
         if (cand.size() != 0) {
           responseList.add(cand.get(0));
@@ -973,42 +1209,42 @@ public class AnnotationDifferTagging {
 
       // if we do not need to process the candidate lists, check if we need to process for 
       // a scoreThreshold
-      if (Double.isNaN(scoreThreshold)) {
-        responseList = new ArrayList<Annotation>(responseAnns);
-      } else {
-        responseList = new ArrayList<Annotation>(responseAnns.size());
-        for (Annotation res : responseAnns) {
-          double score = getFeatureDouble(res.getFeatures(), scoreFeature, Double.NaN);
+      boolean useThreshold = !Double.isNaN(scoreThreshold);
+      DocumentSpanSnapshot allResponses = new DocumentSpanSnapshot(responseAnns, typeIds, 
+              typeSpecs, true, useThreshold ? scoreFeature : null);
+      int[] use = new int[allResponses.size()];
+      int nUse = 0;
+      for (int j = 0; j < allResponses.size(); j++) {
+        if (useThreshold) {
+          double score = allResponses.getScore(j);
           if (Double.isNaN(score)) {
-            throw new GateRuntimeException("Response without a score feature: " + res);
+            throw new GateRuntimeException("Response without a score feature: " + 
+                    allResponses.getAnnotation(j));
           }
-          if (score >= scoreThreshold) {
-            responseList.add(res);
+          if (score < scoreThreshold) {
+            continue;
           }
-        }        
+        }
+        use[nUse++] = j;
       }
-      
-    }
-    // We only sort if we have actual single responses, if we have response lists, then
-    // sorting would mess up the indices of the corresponding candidate lists we have
-    // created earlier. 
-    // Also since this sorts on the features, it does not make a lot of sense if we 
-    // just have one candidate from the list. 
-    // TODO: check out why we sort here, maybe there is a good way to also sort when we 
-    // have lists?
-    if(candidateLists == null) {
-      Collections.sort(responseList,new OffsetAndMoreComparator(features));
+      // We only sort if we have actual single responses, if we have response lists, then
+      // sorting would mess up the indices of the corresponding candidate lists we have
+      // created earlier. 
+      // Also since this sorts on the features, it does not make a lot of sense if we 
+      // just have one candidate from the list. 
+      // TODO: check out why we sort here, maybe there is a good way to also sort when we 
+      // have lists?
+      responseSpans = allResponses.select(
+              allResponses.offsetOrder(Arrays.copyOf(use, nUse), features));
+      responseList = new ArrayList<Annotation>(responseSpans.getAnnotations());
     }
     //logger.debug("DEBUG: responseList size for scoreThreshold "+scoreThreshold+" is "+responseList.size());
 
-    keyChoices = new ArrayList<List<Pairing>>(keyList.size());
-    // initialize by nr_keys nulls
-    keyChoices.addAll(Collections.nCopies(keyList.size(), (List<Pairing>) null));
-    responseChoices = new ArrayList<List<Pairing>>(responseList.size());
-    // initialize by nr_responses null
-    responseChoices.addAll(Collections.nCopies(responseList.size(), (List<Pairing>) null));
-
-    possibleChoices = new ArrayList<Pairing>();
+    // the store for all the possible pairings gets re-used if this object is used 
+    // to calculate the differences several times
+    if (possibleChoices == null) {
+      possibleChoices = new PairingStore();
+    }
 
     es.addTargets(keyAnns.size());
     es.addResponses(responseList.size());
@@ -1029,140 +1265,234 @@ public class AnnotationDifferTagging {
     boolean[] haveStrictResponse = new boolean[keyList.size()];
     boolean[] haveLenientResponse = new boolean[keyList.size()];
     for(int i=0; i<keyList.size(); i++) { haveStrictResponse[i] = false; haveLenientResponse[i] = false; }
-    for (int i = 0; i < keyList.size(); i++) {
+    // Instead of comparing every key with every response, we only look at those pairs where 
+    // the key span and the response span (or the span of the list annotation, if we do list
+    // evaluation) can overlap or be coextensive. The pairs are returned in the same order in
+    // which the nested loop over all keys and all responses would have visited them, which 
+    // matters for list evaluation where the response list gets updated as we go.
+    if (candidateLists != null) {
+      List<Annotation> listAnns = new ArrayList<Annotation>(responseList.size());
       for (int j = 0; j < responseList.size(); j++) {
-        Annotation keyAnn = keyList.get(i);
-
-        Annotation resAnn = null;
-        Pairing choice = null;
-        // If we process candidate lists, do not just compare with the response
-        // annotation from the list but instead compare with all candidates still in the list
-        // and use the first exact match, if none is found, the first partial match, if none
-        // is found the candidate with the highest score that is coextensive, if none is found
-        // the candidate with the highest score.
-        // However to decide if we should attempt a match at all, we first compare the 
-        // range if the list annotation with the key annotation. Only if they overlap, we 
-        // go through the candidates.
-        // NOTE: this will only consider list annotation which match the type of the key 
-        // annotation according to the type specs
-        if (candidateLists != null) {
-          CandidateList candList = candidateLists.get(candidateIndices.get(j));
-          // check already at this point that the candidate list has a type
-          // that matches the key, based on the type specifications we got!
-          String candType = candList.getListAnnotation().getType();
-          String keyType = keyAnn.getType();
-          //System.out.println("DEBUG: checking cand type "+candType+" against key type "+keyType+" typeSpecs "+typeSpecs);
-          if (!typeSpecs.getKeyType(candType).equals(keyType)) {
-            continue;
-          }
+        listAnns.add(candidateLists.get(candidateIndices.get(j)).getListAnnotation());
+      }
+      responseSpans = new DocumentSpanSnapshot(listAnns);
+    }
+    final long[] candidatePairs = findCandidatePairs(keySpans, responseSpans);
+    // the value of the pairing for each candidate pair, or NO_CHOICE
+    final int[] candidateValues = new int[candidatePairs.length];
+    if (candidateLists == null) {
+      // For single responses, the matcher gets compiled once for the settings of this differ 
+      // and the feature values of this document's annotations get encoded, so each 
+      // candidate pair only needs a comparison of int codes.
+      if (featureMatcher == null || !featureMatcher.isFor(features, fcmp)) {
+        featureMatcher = new FeatureMatcher(features, fcmp);
+      }
+      featureMatcher.encode(keySpans, responseSpans);
+    }
+    for (int k = 0; k < candidatePairs.length; k++) {
+      int i = (int) (candidatePairs[k] >>> 32);
+      int j = (int) candidatePairs[k];
+      Annotation keyAnn = keyList.get(i);
+
+      // the value of the pairing of key i and response j, if there is one
+      int choice = NO_CHOICE;
+      // If we process candidate lists, do not just compare with the response
+      // annotation from the list but instead compare with all candidates still in the list
+      // and use the first exact match, if none is found, the first partial match, if none
+      // is found the candidate with the highest score that is coextensive, if none is found
+      // the candidate with the highest score.
+      // However to decide if we should attempt a match at all, we first compare the 
+      // range if the list annotation with the key annotation. Only if they overlap, we 
+      // go through the candidates.
+      // NOTE: this will only consider list annotation which match the type of the key 
+      // annotation according to the type specs
+      if (candidateLists != null) {
+        CandidateList candList = candidateLists.get(candidateIndices.get(j));
+        // check already at this point that the candidate list has a type
+        // that matches the key, based on the type specifications we got!
+        String candType = candList.getListAnnotation().getType();
+        String keyType = keyAnn.getType();
+        //System.out.println("DEBUG: checking cand type "+candType+" against key type "+keyType+" typeSpecs "+typeSpecs);
+        if (!typeSpecs.getKeyType(candType).equals(keyType)) {
+          candidateValues[k] = NO_CHOICE;
+          continue;
+        }
 
-          if (keyAnn.overlaps(candList.getListAnnotation())) {
-            //System.out.println("DEBUG: comparing key="+debugAnnAsString(keyAnn,i)+" respList="+debugAnnAsString(candList.getListAnnotation(),j));
-            // find the best matching annotation and remember which kind of match we had
-            int match = WRONG_VALUE;
-            Annotation bestAnn = responseList.get(j);
-            // We initialize responselist(i) with candList.get(0) so the above is identical to
-            // Annotation bestAnn = candList.get(0);
-            boolean foundOverlap = false;
-            for (int c = 0; c < candList.size(); c++) {
-              Annotation tmpResp = candList.get(c);
-              //System.out.println("DEBUG: pairing key="+debugAnnAsString(keyAnn,i)+" respAnn="+debugAnnAsString(tmpResp,j)+" best="+debugAnnAsString(bestAnn,j));
-              //logger.debug("Checking annotation at index: " + c + ": " + tmpResp);
-              if (isAnnotationsMatch(keyAnn, tmpResp, features, fcmp, true, typeSpecs)) {
-                // if we are coextensive, then we can stop: can't get any better!
-                if (keyAnn.coextensive(tmpResp)) {
-                  //logger.debug("Found correct match!!");
-                  match = CORRECT_VALUE;
-                  bestAnn = tmpResp;
-                  foundOverlap = true;
-                  haveStrictResponse[i]=true;
-                  haveLenientResponse[i]=true;
-                  break;
-                } else {
-                  //logger.debug("Found a partial match, checking if we can add!");
-                  // if we did not already find a match, store
-                  if (match == WRONG_VALUE || match == MISMATCH_VALUE) {
-                    //logger.debug("Found a partial match and adding!");
-                    match = PARTIALLY_CORRECT_VALUE;
-                    bestAnn = tmpResp;
-                    foundOverlap = true;
-                    haveLenientResponse[i]=true;
-                  }
-                }
-              } else if(keyAnn.coextensive(tmpResp)) {
-                if(match == WRONG_VALUE) {
-                  foundOverlap = true;
-                  bestAnn = tmpResp;
-                  match = MISMATCH_VALUE;
-                  //logger.debug("Found a MISMATCH");
-                }
-                haveStrictResponse[i]=true;
-                haveLenientResponse[i]=true;
-              } else if(keyAnn.overlaps(tmpResp)) {
-                match = WRONG_VALUE;
-                haveLenientResponse[i]=true;
-                foundOverlap = true;
-              } else {
-                System.err.println("EvaluationPlugin:AnnotationDifferTagging:DEBUG: we are in the odd else, match is "+match);
-                // if we get here then 
-                // = there is certainly no match
-                // = the annotation may be overlapping, or if it is coextensive, than
-                //   we already found a coextensive one which is no match previously.
-                // we have to continue until we either find a beter match or are done.
-                //logger.debug("Found ODD: match=" + match);
-              }
-            } // for
-            //logger.debug("Took best match from index "+j+" was "+match);
-            responseList.set(j, bestAnn);
-            // only create a choice if the target and at least one response ann overlapped!
-            // otherwise the choice stays null and will not be used later
-            if(foundOverlap) {
-              //System.err.println("DEBUG setting choice to "+i+"/"+j+" best="+debugAnnAsString(bestAnn, j));
-              choice = new Pairing(i, j, match);
-            } else {
-              //System.err.println("DEBUG: no overlap found");
-            }
+        if (keyAnn.overlaps(candList.getListAnnotation())) {
+          //System.out.println("DEBUG: comparing key="+debugAnnAsString(keyAnn,i)+" respList="+debugAnnAsString(candList.getListAnnotation(),j));
+          // find the best matching annotation and remember which kind of match we had
+          // We initialize responselist(i) with candList.get(0) so this is identical to
+          // starting with candList.get(0) as the best annotation
+          ListMatch listMatch = new ListMatch(responseList.get(j));
+          for (int c = 0; c < candList.size() && !listMatch.isDone(); c++) {
+            listMatch.add(keyAnn, i, candList.get(c), haveStrictResponse, haveLenientResponse, 
+                    features, fcmp, typeSpecs);
+          }
+          //logger.debug("Took best match from index "+j+" was "+match);
+          responseList.set(j, listMatch.bestAnn);
+          // only create a choice if the target and at least one response ann overlapped!
+          // otherwise the choice stays null and will not be used later
+          if(listMatch.foundOverlap) {
+            //System.err.println("DEBUG setting choice to "+i+"/"+j+" best="+debugAnnAsString(bestAnn, j));
+            choice = listMatch.match;
+          } else {
+            //System.err.println("DEBUG: no overlap found");
           }
+        }
 
-        } else {
+      } else {
+        choice = pairingValue(keySpans, i, responseSpans, j, featureMatcher);
+      }
+      candidateValues[k] = choice;
+    }//for candidatePair
 
-          resAnn = responseList.get(j);
-          choice = null;
-          if (keyAnn.coextensive(resAnn)) {
-            //we have full overlap -> CORRECT or WRONG
-            if (isAnnotationsMatch(keyAnn, resAnn, features, fcmp, false, typeSpecs)) {
-              //we have a full match
-              choice = new Pairing(i, j, CORRECT_VALUE);
-              haveStrictResponse[i]=true;
-              haveLenientResponse[i]=true;
-            } else {
-              //the two annotations are coextensive but don't match
-              //we have a missmatch
-              choice = new Pairing(i, j, MISMATCH_VALUE);
-              haveStrictResponse[i]=true;
-              haveLenientResponse[i]=true;              
-            }
-          } else if (keyAnn.overlaps(resAnn)) {
-            //we have partial overlap -> PARTIALLY_CORRECT or WRONG
-            if (isAnnotationsMatch(keyAnn, resAnn, features, fcmp, false, typeSpecs)) {
-              choice = new Pairing(i, j, PARTIALLY_CORRECT_VALUE);
-              haveLenientResponse[i]=true;
-            } else {
-              choice = new Pairing(i, j, WRONG_VALUE);
-              haveLenientResponse[i]=true;
-            }
-          }
+    selectPairings(es, candidatePairs, candidateValues, haveStrictResponse, haveLenientResponse, 
+            candidateLists != null, keyAnns.getDocument());
+    return es;
+  }
+
+  /**
+   * Calculate the statistics for list evaluation for all the given ranks, in increasing order,
+   * and add them to the map. This gives the same statistics as running calculateDiff for each of
+   * the ranks without creating the additional data.
+   * <p>
+   * The keys, lists and candidate pairs are the same for all ranks, so they are only prepared 
+   * once. For each pair of a key and a list, the best match is kept and when going to the next 
+   * rank, only the newly visible candidates get compared with the key. Pairs which already 
+   * have an exact match or where all the candidates have been compared are not looked at again.
+   * The pairings then still get selected for each rank.
+   *
+   * @param keyAnns the key annotations
+   * @param features the features to compare
+   * @param fcmp how to compare the features
+   * @param ranks the ranks, which must not be negative
+   * @param candidateLists the candidate lists
+   * @param typeSpecs the annotation type specifications
+   * @param byRank the map to add the statistics for each rank to
+   */
+  private void calculateListByRanks(
+          AnnotationSet keyAnns,
+          Set<String> features,
+          FeatureComparison fcmp,
+          NavigableSet<Integer> ranks,
+          List<CandidateList> candidateLists,
+          AnnotationTypeSpecs typeSpecs,
+          ByRankEvalStatsTagging byRank
+  ) {
+    if (ranks.isEmpty()) {
+      return;
+    }
+    createAdditionalData = false;
+    if (possibleChoices == null) {
+      possibleChoices = new PairingStore();
+    }
+    // the keys and the lists which are the responses are the same as in calculateDiff, for all
+    // ranks which are not negative
+    keySpans = new DocumentSpanSnapshot(keyAnns, new HashMap<String, Integer>(), typeSpecs, false, null)
+            .sortedByOffset(features);
+    keyList = keySpans.getAnnotations();
+    CandidateList.setRank(candidateLists, Integer.MAX_VALUE);
+    List<CandidateList> lists = new ArrayList<CandidateList>(candidateLists.size());
+    List<Annotation> listAnns = new ArrayList<Annotation>(candidateLists.size());
+    responseList = new ArrayList<Annotation>(candidateLists.size());
+    for (CandidateList cand : candidateLists) {
+      if (cand.size() != 0) {
+        lists.add(cand);
+        listAnns.add(cand.getListAnnotation());
+        responseList.add(cand.get(0));
+      }
+    }
+    responseSpans = new DocumentSpanSnapshot(listAnns);
+    final long[] candidatePairs = findCandidatePairs(keySpans, responseSpans);
+    // the best match so far for each candidate pair, null if the key and the list can never 
+    // get paired
+    ListMatch[] matches = new ListMatch[candidatePairs.length];
+    // the candidate pairs for which further candidates may still change the match
+    int[] active = new int[candidatePairs.length];
+    int nActive = 0;
+    for (int k = 0; k < candidatePairs.length; k++) {
+      Annotation keyAnn = keyList.get((int) (candidatePairs[k] >>> 32));
+      Annotation listAnn = listAnns.get((int) candidatePairs[k]);
+      if (typeSpecs.getKeyType(listAnn.getType()).equals(keyAnn.getType()) 
+              && keyAnn.overlaps(listAnn)) {
+        matches[k] = new ListMatch(responseList.get((int) candidatePairs[k]));
+        active[nActive++] = k;
+      }
+    }
+    boolean[] haveStrictResponse = new boolean[keyList.size()];
+    boolean[] haveLenientResponse = new boolean[keyList.size()];
+    int[] candidateValues = new int[candidatePairs.length];
+    for (int rank : ranks) {
+      int kept = 0;
+      for (int a = 0; a < nActive; a++) {
+        int k = active[a];
+        int i = (int) (candidatePairs[k] >>> 32);
+        CandidateList candList = lists.get((int) candidatePairs[k]);
+        ListMatch listMatch = matches[k];
+        int end = (int) Math.min((long) rank + 1, candList.sizeAll());
+        while (listMatch.added < end && !listMatch.isDone()) {
+          listMatch.add(keyList.get(i), i, candList.get(listMatch.added), 
+                  haveStrictResponse, haveLenientResponse, features, fcmp, typeSpecs);
+        }
+        if (!listMatch.isDone() && listMatch.added < candList.sizeAll()) {
+          active[kept++] = k;
+        }
+      }
+      nActive = kept;
+      // In calculateDiff, each key starts with the candidate chosen for the list by the 
+      // previous key, so the response of each list is the best candidate for the last key 
+      // which found one, or the first candidate. This is used to break ties between pairings.
+      for (int j = 0; j < lists.size(); j++) {
+        responseList.set(j, lists.get(j).get(0));
+      }
+      for (int k = 0; k < candidatePairs.length; k++) {
+        candidateValues[k] = matches[k] != null && matches[k].foundOverlap 
+                ? matches[k].match : NO_CHOICE;
+        if (matches[k] != null && matches[k].bestFound) {
+          responseList.set((int) candidatePairs[k], matches[k].bestAnn);
         }
+      }
+      EvalStatsTagging es = new EvalStatsTagging4Rank(rank);
+      es.addTargets(keyAnns.size());
+      es.addResponses(responseList.size());
+      selectPairings(es, candidatePairs, candidateValues, haveStrictResponse, haveLenientResponse,
+              true, keyAnns.getDocument());
+      logger.debug("DEBUG: got stats for rank " + rank + ": " + es);
+      byRank.put(rank, es);
+    }
+  }
 
-        //add the new choice if any
-        if (choice != null) {
-          //System.out.println("DEBUG Adding choice: key="+debugAnnAsString(choice.getKey(),i)+" resp="+debugAnnAsString(choice.getResponse(),j)+" type="+choice.typeAsString());
-          addPairing(choice, i, keyChoices);
-          addPairing(choice, j, responseChoices);
-          possibleChoices.add(choice);
+  /**
+   * Select the pairings to use from all the candidate pairs which got a value and add the counts
+   * to the statistics.
+   *
+   * @param es the statistics to add the counts to
+   * @param candidatePairs the candidate pairs of keys and responses (or lists)
+   * @param candidateValues the value of each candidate pair, or NO_CHOICE
+   * @param haveStrictResponse for lists, which keys have a strict response in any list
+   * @param haveLenientResponse for lists, which keys have a lenient response in any list
+   * @param forLists if the responses are candidate lists
+   * @param doc the document of the annotations
+   */
+  private void selectPairings(EvalStatsTagging es, long[] candidatePairs, int[] candidateValues,
+          boolean[] haveStrictResponse, boolean[] haveLenientResponse, boolean forLists, 
+          Document doc) {
+    possibleChoices.clear();
+    //add the new choices, if any
+    for (int k = 0; k < candidatePairs.length; k++) {
+      int choice = candidateValues[k];
+      if (choice != NO_CHOICE) {
+        int i = (int) (candidatePairs[k] >>> 32);
+        // for lists, the flags have already been set while going through the candidates
+        if (!forLists) {
+          if (choice == CORRECT_VALUE || choice == MISMATCH_VALUE) {
+            haveStrictResponse[i] = true;
+          }
+          haveLenientResponse[i] = true;
         }
-      }//for j
-    }//for i
+        possibleChoices.add(i, (int) candidatePairs[k], choice);
+      }
+    }
 
     int nTargetsWithStrictResponses = 0;
     int nTargetsWithLenientResponses = 0;
@@ -1181,110 +1511,74 @@ public class AnnotationDifferTagging {
     
     //2) from all possible pairings, find the maximal set that also
     //maximises the total score
-    Collections.sort(possibleChoices, new PairingScoreComparator());
-    Collections.reverse(possibleChoices);
-    finalChoices = new ArrayList<Pairing>();
-
-    while (!possibleChoices.isEmpty()) {
-      Pairing bestChoice =  possibleChoices.remove(0);
-      // TODO: 
-      bestChoice.consume();
-      finalChoices.add(bestChoice);
-      switch (bestChoice.value) {
-        case CORRECT_VALUE: {
-          //logger.debug("DEBUG: add a correct strict one: "+bestChoice.getKey());
-          if (createAdditionalData) {
-            Annotation tmp = bestChoice.getResponse();
-            tmp.getFeatures().put("gate.plugin.evaluation.targetId", bestChoice.getKey().getId());
-            correctStrictAnns.add(tmp);
-          }
-          es.addCorrectStrict(1);
-          bestChoice.setPairingType(CORRECT_TYPE);
-          break;
-        }
-        case PARTIALLY_CORRECT_VALUE: {  // correct but only opverlap, not coextensive
-          //logger.debug("DEBUG: add a correct partial one: "+bestChoice.getKey());
-          if (createAdditionalData) {
-            Annotation tmp = bestChoice.getResponse();
-            tmp.getFeatures().put("gate.plugin.evaluation.targetId", bestChoice.getKey().getId());
-            correctPartialAnns.add(tmp);
-          }
-          es.addCorrectPartial(1);
-          bestChoice.setPairingType(PARTIALLY_CORRECT_TYPE);
-          break;
-        }
-        case MISMATCH_VALUE: { // coextensive and not correct
-          if (bestChoice.getKey() != null && bestChoice.getResponse() != null) {
-            es.addIncorrectStrict(1);
-            bestChoice.setPairingType(MISMATCH_TYPE);
-            if (createAdditionalData) {
-              Annotation tmp = bestChoice.getResponse();
-              tmp.getFeatures().put("gate.plugin.evaluation.targetId", bestChoice.getKey().getId());
-              incorrectStrictAnns.add(tmp);
-            }
-          } else if (bestChoice.getKey() != null) {
-            logger.debug("DEBUG: GOT a MISMATCH_VALUE (coext and not correct) with no key " + bestChoice);
-          } else if (bestChoice.getResponse() != null) {
-            logger.debug("DEBUG: GOT a MISMATCH_VALUE (coext and not correct) with no response " + bestChoice);
-          }
-          break;
-        }
-        case WRONG_VALUE: { // overlapping and not correct
-          if (bestChoice.getKey() != null && bestChoice.getResponse() != null) {
-            if(!bestChoice.getKey().overlaps(bestChoice.getResponse())) {
-              //System.err.println("ASSERTION ERROR: Key and Response do not overlap: key="+debugAnnAsString(bestChoice.getKey(),-1)+" resp="+debugAnnAsString(bestChoice.getResponse(),-1));
-            }
-            es.addIncorrectPartial(1);
-            if (createAdditionalData) {
-              Annotation tmp = bestChoice.getResponse();
-              tmp.getFeatures().put("gate.plugin.evaluation.targetId", bestChoice.getKey().getId());
-              incorrectPartialAnns.add(tmp);
-            }
-            bestChoice.setPairingType(MISMATCH_TYPE);
-          } else if (bestChoice.getKey() == null) {
-            // this is a responseAnns which overlaps with a keyAnns but does not have a keyAnns??
-            logger.debug("DEBUG: GOT a WRONG_VALUE (overlapping and not correct) with no key " + bestChoice);
-          } else if (bestChoice.getResponse() == null) {
-            logger.debug("DEBUG: GOT a WRONG_VALUE (overlapping and not correct) with no response " + bestChoice);
-          }
-          break;
-        }
-        default: {
-          throw new GateRuntimeException("Invalid pairing type: "
-                  + bestChoice.value);
-        }
+    final int nKeys = keyList.size();
+    final int nResponses = responseList.size();
+    possibleChoices.calculateScores(nKeys, nResponses);
+    possibleChoices.buildIndex(nKeys, nResponses);
+    // For lists, ties are broken on the offsets of the candidate currently chosen from each 
+    // list, not on the offsets of the list annotation
+    DocumentSpanSnapshot tieResponses = forLists 
+            ? new DocumentSpanSnapshot(responseList) : responseSpans;
+    int[] order = possibleChoices.greedyOrder(tieRanks(keySpans), tieRanks(tieResponses));
+    // the final choices only need to get stored if we create the additional data
+    PairingStore chosen = createAdditionalData ? new PairingStore(nKeys + nResponses) : null;
+    // Go through the choices, best first, and use each choice where neither the key nor the 
+    // response has already been used by a better choice. The choices which conflict with
+    // an earlier choice are simply skipped.
+    // If we use the optimal matching, or if there are enough pairings to select them for each
+    // connected component in parallel, the choices have already been selected, but we still
+    // process them in the same order. In the parallel case, the counts of the selected 
+    // pairings have also already been added for each component.
+    BitSet keyMatched = new BitSet(nKeys);
+    BitSet responseMatched = new BitSet(nResponses);
+    boolean[] selected = null;
+    EvalStatsTagging pairingStats = es;
+    if (PairingComponents.isWorthParallel(possibleChoices.size())) {
+      selected = selectByComponent(order, nKeys, nResponses, es);
+      pairingStats = null;
+    } else if (matchingStrategy == MatchingStrategy.OPTIMAL) {
+      selected = OptimalMatching.select(possibleChoices, nKeys, nResponses);
+    }
+
+    for (int p : order) {
+      int i = possibleChoices.getKeyIndex(p);
+      int j = possibleChoices.getResponseIndex(p);
+      if (selected != null && !selected[p]) {
+        continue;
+      }
+      if (keyMatched.get(i) || responseMatched.get(j)) {
+        continue;
+      }
+      keyMatched.set(i);
+      responseMatched.set(j);
+      int pairingType = countPairing(pairingStats, possibleChoices.getValue(p));
+      if (chosen != null) {
+        int c = chosen.add(i, j, possibleChoices.getValue(p));
+        chosen.setType(c, pairingType);
+        chosen.setScore(c, possibleChoices.getScore(p));
       }
     }
     //add choices for the incorrect matches (MISSED, SPURIOUS)
     //get the unmatched keys
-    for (int i = 0; i < keyChoices.size(); i++) {
-      List<Pairing> aList = keyChoices.get(i);
-      if (aList == null || aList.isEmpty()) {
+    for (int i = 0; i < nKeys; i++) {
+      if (!keyMatched.get(i)) {
         if (createAdditionalData) {
-          Annotation tmp = keyList.get(i);
-          tmp.getFeatures().put("gate.plugin.evaluation.targetId", tmp.getId());
-          trueMissingLenientAnns.add(tmp);
+          int c = chosen.add(i, -1, WRONG_VALUE);
+          chosen.setType(c, MISSING_TYPE);
         }
-        Pairing choice = new Pairing(i, -1, WRONG_VALUE);
-        choice.setPairingType(MISSING_TYPE);
-        finalChoices.add(choice);
       }
     }
 
     //get the unmatched responses
-    // In order to find overlaps between targets(keys) and spurious annotations, we need
-    // to store the spurious annotations in an actual annotation set
-    AnnotationSetImpl spuriousAnnSet = new AnnotationSetImpl(responseAnns.getDocument());
-    //spuriousAnnSet.clear();
-    for (int i = 0; i < responseChoices.size(); i++) {
-      List<Pairing> aList = responseChoices.get(i);
-      if (aList == null || aList.isEmpty()) {
+    // In order to find overlaps between targets(keys) and spurious annotations, we also
+    // remember the spurious annotations in a list
+    List<Annotation> spuriousAnns = new ArrayList<Annotation>();
+    for (int j = 0; j < nResponses; j++) {
+      if (!responseMatched.get(j)) {
         if (createAdditionalData) {
-          trueSpuriousLenientAnns.add(responseList.get(i));
-          spuriousAnnSet.add(responseList.get(i));
-          Pairing choice = new Pairing(-1, i, WRONG_VALUE);
-          choice.setPairingType(SPURIOUS_TYPE);
-          finalChoices.add(choice);
+          spuriousAnns.add(responseList.get(j));
+          int c = chosen.add(-1, j, WRONG_VALUE);
+          chosen.setType(c, SPURIOUS_TYPE);
         }
       }
     }
@@ -1293,45 +1587,313 @@ public class AnnotationDifferTagging {
     // target they have been matched to, then see if that target overlaps with a spurious annotation.
     // If not we can count it as a single correct annotation. This is done for correct strict and
     // correct lenient.
-    // We can only do this if we have the sets which will only happen if there is no scoreThreshold
+    // We can only do this if we keep the final pairings which will only happen if there is no scoreThreshold
+    BitSet singleCorrect = createAdditionalData ? new BitSet() : null;
     if (createAdditionalData) {
-      for (Pairing p : finalChoices) {
-        if (p.getPairingType() == CORRECT_TYPE) {
-          Annotation t = p.getKey();
-          AnnotationSet ol = gate.Utils.getOverlappingAnnotations(spuriousAnnSet, t);
-          if (ol.size() == 0) {
+      BitSet overlapsSpurious = findKeysOverlapping(keySpans, new DocumentSpanSnapshot(spuriousAnns));
+      for (int c = 0; c < chosen.size(); c++) {
+        if (chosen.getType(c) == CORRECT_TYPE) {
+          if (!overlapsSpurious.get(chosen.getKeyIndex(c))) {
             es.addSingleCorrectStrict(1);
-            singleCorrectStrictAnns.add(p.getResponse());
+            singleCorrect.set(c);
           }
-          //logger.debug("DEBUG have a correct strict choice, overlapping: "+ol.size()+" key is "+t);
-        } else if (p.getPairingType() == PARTIALLY_CORRECT_TYPE) {
-          Annotation t = p.getKey();
-          AnnotationSet ol = gate.Utils.getOverlappingAnnotations(spuriousAnnSet, t);
-          if (ol.size() == 0) {
+        } else if (chosen.getType(c) == PARTIALLY_CORRECT_TYPE) {
+          if (!overlapsSpurious.get(chosen.getKeyIndex(c))) {
             es.addSingleCorrectPartial(1);
-            singleCorrectPartialAnns.add(p.getResponse());
+            singleCorrect.set(c);
           }
-          //logger.debug("DEBUG have a correct partial choice, overlapping: "+ol.size()+" key is "+t);
         }
       }
     }
-    if (createAdditionalData) {
-      choices = finalChoices;
-    } else {
-      finalChoices = null;
-    }
-    // before we exit, make all the annotation sets we created immutable, if they are not already immutabe
-    // new ImmutableAnnotationSetImpl(doc, annotationsToAdd)
-    correctStrictAnns = new ImmutableAnnotationSetImpl(keyAnns.getDocument(), correctStrictAnns);
-    correctPartialAnns = new ImmutableAnnotationSetImpl(keyAnns.getDocument(), correctPartialAnns);
-    incorrectStrictAnns = new ImmutableAnnotationSetImpl(keyAnns.getDocument(), incorrectStrictAnns);
-    incorrectPartialAnns = new ImmutableAnnotationSetImpl(keyAnns.getDocument(), incorrectPartialAnns);
-    trueMissingLenientAnns = new ImmutableAnnotationSetImpl(keyAnns.getDocument(), trueMissingLenientAnns);
-    trueSpuriousLenientAnns = new ImmutableAnnotationSetImpl(keyAnns.getDocument(), trueSpuriousLenientAnns);
-    targetAnns = new ImmutableAnnotationSetImpl(keyAnns.getDocument(), targetAnns);
-    singleCorrectPartialAnns = new ImmutableAnnotationSetImpl(keyAnns.getDocument(), singleCorrectPartialAnns);
-    singleCorrectStrictAnns = new ImmutableAnnotationSetImpl(keyAnns.getDocument(), singleCorrectStrictAnns);
-    return es;
+    // the list of Pairing objects and the annotation sets are only created if somebody asks 
+    // for them
+    finalPairings = chosen;
+    finalChoices = null;
+    singleCorrectPairings = singleCorrect;
+    targetIds = null;
+    document = doc;
+    correctStrictAnns = null;
+    correctPartialAnns = null;
+    incorrectStrictAnns = null;
+    incorrectPartialAnns = null;
+    trueMissingLenientAnns = null;
+    trueSpuriousLenientAnns = null;
+    targetAnns = null;
+    singleCorrectPartialAnns = null;
+    singleCorrectStrictAnns = null;
+  }
+
+  /**
+   * Add a selected pairing with the given value to the counts of the statistics, if they are
+   * not null, and return the type of the pairing.
+   */
+  private static int countPairing(EvalStatsTagging es, int value) {
+    switch (value) {
+      case CORRECT_VALUE: {
+        if (es != null) {
+          es.addCorrectStrict(1);
+        }
+        return CORRECT_TYPE;
+      }
+      case PARTIALLY_CORRECT_VALUE: {  // correct but only opverlap, not coextensive
+        if (es != null) {
+          es.addCorrectPartial(1);
+        }
+        return PARTIALLY_CORRECT_TYPE;
+      }
+      case MISMATCH_VALUE: { // coextensive and not correct
+        if (es != null) {
+          es.addIncorrectStrict(1);
+        }
+        return MISMATCH_TYPE;
+      }
+      case WRONG_VALUE: { // overlapping and not correct
+        if (es != null) {
+          es.addIncorrectPartial(1);
+        }
+        return MISMATCH_TYPE;
+      }
+      default: {
+        throw new GateRuntimeException("Invalid pairing type: " + value);
+      }
+    }
+  }
+
+  /**
+   * Return the value of pairing a key with a (single) response annotation, or NO_CHOICE if
+   * the two annotations are neither coextensive nor overlapping. The key and response snapshots
+   * must be the ones last encoded by the matcher.
+   */
+  static int pairingValue(DocumentSpanSnapshot keys, int i, DocumentSpanSnapshot responses, int j,
+          FeatureMatcher matcher) {
+    if (keys.isCoextensive(i, responses, j)) {
+      //we have full overlap -> CORRECT or WRONG
+      if (matcher.isMatch(i, j)) {
+        //we have a full match
+        return CORRECT_VALUE;
+      } else {
+        //the two annotations are coextensive but don't match
+        //we have a missmatch
+        return MISMATCH_VALUE;
+      }
+    } else if (keys.isOverlapping(i, responses, j)) {
+      //we have partial overlap -> PARTIALLY_CORRECT or WRONG
+      if (matcher.isMatch(i, j)) {
+        return PARTIALLY_CORRECT_VALUE;
+      } else {
+        return WRONG_VALUE;
+      }
+    }
+    return NO_CHOICE;
+  }
+
+  /**
+   * Select the pairings to use, processing the connected components of the possible pairings
+   * in parallel.
+   * <p>
+   * For the greedy strategy, each component goes through its own pairings in the given order,
+   * which selects exactly the same pairings as going through all the pairings in that order.
+   * For the optimal strategy, each component is matched on its own anyway.
+   *
+   * <p>
+   * The counts of the selected pairings are accumulated separately for each range of components
+   * which gets processed together and then merged into the given statistics.
+   *
+   * @param order the order of the pairings for the greedy assignment
+   * @param nKeys number of keys
+   * @param nResponses number of responses
+   * @param es the statistics to add the counts of the selected pairings to
+   * @return for each pairing, if it has been selected
+   */
+  private boolean[] selectByComponent(int[] order, int nKeys, int nResponses, 
+          final EvalStatsTagging es) {
+    final int n = possibleChoices.size();
+    final int[] keys = new int[n];
+    final int[] responses = new int[n];
+    final int[] values = new int[n];
+    for (int p = 0; p < n; p++) {
+      keys[p] = possibleChoices.getKeyIndex(p);
+      responses[p] = possibleChoices.getResponseIndex(p);
+      values[p] = possibleChoices.getValue(p);
+    }
+    final boolean optimal = matchingStrategy == MatchingStrategy.OPTIMAL;
+    // The optimal matching uses the pairings in the order of their index, just like
+    // OptimalMatching.select, so that ties are broken the same way in both cases
+    final PairingComponents components
+            = new PairingComponents(keys, responses, optimal ? null : order, n, nKeys, nResponses);
+    final boolean[] selected = new boolean[n];
+    // Since components never share a key or response, these arrays can be used by all
+    // components at the same time
+    final boolean[] keyUsed = optimal ? null : new boolean[nKeys];
+    final boolean[] responseUsed = optimal ? null : new boolean[nResponses];
+    final int[] localKeys = optimal ? new int[nKeys] : null;
+    final int[] localResponses = optimal ? new int[nResponses] : null;
+    if (optimal) {
+      Arrays.fill(localKeys, -1);
+      Arrays.fill(localResponses, -1);
+    }
+    components.process(new PairingComponents.Task() {
+      @Override
+      public void process(int first, int end) {
+        if (optimal) {
+          for (int c = first; c < end; c++) {
+            OptimalMatching.matchComponent(components.getMembers(),
+                    components.getFrom(c), components.getFrom(c + 1),
+                    keys, responses, values, localKeys, localResponses, selected);
+          }
+        } else {
+          for (int pos = components.getFrom(first); pos < components.getFrom(end); pos++) {
+            int p = components.getMember(pos);
+            if (!keyUsed[keys[p]] && !responseUsed[responses[p]]) {
+              keyUsed[keys[p]] = true;
+              responseUsed[responses[p]] = true;
+              selected[p] = true;
+            }
+          }
+        }
+        EvalStatsTagging componentStats = new EvalStatsTagging4Score();
+        for (int pos = components.getFrom(first); pos < components.getFrom(end); pos++) {
+          int p = components.getMember(pos);
+          if (selected[p]) {
+            countPairing(componentStats, values[p]);
+          }
+        }
+        synchronized (es) {
+          es.add(componentStats);
+        }
+      }
+    });
+    return selected;
+  }
+
+  /**
+   * Find the keys which overlap with at least one of the given annotations.
+   * <p>
+   * This uses the same notion of overlap as {@link AnnotationSet#get(Long, Long)}: an annotation
+   * overlaps the key if it starts before the key and ends after the start of the key, or if it
+   * starts at or after the start of the key and before the end of the key, or at the start of
+   * the key if the key has length zero. Instead of querying an annotation set for each key, 
+   * this does a single sweep over the keys and the annotations sorted by start offset, keeping
+   * track of the largest end offset of all annotations which start before the current key.
+   *
+   * @param keys the key annotations, sorted by start offset
+   * @param anns the annotations to check for overlaps, in any order
+   * @return the indices of all keys which overlap with at least one annotation
+   */
+  static BitSet findKeysOverlapping(DocumentSpanSnapshot keys, DocumentSpanSnapshot anns) {
+    BitSet ret = new BitSet(keys.size());
+    if (anns.size() == 0) {
+      return ret;
+    }
+    final int n = anns.size();
+    int[] byStart = anns.startOrder();
+    int m = 0;
+    long maxEnd = Long.MIN_VALUE;
+    for (int i = 0; i < keys.size(); i++) {
+      long keyStart = keys.getStart(i);
+      long keyEnd = keys.getEnd(i);
+      while (m < n && anns.getStart(byStart[m]) < keyStart) {
+        maxEnd = Math.max(maxEnd, anns.getEnd(byStart[m]));
+        m++;
+      }
+      // AnnotationSet#get widens a zero-length interval by one, so for a zero-length key the
+      // annotations which start at the key are overlapping too
+      boolean startsInside = m < n && (keyStart == keyEnd 
+              ? anns.getStart(byStart[m]) <= keyEnd : anns.getStart(byStart[m]) < keyEnd);
+      if (maxEnd > keyStart || startsInside) {
+        ret.set(i);
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Find all pairs of key and response indices where the spans could overlap or be coextensive.
+   * <p>
+   * This does a sweep over the key and response annotations sorted by start offset and only
+   * returns pairs where the response starts before or at the end of the key and ends at or after
+   * the start of the key. This is a superset of the pairs where the annotations overlap or are 
+   * coextensive (zero-length annotations are coextensive but do not overlap), so the caller 
+   * still has to do the exact check. 
+   * <p>
+   * Each pair is encoded as a long with the key index in the upper and the response index in 
+   * the lower 32 bits and the array is sorted, so the pairs are ordered by key index first and 
+   * response index second, exactly like a nested loop over all keys and responses.
+   *
+   * @param keys the key annotations
+   * @param responses the response annotations
+   * @return the sorted array of encoded pairs
+   */
+  static long[] findCandidatePairs(DocumentSpanSnapshot keys, DocumentSpanSnapshot responses) {
+    final int nKeys = keys.size();
+    final int nResponses = responses.size();
+    if (nKeys == 0 || nResponses == 0) {
+      return new long[0];
+    }
+    final long[] keyStarts = keys.getStarts();
+    final long[] keyEnds = keys.getEnds();
+    final long[] resStarts = responses.getStarts();
+    final long[] resEnds = responses.getEnds();
+    int[] keyOrder = keys.startOrder();
+    int[] resOrder = responses.startOrder();
+    
+    // the keys and responses which start before the current position and have not yet been 
+    // found to end before it
+    int[] activeKeys = new int[16];
+    int nActiveKeys = 0;
+    int[] activeResponses = new int[16];
+    int nActiveResponses = 0;
+    
+    long[] pairs = new long[Math.max(16, Math.max(nKeys, nResponses))];
+    int nPairs = 0;
+    
+    int k = 0;
+    int r = 0;
+    while (k < nKeys || r < nResponses) {
+      // if both start at the same offset, process the key first
+      if (r == nResponses || (k < nKeys && keyStarts[keyOrder[k]] <= resStarts[resOrder[r]])) {
+        int i = keyOrder[k++];
+        long start = keyStarts[i];
+        int kept = 0;
+        for (int a = 0; a < nActiveResponses; a++) {
+          int j = activeResponses[a];
+          if (resEnds[j] >= start) {
+            activeResponses[kept++] = j;
+            if (nPairs == pairs.length) {
+              pairs = Arrays.copyOf(pairs, pairs.length * 2);
+            }
+            pairs[nPairs++] = (((long) i) << 32) | j;
+          }
+        }
+        nActiveResponses = kept;
+        if (nActiveKeys == activeKeys.length) {
+          activeKeys = Arrays.copyOf(activeKeys, activeKeys.length * 2);
+        }
+        activeKeys[nActiveKeys++] = i;
+      } else {
+        int j = resOrder[r++];
+        long start = resStarts[j];
+        int kept = 0;
+        for (int a = 0; a < nActiveKeys; a++) {
+          int i = activeKeys[a];
+          if (keyEnds[i] >= start) {
+            activeKeys[kept++] = i;
+            if (nPairs == pairs.length) {
+              pairs = Arrays.copyOf(pairs, pairs.length * 2);
+            }
+            pairs[nPairs++] = (((long) i) << 32) | j;
+          }
+        }
+        nActiveKeys = kept;
+        if (nActiveResponses == activeResponses.length) {
+          activeResponses = Arrays.copyOf(activeResponses, activeResponses.length * 2);
+        }
+        activeResponses[nActiveResponses++] = j;
+      }
+    }
+    long[] ret = Arrays.copyOf(pairs, nPairs);
+    Arrays.sort(ret);
+    return ret;
   }
 
   /**
@@ -1415,33 +1977,18 @@ public class AnnotationDifferTagging {
     }
   }
 
-  /**
-   * Adds a new pairing to the internal data structures.
-   *
-   * @param pairing the pairing to be added
-   * @param index the index in the list of pairings
-   * @param listOfPairings the list of {@link Pairing}s where the pairing should be added
-   */
-  protected void addPairing(Pairing pairing, int index, List<List<Pairing>> listOfPairings) {
-    List<Pairing> existingChoices = listOfPairings.get(index);
-    if (existingChoices == null) {
-      existingChoices = new ArrayList<Pairing>();
-      listOfPairings.set(index, existingChoices);
-    }
-    existingChoices.add(pairing);
-  }
-
   /**
    * Represents a pairing of a key annotation with a response annotation and the associated score
    * for that pairing.
    */
   public class Pairing {
 
-    Pairing(int keyIndex, int responseIndex, int value) {
+    Pairing(int keyIndex, int responseIndex, int value, int type, int score) {
       this.keyIndex = keyIndex;
       this.responseIndex = responseIndex;
       this.value = value;
-      scoreCalculated = false;
+      this.type = type;
+      this.score = score;
     }
 
     /**
@@ -1507,12 +2054,7 @@ public class AnnotationDifferTagging {
      * @return TODO
      */
     public int getScore() {
-      if (scoreCalculated) {
-        return score;
-      } else {
-        calculateScore();
-        return score;
-      }
+      return score;
     }
 
     /**
@@ -1562,60 +2104,6 @@ public class AnnotationDifferTagging {
       this.type = type;
     }
 
-    /**
-     * Removes all mutually exclusive OTHER choices possible from the data structures.
-     * <tt>this</tt> gets removed from {@link #possibleChoices} as well.
-     */
-    public void consume() {
-      possibleChoices.remove(this);
-      List<Pairing> sameKeyChoices = keyChoices.get(keyIndex);
-      sameKeyChoices.remove(this);
-      possibleChoices.removeAll(sameKeyChoices);
-
-      List<Pairing> sameResponseChoices = responseChoices.get(responseIndex);
-      sameResponseChoices.remove(this);
-      possibleChoices.removeAll(sameResponseChoices);
-
-      for (Pairing item : new ArrayList<Pairing>(sameKeyChoices)) {
-        item.remove();
-      }
-      for (Pairing item : new ArrayList<Pairing>(sameResponseChoices)) {
-        item.remove();
-      }
-      sameKeyChoices.add(this);
-      sameResponseChoices.add(this);
-    }
-
-    /**
-     * Removes this choice from the two lists it belongs to
-     */
-    public void remove() {
-      List<Pairing> fromKey = keyChoices.get(keyIndex);
-      fromKey.remove(this);
-      List<Pairing> fromResponse = responseChoices.get(responseIndex);
-      fromResponse.remove(this);
-    }
-
-    /**
-     * Calculates the score for this choice as: pairing-type - sum of all the pairing-types of all
-     * OTHER mutually exclusive choices
-     */
-    void calculateScore() {
-      //this needs to be a set so we don't count conflicts twice
-      Set<Pairing> conflictSet = new HashSet<Pairing>();
-      //add all the choices from the same response annotation
-      conflictSet.addAll(responseChoices.get(responseIndex));
-      //add all the choices from the same key annotation
-      conflictSet.addAll(keyChoices.get(keyIndex));
-      //remove this choice from the conflict set
-      conflictSet.remove(this);
-      score = value;
-      for (Pairing item : conflictSet) {
-        score -= item.getValue();
-      }
-      scoreCalculated = true;
-    }
-
     /**
      * The index in the key collection of the key annotation for this pairing
      */
@@ -1639,68 +2127,26 @@ public class AnnotationDifferTagging {
      * The score of this pairing (calculated based on value and conflict set).
      */
     int score;
-    boolean scoreCalculated;
   }
 
   /**
-   * Compares two pairings: the better score is preferred; for the same score the better type is
-   * preferred (exact matches are preffered to partial ones).
+   * Return the rank of each annotation of the snapshot in the order used to break ties
+   * between pairings with the same score: annotations with a higher start offset, then a
+   * higher end offset, then a higher id come first.
+   *
+   * @param anns the key or response annotations
+   * @return for each annotation index, its rank
    */
-  protected static class PairingScoreComparator implements Comparator<Pairing> {
-
-    /**
-     * Compares two choices: the better score is preferred; for the same score the better type is
-     * preferred (exact matches are preffered to partial ones).
-     *
-     * @return a positive value if the first pairing is better than the second, zero if they score
-     * the same or negative otherwise.
-     */
-    @Override
-    public int compare(Pairing first, Pairing second) {
-      //compare by score
-      int res = first.getScore() - second.getScore();
-      //compare by type
-      if (res == 0) {
-        res = first.getPairingType() - second.getPairingType();
-      }
-      //compare by completeness (a wrong match with both key and response
-      //is "better" than one with only key or response
-      if (res == 0) {
-        res = (first.getKey() == null ? 0 : 1)
-                + (first.getResponse() == null ? 0 : 1)
-                + (second.getKey() == null ? 0 : -1)
-                + (second.getResponse() == null ? 0 : -1);
-      }
-      if (res == 0) {
-        // compare the offsets or the responses
-        if(first.getResponse() != null && second.getResponse() != null) {
-          res = first.getResponse().getStartNode().getOffset().compareTo(second.getResponse().getStartNode().getOffset());
-          if(res == 0) {
-            res = first.getResponse().getEndNode().getOffset().compareTo(second.getResponse().getEndNode().getOffset());
-          }
-          // if still equal, compare the annotation ids
-          if(res == 0) {
-            res = first.getResponse().getId().compareTo(second.getResponse().getId());
-          }
-        }        
-      }
-      if (res == 0) {
-        // compare the offsets or the keys
-        if(first.getKey() != null && second.getKey() != null) {
-          res = first.getKey().getStartNode().getOffset().compareTo(second.getKey().getStartNode().getOffset());
-          if(res == 0) {
-            res = first.getKey().getEndNode().getOffset().compareTo(second.getKey().getEndNode().getOffset());
-          }
-          // if still equal, compare the annotation ids
-          if(res == 0) {
-            res = first.getKey().getId().compareTo(second.getKey().getId());
-          }
-        }
-      }
-      return res;
-    }
+  private static int[] tieRanks(DocumentSpanSnapshot anns) {
+    return PairingStore.tieRanks(anns.getStarts(), anns.getEnds(), anns.getIds());
   }
 
+  /**
+   * The name of the feature which {@link #addTargetIdFeatures()} sets to the id of the target
+   * (key) annotation.
+   */
+  public static final String TARGET_ID_FEATURE = "gate.plugin.evaluation.targetId";
+
   /**
    * Type for correct pairings (when the key and response match completely)
    */
@@ -1731,22 +2177,27 @@ public class AnnotationDifferTagging {
   /**
    * Score for a correct pairing.
    */
-  private static final int CORRECT_VALUE = 3;
+  static final int CORRECT_VALUE = 3;
 
   /**
    * Score for a partially correct pairing.
    */
-  private static final int PARTIALLY_CORRECT_VALUE = 2;
+  static final int PARTIALLY_CORRECT_VALUE = 2;
 
   /**
    * Score for a mismatched pairing (higher then for WRONG as at least the offsets were right).
    */
-  private static final int MISMATCH_VALUE = 1;
+  static final int MISMATCH_VALUE = 1;
 
   /**
    * Score for a wrong (missing or spurious) pairing.
    */
-  private static final int WRONG_VALUE = 0;
+  static final int WRONG_VALUE = 0;
+
+  /**
+   * Used while looking for pairings if a key and response cannot be paired at all.
+   */
+  private static final int NO_CHOICE = -1;
 
   /**
    * A list with all the key annotations
@@ -1759,29 +2210,133 @@ public class AnnotationDifferTagging {
   protected List<Annotation> responseList;
 
   /**
-   * A list of lists representing all possible choices for each key
+   * The spans, ids and types of the key annotations, in the same order as the keyList.
+   */
+  private DocumentSpanSnapshot keySpans;
+
+  /**
+   * The spans, ids and types of the response annotations, in the same order as the 
+   * responseList. For list evaluation, this has the spans of the list annotations.
    */
-  protected List<List<Pairing>> keyChoices;
+  private DocumentSpanSnapshot responseSpans;
 
   /**
-   * A list of lists representing all possible choices for each response
+   * All the possible choices, this is re-used for each calculation.
    */
-  protected List<List<Pairing>> responseChoices;
+  private PairingStore possibleChoices;
 
   /**
-   * All the posible choices are added to this list for easy iteration.
+   * The choices selected for the best result, or null if the choices were not kept.
    */
-  protected List<Pairing> possibleChoices;
+  private PairingStore finalPairings;
 
   /**
-   * A list with the choices selected for the best result.
+   * A list with the choices selected for the best result, only created when needed.
    */
   protected List<Pairing> finalChoices;
 
+  /**
+   * Return the choices selected for the best result. This includes the missing and spurious
+   * choices. This returns null if the choices have not been kept because the object was 
+   * used internally for calculating statistics only.
+   *
+   * @return list of pairings
+   */
   public List<Pairing> getFinalChoices() {
+    if (finalChoices == null && finalPairings != null) {
+      List<Pairing> tmp = new ArrayList<Pairing>(finalPairings.size());
+      for (int c = 0; c < finalPairings.size(); c++) {
+        tmp.add(new Pairing(finalPairings.getKeyIndex(c), finalPairings.getResponseIndex(c),
+                finalPairings.getValue(c), finalPairings.getType(c), finalPairings.getScore(c)));
+      }
+      finalChoices = tmp;
+    }
     return finalChoices;
   }
 
+  /**
+   * The best match found so far between a key and the candidates of a candidate list. 
+   * The candidates get added in the order of the list, until all visible candidates have been 
+   * added or {@link #isDone()} returns true, because a candidate that matches the key 
+   * exactly has been found. Since adding the candidates up to some rank always gives the same
+   * state, no matter if they are added all at once or a few at a time, this can be used to
+   * find the matches for increasing ranks without looking at any candidate twice.
+   */
+  private static class ListMatch {
+    int match = WRONG_VALUE;
+    Annotation bestAnn;
+    // if bestAnn has been set to one of the candidates
+    boolean bestFound = false;
+    boolean foundOverlap = false;
+    // the number of candidates added so far
+    int added = 0;
+    private boolean done = false;
+
+    ListMatch(Annotation bestAnn) {
+      this.bestAnn = bestAnn;
+    }
+
+    boolean isDone() {
+      return done;
+    }
+
+    /**
+     * Compare the next candidate of the list with key i and update the best match, and the 
+     * flags that key i has a strict or lenient response.
+     */
+    void add(Annotation keyAnn, int i, Annotation cand, 
+            boolean[] haveStrictResponse, boolean[] haveLenientResponse,
+            Set<String> features, FeatureComparison fcmp, AnnotationTypeSpecs typeSpecs) {
+      added++;
+      if (isAnnotationsMatch(keyAnn, cand, features, fcmp, true, typeSpecs)) {
+        // if we are coextensive, then we can stop: can't get any better!
+        if (keyAnn.coextensive(cand)) {
+          //logger.debug("Found correct match!!");
+          match = CORRECT_VALUE;
+          bestAnn = cand;
+          bestFound = true;
+          foundOverlap = true;
+          haveStrictResponse[i]=true;
+          haveLenientResponse[i]=true;
+          done = true;
+        } else {
+          //logger.debug("Found a partial match, checking if we can add!");
+          // if we did not already find a match, store
+          if (match == WRONG_VALUE || match == MISMATCH_VALUE) {
+            //logger.debug("Found a partial match and adding!");
+            match = PARTIALLY_CORRECT_VALUE;
+            bestAnn = cand;
+            bestFound = true;
+            foundOverlap = true;
+            haveLenientResponse[i]=true;
+          }
+        }
+      } else if(keyAnn.coextensive(cand)) {
+        if(match == WRONG_VALUE) {
+          foundOverlap = true;
+          bestAnn = cand;
+          bestFound = true;
+          match = MISMATCH_VALUE;
+          //logger.debug("Found a MISMATCH");
+        }
+        haveStrictResponse[i]=true;
+        haveLenientResponse[i]=true;
+      } else if(keyAnn.overlaps(cand)) {
+        match = WRONG_VALUE;
+        haveLenientResponse[i]=true;
+        foundOverlap = true;
+      } else {
+        logger.debug("DEBUG: candidate does not overlap the key, match is " + match);
+        // if we get here then 
+        // = there is certainly no match
+        // = the annotation may be overlapping, or if it is coextensive, than
+        //   we already found a coextensive one which is no match previously.
+        // we have to continue until we either find a beter match or are done.
+        //logger.debug("Found ODD: match=" + match);
+      }
+    }
+  }
+
   /**
    * A class to represent a candidate list as we need it for our evaluation. The original candidate
    * lists may be unsorted or sorted by a key which is different from the score we want to use. This
@@ -1840,18 +2395,47 @@ public class AnnotationDifferTagging {
           }
         }
         if (this.scoreFeature != null) {
-          ByScoreComparator comp = new ByScoreComparator(scoreFeature);
-          Collections.sort(cands, comp);
+          sortByScore();
           logger.debug("DEBUG: cands sorted, is now " + cands);
         }
         theSize = cands.size();
       } else {
         theSize = 0;
         cands = new ArrayList<Annotation>(0);
+        if (this.scoreFeature != null) {
+          scores = new double[0];
+        }
       }
     }
     private int theSize = 0;
 
+    /**
+     * Get the score of each candidate only once and sort the candidates by decreasing score.
+     * The sort is stable, so candidates with the same score keep their order.
+     */
+    private void sortByScore() {
+      final int n = cands.size();
+      final double[] unsorted = new double[n];
+      Integer[] order = new Integer[n];
+      for (int i = 0; i < n; i++) {
+        unsorted[i] = object2Double(cands.get(i).getFeatures().get(scoreFeature));
+        order[i] = i;
+      }
+      Arrays.sort(order, new Comparator<Integer>() {
+        @Override
+        public int compare(Integer o1, Integer o2) {
+          return Double.compare(unsorted[o2], unsorted[o1]);
+        }
+      });
+      List<Annotation> sorted = new ArrayList<Annotation>(n);
+      scores = new double[n];
+      for (int i = 0; i < n; i++) {
+        sorted.add(cands.get(order[i]));
+        scores[i] = unsorted[order[i]];
+      }
+      cands = sorted;
+    }
+
     /**
      * Current visible size of the list, depending onthe threshold that has been set.
      * After initialization it is the number of all candidates that were annotations (ids which
@@ -1878,6 +2462,9 @@ public class AnnotationDifferTagging {
 
     private String scoreFeature;
     private List<Annotation> cands;
+    // the scores of the candidates, in the same order as the candidates, null if there is 
+    // no score feature
+    private double[] scores;
     private Annotation listAnn;
     private String type;
 
@@ -1894,34 +2481,47 @@ public class AnnotationDifferTagging {
       if (th == currentThreshold) {
         return;
       }
-      // if th > currentThreshold, then we need to reduce the size of the visible candidates
-      // by excluding those which have a score < the new threshold
-      // if th < currentThreshold, then we need to increase the size of the visible candidates
-      // by including those which have a score >= the new threshold
-      int newSize = size();
-      if (th < currentThreshold) {
-        for (int i = this.size(); i < cands.size(); i++) {
-          double sc = object2Double(cands.get(i).getFeatures().get(scoreFeature));
-          if (sc >= th) {
-            newSize = i;
-          } else {
-            break;
-          }
-        }
-      } else if (th > currentThreshold) {
-        for (int i = this.size() - 1; i >= 0; i--) {
-          double sc = object2Double(cands.get(i).getFeatures().get(scoreFeature));
-          if (sc < th) {
-            newSize = i;
-          } else {
-            break;
-          }
+      // the scores are sorted in decreasing order, so the visible candidates are all the 
+      // candidates before the first one with a score < the new threshold, no matter if 
+      // the threshold goes up or down
+      int lo = 0;
+      int hi = scores.length;
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if (scores[mid] < th) {
+          hi = mid;
+        } else {
+          lo = mid + 1;
         }
       }
-      theSize = newSize;
+      theSize = lo;
       currentThreshold = th;
     }
 
+    /**
+     * Set the same score threshold for all the given candidate lists.
+     *
+     * @param lists the candidate lists
+     * @param th the score threshold
+     */
+    public static void setThreshold(List<CandidateList> lists, double th) {
+      for (CandidateList list : lists) {
+        list.setThreshold(th);
+      }
+    }
+
+    /**
+     * Set the same rank limit for all the given candidate lists.
+     *
+     * @param lists the candidate lists
+     * @param rank the rank
+     */
+    public static void setRank(List<CandidateList> lists, int rank) {
+      for (CandidateList list : lists) {
+        list.setRank(rank);
+      }
+    }
+
     public void setRank(int rank) {
       if (rank >= cands.size()) {
         theSize = cands.size();
@@ -1930,6 +2530,9 @@ public class AnnotationDifferTagging {
       } else {
         theSize = rank + 1;
       }
+      // the size no longer corresponds to any threshold, NaN never compares equal so the next
+      // setThreshold always recalculates the size
+      currentThreshold = Double.NaN;
     }
 
     /**
@@ -1948,6 +2551,22 @@ public class AnnotationDifferTagging {
       return cands.get(index);
     }
 
+    /**
+     * Return the score of the candidate at the given index.
+     *
+     * @param index index of the candidate, must be less than the current size
+     * @return the score of the candidate, NaN if the candidate does not have a score
+     */
+    public double getScore(int index) {
+      if (scoreFeature == null) {
+        throw new GateRuntimeException("getScore can only be used if there is a score feature!");
+      }
+      if (index >= theSize) {
+        throw new GateRuntimeException("Attempt to access element larger than the currently set size");
+      }
+      return scores[index];
+    }
+
     public List<Annotation> getList() {
       List<Annotation> ret = new ArrayList<Annotation>();
       for (int i = 0; i < theSize; i++) {
@@ -1959,23 +2578,6 @@ public class AnnotationDifferTagging {
     public Annotation getListAnnotation() {
       return listAnn;
     }
-
-    protected static class ByScoreComparator implements Comparator<Annotation> {
-
-      private String scoreFeature;
-
-      public ByScoreComparator(String fn) {
-        scoreFeature = fn;
-      }
-
-      @Override
-      public int compare(Annotation o1, Annotation o2) {
-        double s1 = object2Double(o1.getFeatures().get(scoreFeature));
-        double s2 = object2Double(o2.getFeatures().get(scoreFeature));
-        return Double.compare(s2, s1);
-      }
-
-    }
   }
 
   public static double object2Double(Object tmp) {
@@ -2065,9 +2667,14 @@ public class AnnotationDifferTagging {
     return tmpSet;
   }
 
-  private static void addAnnsWithTypeSuffix(AnnotationSet outSet, Collection<Annotation> inAnns, String suffix, String changeInd) {
+  private static void addAnnsWithTypeSuffix(AnnotationSet outSet, Collection<Annotation> inAnns, 
+          String suffix, String changeInd, Map<Integer, Integer> targetIds) {
     for (Annotation ann : inAnns) {
       FeatureMap fm = gate.Utils.toFeatureMap(ann.getFeatures());
+      Integer targetId = targetIds.get(ann.getId());
+      if (targetId != null) {
+        fm.put(TARGET_ID_FEATURE, targetId);
+      }
       if (changeInd != null && !changeInd.isEmpty()) {
         fm.put("_eval.change", changeInd);
       }
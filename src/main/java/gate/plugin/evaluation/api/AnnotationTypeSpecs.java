@@ -20,6 +20,9 @@
 
 package gate.plugin.evaluation.api;
 
+import gate.Annotation;
+import gate.AnnotationSet;
+import gate.annotation.ImmutableAnnotationSetImpl;
 import gate.util.GateRuntimeException;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -64,6 +67,8 @@ public class AnnotationTypeSpecs {
         seen.add(r);
         AnnotationTypeSpec as = new AnnotationTypeSpec(k, r);
         specs.add(as);
+        keyType2index.put(k, specs.size() - 1);
+        responseType2index.put(r, specs.size() - 1);
         key2response.put(k, r);
         response2key.put(r, k);
         keyTypes.add(k);
@@ -76,6 +81,9 @@ public class AnnotationTypeSpecs {
   private final List<String> keyTypes = new ArrayList<String>();
   private final Map<String, String> key2response = new HashMap<String, String>();
   private final Map<String, String> response2key = new HashMap<String, String>();
+  // the index of the spec for each key and response type
+  private final Map<String, Integer> keyType2index = new HashMap<String, Integer>();
+  private final Map<String, Integer> responseType2index = new HashMap<String, Integer>();
 
   public List<AnnotationTypeSpec> getSpecs() {
     return specs;
@@ -99,6 +107,36 @@ public class AnnotationTypeSpecs {
   
   public int size() { return specs.size(); }
   
+  /**
+   * Split the annotations of a set by type. 
+   * This goes through the set just once and creates, for each of the specs, an immutable set of 
+   * the annotations which have the key type (or response type) of the spec. All other 
+   * annotations are ignored. This is cheaper than getting the annotations of each type from the
+   * set separately, which creates a new set with its own indices for each type.
+   * 
+   * @param set the annotation set to split
+   * @param isResponse if true, use the response types, otherwise the key types
+   * @return a list with the annotation set for each spec, in the same order as the specs
+   */
+  public List<AnnotationSet> splitByType(AnnotationSet set, boolean isResponse) {
+    Map<String, Integer> type2index = isResponse ? responseType2index : keyType2index;
+    List<List<Annotation>> parts = new ArrayList<List<Annotation>>(specs.size());
+    for (int i = 0; i < specs.size(); i++) {
+      parts.add(new ArrayList<Annotation>());
+    }
+    for (Annotation ann : set) {
+      Integer index = type2index.get(ann.getType());
+      if (index != null) {
+        parts.get(index).add(ann);
+      }
+    }
+    List<AnnotationSet> ret = new ArrayList<AnnotationSet>(specs.size());
+    for (List<Annotation> part : parts) {
+      ret.add(new ImmutableAnnotationSetImpl(set.getDocument(), part));
+    }
+    return ret;
+  }
+  
   @Override
   public String toString() {
     return specs.toString();
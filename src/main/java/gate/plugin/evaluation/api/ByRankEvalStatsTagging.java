@@ -20,8 +20,8 @@
 package gate.plugin.evaluation.api;
 
 import gate.util.GateRuntimeException;
-import gate.util.MethodNotImplementedException;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Map;
 import java.util.NavigableMap;
@@ -33,6 +33,9 @@ import java.util.TreeSet;
 
 /**
  * A data structure that contains evaluation statistics by a score threshold. 
+ * The collection views and the maps returned by methods like headMap are unmodifiable,
+ * so the map can only get changed by its own methods, which reset the cached curve measures.
+ * 
  * @author Johann Petrak
  */
 /*
@@ -56,6 +59,8 @@ public class ByRankEvalStatsTagging implements NavigableMap<Integer,EvalStatsTag
   protected NavigableMap<Integer,EvalStatsTagging4Rank> byRankEvalStats = new TreeMap<Integer,EvalStatsTagging4Rank>();
   protected ThresholdsOrRanksToUse whichThresholds = ThresholdsOrRanksToUse.USE_RANKS_ALL;
   public ThresholdsOrRanksToUse getWhichThresholds() { return whichThresholds; }
+  // the measures of the curve, null if they need to get calculated again
+  protected PRCurveMeasures curveMeasures = null;
   
 
   /**
@@ -77,6 +82,7 @@ public class ByRankEvalStatsTagging implements NavigableMap<Integer,EvalStatsTag
   }
   
   public void set(Integer rank, EvalStatsTagging other) {
+    curveMeasures = null;
     if(other instanceof EvalStatsTagging4Rank) {
       byRankEvalStats.put(rank, (EvalStatsTagging4Rank)other);
     } else {
@@ -115,6 +121,7 @@ public class ByRankEvalStatsTagging implements NavigableMap<Integer,EvalStatsTag
   }
   
   public void add(ByRankEvalStatsTagging other, boolean cumulative) {
+    curveMeasures = null;
     if(!this.whichThresholds.equals(other.whichThresholds)) {
       System.err.println("SERIOUS WARNING Cannot add if the thresholds settings do not match this="+this.whichThresholds+" other="+other.whichThresholds);
     }
@@ -173,25 +180,55 @@ public class ByRankEvalStatsTagging implements NavigableMap<Integer,EvalStatsTag
     }
   }
   
+  /**
+   * Return the measures of the P/R curve over all ranks. These get calculated in one pass
+   * from the lowest to the highest rank when first needed after this object has been changed
+   * with one of its methods. Changes made directly to the EvalStatsTagging4Rank objects 
+   * in this map are not noticed.
+   * 
+   * @return the curve measures
+   */
+  public PRCurveMeasures getPRCurveMeasures() {
+    if(curveMeasures == null) {
+      PRCurveMeasures measures = new PRCurveMeasures(byRankEvalStats.size());
+      for(Map.Entry<Integer,EvalStatsTagging4Rank> entry : byRankEvalStats.entrySet()) {
+        measures.add(entry.getKey(), entry.getValue());
+      }
+      measures.finish();
+      curveMeasures = measures;
+    }
+    return curveMeasures;
+  }
+  
   // we also remember the thresholds for which we get the highest F strict and the highest F lenient
   public double highestFMeasureLenientThreshold() {
-    // TODO
-    throw new MethodNotImplementedException();
+    return getPRCurveMeasures().getHighestFMeasureLenientAt();
   }
   public double highestFMeasureStrictThreshold() {
-    // TODO
-    throw new MethodNotImplementedException();
+    return getPRCurveMeasures().getHighestFMeasureStrictAt();
   }
   
   // we should also provide a way to calculate the area under the P/R curve for strict and lenient
   // precision/recall curves
   public double areaUnderPRLenient() {
-    // TODO
-    throw new MethodNotImplementedException();
+    return getPRCurveMeasures().getAreaUnderPRLenient();
   }
   public double areaUnderPRStrict() {
-    // TODO
-    throw new MethodNotImplementedException();
+    return getPRCurveMeasures().getAreaUnderPRStrict();
+  }
+  
+  public double averagePrecisionLenient() {
+    return getPRCurveMeasures().getAveragePrecisionLenient();
+  }
+  public double averagePrecisionStrict() {
+    return getPRCurveMeasures().getAveragePrecisionStrict();
+  }
+  
+  public double interpolatedAveragePrecisionLenient() {
+    return getPRCurveMeasures().getInterpolatedAveragePrecisionLenient();
+  }
+  public double interpolatedAveragePrecisionStrict() {
+    return getPRCurveMeasures().getInterpolatedAveragePrecisionStrict();
   }
 
   
@@ -231,7 +268,14 @@ public class ByRankEvalStatsTagging implements NavigableMap<Integer,EvalStatsTag
   }
   
   
-  public NavigableMap<Integer,EvalStatsTagging4Rank> getByRankEvalStats() { return byRankEvalStats; }
+  /**
+   * Return an unmodifiable map view of this object.
+   * 
+   * @return map from ranks to evaluation statistics
+   */
+  public NavigableMap<Integer,EvalStatsTagging4Rank> getByRankEvalStats() { 
+    return Collections.unmodifiableNavigableMap(byRankEvalStats); 
+  }
 
   @Override
   public NavigableMap.Entry<Integer,EvalStatsTagging4Rank> higherEntry(Integer th) {
@@ -265,57 +309,59 @@ public class ByRankEvalStatsTagging implements NavigableMap<Integer,EvalStatsTag
 
   @Override
   public Entry<Integer, EvalStatsTagging4Rank> pollFirstEntry() {
+    curveMeasures = null;
     return byRankEvalStats.pollFirstEntry();
   }
 
   @Override
   public Entry<Integer, EvalStatsTagging4Rank> pollLastEntry() {
-    return byRankEvalStats.pollFirstEntry();
+    curveMeasures = null;
+    return byRankEvalStats.pollLastEntry();
   }
 
   @Override
   public NavigableMap<Integer, EvalStatsTagging4Rank> descendingMap() {
-    return byRankEvalStats.descendingMap();
+    return Collections.unmodifiableNavigableMap(byRankEvalStats.descendingMap());
   }
 
   @Override
   public NavigableSet<Integer> navigableKeySet() {
-    return byRankEvalStats.navigableKeySet();
+    return Collections.unmodifiableNavigableSet(byRankEvalStats.navigableKeySet());
   }
 
   @Override
   public NavigableSet<Integer> descendingKeySet() {
-    return byRankEvalStats.descendingKeySet();
+    return Collections.unmodifiableNavigableSet(byRankEvalStats.descendingKeySet());
   }
 
   @Override
   public NavigableMap<Integer, EvalStatsTagging4Rank> subMap(Integer fromKey, boolean fromInclusive, Integer toKey, boolean toInclusive) {
-    return byRankEvalStats.subMap(fromKey, fromInclusive, toKey, toInclusive);
+    return Collections.unmodifiableNavigableMap(byRankEvalStats.subMap(fromKey, fromInclusive, toKey, toInclusive));
   }
 
   @Override
   public NavigableMap<Integer, EvalStatsTagging4Rank> headMap(Integer toKey, boolean inclusive) {
-    return byRankEvalStats.headMap(toKey, inclusive);
+    return Collections.unmodifiableNavigableMap(byRankEvalStats.headMap(toKey, inclusive));
   }
 
   @Override
   public NavigableMap<Integer, EvalStatsTagging4Rank> tailMap(Integer fromKey, boolean inclusive) {
-    return byRankEvalStats.tailMap(fromKey, inclusive);
+    return Collections.unmodifiableNavigableMap(byRankEvalStats.tailMap(fromKey, inclusive));
   }
 
   @Override
   public SortedMap<Integer, EvalStatsTagging4Rank> subMap(Integer fromKey, Integer toKey) {
-    return byRankEvalStats.subMap(fromKey, toKey);
+    return Collections.unmodifiableSortedMap(byRankEvalStats.subMap(fromKey, toKey));
   }
 
   @Override
   public SortedMap<Integer, EvalStatsTagging4Rank> headMap(Integer toKey) {
-    return byRankEvalStats.headMap(toKey);
+    return Collections.unmodifiableSortedMap(byRankEvalStats.headMap(toKey));
   }
 
   @Override
   public SortedMap<Integer, EvalStatsTagging4Rank> tailMap(Integer fromKey) {
-    return byRankEvalStats.tailMap(fromKey);
+    return Collections.unmodifiableSortedMap(byRankEvalStats.tailMap(fromKey));
   }
 
   @Override
@@ -330,17 +376,17 @@ public class ByRankEvalStatsTagging implements NavigableMap<Integer,EvalStatsTag
 
   @Override
   public Set<Integer> keySet() {
-    return byRankEvalStats.keySet();
+    return Collections.unmodifiableSet(byRankEvalStats.keySet());
   }
 
   @Override
   public Collection<EvalStatsTagging4Rank> values() {
-    return byRankEvalStats.values();
+    return Collections.unmodifiableCollection(byRankEvalStats.values());
   }
 
   @Override
   public Set<Entry<Integer, EvalStatsTagging4Rank>> entrySet() {
-    return byRankEvalStats.entrySet();
+    return Collections.unmodifiableSet(byRankEvalStats.entrySet());
   }
 
   @Override
@@ -366,25 +412,30 @@ public class ByRankEvalStatsTagging implements NavigableMap<Integer,EvalStatsTag
 
   @Override
   public EvalStatsTagging4Rank remove(Object key) {
+    curveMeasures = null;
     return byRankEvalStats.remove(key);
   }
 
   @Override
   public void putAll(Map<? extends Integer, ? extends EvalStatsTagging4Rank> m) {
+    curveMeasures = null;
     byRankEvalStats.putAll(m);
   }
 
   @Override
   public void clear() {
+    curveMeasures = null;
     byRankEvalStats.clear();
   }
 
   @Override
   public EvalStatsTagging4Rank put(Integer key, EvalStatsTagging4Rank value) {
+    curveMeasures = null;
       return byRankEvalStats.put(key, value);
   }
 
   public EvalStatsTagging4Rank put(Integer key, EvalStatsTagging value) {
+    curveMeasures = null;
     if(value instanceof EvalStatsTagging4Rank) {
       return byRankEvalStats.put(key, (EvalStatsTagging4Rank)value);
     } else {
@@ -20,19 +20,56 @@
 package gate.plugin.evaluation.api;
 
 import gate.util.GateRuntimeException;
-import gate.util.MethodNotImplementedException;
+import java.util.AbstractMap;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.NavigableSet;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
-import java.util.TreeSet;
 
 /**
  * A data structure that contains evaluation statistics by a score threshold. 
+ * <p>
+ * With ThresholdsToUse.USE_ALL, every distinct score seen in any document becomes a threshold,
+ * so over a large corpus with real-valued scores the number of thresholds can grow without limit.
+ * To bound the memory, a maximum number of thresholds can be set with
+ * {@link #setMaxThresholds(int)}. Whenever adding another object makes the map bigger than 
+ * that, it gets compacted by dropping thresholds. After that, the map is a sketch of the 
+ * P/R curve: for each threshold t2 kept in the map the true number of responses for t2 may be up
+ * to u(t2) more than the number stored for t2, and for any threshold t between t2 and the 
+ * next lower threshold t1 of the map, t1 &lt; t &lt; t2, the true number of responses is at least
+ * the number stored for t2 and at most that number plus e(t2), where e(t2) &gt;= u(t2).
+ * Since each response can change each of the counts by at most one, all the counts for t are 
+ * within e(t2) of the counts stored for t2, so the recall differs by at most e(t2)/targets
+ * and the precision by at most e(t2)/responses(t2). The largest e over all thresholds is 
+ * returned by {@link #getMaxCountError()} and the error for a specific threshold by
+ * {@link #getCountError(double)}. Both are 0 as long as no thresholds have been dropped.
+ * <p>
+ * Going from low to high thresholds, compaction drops a threshold whenever the e of the next
+ * higher threshold after dropping it would still be at most 2N/(maxThresholds-2), where N is the
+ * number of responses at the lowest threshold. This leaves at most maxThresholds thresholds.
+ * If errors from earlier compactions prevent this, the limit for e is doubled until the number of 
+ * thresholds fits. The lowest and highest thresholds are never dropped. When a threshold gets 
+ * added which falls into a gap, its counts are the counts of the added object plus the counts of
+ * the next higher threshold of this map, so the e of the gap gets added to both its u and e.
+ * When the added object has errors itself, because it has been compacted, those add up with
+ * the errors of this map: each threshold gets the errors of the two entries its counts came 
+ * from, where an entry of the other object in whose gap the threshold falls contributes its e.
+ * <p>
+ * The statistics are not stored as one EvalStatsTagging object per threshold but in columns:
+ * a sorted array of the thresholds and one int array for each of the counts. Adding another 
+ * object is a single pass over both sets of arrays. The NavigableMap methods are only a view
+ * of these arrays: each EvalStatsTagging returned is a new EvalStatsTagging4Score object 
+ * created from the counts for that threshold, so changing it does not change the counts stored
+ * here. The collection views and the maps returned by methods like headMap are unmodifiable
+ * and get created from the arrays when first needed after a change.
+ * 
  * @author Johann Petrak
  */
 /*
@@ -53,10 +90,53 @@ import java.util.TreeSet;
  * 
 */
 public class ByThEvalStatsTagging implements NavigableMap<Double,EvalStatsTagging> {
-  protected NavigableMap<Double,EvalStatsTagging> byThresholdEvalStats = new TreeMap<Double,EvalStatsTagging>();
   protected ThresholdsToUse whichThresholds = ThresholdsToUse.USE_ALL;
   public ThresholdsToUse getWhichThresholds() { return whichThresholds; }
   
+  // the indices of the counts in the counts array
+  protected static final int TARGETS = 0;
+  protected static final int RESPONSES = 1;
+  protected static final int CORRECT_STRICT = 2;
+  protected static final int CORRECT_PARTIAL = 3;
+  protected static final int INCORRECT_STRICT = 4;
+  protected static final int INCORRECT_PARTIAL = 5;
+  protected static final int SINGLE_CORRECT_STRICT = 6;
+  protected static final int SINGLE_CORRECT_PARTIAL = 7;
+  protected static final int TARGETS_WITH_STRICT_RESPONSES = 8;
+  protected static final int TARGETS_WITH_LENIENT_RESPONSES = 9;
+  protected static final int NCOUNTS = 10;
+  
+  // The thresholds in increasing order and for each count the values for each threshold. Only
+  // the first size elements of each array are used.
+  protected int size = 0;
+  protected double[] thresholds = new double[0];
+  protected int[][] counts = new int[NCOUNTS][0];
+  // The count errors for each threshold, these stay null until thresholds get dropped
+  protected int[] errorsAtThreshold = null;
+  protected int[] errorsBelowThreshold = null;
+  // the map view of the arrays, null if it needs to get created again
+  protected NavigableMap<Double,EvalStatsTagging> view = null;
+  // the measures of the curve, null if they need to get calculated again
+  protected PRCurveMeasures curveMeasures = null;
+  
+  // the maximum number of thresholds to keep, 0 means no limit
+  protected int maxThresholds = 0;
+
+  /**
+   * Set the maximum number of thresholds to keep when adding other objects to this one. 
+   * If this is 0, which is the default, all thresholds are kept. Otherwise this must be at 
+   * least 4.
+   * 
+   * @param max maximum number of thresholds 
+   */
+  public void setMaxThresholds(int max) {
+    if(max != 0 && max < 4) {
+      throw new GateRuntimeException("Maximum number of thresholds must be 0 or at least 4, not "+max);
+    }
+    maxThresholds = max;
+  }
+  public int getMaxThresholds() { return maxThresholds; }
+  
 
   /**
    * By default, all scores will be used.
@@ -89,7 +169,28 @@ public class ByThEvalStatsTagging implements NavigableMap<Double,EvalStatsTaggin
     add(other,false);
   }
   
+  /**
+   * Subtract the counts of another ByThEvalStatsTagging object which have been included in the 
+   * counts of this one. This is the inverse of {@link #add(ByThEvalStatsTagging)}: thresholds
+   * of the other object which are not in this one get added, with the counts of the next higher
+   * threshold of this object minus the counts of the other object. This never drops thresholds,
+   * since the counts can only be compacted once all objects have been added.
+   * 
+   * @param other the object to subtract
+   */
+  public void subtract(ByThEvalStatsTagging other) {
+    merge(other, true, -1);
+  }
+  
   public void add(ByThEvalStatsTagging other, boolean cumulative) {
+    merge(other, cumulative, 1);
+    if(cumulative && maxThresholds > 0 && size > maxThresholds) {
+      compact();
+    }
+  }
+  
+  // add the counts of other multiplied by sign
+  protected void merge(ByThEvalStatsTagging other, boolean cumulative, int sign) {
     // If the same threshold is in both, the stats in other get added to the stats in this for this
     // threshold. If there is a stats object for a threshold in the other set but not in this set,
     // then the stats object gets added to this set, with the next higher object of this set
@@ -97,256 +198,596 @@ public class ByThEvalStatsTagging implements NavigableMap<Double,EvalStatsTaggin
     // If there is a stats object in this set with no object in the other set, it gets incremented
     // by the next higher set in the other set.
     
-    // Create an ordered set with all the thresholds from both this and other
-    //System.out.println("DEBUG: adding other map to this map");
-    NavigableSet<Double> allThs = new TreeSet<Double>();
-    allThs.addAll(byThresholdEvalStats.keySet());
-    allThs.addAll(other.getByThresholdEvalStats().keySet());
-    for(double th : allThs) {
-      //System.out.println("DEBUG: th="+th);
-      EvalStatsTagging thisES = byThresholdEvalStats.get(th);
-      EvalStatsTagging otherES = other.getByThresholdEvalStats().get(th);
-      if(thisES != null && otherES != null) {
-        //System.out.println("DEBUG: same th in both, th="+th);
-        thisES.add(otherES);
-      } else if(otherES != null && thisES == null) {
-        //System.out.println("DEBUG: other exists, not in this, th="+th);       
-        if(cumulative) {
-          EvalStatsTagging newES = new EvalStatsTagging4Score(otherES);
-          // check if there is a next higher evalstats object in this map
-          NavigableMap.Entry<Double,EvalStatsTagging> thisHigherEntry = byThresholdEvalStats.higherEntry(th);
-          if(thisHigherEntry != null) {
-            //System.out.println("DEBUG: next higher this exists, adding nexthigher th="+thisHigherEntry.getKey());
-            newES.add(thisHigherEntry.getValue());
+    // First find out how many thresholds of other are not in this
+    int n = size;
+    int m = other.size;
+    int nNew = 0;
+    for(int i = 0, j = 0; j < m; ) {
+      int cmp = i < n ? Double.compare(thresholds[i], other.thresholds[j]) : 1;
+      if(cmp < 0) {
+        i++;
+      } else {
+        if(cmp > 0) {
+          nNew++;
+        } else {
+          i++;
+        }
+        j++;
+      }
+    }
+    ensureCapacity(n + nNew);
+    // If either map has dropped thresholds, the merged map needs errors too
+    if(errorsAtThreshold == null && other.errorsAtThreshold != null) {
+      errorsAtThreshold = new int[thresholds.length];
+      errorsBelowThreshold = new int[thresholds.length];
+    }
+    // Now merge from the highest to the lowest threshold, writing the merged entries to the end 
+    // of our arrays, so we never overwrite an entry of this we still need. Going down, the 
+    // next higher entries of this and other are always the ones we have just processed.
+    int[][] otherCounts = other.counts;
+    int[] otherAt = other.errorsAtThreshold;
+    int[] otherBelow = other.errorsBelowThreshold;
+    int[] thisHigher = new int[NCOUNTS];
+    int thisHigherErrorBelow = 0;
+    int i = n - 1;
+    int j = m - 1;
+    for(int k = n + nNew - 1; k >= 0; k--) {
+      int cmp = i < 0 ? -1 : j < 0 ? 1 : Double.compare(thresholds[i], other.thresholds[j]);
+      if(cmp >= 0) {
+        // in this: add the other entry for the same threshold, or the next higher one
+        int o = cmp == 0 ? j : j + 1;
+        for(int c = 0; c < NCOUNTS; c++) {
+          thisHigher[c] = counts[c][i];
+          counts[c][k] = counts[c][i] + (o < m ? sign * otherCounts[c][o] : 0);
+        }
+        thresholds[k] = thresholds[i];
+        if(errorsAtThreshold != null) {
+          // The errors of both maps add up. For a threshold which is not in other, the counts
+          // of other are those of the next higher threshold of other, so they are within the 
+          // error of its gap, for both this threshold and the thresholds below it.
+          int otherErrorAt = 0;
+          int otherErrorBelow = 0;
+          if(otherBelow != null && o < m) {
+            otherErrorAt = cmp == 0 ? otherAt[o] : otherBelow[o];
+            otherErrorBelow = otherBelow[o];
           }
-          byThresholdEvalStats.put(th, newES);
+          thisHigherErrorBelow = errorsBelowThreshold[i];
+          errorsAtThreshold[k] = errorsAtThreshold[i] + otherErrorAt;
+          errorsBelowThreshold[k] = thisHigherErrorBelow + otherErrorBelow;
+        }
+        i--;
+        if(cmp == 0) {
+          j--;
+        }
+      } else {
+        // only in other
+        boolean addHigher = cumulative && i < n - 1;
+        for(int c = 0; c < NCOUNTS; c++) {
+          counts[c][k] = sign * otherCounts[c][j] + (addHigher ? thisHigher[c] : 0);
+        }
+        thresholds[k] = other.thresholds[j];
+        if(errorsAtThreshold != null) {
+          // if the gap of this we are in had thresholds dropped, the responses of this map 
+          // with scores between th and the next higher threshold are not known, in addition
+          // to the errors other has for th
+          int error = addHigher ? thisHigherErrorBelow : 0;
+          errorsAtThreshold[k] = error + (otherAt != null ? otherAt[j] : 0);
+          errorsBelowThreshold[k] = error + (otherBelow != null ? otherBelow[j] : 0);
+        }
+        j--;
+      }
+    }
+    size = n + nNew;
+    changed();
+  }
+  
+  /**
+   * Drop thresholds so that at most the maximum number of thresholds remain. 
+   * See the class documentation for which thresholds get dropped.
+   */
+  protected void compact() {
+    if(errorsAtThreshold == null) {
+      errorsAtThreshold = new int[thresholds.length];
+      errorsBelowThreshold = new int[thresholds.length];
+    }
+    // the responses never increase from lowest to highest threshold
+    int[] responses = counts[RESPONSES];
+    int[] atThreshold = errorsAtThreshold;
+    int[] belowThreshold = errorsBelowThreshold;
+    // Without earlier errors, any two neighbouring gaps between the kept thresholds together 
+    // have more than maxError responses, so at most 2N/maxError+2 thresholds are kept.
+    double maxError = Math.max(1.0, 2.0 * responses[0] / (maxThresholds - 2));
+    boolean[] keep = new boolean[size];
+    int kept;
+    do {
+      kept = 2;
+      // the highest number of responses any threshold in the gap between the last kept 
+      // threshold and the threshold i+1 can have
+      int gapResponses = responses[1] + belowThreshold[1];
+      for(int i = 1; i < size - 1; i++) {
+        int gapResponsesIfDropped = Math.max(gapResponses, responses[i+1] + belowThreshold[i+1]);
+        keep[i] = gapResponsesIfDropped - responses[i+1] > maxError;
+        if(keep[i]) {
+          kept++;
+          gapResponses = responses[i+1] + belowThreshold[i+1];
         } else {
-          byThresholdEvalStats.put(th, new EvalStatsTagging4Score(otherES));
+          gapResponses = gapResponsesIfDropped;
         }
-      } else if(otherES == null && thisES != null) {
-        //System.out.println("DEBUG: this exists, not in other, th="+th);
-        EvalStatsTagging newES = new EvalStatsTagging4Score(thisES);
-        NavigableMap.Entry<Double,EvalStatsTagging> otherHigherEntry = other.getByThresholdEvalStats().higherEntry(th);
-        if(otherHigherEntry != null) {
-          //System.out.println("DEBUG: next higher other exists, adding nexthigher th="+otherHigherEntry.getKey());
-          newES.add(otherHigherEntry.getValue());
+      }
+      maxError *= 2.0;
+    } while(kept > maxThresholds);
+    // now actually drop the thresholds by moving the kept ones down and update the errors 
+    int gapResponses = responses[1] + belowThreshold[1];
+    int k = 1;
+    for(int i = 1; i < size; i++) {
+      if(i == size - 1 || keep[i]) {
+        int below = gapResponses - responses[i];
+        if(i < size - 1) {
+          gapResponses = responses[i+1] + belowThreshold[i+1];
+        }
+        thresholds[k] = thresholds[i];
+        for(int c = 0; c < NCOUNTS; c++) {
+          counts[c][k] = counts[c][i];
         }
-        byThresholdEvalStats.put(th, newES);
+        atThreshold[k] = atThreshold[i];
+        belowThreshold[k] = below;
+        k++;
       } else {
-        throw new GateRuntimeException("Odd error, this should never happen!");
+        gapResponses = Math.max(gapResponses, responses[i+1] + belowThreshold[i+1]);
       }
     }
+    size = k;
+    changed();
+  }
+  
+  /**
+   * Return the biggest number of responses by which the counts for any threshold can differ from
+   * the counts stored for the next threshold of the map which is equal or higher. This is 0 
+   * unless thresholds have been dropped because of the maximum number of thresholds. 
+   * See the class documentation for how this bounds the error of precision and recall.
+   * 
+   * @return  maximum count error
+   */
+  public int getMaxCountError() {
+    int max = 0;
+    if(errorsBelowThreshold != null) {
+      for(int i = 0; i < size; i++) {
+        max = Math.max(max, errorsBelowThreshold[i]);
+      }
+    }
+    return max;
+  }
+  
+  /**
+   * Return the number of responses by which the counts for the threshold th can differ from the
+   * counts stored for the next threshold of the map which is equal or higher. 
+   * 
+   * @param th threshold 
+   * @return count error for that threshold
+   */
+  public int getCountError(double th) {
+    int i = ceilingIndex(th);
+    if(i < 0 || errorsAtThreshold == null) {
+      return 0;
+    }
+    return thresholds[i] == th ? errorsAtThreshold[i] : errorsBelowThreshold[i];
+  }
+  
+  protected void ensureCapacity(int capacity) {
+    if(capacity > thresholds.length) {
+      int newCapacity = Math.max(capacity, thresholds.length + thresholds.length / 2);
+      thresholds = Arrays.copyOf(thresholds, newCapacity);
+      for(int c = 0; c < NCOUNTS; c++) {
+        counts[c] = Arrays.copyOf(counts[c], newCapacity);
+      }
+      if(errorsAtThreshold != null) {
+        errorsAtThreshold = Arrays.copyOf(errorsAtThreshold, newCapacity);
+        errorsBelowThreshold = Arrays.copyOf(errorsBelowThreshold, newCapacity);
+      }
+    }
+  }
+  
+  // the index of th, or -(insertion point)-1 if th is not in the map
+  protected int indexOf(double th) {
+    return Arrays.binarySearch(thresholds, 0, size, th);
+  }
+  
+  // The indices of the floor, ceiling, higher and lower threshold, -1 if there is none
+  protected int floorIndex(double th) {
+    int i = indexOf(th);
+    return i >= 0 ? i : -i-2;
+  }
+  protected int ceilingIndex(double th) {
+    int i = indexOf(th);
+    if(i < 0) {
+      i = -i-1;
+    }
+    return i < size ? i : -1;
+  }
+  protected int higherIndex(double th) {
+    int i = indexOf(th);
+    i = i >= 0 ? i+1 : -i-1;
+    return i < size ? i : -1;
+  }
+  protected int lowerIndex(double th) {
+    int i = indexOf(th);
+    return i >= 0 ? i-1 : -i-2;
+  }
+  
+  /**
+   * Create a new EvalStatsTagging object from the counts for the threshold with index i.
+   */
+  protected EvalStatsTagging getEvalStats(int i) {
+    EvalStatsTagging4Score es = new EvalStatsTagging4Score(thresholds[i]);
+    es.nTargets = counts[TARGETS][i];
+    es.nResponses = counts[RESPONSES][i];
+    es.nCorrectStrict = counts[CORRECT_STRICT][i];
+    es.nCorrectPartial = counts[CORRECT_PARTIAL][i];
+    es.nIncorrectStrict = counts[INCORRECT_STRICT][i];
+    es.nIncorrectPartial = counts[INCORRECT_PARTIAL][i];
+    es.nSingleCorrectStrict = counts[SINGLE_CORRECT_STRICT][i];
+    es.nSingleCorrectPartial = counts[SINGLE_CORRECT_PARTIAL][i];
+    es.nTargetsWithStrictResponses = counts[TARGETS_WITH_STRICT_RESPONSES][i];
+    es.nTargetsWithLenientResponses = counts[TARGETS_WITH_LENIENT_RESPONSES][i];
+    return es;
+  }
+  
+  /**
+   * Store the counts of the EvalStatsTagging object as the counts for the threshold with index i.
+   */
+  protected void setEvalStats(int i, EvalStatsTagging es) {
+    counts[TARGETS][i] = es.nTargets;
+    counts[RESPONSES][i] = es.nResponses;
+    counts[CORRECT_STRICT][i] = es.nCorrectStrict;
+    counts[CORRECT_PARTIAL][i] = es.nCorrectPartial;
+    counts[INCORRECT_STRICT][i] = es.nIncorrectStrict;
+    counts[INCORRECT_PARTIAL][i] = es.nIncorrectPartial;
+    counts[SINGLE_CORRECT_STRICT][i] = es.nSingleCorrectStrict;
+    counts[SINGLE_CORRECT_PARTIAL][i] = es.nSingleCorrectPartial;
+    counts[TARGETS_WITH_STRICT_RESPONSES][i] = es.nTargetsWithStrictResponses;
+    counts[TARGETS_WITH_LENIENT_RESPONSES][i] = es.nTargetsWithLenientResponses;
+  }
+  
+  protected Entry<Double,EvalStatsTagging> getEntry(int i) {
+    if(i < 0) {
+      return null;
+    }
+    return new AbstractMap.SimpleImmutableEntry<Double,EvalStatsTagging>(thresholds[i], getEvalStats(i));
+  }
+  
+  protected Double getKey(int i) {
+    return i < 0 ? null : thresholds[i];
+  }
+  
+  protected void removeIndex(int i) {
+    int moved = size - i - 1;
+    System.arraycopy(thresholds, i+1, thresholds, i, moved);
+    for(int c = 0; c < NCOUNTS; c++) {
+      System.arraycopy(counts[c], i+1, counts[c], i, moved);
+    }
+    if(errorsAtThreshold != null) {
+      System.arraycopy(errorsAtThreshold, i+1, errorsAtThreshold, i, moved);
+      System.arraycopy(errorsBelowThreshold, i+1, errorsBelowThreshold, i, moved);
+    }
+    size--;
+    changed();
+  }
+  
+  // forget everything calculated from the counts 
+  protected void changed() {
+    view = null;
+    curveMeasures = null;
+  }
+  
+  /**
+   * Return the measures of the P/R curve over all thresholds. These get calculated in one pass
+   * from the highest to the lowest threshold when first needed after a change.
+   * 
+   * @return the curve measures
+   */
+  public PRCurveMeasures getPRCurveMeasures() {
+    if(curveMeasures == null) {
+      PRCurveMeasures measures = new PRCurveMeasures(size);
+      for(int i = size - 1; i >= 0; i--) {
+        measures.add(thresholds[i], getEvalStats(i));
+      }
+      measures.finish();
+      curveMeasures = measures;
+    }
+    return curveMeasures;
   }
   
   // we also remember the thresholds for which we get the highest F strict and the highest F lenient
   public double highestFMeasureLenientThreshold() {
-    // TODO
-    throw new MethodNotImplementedException();
+    return getPRCurveMeasures().getHighestFMeasureLenientAt();
   }
   public double highestFMeasureStrictThreshold() {
-    // TODO
-    throw new MethodNotImplementedException();
+    return getPRCurveMeasures().getHighestFMeasureStrictAt();
   }
   
   // we should also provide a way to calculate the area under the P/R curve for strict and lenient
   // precision/recall curves
   public double areaUnderPRLenient() {
-    // TODO
-    throw new MethodNotImplementedException();
+    return getPRCurveMeasures().getAreaUnderPRLenient();
   }
   public double areaUnderPRStrict() {
-    // TODO
-    throw new MethodNotImplementedException();
+    return getPRCurveMeasures().getAreaUnderPRStrict();
+  }
+  
+  public double averagePrecisionLenient() {
+    return getPRCurveMeasures().getAveragePrecisionLenient();
+  }
+  public double averagePrecisionStrict() {
+    return getPRCurveMeasures().getAveragePrecisionStrict();
+  }
+  
+  public double interpolatedAveragePrecisionLenient() {
+    return getPRCurveMeasures().getInterpolatedAveragePrecisionLenient();
+  }
+  public double interpolatedAveragePrecisionStrict() {
+    return getPRCurveMeasures().getInterpolatedAveragePrecisionStrict();
   }
 
   
   @Override
   public NavigableMap.Entry<Double,EvalStatsTagging> lowerEntry(Double th) {
-    return byThresholdEvalStats.lowerEntry(th);
+    return getEntry(lowerIndex(th));
   }
 
   public EvalStatsTagging get(Double oth) {
-    return byThresholdEvalStats.get(oth);
+    int i = indexOf(oth);
+    return i < 0 ? null : getEvalStats(i);
   }
 
   @Override
   public Double floorKey(Double th) {
-    return byThresholdEvalStats.floorKey(th);
+    return getKey(floorIndex(th));
   }
 
   @Override
   public Double lowerKey(Double oth) {
-    return byThresholdEvalStats.lowerKey(oth);
+    return getKey(lowerIndex(oth));
   }
 
 
   @Override
   public int size() {
-    return byThresholdEvalStats.size();
+    return size;
   }
 
   @Override
   public Double firstKey() {
-    return byThresholdEvalStats.firstKey();
+    if(size == 0) {
+      throw new NoSuchElementException();
+    }
+    return thresholds[0];
   }
 
   @Override
   public Double higherKey(Double th) {
-    return byThresholdEvalStats.higherKey(th);
+    return getKey(higherIndex(th));
   }
   
   
-  public NavigableMap<Double,EvalStatsTagging> getByThresholdEvalStats() { return byThresholdEvalStats; }
+  /**
+   * Return an unmodifiable map view of this object.
+   * 
+   * @return map from thresholds to evaluation statistics
+   */
+  public NavigableMap<Double,EvalStatsTagging> getByThresholdEvalStats() { 
+    if(view == null) {
+      TreeMap<Double,EvalStatsTagging> map = new TreeMap<Double,EvalStatsTagging>();
+      for(int i = 0; i < size; i++) {
+        map.put(thresholds[i], getEvalStats(i));
+      }
+      view = Collections.unmodifiableNavigableMap(map);
+    }
+    return view;
+  }
 
   @Override
   public NavigableMap.Entry<Double,EvalStatsTagging> higherEntry(Double th) {
-    return byThresholdEvalStats.higherEntry(th);
+    return getEntry(higherIndex(th));
   }
 
   @Override
   public Entry<Double, EvalStatsTagging> floorEntry(Double key) {
-    return byThresholdEvalStats.floorEntry(key);
+    return getEntry(floorIndex(key));
   }
 
   @Override
   public Entry<Double, EvalStatsTagging> ceilingEntry(Double key) {
-    return byThresholdEvalStats.ceilingEntry(key);
+    return getEntry(ceilingIndex(key));
   }
 
   @Override
   public Double ceilingKey(Double key) {
-    return byThresholdEvalStats.ceilingKey(key);
+    return getKey(ceilingIndex(key));
   }
 
   @Override
   public Entry<Double, EvalStatsTagging> firstEntry() {
-    return byThresholdEvalStats.firstEntry();
+    return getEntry(size > 0 ? 0 : -1);
   }
 
   @Override
   public Entry<Double, EvalStatsTagging> lastEntry() {
-    return byThresholdEvalStats.lastEntry();
+    return getEntry(size - 1);
   }
 
   @Override
   public Entry<Double, EvalStatsTagging> pollFirstEntry() {
-    return byThresholdEvalStats.pollFirstEntry();
+    Entry<Double, EvalStatsTagging> entry = firstEntry();
+    if(entry != null) {
+      removeIndex(0);
+    }
+    return entry;
   }
 
   @Override
   public Entry<Double, EvalStatsTagging> pollLastEntry() {
-    return byThresholdEvalStats.pollFirstEntry();
+    Entry<Double, EvalStatsTagging> entry = lastEntry();
+    if(entry != null) {
+      removeIndex(size - 1);
+    }
+    return entry;
   }
 
   @Override
   public NavigableMap<Double, EvalStatsTagging> descendingMap() {
-    return byThresholdEvalStats.descendingMap();
+    return getByThresholdEvalStats().descendingMap();
   }
 
   @Override
   public NavigableSet<Double> navigableKeySet() {
-    return byThresholdEvalStats.navigableKeySet();
+    return getByThresholdEvalStats().navigableKeySet();
   }
 
   @Override
   public NavigableSet<Double> descendingKeySet() {
-    return byThresholdEvalStats.descendingKeySet();
+    return getByThresholdEvalStats().descendingKeySet();
   }
 
   @Override
   public NavigableMap<Double, EvalStatsTagging> subMap(Double fromKey, boolean fromInclusive, Double toKey, boolean toInclusive) {
-    return byThresholdEvalStats.subMap(fromKey, fromInclusive, toKey, toInclusive);
+    return getByThresholdEvalStats().subMap(fromKey, fromInclusive, toKey, toInclusive);
   }
 
   @Override
   public NavigableMap<Double, EvalStatsTagging> headMap(Double toKey, boolean inclusive) {
-    return byThresholdEvalStats.headMap(toKey, inclusive);
+    return getByThresholdEvalStats().headMap(toKey, inclusive);
   }
 
   @Override
   public NavigableMap<Double, EvalStatsTagging> tailMap(Double fromKey, boolean inclusive) {
-    return byThresholdEvalStats.tailMap(fromKey, inclusive);
+    return getByThresholdEvalStats().tailMap(fromKey, inclusive);
   }
 
   @Override
   public SortedMap<Double, EvalStatsTagging> subMap(Double fromKey, Double toKey) {
-    return byThresholdEvalStats.subMap(fromKey, toKey);
+    return getByThresholdEvalStats().subMap(fromKey, toKey);
   }
 
   @Override
   public SortedMap<Double, EvalStatsTagging> headMap(Double toKey) {
-    return byThresholdEvalStats.headMap(toKey);
+    return getByThresholdEvalStats().headMap(toKey);
   }
 
   @Override
   public SortedMap<Double, EvalStatsTagging> tailMap(Double fromKey) {
-    return byThresholdEvalStats.tailMap(fromKey);
+    return getByThresholdEvalStats().tailMap(fromKey);
   }
 
   @Override
   public Comparator<? super Double> comparator() {
-    return byThresholdEvalStats.comparator();
+    return null;
   }
 
   @Override
   public Double lastKey() {
-    return byThresholdEvalStats.lastKey();
+    if(size == 0) {
+      throw new NoSuchElementException();
+    }
+    return thresholds[size - 1];
   }
 
   @Override
   public Set<Double> keySet() {
-    return byThresholdEvalStats.keySet();
+    return getByThresholdEvalStats().keySet();
   }
 
   @Override
   public Collection<EvalStatsTagging> values() {
-    return byThresholdEvalStats.values();
+    return getByThresholdEvalStats().values();
   }
 
   @Override
   public Set<Entry<Double, EvalStatsTagging>> entrySet() {
-    return byThresholdEvalStats.entrySet();
+    return getByThresholdEvalStats().entrySet();
   }
 
   @Override
   public boolean isEmpty() {
-    return byThresholdEvalStats.isEmpty();
+    return size == 0;
   }
 
   @Override
   public boolean containsKey(Object key) {
-    return byThresholdEvalStats.containsKey(key);
+    return (key instanceof Double) && indexOf((Double)key) >= 0;
   }
 
   @Override
   public boolean containsValue(Object value) {
-    return byThresholdEvalStats.containsValue(value);
+    return getByThresholdEvalStats().containsValue(value);
   }
 
   @Override
   public EvalStatsTagging get(Object key) {
-    return byThresholdEvalStats.get(key);
+    return (key instanceof Double) ? get((Double)key) : null;
   }
 
 
   @Override
   public EvalStatsTagging remove(Object key) {
-    return byThresholdEvalStats.remove(key);
+    if(!(key instanceof Double)) {
+      return null;
+    }
+    int i = indexOf((Double)key);
+    if(i < 0) {
+      return null;
+    }
+    EvalStatsTagging old = getEvalStats(i);
+    removeIndex(i);
+    return old;
   }
 
   @Override
   public void putAll(Map<? extends Double, ? extends EvalStatsTagging> m) {
-    byThresholdEvalStats.putAll(m);
+    for(Map.Entry<? extends Double, ? extends EvalStatsTagging> entry : m.entrySet()) {
+      put(entry.getKey(), entry.getValue());
+    }
   }
 
   @Override
   public void clear() {
-    byThresholdEvalStats.clear();
+    size = 0;
+    errorsAtThreshold = null;
+    errorsBelowThreshold = null;
+    changed();
   }
 
+  /**
+   * Store the counts of the given EvalStatsTagging object for the threshold. This is fastest if 
+   * the thresholds get put in increasing order.
+   */
   @Override
   public EvalStatsTagging put(Double key, EvalStatsTagging value) {
-    return byThresholdEvalStats.put(key, value);
+    int i = indexOf(key);
+    EvalStatsTagging old = null;
+    if(i >= 0) {
+      old = getEvalStats(i);
+    } else {
+      i = -i-1;
+      ensureCapacity(size + 1);
+      int moved = size - i;
+      System.arraycopy(thresholds, i, thresholds, i+1, moved);
+      for(int c = 0; c < NCOUNTS; c++) {
+        System.arraycopy(counts[c], i, counts[c], i+1, moved);
+      }
+      if(errorsAtThreshold != null) {
+        System.arraycopy(errorsAtThreshold, i, errorsAtThreshold, i+1, moved);
+        System.arraycopy(errorsBelowThreshold, i, errorsBelowThreshold, i+1, moved);
+      }
+      size++;
+      thresholds[i] = key;
+    }
+    setEvalStats(i, value);
+    if(errorsAtThreshold != null) {
+      errorsAtThreshold[i] = 0;
+      errorsBelowThreshold[i] = 0;
+    }
+    changed();
+    return old;
   }
 
   
@@ -356,9 +797,8 @@ public class ByThEvalStatsTagging implements NavigableMap<Double,EvalStatsTaggin
     sb.append("Thresholds to use: ");
     sb.append(getWhichThresholds());
     sb.append("\n");
-    NavigableMap<Double,EvalStatsTagging> map = getByThresholdEvalStats();
-    for(double th : map.navigableKeySet()) {
-      sb.append(map.get(th));
+    for(int i = 0; i < size; i++) {
+      sb.append(getEvalStats(i));
       sb.append("\n");
     }
     return sb.toString();
@@ -0,0 +1,344 @@
+/*
+ * Copyright (c) 2015-2018 University of Sheffield.
+ *
+ * This file is part of gateplugin-Evaluation
+ * (see https://github.com/GateNLP/gateplugin-Evaluation).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.evaluation.api;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Read a file written by ColumnarResultsWriter.
+ * <p>
+ * Opening the file only reads the header, the dictionary and the block index. The blocks are
+ * read and decompressed when they are requested, so the blocks can be processed one at a time,
+ * in any order, and e.g. by several threads using their own reader. All parts of the file
+ * are read with positional reads of just the bytes needed, nothing gets memory mapped.
+ * <p>
+ * For example, this adds up the statistics for all the documents in the file:
+ * <pre>
+ * try (ColumnarResultsReader reader = new ColumnarResultsReader(file)) {
+ *   for (int b = 0; b &lt; reader.getNumberOfBlocks(); b++) {
+ *     ColumnarResultsReader.Block block = reader.getBlock(b);
+ *     for (int r = 0; r &lt; block.size(); r++) {
+ *       if (!block.getDocumentName(r).startsWith("[doc:all")) { total.add(block.getEvalStats(r)); }
+ *     }
+ *   }
+ * }
+ * </pre>
+ *
+ * @author Johann Petrak
+ */
+public class ColumnarResultsReader implements Closeable {
+
+  protected RandomAccessFile file;
+  protected FileChannel channel;
+  protected String evaluationId;
+  protected List<String> countColumns = new ArrayList<String>();
+  protected List<String> names = new ArrayList<String>();
+  protected long[] blockOffsets;
+  protected int[] blockRows;
+  protected long nRows = 0;
+  protected long blocksStart;
+  protected long blocksEnd;
+
+  /**
+   * Open the file and read the header, dictionary and block index.
+   * @param path the file to read
+   * @throws IOException if the file cannot be read or is not in the expected format
+   */
+  public ColumnarResultsReader(File path) throws IOException {
+    file = new RandomAccessFile(path, "r");
+    try {
+      channel = file.getChannel();
+      long size = channel.size();
+      if (size < 24) {
+        throw new IOException("Not an evaluation results file: "+path);
+      }
+      ByteBuffer trailer = readAt(size - 20, 20);
+      long dictionaryOffset = trailer.getLong();
+      long indexOffset = trailer.getLong();
+      if (trailer.getInt() != ColumnarResultsWriter.MAGIC) {
+        throw new IOException("Not a complete evaluation results file: "+path);
+      }
+      ByteBuffer header = readAt(0, 8);
+      if (header.getInt() != ColumnarResultsWriter.MAGIC) {
+        throw new IOException("Not an evaluation results file: "+path);
+      }
+      int version = header.getInt();
+      if (version != ColumnarResultsWriter.VERSION) {
+        throw new IOException("Unsupported version "+version+" of evaluation results file: "+path);
+      }
+      // the header has no fixed length, but it ends before the trailer
+      long position = 8;
+      byte[] bytes = readBytesAt(position, size - 20);
+      evaluationId = new String(bytes, StandardCharsets.UTF_8);
+      position += 4 + bytes.length;
+      int nColumns = readAt(position, 4).getInt();
+      position += 4;
+      if (nColumns < 0 || nColumns > (size - 20 - position) / 4) {
+        throw new IOException("Corrupt evaluation results file, invalid number of columns "+
+                nColumns+": "+path);
+      }
+      for (int i = 0; i < nColumns; i++) {
+        bytes = readBytesAt(position, size - 20);
+        countColumns.add(new String(bytes, StandardCharsets.UTF_8));
+        position += 4 + bytes.length;
+      }
+      // the blocks are between the header and the dictionary, the index is followed by the 
+      // trailer
+      blocksStart = position;
+      blocksEnd = dictionaryOffset;
+      if (dictionaryOffset < blocksStart || indexOffset < dictionaryOffset || indexOffset > size - 24 
+              || indexOffset - dictionaryOffset > Integer.MAX_VALUE 
+              || size - 20 - indexOffset > Integer.MAX_VALUE) {
+        throw new IOException("Corrupt evaluation results file, invalid dictionary offset "+
+                dictionaryOffset+" or index offset "+indexOffset+" for file size "+size+": "+path);
+      }
+      ByteBuffer dictionary = readAt(dictionaryOffset, (int) (indexOffset - dictionaryOffset));
+      int nNames = dictionary.remaining() < 4 ? -1 : dictionary.getInt();
+      if (nNames < 0 || nNames > dictionary.remaining() / 4) {
+        throw new IOException("Corrupt evaluation results file, invalid number of names "+
+                nNames+": "+path);
+      }
+      for (int i = 0; i < nNames; i++) {
+        names.add(readString(dictionary));
+      }
+      ByteBuffer index = readAt(indexOffset, (int) (size - 20 - indexOffset));
+      int nBlocks = index.getInt();
+      if (nBlocks < 0 || nBlocks * 12L != index.remaining()) {
+        throw new IOException("Corrupt evaluation results file, invalid number of blocks "+
+                nBlocks+": "+path);
+      }
+      blockOffsets = new long[nBlocks];
+      blockRows = new int[nBlocks];
+      for (int i = 0; i < nBlocks; i++) {
+        blockOffsets[i] = index.getLong();
+        blockRows[i] = index.getInt();
+        if (blockOffsets[i] < blocksStart || blockOffsets[i] > blocksEnd - 12 || blockRows[i] < 0) {
+          throw new IOException("Corrupt evaluation results file, invalid offset "+
+                  blockOffsets[i]+" of block "+i+": "+path);
+        }
+        nRows += blockRows[i];
+      }
+    } catch (IOException ex) {
+      file.close();
+      throw ex;
+    }
+  }
+
+  // Read bytes from a position of the file. Reads with a position do not change the position
+  // of the channel, so they can be done from several threads.
+  protected ByteBuffer readAt(long position, int length) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new IOException("Unexpected end of file at "+(position + buffer.position()));
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  // Read the bytes of a string written by ColumnarResultsWriter.writeString at the position:
+  // the length followed by the bytes, which must all be before the limit
+  protected byte[] readBytesAt(long position, long limit) throws IOException {
+    int length = readAt(position, 4).getInt();
+    if (length < 0 || length > limit - position - 4) {
+      throw new IOException("Corrupt evaluation results file, invalid string length "+length);
+    }
+    return readAt(position + 4, length).array();
+  }
+
+  // Read a string written by ColumnarResultsWriter.writeString from the buffer
+  protected static String readString(ByteBuffer buffer) throws IOException {
+    int length = buffer.remaining() < 4 ? -1 : buffer.getInt();
+    if (length < 0 || length > buffer.remaining()) {
+      throw new IOException("Corrupt evaluation results file, invalid string length "+length);
+    }
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  public String getEvaluationId() { return evaluationId; }
+  
+  /**
+   * The names of the count columns, in the order of the column numbers of Block.getCount.
+   * @return names
+   */
+  public List<String> getCountColumns() { return Collections.unmodifiableList(countColumns); }
+  
+  public int getNumberOfBlocks() { return blockOffsets.length; }
+  
+  public long getNumberOfRows() { return nRows; }
+
+  /**
+   * Read and decompress a block.
+   * @param i the number of the block
+   * @return the block
+   * @throws IOException if the block cannot be read
+   */
+  public Block getBlock(int i) throws IOException {
+    ByteBuffer blockHeader = readAt(blockOffsets[i], 12);
+    int rows = blockHeader.getInt();
+    int rawLength = blockHeader.getInt();
+    int length = blockHeader.getInt();
+    // each row has 4 name ids, the kind, the threshold and the counts
+    int rowBytes = 4 * 4 + 1 + 8 + countColumns.size() * 4;
+    if (rows != blockRows[i] || rawLength != rows * rowBytes || 
+            length < 0 || length > blocksEnd - blockOffsets[i] - 12) {
+      throw new IOException("Block "+i+" is corrupt, invalid header");
+    }
+    // Inflater can only decompress from an array before Java 11, so the compressed block 
+    // gets read into an array instead of mapping it
+    byte[] compressed = readAt(blockOffsets[i] + 12, length).array();
+    byte[] raw = new byte[rawLength];
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(compressed);
+      int n = 0;
+      while (n < rawLength && !inflater.finished()) {
+        int inflated = inflater.inflate(raw, n, rawLength - n);
+        if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          throw new IOException("Block "+i+" is truncated or corrupt, got "+n+" of "+
+                  rawLength+" bytes");
+        }
+        n += inflated;
+      }
+      if (n != rawLength) {
+        throw new IOException("Block "+i+" is incomplete");
+      }
+    } catch (DataFormatException ex) {
+      throw new IOException("Block "+i+" is corrupt", ex);
+    } finally {
+      inflater.end();
+    }
+    return new Block(rows, countColumns.size(), ByteBuffer.wrap(raw));
+  }
+
+  @Override
+  public void close() throws IOException {
+    file.close();
+  }
+
+  /**
+   * The rows of one block, stored by column.
+   */
+  public class Block {
+    protected int rows;
+    protected int[] evaluationTypes;
+    protected int[] documentNames;
+    protected int[] setNames;
+    protected int[] annotationTypes;
+    protected byte[] kinds;
+    protected double[] thresholds;
+    protected int[][] counts;
+
+    protected Block(int rows, int nColumns, ByteBuffer raw) {
+      this.rows = rows;
+      evaluationTypes = readInts(raw, rows);
+      documentNames = readInts(raw, rows);
+      setNames = readInts(raw, rows);
+      annotationTypes = readInts(raw, rows);
+      kinds = new byte[rows];
+      raw.get(kinds);
+      thresholds = new double[rows];
+      raw.asDoubleBuffer().get(thresholds);
+      raw.position(raw.position() + rows * 8);
+      counts = new int[nColumns][];
+      for (int c = 0; c < nColumns; c++) {
+        counts[c] = readInts(raw, rows);
+      }
+    }
+
+    protected int[] readInts(ByteBuffer raw, int n) {
+      int[] values = new int[n];
+      raw.asIntBuffer().get(values);
+      raw.position(raw.position() + n * 4);
+      return values;
+    }
+
+    public int size() { return rows; }
+    public String getEvaluationType(int row) { return names.get(evaluationTypes[row]); }
+    public String getDocumentName(int row) { return names.get(documentNames[row]); }
+    public String getSetName(int row) { return names.get(setNames[row]); }
+    public String getAnnotationType(int row) { return names.get(annotationTypes[row]); }
+    /**
+     * Check if the threshold of a row is a rank instead of a score.
+     * @param row row
+     * @return true for a rank
+     */
+    public boolean isRank(int row) { return kinds[row] == ColumnarResultsWriter.KIND_RANK; }
+    /**
+     * The score threshold or rank of a row, NaN if the row has no threshold.
+     * @param row row
+     * @return threshold
+     */
+    public double getThreshold(int row) { return thresholds[row]; }
+    /**
+     * Get the value of a count column.
+     * @param column the column number, the index in getCountColumns()
+     * @param row row
+     * @return count
+     */
+    public int getCount(int column, int row) { return counts[column][row]; }
+    /**
+     * The whole column of counts, which must not get modified.
+     * @param column the column number, the index in getCountColumns()
+     * @return the counts of all rows
+     */
+    public int[] getCounts(int column) { return counts[column]; }
+
+    /**
+     * Create the statistics of a row.
+     * @param row row
+     * @return an EvalStatsTagging4Rank or EvalStatsTagging4Score object with the counts of the row
+     */
+    public EvalStatsTagging getEvalStats(int row) {
+      EvalStatsTagging es;
+      if (isRank(row)) {
+        es = new EvalStatsTagging4Rank((int) thresholds[row]);
+      } else {
+        es = new EvalStatsTagging4Score(thresholds[row]);
+      }
+      es.nTargets = counts[0][row];
+      es.nResponses = counts[1][row];
+      es.nCorrectStrict = counts[2][row];
+      es.nCorrectPartial = counts[3][row];
+      es.nIncorrectStrict = counts[4][row];
+      es.nIncorrectPartial = counts[5][row];
+      es.nSingleCorrectStrict = counts[6][row];
+      es.nSingleCorrectPartial = counts[7][row];
+      es.nTargetsWithStrictResponses = counts[8][row];
+      es.nTargetsWithLenientResponses = counts[9][row];
+      return es;
+    }
+  }
+
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2015-2018 University of Sheffield.
+ *
+ * This file is part of gateplugin-Evaluation
+ * (see https://github.com/GateNLP/gateplugin-Evaluation).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.evaluation.api;
+
+import gate.util.GateRuntimeException;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * Write evaluation results in a compact binary columnar format which can be read back much 
+ * faster than the TSV files, with ColumnarResultsReader.
+ * <p>
+ * Each row corresponds to a row of the TSV file: the evaluation type, document name, 
+ * annotation set name and annotation type, the kind and value of the threshold and the counts
+ * of the EvalStatsTagging object, from which all the measures can be calculated again. 
+ * The names are stored as ids into a dictionary of all the names in the file. Rows are
+ * collected into blocks of up to BLOCK_ROWS rows, where all the values of one column are
+ * stored together as fixed width big endian numbers, and each block is compressed with deflate.
+ * <p>
+ * The file starts with a header with the format version, the evaluation id and the names of the 
+ * count columns, followed by the blocks, the dictionary, the index with the offset and number 
+ * of rows of each block, and finally the offsets of the dictionary and the index. So the 
+ * dictionary and index can be found from the end of the file and each block can be read on its 
+ * own, without reading through the file.
+ * <p>
+ * Statistics which are macro averages over several documents or types cannot be represented
+ * by counts and cannot be written. All methods are synchronized, so a writer can be shared by 
+ * several threads. The file is only complete after the writer has been closed.
+ *
+ * @author Johann Petrak
+ */
+public class ColumnarResultsWriter implements Closeable {
+
+  public static final int MAGIC = 0x47455642; // "GEVB"
+  public static final int VERSION = 2;
+  public static final int BLOCK_ROWS = 65536;
+  // the kinds of threshold
+  public static final byte KIND_SCORE = 0;
+  public static final byte KIND_RANK = 1;
+
+  /**
+   * The names of the count columns, in the order in which they are stored.
+   */
+  public static final String[] COUNT_COLUMNS = {
+    "targets", "responses", "correctStrict", "correctPartial", "incorrectStrict", 
+    "incorrectPartial", "singleCorrectStrict", "singleCorrectPartial", 
+    "targetsWithStrictResponses", "targetsWithLenientResponses"
+  };
+
+  // the size of a row in the uncompressed block: 4 name ids, the kind, the threshold and the counts
+  static final int ROW_BYTES = 4 * 4 + 1 + 8 + COUNT_COLUMNS.length * 4;
+
+  protected DataOutputStream out;
+  protected long offset = 0;
+  protected Map<String, Integer> dictionary = new HashMap<String, Integer>();
+  protected List<String> names = new ArrayList<String>();
+  protected List<Long> blockOffsets = new ArrayList<Long>();
+  protected List<Integer> blockRows = new ArrayList<Integer>();
+  protected Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+  // the columns of the current block
+  protected int rows = 0;
+  protected int[] evaluationTypes = new int[BLOCK_ROWS];
+  protected int[] documentNames = new int[BLOCK_ROWS];
+  protected int[] setNames = new int[BLOCK_ROWS];
+  protected int[] annotationTypes = new int[BLOCK_ROWS];
+  protected byte[] kinds = new byte[BLOCK_ROWS];
+  protected double[] thresholds = new double[BLOCK_ROWS];
+  protected int[][] counts = new int[COUNT_COLUMNS.length][BLOCK_ROWS];
+  protected ByteBuffer raw = ByteBuffer.allocate(BLOCK_ROWS * ROW_BYTES);
+  protected byte[] compressed = new byte[64 * 1024];
+
+  /**
+   * Create a writer and write the header.
+   *
+   * @param os the stream to write to, will be closed when the writer gets closed
+   * @param evaluationId the evaluation id, stored once in the header
+   * @throws IOException if the header cannot be written
+   */
+  public ColumnarResultsWriter(OutputStream os, String evaluationId) throws IOException {
+    out = new DataOutputStream(os);
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    writeString(out, evaluationId);
+    out.writeInt(COUNT_COLUMNS.length);
+    for (String column : COUNT_COLUMNS) {
+      writeString(out, column);
+    }
+    offset = out.size();
+  }
+
+  // Write the length of the UTF-8 encoding of the string followed by the bytes. Unlike
+  // writeUTF, this works for strings of any length.
+  protected static void writeString(DataOutputStream out, String string) throws IOException {
+    byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  protected int idOf(String name) {
+    Integer id = dictionary.get(name);
+    if (id == null) {
+      id = names.size();
+      names.add(name);
+      dictionary.put(name, id);
+    }
+    return id;
+  }
+
+  /**
+   * Add a row. 
+   *
+   * @param evaluationType the evaluation type, e.g. "normal" or "score"
+   * @param documentName the document name
+   * @param setName the annotation set name
+   * @param annotationType the annotation type
+   * @param es the statistics, must not be macro averages
+   * @throws IOException if a block has to be written and writing fails
+   */
+  public synchronized void add(String evaluationType, String documentName, String setName, 
+          String annotationType, EvalStatsTagging es) throws IOException {
+    if (es instanceof EvalStatsTaggingMacro) {
+      throw new GateRuntimeException("Cannot write macro averaged statistics");
+    }
+    evaluationTypes[rows] = idOf(evaluationType);
+    documentNames[rows] = idOf(documentName);
+    setNames[rows] = idOf(setName);
+    annotationTypes[rows] = idOf(annotationType);
+    if (es instanceof EvalStatsTagging4Rank) {
+      kinds[rows] = KIND_RANK;
+      thresholds[rows] = ((EvalStatsTagging4Rank) es).getRank();
+    } else {
+      kinds[rows] = KIND_SCORE;
+      thresholds[rows] = es instanceof EvalStatsTagging4Score 
+              ? ((EvalStatsTagging4Score) es).getThreshold() : Double.NaN;
+    }
+    int[] values = es.getCounts();
+    for (int c = 0; c < values.length; c++) {
+      counts[c][rows] = values[c];
+    }
+    rows++;
+    if (rows == BLOCK_ROWS) {
+      writeBlock();
+    }
+  }
+
+  protected void writeBlock() throws IOException {
+    if (rows == 0) {
+      return;
+    }
+    raw.clear();
+    for (int i = 0; i < rows; i++) raw.putInt(evaluationTypes[i]);
+    for (int i = 0; i < rows; i++) raw.putInt(documentNames[i]);
+    for (int i = 0; i < rows; i++) raw.putInt(setNames[i]);
+    for (int i = 0; i < rows; i++) raw.putInt(annotationTypes[i]);
+    raw.put(kinds, 0, rows);
+    for (int i = 0; i < rows; i++) raw.putDouble(thresholds[i]);
+    for (int[] column : counts) {
+      for (int i = 0; i < rows; i++) raw.putInt(column[i]);
+    }
+    int rawLength = raw.position();
+    deflater.reset();
+    deflater.setInput(raw.array(), 0, rawLength);
+    deflater.finish();
+    int length = 0;
+    while (!deflater.finished()) {
+      if (length == compressed.length) {
+        byte[] larger = new byte[compressed.length * 2];
+        System.arraycopy(compressed, 0, larger, 0, length);
+        compressed = larger;
+      }
+      length += deflater.deflate(compressed, length, compressed.length - length);
+    }
+    blockOffsets.add(offset);
+    blockRows.add(rows);
+    out.writeInt(rows);
+    out.writeInt(rawLength);
+    out.writeInt(length);
+    out.write(compressed, 0, length);
+    offset += 12 + length;
+    rows = 0;
+  }
+
+  /**
+   * Write the remaining rows, the dictionary and the index and close the underlying stream.
+   * @throws IOException if writing fails
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (out == null) {
+      return;
+    }
+    try {
+      writeBlock();
+      long dictionaryOffset = offset;
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream dictionaryOut = new DataOutputStream(bytes);
+      dictionaryOut.writeInt(names.size());
+      for (String name : names) {
+        writeString(dictionaryOut, name);
+      }
+      bytes.writeTo(out);
+      offset += bytes.size();
+      long indexOffset = offset;
+      out.writeInt(blockOffsets.size());
+      for (int i = 0; i < blockOffsets.size(); i++) {
+        out.writeLong(blockOffsets.get(i));
+        out.writeInt(blockRows.get(i));
+      }
+      out.writeLong(dictionaryOffset);
+      out.writeLong(indexOffset);
+      out.writeInt(MAGIC);
+    } finally {
+      deflater.end();
+      out.close();
+      out = null;
+    }
+  }
+
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2015-2018 University of Sheffield.
+ * 
+ * This file is part of gateplugin-Evaluation 
+ * (see https://github.com/GateNLP/gateplugin-Evaluation).
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package gate.plugin.evaluation.api;
+
+import gate.AnnotationSet;
+import gate.annotation.ImmutableAnnotationSetImpl;
+import gate.util.GateRuntimeException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Select the annotations which overlap with, are contained in or are coextensive with any
+ * of the annotations of a containing set.
+ * <p>
+ * This gives the same result as querying the set to filter with 
+ * gate.Utils.getOverlappingAnnotations, getContainedAnnotations or getCoextensiveAnnotations
+ * for each containing annotation and taking the union of the results, but without any index 
+ * queries: the spans of the containing annotations get sorted by start and end offset once, 
+ * together with the largest end offset of all containing annotations up to each of them. 
+ * The annotations to filter are then sorted by start offset and checked in a single sweep over 
+ * both, so after sorting, filtering n annotations by m containing annotations takes 
+ * O(n + m) steps, apart from looking up the end offset among the containing annotations with 
+ * the same start offset for COEXTENSIVE. Zero-length annotations are treated like GATE does:
+ * a zero-length containing annotation overlaps all annotations which start at its offset, 
+ * but does not contain any, and a zero-length annotation at the end of a containing annotation
+ * neither overlaps it nor is contained in it.
+ * <p>
+ * A filter can be used for any number of sets to filter.
+ *
+ * @author Johann Petrak
+ */
+public class ContainmentFilter {
+  
+  protected ContainmentType how;
+  // the spans of the containing annotations, sorted by start offset, then end offset
+  protected long[] starts;
+  protected long[] ends;
+  // for each k, the largest end offset of containing annotations 0..k
+  protected long[] maxEnds;
+  
+  /**
+   * Create a filter for the given containing annotations.
+   * 
+   * @param containingSet the containing annotations
+   * @param how how the annotations to select must relate to a containing annotation
+   */
+  public ContainmentFilter(AnnotationSet containingSet, ContainmentType how) {
+    if(how == null) {
+      throw new GateRuntimeException("ContainmentType must not be null");
+    }
+    this.how = how;
+    DocumentSpanSnapshot spans = new DocumentSpanSnapshot(containingSet);
+    int m = spans.size();
+    int[] all = new int[m];
+    for (int i = 0; i < m; i++) {
+      all[i] = i;
+    }
+    int[] order = spans.offsetOrder(all, null);
+    starts = new long[m];
+    ends = new long[m];
+    maxEnds = new long[m];
+    for (int k = 0; k < m; k++) {
+      starts[k] = spans.getStart(order[k]);
+      ends[k] = spans.getEnd(order[k]);
+      maxEnds[k] = k == 0 ? ends[k] : Math.max(maxEnds[k-1], ends[k]);
+    }
+  }
+  
+  /**
+   * Select the annotations from the set which are overlapping, contained in or coextensive
+   * with any of the containing annotations. 
+   * 
+   * @param toFilterSet the annotations to filter
+   * @return the set itself if it is empty, otherwise a new immutable set with the selected
+   * annotations
+   */
+  public AnnotationSet select(AnnotationSet toFilterSet) {
+    if(toFilterSet.isEmpty()) return toFilterSet;
+    if(starts.length == 0) return new ImmutableAnnotationSetImpl(toFilterSet.getDocument(), null);
+    DocumentSpanSnapshot anns = new DocumentSpanSnapshot(toFilterSet);
+    int m = starts.length;
+    // the number of containing annotations which start before, or at, the current start offset
+    // and the number which start before it
+    int upTo = 0;
+    int before = 0;
+    List<gate.Annotation> selected = new ArrayList<gate.Annotation>();
+    for (int i : anns.startOrder()) {
+      long start = anns.getStart(i);
+      long end = anns.getEnd(i);
+      while (upTo < m && starts[upTo] <= start) {
+        upTo++;
+      }
+      // the containing annotations which start at the current start offset are those from
+      // before to upTo, sorted by end offset
+      while (before < m && starts[before] < start) {
+        before++;
+      }
+      boolean select;
+      if (how == ContainmentType.OVERLAPPING) {
+        // like AnnotationSet.get(start,end) for the containing annotation: either the annotation 
+        // starts inside the containing annotation, or the containing annotation starts 
+        // strictly inside the annotation. AnnotationSet.get widens a zero-length interval by
+        // one, so a zero-length containing annotation also selects all annotations which start
+        // at its offset, and if there is one, it is the first to start there.
+        select = (upTo > 0 && maxEnds[upTo-1] > start) || (upTo < m && starts[upTo] < end) ||
+                (before < upTo && ends[before] == start);
+      } else if (how == ContainmentType.CONTAINING) {
+        // like AnnotationSet.getContained(start,end) for the containing annotation: the 
+        // annotation must start before the end of the containing annotation, so a zero-length 
+        // annotation at its end is not contained and a zero-length containing annotation does
+        // not contain anything
+        select = upTo > 0 && maxEnds[upTo-1] >= end && maxEnds[upTo-1] > start;
+      } else {
+        select = before < upTo && Arrays.binarySearch(ends, before, upTo, end) >= 0;
+      }
+      if (select) {
+        selected.add(anns.getAnnotation(i));
+      }
+    }
+    return new ImmutableAnnotationSetImpl(toFilterSet.getDocument(), selected);
+  }
+  
+}
@@ -100,6 +100,34 @@ public class ContingencyTableInteger implements NameBearer {
     values[rows*row+col] += value;
   }
   
+  /**
+   * Add the values of another table with the same number of rows and columns to this one.
+   * @param other the other table
+   */
+  public void add(ContingencyTableInteger other) {
+    if(other.rows != rows || other.cols != cols) {
+      throw new RuntimeException("Cannot add a table with "+other.rows+" rows and "+other.cols+
+              " columns to a table with "+rows+" rows and "+cols+" columns");
+    }
+    for(int i = 0; i < values.length; i++) {
+      values[i] += other.values[i];
+    }
+  }
+
+  /**
+   * Subtract the values of another table with the same number of rows and columns from this one.
+   * @param other the other table
+   */
+  public void subtract(ContingencyTableInteger other) {
+    if(other.rows != rows || other.cols != cols) {
+      throw new RuntimeException("Cannot subtract a table with "+other.rows+" rows and "+other.cols+
+              " columns from a table with "+rows+" rows and "+cols+" columns");
+    }
+    for(int i = 0; i < values.length; i++) {
+      values[i] -= other.values[i];
+    }
+  }
+
   public int get(int row, int col) {
     return values[rows*row+col];
   }
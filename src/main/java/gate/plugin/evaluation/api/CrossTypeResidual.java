@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2015-2018 University of Sheffield.
+ * 
+ * This file is part of gateplugin-Evaluation 
+ * (see https://github.com/GateNLP/gateplugin-Evaluation).
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package gate.plugin.evaluation.api;
+
+import gate.Annotation;
+import gate.AnnotationSet;
+import gate.annotation.AnnotationSetImpl;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The part of the keys and responses of a document where comparing all types at once gives
+ * different pairings than comparing each type on its own.
+ * <p>
+ * Keys and responses only get paired if their spans overlap or are coextensive, so the pairings
+ * chosen for a group of keys and responses which are connected by overlapping spans do not 
+ * depend on any other annotations. The single correct counts also depend on the unpaired 
+ * responses which overlap a key in the sense of AnnotationSet#get, which includes zero-length
+ * responses at the start of the key and responses starting at a zero-length key, so these
+ * connect a group too. If all the overlapping keys and responses of a group have the
+ * same type, the group is evaluated in exactly the same way when comparing all types at once 
+ * as when comparing just that type. Only the groups which contain a key overlapping with a 
+ * response of a different type need to get compared again, and this is what this class finds:
+ * all the annotations in these groups. If there is a set of reference annotations, these 
+ * are included in the same way, so that the groups are the same for the response and reference 
+ * annotations. 
+ * <p>
+ * The statistics over all types are then the sum of the statistics for each type, minus the 
+ * statistics of each type for the annotations of this residual, plus the statistics of comparing 
+ * all types for the annotations of this residual.
+ *
+ * @author Johann Petrak
+ */
+public class CrossTypeResidual {
+  
+  protected AnnotationSet keys;
+  protected AnnotationSet responses;
+  protected AnnotationSet references;
+  protected AnnotationTypeSpecs typeSpecs;
+  
+  /**
+   * Find the residual for the given annotations.
+   * 
+   * @param keys the key annotations of all types
+   * @param responses the response annotations of all types
+   * @param references the reference annotations of all types, or null
+   * @param typeSpecs the annotation type specifications
+   */
+  public CrossTypeResidual(AnnotationSet keys, AnnotationSet responses, AnnotationSet references,
+          AnnotationTypeSpecs typeSpecs) {
+    this.typeSpecs = typeSpecs;
+    Map<String, Integer> typeIds = new HashMap<String, Integer>();
+    DocumentSpanSnapshot keySpans = new DocumentSpanSnapshot(keys, typeIds, typeSpecs, false, null);
+    DocumentSpanSnapshot responseSpans = new DocumentSpanSnapshot(responses, typeIds, typeSpecs, true, null);
+    DocumentSpanSnapshot referenceSpans = references == null ? null 
+            : new DocumentSpanSnapshot(references, typeIds, typeSpecs, true, null);
+    int nKeys = keySpans.size();
+    int nResponses = responseSpans.size();
+    int nReferences = referenceSpans == null ? 0 : referenceSpans.size();
+    // keys are nodes 0..nKeys-1, then the responses, then the references
+    int[] parent = new int[nKeys + nResponses + nReferences];
+    for (int i = 0; i < parent.length; i++) {
+      parent[i] = i;
+    }
+    boolean[] crossing = new boolean[nKeys];
+    boolean haveCrossing = connect(keySpans, responseSpans, nKeys, parent, crossing);
+    if (referenceSpans != null) {
+      haveCrossing |= connect(keySpans, referenceSpans, nKeys + nResponses, parent, crossing);
+    }
+    this.keys = new AnnotationSetImpl(keys.getDocument());
+    this.responses = new AnnotationSetImpl(keys.getDocument());
+    this.references = references == null ? null : new AnnotationSetImpl(keys.getDocument());
+    if (!haveCrossing) {
+      return;
+    }
+    boolean[] inResidual = new boolean[parent.length];
+    for (int i = 0; i < nKeys; i++) {
+      if (crossing[i]) {
+        inResidual[find(parent, i)] = true;
+      }
+    }
+    for (int i = 0; i < nKeys; i++) {
+      if (inResidual[find(parent, i)]) {
+        this.keys.add(keySpans.getAnnotation(i));
+      }
+    }
+    for (int j = 0; j < nResponses; j++) {
+      if (inResidual[find(parent, nKeys + j)]) {
+        this.responses.add(responseSpans.getAnnotation(j));
+      }
+    }
+    for (int j = 0; j < nReferences; j++) {
+      if (inResidual[find(parent, nKeys + nResponses + j)]) {
+        this.references.add(referenceSpans.getAnnotation(j));
+      }
+    }
+  }
+  
+  // Join the components of all keys and responses which overlap or are coextensive, or where
+  // the response counts as overlapping the key for the single correct counts, and mark the keys
+  // which do so with a response of a different type. Returns true if there was any such key.
+  private static boolean connect(DocumentSpanSnapshot keySpans, DocumentSpanSnapshot responseSpans,
+          int firstResponseNode, int[] parent, boolean[] crossing) {
+    boolean haveCrossing = false;
+    for (long pair : AnnotationDifferTagging.findCandidatePairs(keySpans, responseSpans)) {
+      int i = (int) (pair >>> 32);
+      int j = (int) pair;
+      if (!keySpans.isOverlappingAsInGet(i, responseSpans, j)) {
+        continue;
+      }
+      int r1 = find(parent, i);
+      int r2 = find(parent, firstResponseNode + j);
+      if (r1 != r2) {
+        parent[r2] = r1;
+      }
+      if (keySpans.getType(i) != responseSpans.getType(j)) {
+        crossing[i] = true;
+        haveCrossing = true;
+      }
+    }
+    return haveCrossing;
+  }
+  
+  private static int find(int[] parent, int i) {
+    while (parent[i] != i) {
+      parent[i] = parent[parent[i]];
+      i = parent[i];
+    }
+    return i;
+  }
+  
+  /**
+   * Check if there are no keys and responses of different types which overlap.
+   * @return true if the residual is empty
+   */
+  public boolean isEmpty() {
+    return keys.isEmpty() && responses.isEmpty() && (references == null || references.isEmpty());
+  }
+  
+  public AnnotationSet getKeys() { return keys; }
+  public AnnotationSet getResponses() { return responses; }
+  /**
+   * The reference annotations of the residual.
+   * @return  the reference annotations or null if no reference annotations were given
+   */
+  public AnnotationSet getReferences() { return references; }
+  
+  /**
+   * The keys of the residual which have the given key type.
+   * @param keyType the key type
+   * @return the keys of that type
+   */
+  public AnnotationSet getKeys(String keyType) { return select(keys, keyType, false); }
+  /**
+   * The responses of the residual whose type corresponds to the given key type.
+   * @param keyType the key type
+   * @return the responses for that type
+   */
+  public AnnotationSet getResponses(String keyType) { return select(responses, keyType, true); }
+  /**
+   * The reference annotations of the residual whose type corresponds to the given key type.
+   * @param keyType the key type
+   * @return the reference annotations for that type or null if no reference annotations were given
+   */
+  public AnnotationSet getReferences(String keyType) { 
+    return references == null ? null : select(references, keyType, true); 
+  }
+  
+  protected AnnotationSet select(AnnotationSet anns, String keyType, boolean isResponse) {
+    AnnotationSet ret = new AnnotationSetImpl(anns.getDocument());
+    for (Annotation ann : anns) {
+      String type = isResponse ? typeSpecs.getKeyType(ann.getType()) : ann.getType();
+      if (keyType.equals(type)) {
+        ret.add(ann);
+      }
+    }
+    return ret;
+  }
+  
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2015-2018 University of Sheffield.
+ * 
+ * This file is part of gateplugin-Evaluation 
+ * (see https://github.com/GateNLP/gateplugin-Evaluation).
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package gate.plugin.evaluation.api;
+
+/**
+ * How the evaluation results for each document get stored as document features.
+ * <p>
+ * MEASURES stores each measure and count as a separate feature, e.g. 
+ * "evaluateTagging.response.ID.Set.Type.FMeasureStrict". This is the default.
+ * <p>
+ * COUNTS stores a single feature per type and set, with the name ending in "Counts", 
+ * whose value is a list of Integers, so it can be saved as GATE XML. The first element is 
+ * COUNTS_VERSION, the version of the layout of the list, followed by the counts in the order
+ * of EvalStatsTagging.getCounts(), which is also the order of ColumnarResultsWriter.COUNT_COLUMNS:
+ * targets, responses, correctStrict, correctPartial, incorrectStrict, incorrectPartial, 
+ * singleCorrectStrict, singleCorrectPartial, targetsWithStrictResponses and 
+ * targetsWithLenientResponses. All the measures can be calculated from the counts, and this 
+ * makes the saved documents much smaller.
+ *
+ * @author Johann Petrak
+ */
+public enum DocumentFeaturesFormat {
+  MEASURES, COUNTS;
+  
+  /**
+   * The version of the layout of the COUNTS feature value.
+   */
+  public static final int COUNTS_VERSION = 1;
+}
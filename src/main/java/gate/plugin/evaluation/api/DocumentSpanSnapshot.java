@@ -0,0 +1,322 @@
+/*
+ * Copyright (c) 2015-2018 University of Sheffield.
+ *
+ * This file is part of gateplugin-Evaluation
+ * (see https://github.com/GateNLP/gateplugin-Evaluation).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.evaluation.api;
+
+import gate.Annotation;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The spans, types, ids and scores of a list of annotations, stored in arrays.
+ * <p>
+ * The evaluation code needs the offsets, ids and types of the same annotations over and over
+ * again, e.g. for sorting, finding overlaps and comparing keys with responses. Getting these
+ * from the annotations each time means following several references and unboxing the offsets,
+ * so this snapshot gets them once for the annotations of a document and keeps them in
+ * primitive arrays. Annotation i of the snapshot is always the annotation at index i of the list
+ * returned by {@link #getAnnotations()}.
+ * <p>
+ * Types are represented by ids which are assigned from a map that is shared between the
+ * snapshots of one document, so the type ids of the keys and responses can be compared directly.
+ * If annotation type specifications are used, the type of each response is first mapped to
+ * the corresponding key type and responses with a type that does not get mapped to a key type
+ * get the type id {@link #NO_TYPE}.
+ *
+ * @author Johann Petrak
+ */
+class DocumentSpanSnapshot {
+
+  /**
+   * The type id of a response whose type does not map to any key type, and of all annotations
+   * if the types were not included in the snapshot.
+   */
+  static final int NO_TYPE = -1;
+
+  private final Annotation[] anns;
+  private final long[] starts;
+  private final long[] ends;
+  private final int[] ids;
+  private final int[] types;
+  private final double[] scores;
+
+  /**
+   * Create a snapshot of just the spans and ids of the annotations.
+   *
+   * @param anns the annotations, in the order they should have in the snapshot
+   */
+  DocumentSpanSnapshot(Collection<Annotation> anns) {
+    this(anns, null, null, false, null);
+  }
+
+  /**
+   * Create a snapshot of the annotations.
+   *
+   * @param anns the annotations, in the order they should have in the snapshot
+   * @param typeIds the type ids assigned so far for the document, types not in the map are
+   * added with the next id. If null, all annotations get the type id NO_TYPE.
+   * @param typeSpecs the annotation type specifications or null
+   * @param isResponse if true, the response types are mapped to the key types using the
+   * type specifications
+   * @param scoreFeature the feature to get the score from, if null, all scores are NaN.
+   * Annotations which do not have the feature also get the score NaN.
+   */
+  DocumentSpanSnapshot(Collection<Annotation> anns, Map<String, Integer> typeIds,
+          AnnotationTypeSpecs typeSpecs, boolean isResponse, String scoreFeature) {
+    final int n = anns.size();
+    this.anns = anns.toArray(new Annotation[n]);
+    starts = new long[n];
+    ends = new long[n];
+    ids = new int[n];
+    types = new int[n];
+    scores = new double[n];
+    for (int i = 0; i < n; i++) {
+      Annotation ann = this.anns[i];
+      starts[i] = ann.getStartNode().getOffset();
+      ends[i] = ann.getEndNode().getOffset();
+      ids[i] = ann.getId();
+      types[i] = typeIds == null ? NO_TYPE : typeId(ann.getType(), typeIds, typeSpecs, isResponse);
+      scores[i] = scoreFeature == null
+              ? Double.NaN
+              : AnnotationDifferTagging.getFeatureDouble(ann.getFeatures(), scoreFeature, Double.NaN);
+    }
+  }
+
+  private DocumentSpanSnapshot(DocumentSpanSnapshot from, int[] indices) {
+    final int n = indices.length;
+    anns = new Annotation[n];
+    starts = new long[n];
+    ends = new long[n];
+    ids = new int[n];
+    types = new int[n];
+    scores = new double[n];
+    for (int i = 0; i < n; i++) {
+      int k = indices[i];
+      anns[i] = from.anns[k];
+      starts[i] = from.starts[k];
+      ends[i] = from.ends[k];
+      ids[i] = from.ids[k];
+      types[i] = from.types[k];
+      scores[i] = from.scores[k];
+    }
+  }
+
+  private static int typeId(String type, Map<String, Integer> typeIds,
+          AnnotationTypeSpecs typeSpecs, boolean isResponse) {
+    if (isResponse && typeSpecs != null) {
+      type = typeSpecs.getKeyType(type);
+      if (type == null) {
+        return NO_TYPE;
+      }
+    }
+    Integer id = typeIds.get(type);
+    if (id == null) {
+      id = typeIds.size();
+      typeIds.put(type, id);
+    }
+    return id;
+  }
+
+  /**
+   * Return a new snapshot which contains the annotations with the given indices, in the
+   * order of the indices.
+   */
+  DocumentSpanSnapshot select(int[] indices) {
+    return new DocumentSpanSnapshot(this, indices);
+  }
+
+  /**
+   * Return the given indices sorted like
+   * {@link AnnotationDifferTagging.OffsetAndMoreComparator} would sort the annotations: by
+   * start offset, then end offset and, only if there are features, by the features and id.
+   * The sort is stable, so annotations which compare equal stay in the order of the indices.
+   *
+   * @param indices the indices of the annotations to sort, this array is not modified
+   * @param features the features to use for breaking ties, may be null
+   * @return the sorted indices
+   */
+  int[] offsetOrder(int[] indices, Set<String> features) {
+    int[] ret = sortByOffset(starts, sortByOffset(ends, indices));
+    if (features == null || features.isEmpty()) {
+      return ret;
+    }
+    // only the annotations with the same span still need the comparator, which for these is
+    // an insertion sort of the, usually very short, runs of coextensive annotations
+    AnnotationDifferTagging.OffsetAndMoreComparator tieBreaker
+            = new AnnotationDifferTagging.OffsetAndMoreComparator(features);
+    int from = 0;
+    while (from < ret.length) {
+      int to = from + 1;
+      while (to < ret.length && starts[ret[to]] == starts[ret[from]] && ends[ret[to]] == ends[ret[from]]) {
+        to++;
+      }
+      for (int p = from + 1; p < to; p++) {
+        int index = ret[p];
+        int q = p;
+        while (q > from && tieBreaker.compare(anns[ret[q - 1]], anns[index]) > 0) {
+          ret[q] = ret[q - 1];
+          q--;
+        }
+        ret[q] = index;
+      }
+      from = to;
+    }
+    return ret;
+  }
+
+  /**
+   * Return the given indices stably sorted by the given offsets. The offsets of a document
+   * fit into an int, so each offset is packed with the position of its index into a single 
+   * long and the packed keys are sorted as primitives.
+   */
+  private static int[] sortByOffset(long[] offsets, int[] indices) {
+    long[] keys = new long[indices.length];
+    for (int p = 0; p < indices.length; p++) {
+      keys[p] = (offsets[indices[p]] << 32) | p;
+    }
+    Arrays.sort(keys);
+    int[] ret = new int[indices.length];
+    for (int p = 0; p < indices.length; p++) {
+      ret[p] = indices[(int) keys[p]];
+    }
+    return ret;
+  }
+
+  /**
+   * Return a new snapshot with the annotations sorted like
+   * {@link #offsetOrder(int[], java.util.Set)} sorts them.
+   */
+  DocumentSpanSnapshot sortedByOffset(Set<String> features) {
+    int[] all = new int[size()];
+    for (int i = 0; i < all.length; i++) {
+      all[i] = i;
+    }
+    return select(offsetOrder(all, features));
+  }
+
+  /**
+   * Return the indices 0..size()-1 ordered by start offset.
+   */
+  int[] startOrder() {
+    int[] all = new int[starts.length];
+    for (int i = 0; i < all.length; i++) {
+      all[i] = i;
+    }
+    return sortByOffset(starts, all);
+  }
+
+  /**
+   * Check if annotation i of this snapshot and annotation j of the other snapshot have the
+   * same span, like {@link Annotation#coextensive(gate.Annotation)}.
+   */
+  boolean isCoextensive(int i, DocumentSpanSnapshot other, int j) {
+    return starts[i] == other.starts[j] && ends[i] == other.ends[j];
+  }
+
+  /**
+   * Check if annotation i of this snapshot and annotation j of the other snapshot overlap,
+   * like {@link Annotation#overlaps(gate.Annotation)}.
+   */
+  boolean isOverlapping(int i, DocumentSpanSnapshot other, int j) {
+    return other.ends[j] > starts[i] && other.starts[j] < ends[i];
+  }
+
+  /**
+   * Check if annotation j of the other snapshot is among the annotations AnnotationSet#get 
+   * returns for the span of annotation i of this snapshot. This includes all annotations which
+   * overlap or are coextensive with annotation i, but also zero-length annotations at its start
+   * and, since a zero-length interval gets widened by one, all annotations which start at 
+   * annotation i if it has length zero. This is the notion of overlap used for the single 
+   * correct counts.
+   */
+  boolean isOverlappingAsInGet(int i, DocumentSpanSnapshot other, int j) {
+    if (other.starts[j] < starts[i]) {
+      return other.ends[j] > starts[i];
+    }
+    return other.starts[j] < ends[i] || (other.starts[j] == starts[i] && starts[i] == ends[i]);
+  }
+
+  int size() {
+    return anns.length;
+  }
+
+  Annotation getAnnotation(int i) {
+    return anns[i];
+  }
+
+  long getStart(int i) {
+    return starts[i];
+  }
+
+  long getEnd(int i) {
+    return ends[i];
+  }
+
+  int getId(int i) {
+    return ids[i];
+  }
+
+  int getType(int i) {
+    return types[i];
+  }
+
+  double getScore(int i) {
+    return scores[i];
+  }
+
+  /**
+   * The annotations of this snapshot as an unmodifiable list.
+   */
+  List<Annotation> getAnnotations() {
+    return new AbstractList<Annotation>() {
+      @Override
+      public Annotation get(int index) {
+        return anns[index];
+      }
+
+      @Override
+      public int size() {
+        return anns.length;
+      }
+    };
+  }
+
+  // The following return the internal arrays, which must not be modified.
+
+  long[] getStarts() {
+    return starts;
+  }
+
+  long[] getEnds() {
+    return ends;
+  }
+
+  int[] getIds() {
+    return ids;
+  }
+
+  double[] getScores() {
+    return scores;
+  }
+
+}
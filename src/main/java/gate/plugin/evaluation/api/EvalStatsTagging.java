@@ -81,6 +81,33 @@ public abstract class EvalStatsTagging  {
     nTargetsWithLenientResponses += other.nTargetsWithLenientResponses;
   }
   
+  // decrement this EvalStatsTagging object by the counts from another one which have been 
+  // included in this object before
+  public void subtract(EvalStatsTagging other) {
+    nTargets -= other.nTargets;
+    nResponses -= other.nResponses;
+    nCorrectStrict -= other.nCorrectStrict;
+    nCorrectPartial -= other.nCorrectPartial;
+    nIncorrectStrict -= other.nIncorrectStrict;
+    nIncorrectPartial -= other.nIncorrectPartial;
+    nSingleCorrectStrict -= other.nSingleCorrectStrict;
+    nSingleCorrectPartial -= other.nSingleCorrectPartial;
+    nTargetsWithStrictResponses -= other.nTargetsWithStrictResponses;
+    nTargetsWithLenientResponses -= other.nTargetsWithLenientResponses;
+  }
+  
+  /**
+   * Get all the counts this object is based on.
+   * @return the counts in the order of ColumnarResultsWriter.COUNT_COLUMNS
+   */
+  public int[] getCounts() {
+    return new int[] {
+      nTargets, nResponses, nCorrectStrict, nCorrectPartial, nIncorrectStrict,
+      nIncorrectPartial, nSingleCorrectStrict, nSingleCorrectPartial,
+      nTargetsWithStrictResponses, nTargetsWithLenientResponses
+    };
+  }
+  
   public void addTargets(int n) { nTargets += n; }
   public void addResponses(int n) { nResponses += n; }
   public void addCorrectStrict(int n) { nCorrectStrict += n; }
@@ -395,7 +422,15 @@ public abstract class EvalStatsTagging  {
   }
   
   public String getTSVLine() {
-    StringBuilder sb = new StringBuilder();
+    return appendTSVLine(new StringBuilder(256)).toString();
+  }
+  
+  /**
+   * Append the values of the TSV line, as returned by getTSVLine(), to a StringBuilder.
+   * @param sb the StringBuilder to append to
+   * @return the StringBuilder
+   */
+  public StringBuilder appendTSVLine(StringBuilder sb) {
     sb.append(getPrecisionStrict()); sb.append("\t");
     sb.append(getRecallStrict()); sb.append("\t");
     sb.append(getFMeasureStrict(1.0)); sb.append("\t");
@@ -420,7 +455,7 @@ public abstract class EvalStatsTagging  {
     sb.append(getTrueMissingLenient()); sb.append("\t");
     sb.append(getSpuriousLenient()); sb.append("\t");
     sb.append(getTrueSpuriousLenient()); 
-    return sb.toString();
+    return sb;
   }
   
   public String shortCounts() {
@@ -80,12 +80,10 @@ public class EvalStatsTagging4Rank extends EvalStatsTagging {
 
   
   @Override
-  public String getTSVLine() {
-    StringBuilder sb = new StringBuilder();
+  public StringBuilder appendTSVLine(StringBuilder sb) {
     sb.append("rank"); sb.append("\t");
     sb.append(rank); sb.append("\t");
-    sb.append(super.getTSVLine());
-    return sb.toString();
+    return super.appendTSVLine(sb);
   }
   
   public String toString4Debug() {
@@ -75,12 +75,10 @@ public class EvalStatsTagging4Score extends EvalStatsTagging {
 
   
   @Override
-  public String getTSVLine() {
-    StringBuilder sb = new StringBuilder();
+  public StringBuilder appendTSVLine(StringBuilder sb) {
     sb.append("score"); sb.append("\t");
     sb.append(threshold); sb.append("\t");
-    sb.append(super.getTSVLine());
-    return sb.toString();
+    return super.appendTSVLine(sb);
   }
   
   
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2015-2018 University of Sheffield.
+ *
+ * This file is part of gateplugin-Evaluation
+ * (see https://github.com/GateNLP/gateplugin-Evaluation).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.evaluation.api;
+
+import gate.Annotation;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A pre-compiled version of
+ * {@link AnnotationDifferTagging#isAnnotationsMatch(gate.Annotation, gate.Annotation, java.util.Set, gate.plugin.evaluation.api.FeatureComparison, boolean, gate.plugin.evaluation.api.AnnotationTypeSpecs)}
+ * for single (non-list) responses.
+ * <p>
+ * The matcher is created once from the feature set and feature comparison. The keys and
+ * responses to compare are then encoded: the type ids from the {@link DocumentSpanSnapshot}
+ * (which already map the response types to the key types) and the relevant feature value of 
+ * each annotation, replaced by an int code from a dictionary, are stored in arrays. Checking 
+ * if a key and response match then only compares ints and does not need any map lookups, 
+ * type mappings or string conversions.
+ * <p>
+ * The dictionary is cleared whenever new annotations get encoded, so it never grows beyond
+ * what is needed for one document. The result of each check is exactly the same as the result
+ * of isAnnotationsMatch. Once the annotations have been encoded, the matcher can be used by
+ * several threads at the same time.
+ *
+ * @author Johann Petrak
+ */
+class FeatureMatcher {
+
+  // the code for a missing feature value
+  private static final int NO_VALUE = -1;
+  // the type code for a response which cannot match any key
+  private static final int NO_MATCH = -2;
+
+  private final Set<String> features;
+  private final FeatureComparison fcmp;
+  // the feature to compare, or null if the features never make a difference
+  private final String feature;
+  private final boolean asString;
+
+  private final Map<Object, Integer> dictionary = new HashMap<Object, Integer>();
+  private int[] keyTypes = new int[0];
+  private int[] keyValues = new int[0];
+  private int[] responseTypes = new int[0];
+  private int[] responseValues = new int[0];
+
+  FeatureMatcher(Set<String> features, FeatureComparison fcmp) {
+    this.features = features;
+    this.fcmp = fcmp;
+    this.asString = fcmp == FeatureComparison.FEATURE_EQUALITY_AS_STRING;
+    // isAnnotationsMatch returns the result of comparing the first feature it gets from
+    // the feature set. For feature subsumption it checks the key features against
+    // themselves, which always succeeds, so the features do not matter in that case.
+    if (features != null && !features.isEmpty()
+            && (fcmp == FeatureComparison.FEATURE_EQUALITY || asString)) {
+      feature = features.iterator().next();
+    } else {
+      feature = null;
+    }
+  }
+
+  /**
+   * Check if this matcher was created for exactly these settings.
+   */
+  boolean isFor(Set<String> features, FeatureComparison fcmp) {
+    return this.features == features && this.fcmp == fcmp;
+  }
+
+  /**
+   * Encode the keys and responses which will get compared by {@link #isMatch(int, int)}. This
+   * replaces whatever has been encoded before. The type ids of both snapshots must have been
+   * assigned from the same map.
+   *
+   * @param keys the key annotations
+   * @param responses the response annotations
+   */
+  void encode(DocumentSpanSnapshot keys, DocumentSpanSnapshot responses) {
+    dictionary.clear();
+    if (keyTypes.length < keys.size()) {
+      keyTypes = new int[keys.size()];
+      keyValues = new int[keys.size()];
+    }
+    if (responseTypes.length < responses.size()) {
+      responseTypes = new int[responses.size()];
+      responseValues = new int[responses.size()];
+    }
+    for (int i = 0; i < keys.size(); i++) {
+      keyTypes[i] = keys.getType(i);
+      keyValues[i] = valueCode(keys.getAnnotation(i));
+    }
+    for (int j = 0; j < responses.size(); j++) {
+      // a response type which does not map to a key type never matches
+      responseTypes[j] = responses.getType(j) == DocumentSpanSnapshot.NO_TYPE
+              ? NO_MATCH : responses.getType(j);
+      responseValues[j] = valueCode(responses.getAnnotation(j));
+    }
+  }
+
+  /**
+   * Check if key i and response j from the last call of
+   * {@link #encode(gate.plugin.evaluation.api.DocumentSpanSnapshot, gate.plugin.evaluation.api.DocumentSpanSnapshot)}
+   * match.
+   */
+  boolean isMatch(int i, int j) {
+    return keyTypes[i] == responseTypes[j] && keyValues[i] == responseValues[j];
+  }
+
+  private int valueCode(Annotation ann) {
+    if (feature == null) {
+      return NO_VALUE;
+    }
+    Object value = ann.getFeatures().get(feature);
+    if (value == null) {
+      return NO_VALUE;
+    }
+    return code(asString ? value.toString() : value);
+  }
+
+  private int code(Object value) {
+    Integer code = dictionary.get(value);
+    if (code == null) {
+      code = dictionary.size();
+      dictionary.put(value, code);
+    }
+    return code;
+  }
+
+}
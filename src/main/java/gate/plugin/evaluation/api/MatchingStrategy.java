@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2015-2018 University of Sheffield.
+ * 
+ * This file is part of gateplugin-Evaluation 
+ * (see https://github.com/GateNLP/gateplugin-Evaluation).
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package gate.plugin.evaluation.api;
+
+/**
+ * How the final pairings between keys and responses are chosen from all possible pairings.
+ * <p>
+ * GREEDY repeatedly picks the best remaining pairing, where pairings are ranked by their 
+ * value minus the values of the pairings they conflict with. This is the traditional method
+ * and the default.
+ * <p>
+ * OPTIMAL finds, for each group of keys and responses which are connected by overlapping
+ * spans, the pairings which give the highest total value (correct strict counts more than 
+ * correct partial, which counts more than incorrect strict, which counts more than incorrect 
+ * partial) and among those, the one with the largest number of pairings.
+ *
+ * @author Johann Petrak
+ */
+public enum MatchingStrategy {
+  GREEDY, OPTIMAL
+}
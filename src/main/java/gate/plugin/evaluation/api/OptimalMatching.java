@@ -0,0 +1,317 @@
+/*
+ * Copyright (c) 2015-2018 University of Sheffield.
+ *
+ * This file is part of gateplugin-Evaluation
+ * (see https://github.com/GateNLP/gateplugin-Evaluation).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.evaluation.api;
+
+import java.util.Arrays;
+
+/**
+ * Find an optimal set of pairings between keys and responses.
+ * <p>
+ * The pairings are split into the connected components of the graph where keys and responses
+ * are the nodes and each possible pairing is an edge. Pairings in different components can never
+ * conflict, so each component is solved on its own with a sparse version of the Hungarian 
+ * method which only looks at the pairings of the component. The cost of this therefore depends 
+ * on the size of the largest component and the number of its pairings, not on the size of the
+ * document.
+ * <p>
+ * Each pairing gets the weight value*(n+1)+1 where n is the number of pairings in the component,
+ * so the selected pairings have the maximum total value and, among all selections with that total
+ * value, the largest number of pairings.
+ *
+ * @author Johann Petrak
+ */
+class OptimalMatching {
+
+  private static final long INF = Long.MAX_VALUE / 4;
+
+  private OptimalMatching() {
+  }
+
+  /**
+   * Select the pairings for an optimal matching.
+   *
+   * @param pairings all the possible pairings
+   * @param nKeys number of keys
+   * @param nResponses number of responses
+   * @return for each pairing, if it has been selected
+   */
+  static boolean[] select(PairingStore pairings, int nKeys, int nResponses) {
+    int n = pairings.size();
+    int[] keys = new int[n];
+    int[] responses = new int[n];
+    int[] values = new int[n];
+    for (int p = 0; p < n; p++) {
+      keys[p] = pairings.getKeyIndex(p);
+      responses[p] = pairings.getResponseIndex(p);
+      values[p] = pairings.getValue(p);
+    }
+    return select(keys, responses, values, n, nKeys, nResponses);
+  }
+
+  /**
+   * Select the pairings for an optimal matching, where pairing p is between key keys[p] and
+   * response responses[p] and has the value values[p].
+   *
+   * @param keys key index for each pairing
+   * @param responses response index for each pairing
+   * @param values value for each pairing
+   * @param n number of pairings
+   * @param nKeys number of keys
+   * @param nResponses number of responses
+   * @return for each pairing, if it has been selected
+   */
+  static boolean[] select(int[] keys, int[] responses, int[] values, int n, int nKeys, int nResponses) {
+    PairingComponents components = new PairingComponents(keys, responses, null, n, nKeys, nResponses);
+    boolean[] selected = new boolean[n];
+    int[] localKeys = new int[nKeys];
+    Arrays.fill(localKeys, -1);
+    int[] localResponses = new int[nResponses];
+    Arrays.fill(localResponses, -1);
+    for (int c = 0; c < components.size(); c++) {
+      matchComponent(components.getMembers(), components.getFrom(c), components.getFrom(c + 1),
+              keys, responses, values, localKeys, localResponses, selected);
+    }
+    return selected;
+  }
+
+  /**
+   * Find the optimal matching for the pairings comp[from] to comp[to-1] and set the
+   * selected flag for those pairings that are part of it. The arrays localKeys and 
+   * localResponses must contain -1 for all the keys and responses of the component and 
+   * are reset to -1 before returning. Only the entries for the keys, responses and pairings of
+   * the component are accessed, so different components can be matched concurrently with the
+   * same arrays.
+   * <p>
+   * This is the Hungarian method with shortest augmenting paths over the pairings only, so
+   * there is never a full cost matrix: each row (the keys or the responses, whichever there
+   * are fewer of) also gets its own dummy column with cost 0 which stands for leaving the row 
+   * unmatched. The rows are added one by one and for each, Dijkstra's algorithm on the reduced
+   * costs finds the cheapest way to change the assignment so far. Memory is linear in the 
+   * number of pairings of the component.
+   */
+  static void matchComponent(int[] comp, int from, int to,
+          int[] keys, int[] responses, int[] values,
+          int[] localKeys, int[] localResponses, boolean[] selected) {
+    int count = to - from;
+    if (count == 1) {
+      selected[comp[from]] = true;
+      return;
+    }
+    int nk = 0;
+    int nr = 0;
+    for (int c = from; c < to; c++) {
+      int p = comp[c];
+      if (localKeys[keys[p]] < 0) {
+        localKeys[keys[p]] = nk++;
+      }
+      if (localResponses[responses[p]] < 0) {
+        localResponses[responses[p]] = nr++;
+      }
+    }
+    // the number of Dijkstra runs is the number of rows, so use the smaller side for the rows
+    boolean keysAreRows = nk <= nr;
+    int rows = keysAreRows ? nk : nr;
+    int cols = keysAreRows ? nr : nk;
+    // the edges grouped by row, in the order of the pairings
+    int[] rowStart = new int[rows + 1];
+    for (int c = from; c < to; c++) {
+      int p = comp[c];
+      rowStart[1 + (keysAreRows ? localKeys[keys[p]] : localResponses[responses[p]])]++;
+    }
+    for (int i = 0; i < rows; i++) {
+      rowStart[i + 1] += rowStart[i];
+    }
+    int[] fill = Arrays.copyOf(rowStart, rows);
+    int[] edgeRow = new int[count];
+    int[] edgeCol = new int[count];
+    long[] edgeCost = new long[count];
+    int[] edgePairing = new int[count];
+    for (int c = from; c < to; c++) {
+      int p = comp[c];
+      int row = keysAreRows ? localKeys[keys[p]] : localResponses[responses[p]];
+      int e = fill[row]++;
+      edgeRow[e] = row;
+      edgeCol[e] = keysAreRows ? localResponses[responses[p]] : localKeys[keys[p]];
+      edgeCost[e] = -((long) values[p] * (count + 1) + 1);
+      edgePairing[e] = p;
+    }
+    for (int c = from; c < to; c++) {
+      int p = comp[c];
+      localKeys[keys[p]] = -1;
+      localResponses[responses[p]] = -1;
+    }
+    // Columns 0 to cols-1 are the real columns, column cols+i is the dummy column of row i,
+    // reached by the dummy edge count+i. The potentials u and v keep all reduced costs
+    // cost-u[row]-v[col] non-negative and the reduced costs of the assigned edges at 0.
+    // The potential of a column only changes once it is assigned, so all free columns have
+    // the potential 0 and the closest free column by reduced cost is also the cheapest.
+    int nCols = cols + rows;
+    long[] u = new long[rows];
+    long[] v = new long[nCols];
+    for (int e = 0; e < count; e++) {
+      u[edgeRow[e]] = Math.min(u[edgeRow[e]], edgeCost[e]);
+    }
+    int[] rowOfCol = new int[nCols];
+    Arrays.fill(rowOfCol, -1);
+    int[] colOfRow = new int[rows];
+    int[] edgeOfRow = new int[rows];
+    long[] dist = new long[nCols];
+    Arrays.fill(dist, INF);
+    int[] prevEdge = new int[nCols];
+    boolean[] done = new boolean[nCols];
+    // the columns reached and the columns finished in one run
+    int[] reached = new int[nCols];
+    int[] finished = new int[nCols];
+    // a binary heap of columns with their distance when added, outdated entries are skipped
+    int heapCapacity = count + rows + 1;
+    int[] heapCol = new int[heapCapacity];
+    long[] heapDist = new long[heapCapacity];
+    for (int i0 = 0; i0 < rows; i0++) {
+      int nReached = 0;
+      int nFinished = 0;
+      int heapSize = 0;
+      int row = i0;
+      long d = 0;
+      int free;
+      while (true) {
+        // relax the edges of the row, including its dummy edge
+        for (int e = rowStart[row]; e <= rowStart[row + 1]; e++) {
+          int j;
+          long cost;
+          int edge;
+          if (e < rowStart[row + 1]) {
+            j = edgeCol[e];
+            cost = edgeCost[e];
+            edge = e;
+          } else {
+            j = cols + row;
+            cost = 0;
+            edge = count + row;
+          }
+          if (done[j]) {
+            continue;
+          }
+          long nd = d + cost - u[row] - v[j];
+          if (nd < dist[j]) {
+            if (dist[j] == INF) {
+              reached[nReached++] = j;
+            }
+            dist[j] = nd;
+            prevEdge[j] = edge;
+            heapSize = heapPush(heapCol, heapDist, heapSize, j, nd);
+          }
+        }
+        // get the closest column which is not finished yet
+        int j;
+        do {
+          j = heapCol[0];
+          d = heapDist[0];
+          heapSize = heapPop(heapCol, heapDist, heapSize);
+        } while (done[j] || d != dist[j]);
+        done[j] = true;
+        finished[nFinished++] = j;
+        if (rowOfCol[j] < 0) {
+          free = j;
+          break;
+        }
+        row = rowOfCol[j];
+      }
+      // update the potentials so that the reduced costs stay non-negative and all edges on 
+      // the shortest path to the free column get a reduced cost of 0
+      long total = dist[free];
+      u[i0] += total;
+      for (int k = 0; k < nFinished; k++) {
+        int j = finished[k];
+        long delta = total - dist[j];
+        v[j] -= delta;
+        if (j != free) {
+          u[rowOfCol[j]] += delta;
+        }
+      }
+      // flip the assignment along the path
+      int j = free;
+      while (true) {
+        int e = prevEdge[j];
+        int i = e < count ? edgeRow[e] : e - count;
+        int prevCol = colOfRow[i];
+        rowOfCol[j] = i;
+        colOfRow[i] = j;
+        edgeOfRow[i] = e;
+        if (i == i0) {
+          break;
+        }
+        j = prevCol;
+      }
+      for (int k = 0; k < nReached; k++) {
+        dist[reached[k]] = INF;
+        done[reached[k]] = false;
+      }
+    }
+    for (int i = 0; i < rows; i++) {
+      if (edgeOfRow[i] < count) {
+        selected[edgePairing[edgeOfRow[i]]] = true;
+      }
+    }
+  }
+
+  private static int heapPush(int[] cols, long[] dists, int size, int col, long dist) {
+    int k = size;
+    while (k > 0) {
+      int parent = (k - 1) >>> 1;
+      if (dists[parent] <= dist) {
+        break;
+      }
+      cols[k] = cols[parent];
+      dists[k] = dists[parent];
+      k = parent;
+    }
+    cols[k] = col;
+    dists[k] = dist;
+    return size + 1;
+  }
+
+  private static int heapPop(int[] cols, long[] dists, int size) {
+    size--;
+    int col = cols[size];
+    long dist = dists[size];
+    int k = 0;
+    while (true) {
+      int child = 2 * k + 1;
+      if (child >= size) {
+        break;
+      }
+      if (child + 1 < size && dists[child + 1] < dists[child]) {
+        child++;
+      }
+      if (dists[child] >= dist) {
+        break;
+      }
+      cols[k] = cols[child];
+      dists[k] = dists[child];
+      k = child;
+    }
+    if (size > 0) {
+      cols[k] = col;
+      dists[k] = dist;
+    }
+    return size;
+  }
+
+}
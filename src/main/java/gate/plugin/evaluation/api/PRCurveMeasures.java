@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2015-2018 University of Sheffield.
+ *
+ * This file is part of gateplugin-Evaluation
+ * (see https://github.com/GateNLP/gateplugin-Evaluation).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.evaluation.api;
+
+/**
+ * Summary measures of a precision/recall curve, for strict and lenient matching.
+ * <p>
+ * The points of the curve are the evaluation statistics for each score threshold or rank,
+ * added in the order in which the responses get included, i.e. by decreasing score threshold
+ * or increasing rank. All measures are calculated in one pass over the points:
+ * <ul>
+ * <li>the highest F1.0 measure and the threshold or rank where it is reached first,</li>
+ * <li>the area under the P/R curve, using the trapezoidal rule between neighbouring points
+ * without extending the curve to recall 0,</li>
+ * <li>the average precision, the sum of the precision at each point weighted by the increase
+ * of recall from the previous point (starting from recall 0),</li>
+ * <li>the 11-point interpolated average precision, the mean of the interpolated precision at
+ * recall 0.0, 0.1, ..., 1.0, where the interpolated precision at recall r is the highest
+ * precision at any point with a recall of at least r, or 0 if there is no such point.</li>
+ * </ul>
+ * Points without any responses, e.g. for the +Infinity threshold, only count for the highest
+ * F1.0 measure, because their precision is not really defined.
+ *
+ * @author Johann Petrak
+ */
+public class PRCurveMeasures {
+
+  protected double highestFMeasureStrict = Double.NaN;
+  protected double highestFMeasureStrictAt = Double.NaN;
+  protected double highestFMeasureLenient = Double.NaN;
+  protected double highestFMeasureLenientAt = Double.NaN;
+  protected double areaUnderPRStrict = 0.0;
+  protected double areaUnderPRLenient = 0.0;
+  protected double averagePrecisionStrict = 0.0;
+  protected double averagePrecisionLenient = 0.0;
+  protected double interpolatedAveragePrecisionStrict = 0.0;
+  protected double interpolatedAveragePrecisionLenient = 0.0;
+
+  // the precision and recall of the points added so far
+  protected int nPoints = 0;
+  protected double[] precisionStrict;
+  protected double[] recallStrict;
+  protected double[] precisionLenient;
+  protected double[] recallLenient;
+
+  /**
+   * Create an object for adding the given number of points.
+   *
+   * @param size  the number of points which will get added
+   */
+  PRCurveMeasures(int size) {
+    precisionStrict = new double[size];
+    recallStrict = new double[size];
+    precisionLenient = new double[size];
+    recallLenient = new double[size];
+  }
+
+  /**
+   * Add the next point of the curve.
+   *
+   * @param at the score threshold or rank of the point
+   * @param es the statistics for that threshold or rank
+   */
+  void add(double at, EvalStatsTagging es) {
+    double ps = es.getPrecisionStrict();
+    double rs = es.getRecallStrict();
+    double pl = es.getPrecisionLenient();
+    double rl = es.getRecallLenient();
+    double fs = es.getFMeasureStrict(1.0);
+    double fl = es.getFMeasureLenient(1.0);
+    if(Double.isNaN(highestFMeasureStrictAt) || fs > highestFMeasureStrict) {
+      highestFMeasureStrict = fs;
+      highestFMeasureStrictAt = at;
+    }
+    if(Double.isNaN(highestFMeasureLenientAt) || fl > highestFMeasureLenient) {
+      highestFMeasureLenient = fl;
+      highestFMeasureLenientAt = at;
+    }
+    if(es.getResponses() == 0) {
+      return;
+    }
+    double prevRs = 0.0;
+    double prevRl = 0.0;
+    if(nPoints > 0) {
+      prevRs = recallStrict[nPoints-1];
+      prevRl = recallLenient[nPoints-1];
+      areaUnderPRStrict += (rs - prevRs) * (ps + precisionStrict[nPoints-1]) / 2.0;
+      areaUnderPRLenient += (rl - prevRl) * (pl + precisionLenient[nPoints-1]) / 2.0;
+    }
+    averagePrecisionStrict += (rs - prevRs) * ps;
+    averagePrecisionLenient += (rl - prevRl) * pl;
+    precisionStrict[nPoints] = ps;
+    recallStrict[nPoints] = rs;
+    precisionLenient[nPoints] = pl;
+    recallLenient[nPoints] = rl;
+    nPoints++;
+  }
+
+  /**
+   * Finish the calculation after all points have been added.
+   */
+  void finish() {
+    interpolatedAveragePrecisionStrict = interpolatedAveragePrecision(precisionStrict, recallStrict);
+    interpolatedAveragePrecisionLenient = interpolatedAveragePrecision(precisionLenient, recallLenient);
+    // we do not need the points any more
+    precisionStrict = null;
+    recallStrict = null;
+    precisionLenient = null;
+    recallLenient = null;
+  }
+
+  protected double interpolatedAveragePrecision(double[] precision, double[] recall) {
+    // Going from the last point back, recall does not increase. Once the recall of a point is
+    // below a recall level, the highest precision of all points after it is the interpolated 
+    // precision for that level.
+    double[] interpolated = new double[11];
+    double maxPrecision = 0.0;
+    int level = 10;
+    for(int i = nPoints - 1; i >= 0; i--) {
+      while(level >= 0 && recall[i] < level / 10.0) {
+        interpolated[level] = maxPrecision;
+        level--;
+      }
+      maxPrecision = Math.max(maxPrecision, precision[i]);
+    }
+    for(; level >= 0; level--) {
+      interpolated[level] = maxPrecision;
+    }
+    double sum = 0.0;
+    for(double p : interpolated) {
+      sum += p;
+    }
+    return sum / 11.0;
+  }
+
+  public double getHighestFMeasureStrict() { return highestFMeasureStrict; }
+  public double getHighestFMeasureLenient() { return highestFMeasureLenient; }
+  /**
+   * The threshold or rank where the highest F1.0 strict is reached first.
+   * @return threshold or rank, or NaN if the curve is empty
+   */
+  public double getHighestFMeasureStrictAt() { return highestFMeasureStrictAt; }
+  /**
+   * The threshold or rank where the highest F1.0 lenient is reached first.
+   * @return threshold or rank, or NaN if the curve is empty
+   */
+  public double getHighestFMeasureLenientAt() { return highestFMeasureLenientAt; }
+  public double getAreaUnderPRStrict() { return areaUnderPRStrict; }
+  public double getAreaUnderPRLenient() { return areaUnderPRLenient; }
+  public double getAveragePrecisionStrict() { return averagePrecisionStrict; }
+  public double getAveragePrecisionLenient() { return averagePrecisionLenient; }
+  public double getInterpolatedAveragePrecisionStrict() { return interpolatedAveragePrecisionStrict; }
+  public double getInterpolatedAveragePrecisionLenient() { return interpolatedAveragePrecisionLenient; }
+
+}
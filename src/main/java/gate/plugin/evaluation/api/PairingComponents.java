@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2015-2018 University of Sheffield.
+ *
+ * This file is part of gateplugin-Evaluation
+ * (see https://github.com/GateNLP/gateplugin-Evaluation).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.evaluation.api;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The connected components of the graph where keys and responses are the nodes and each
+ * pairing is an edge.
+ * <p>
+ * Pairings in different components never have a key or response in common, so whatever gets
+ * decided for the pairings of one component cannot influence any other component. This is
+ * used to process the components independently and, for large documents, in parallel on the
+ * common fork-join pool.
+ * <p>
+ * The members of all components are stored in one array, component c has the pairings at
+ * positions getFrom(c) to getFrom(c+1)-1. Within a component, the pairings are kept in the order
+ * given when creating the components.
+ *
+ * @author Johann Petrak
+ */
+class PairingComponents {
+
+  /**
+   * If there are fewer pairings than this, all components are processed in the calling thread.
+   */
+  static final int MIN_PAIRINGS_FOR_PARALLEL = 10000;
+
+  /**
+   * A fork-join task does not get split any further if it has fewer pairings than this.
+   */
+  private static final int MIN_PAIRINGS_PER_TASK = 2048;
+
+  private final int[] componentFrom;
+  private final int[] members;
+  private final int nComponents;
+
+  /**
+   * Find the components for n pairings, where pairing p is between key keys[p] and response
+   * responses[p].
+   *
+   * @param keys key index for each pairing
+   * @param responses response index for each pairing
+   * @param order the order in which the pairings should be listed within each component, if
+   * null, the pairings are listed in the order of their index
+   * @param n number of pairings
+   * @param nKeys number of keys
+   * @param nResponses number of responses
+   */
+  PairingComponents(int[] keys, int[] responses, int[] order, int n, int nKeys, int nResponses) {
+    // keys are nodes 0..nKeys-1, responses the nodes after that
+    int[] parent = new int[nKeys + nResponses];
+    for (int i = 0; i < parent.length; i++) {
+      parent[i] = i;
+    }
+    for (int p = 0; p < n; p++) {
+      int r1 = find(parent, keys[p]);
+      int r2 = find(parent, nKeys + responses[p]);
+      if (r1 != r2) {
+        parent[r2] = r1;
+      }
+    }
+    // number the components in the order in which they are first seen, so the result does
+    // not depend on how the union-find trees happened to get built
+    int[] componentOfRoot = new int[parent.length];
+    Arrays.fill(componentOfRoot, -1);
+    int[] component = new int[n];
+    int nc = 0;
+    for (int p = 0; p < n; p++) {
+      int root = find(parent, keys[p]);
+      if (componentOfRoot[root] < 0) {
+        componentOfRoot[root] = nc++;
+      }
+      component[p] = componentOfRoot[root];
+    }
+    nComponents = nc;
+    componentFrom = new int[nComponents + 1];
+    for (int p = 0; p < n; p++) {
+      componentFrom[component[p] + 1]++;
+    }
+    for (int c = 0; c < nComponents; c++) {
+      componentFrom[c + 1] += componentFrom[c];
+    }
+    members = new int[n];
+    int[] next = Arrays.copyOf(componentFrom, nComponents);
+    for (int k = 0; k < n; k++) {
+      int p = order == null ? k : order[k];
+      members[next[component[p]]++] = p;
+    }
+  }
+
+  /**
+   * Check if there are enough pairings to make processing them in parallel worthwhile.
+   */
+  static boolean isWorthParallel(int nPairings) {
+    return nPairings >= MIN_PAIRINGS_FOR_PARALLEL && ForkJoinPool.getCommonPoolParallelism() > 1;
+  }
+
+  int size() {
+    return nComponents;
+  }
+
+  int getFrom(int c) {
+    return componentFrom[c];
+  }
+
+  int getMember(int position) {
+    return members[position];
+  }
+
+  /**
+   * The array of all members, ordered by component. This is the internal array, it must not be
+   * modified.
+   */
+  int[] getMembers() {
+    return members;
+  }
+
+  /**
+   * Something that processes a consecutive range of whole components.
+   */
+  interface Task {
+
+    /**
+     * Process the components first to end-1. This may get called concurrently for
+     * different ranges of components, but never for overlapping ranges.
+     */
+    void process(int first, int end);
+  }
+
+  /**
+   * Run the task for all components. If it is worthwhile, the components get split into
+   * ranges which are processed in parallel on the common fork-join pool, otherwise the
+   * task is run for all components in the calling thread. In both cases, this returns
+   * once all components have been processed.
+   */
+  void process(Task task) {
+    if (nComponents > 1 && isWorthParallel(members.length)) {
+      ForkJoinPool.commonPool().invoke(new ComponentsAction(task, 0, nComponents));
+    } else if (nComponents > 0) {
+      task.process(0, nComponents);
+    }
+  }
+
+  private class ComponentsAction extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+    private final Task task;
+    private final int first;
+    private final int end;
+
+    ComponentsAction(Task task, int first, int end) {
+      this.task = task;
+      this.first = first;
+      this.end = end;
+    }
+
+    @Override
+    protected void compute() {
+      if (end - first < 2 || componentFrom[end] - componentFrom[first] < MIN_PAIRINGS_PER_TASK) {
+        task.process(first, end);
+        return;
+      }
+      // split where about half of the pairings are on either side
+      int half = (componentFrom[first] + componentFrom[end]) / 2;
+      int mid = Arrays.binarySearch(componentFrom, first, end, half);
+      if (mid < 0) {
+        mid = -mid - 1;
+      }
+      mid = Math.max(first + 1, Math.min(end - 1, mid));
+      invokeAll(new ComponentsAction(task, first, mid), new ComponentsAction(task, mid, end));
+    }
+  }
+
+  private static int find(int[] parent, int n) {
+    while (parent[n] != n) {
+      parent[n] = parent[parent[n]];
+      n = parent[n];
+    }
+    return n;
+  }
+
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright (c) 2015-2018 University of Sheffield.
+ *
+ * This file is part of gateplugin-Evaluation
+ * (see https://github.com/GateNLP/gateplugin-Evaluation).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.evaluation.api;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A compact store for pairings of key and response annotations.
+ * <p>
+ * Each pairing is represented by its position in a set of parallel int arrays which hold the
+ * key index, the response index, the value, the type and the score of the pairing. A key or
+ * response index of -1 means that there is no key or response (for missing and spurious
+ * pairings).
+ * <p>
+ * The store can be cleared and re-used, in which case the arrays which have already been
+ * allocated are used again.
+ *
+ * @author Johann Petrak
+ */
+class PairingStore {
+
+  private int size = 0;
+  private int[] keyIndex;
+  private int[] responseIndex;
+  private int[] value;
+  private int[] type;
+  private int[] score;
+
+  // scratch arrays for the indices of the pairings by key and by response
+  private int[] keyFrom;
+  private int[] keyPairings;
+  private int[] responseFrom;
+  private int[] responsePairings;
+  // scratch arrays for calculating the scores
+  private int[] keySums;
+  private int[] responseSums;
+
+  PairingStore() {
+    this(16);
+  }
+
+  PairingStore(int capacity) {
+    capacity = Math.max(capacity, 1);
+    keyIndex = new int[capacity];
+    responseIndex = new int[capacity];
+    value = new int[capacity];
+    type = new int[capacity];
+    score = new int[capacity];
+  }
+
+  /**
+   * Remove all pairings, but keep the allocated space.
+   */
+  void clear() {
+    size = 0;
+  }
+
+  int size() {
+    return size;
+  }
+
+  /**
+   * Add a pairing and return its index. The type and score of the pairing are initialized to 0.
+   */
+  int add(int key, int response, int pairingValue) {
+    if (size == keyIndex.length) {
+      int newCapacity = keyIndex.length * 2;
+      keyIndex = Arrays.copyOf(keyIndex, newCapacity);
+      responseIndex = Arrays.copyOf(responseIndex, newCapacity);
+      value = Arrays.copyOf(value, newCapacity);
+      type = Arrays.copyOf(type, newCapacity);
+      score = Arrays.copyOf(score, newCapacity);
+    }
+    keyIndex[size] = key;
+    responseIndex[size] = response;
+    value[size] = pairingValue;
+    type[size] = 0;
+    score[size] = 0;
+    return size++;
+  }
+
+  int getKeyIndex(int p) {
+    return keyIndex[p];
+  }
+
+  int getResponseIndex(int p) {
+    return responseIndex[p];
+  }
+
+  int getValue(int p) {
+    return value[p];
+  }
+
+  int getType(int p) {
+    return type[p];
+  }
+
+  void setType(int p, int pairingType) {
+    type[p] = pairingType;
+  }
+
+  int getScore(int p) {
+    return score[p];
+  }
+
+  void setScore(int p, int pairingScore) {
+    score[p] = pairingScore;
+  }
+
+  /**
+   * Calculate the score of each pairing: the value of the pairing minus the values of all
+   * other pairings which have the same key or the same response.
+   */
+  void calculateScores(int nKeys, int nResponses) {
+    if (keySums == null || keySums.length < nKeys) {
+      keySums = new int[nKeys];
+    } else {
+      Arrays.fill(keySums, 0, nKeys, 0);
+    }
+    if (responseSums == null || responseSums.length < nResponses) {
+      responseSums = new int[nResponses];
+    } else {
+      Arrays.fill(responseSums, 0, nResponses, 0);
+    }
+    for (int p = 0; p < size; p++) {
+      keySums[keyIndex[p]] += value[p];
+      responseSums[responseIndex[p]] += value[p];
+    }
+    for (int p = 0; p < size; p++) {
+      // the value of this pairing is included in both sums, so we add it back twice
+      score[p] = 3 * value[p] - keySums[keyIndex[p]] - responseSums[responseIndex[p]];
+    }
+  }
+
+  /**
+   * Create the index of pairings by key and by response, needed for
+   * {@link #getKeyPairingsFrom(int)} etc.
+   */
+  void buildIndex(int nKeys, int nResponses) {
+    keyFrom = fillFrom(keyFrom, keyIndex, nKeys);
+    keyPairings = fillPairings(keyPairings, keyFrom, keyIndex, nKeys);
+    responseFrom = fillFrom(responseFrom, responseIndex, nResponses);
+    responsePairings = fillPairings(responsePairings, responseFrom, responseIndex, nResponses);
+  }
+
+  /**
+   * The pairings for key i are at positions getKeyPairingsFrom(i) to getKeyPairingsFrom(i+1)-1
+   * and can be retrieved with getKeyPairing(position).
+   */
+  int getKeyPairingsFrom(int i) {
+    return keyFrom[i];
+  }
+
+  int getKeyPairing(int position) {
+    return keyPairings[position];
+  }
+
+  int getResponsePairingsFrom(int j) {
+    return responseFrom[j];
+  }
+
+  int getResponsePairing(int position) {
+    return responsePairings[position];
+  }
+
+  /**
+   * Return the indices of the pairings in the order in which the greedy assignment should
+   * consider them: by decreasing score, and for the same score by the rank of the response
+   * and then by the rank of the key. 
+   * <p>
+   * The ranks must be a permutation of 0..n-1 where a lower rank means the pairing is
+   * considered earlier. This requires that {@link #buildIndex(int, int)} has been called.
+   * <p>
+   * Since the scores are small integers, this does not compare pairings but first lists the
+   * pairings by response and key rank and then distributes them into buckets, one for each
+   * score, keeping the order within each bucket.
+   *
+   * @param keyRanks the rank of each key
+   * @param responseRanks the rank of each response
+   * @return the pairing indices in the order for the greedy assignment
+   */
+  int[] greedyOrder(int[] keyRanks, int[] responseRanks) {
+    int nResponses = responseRanks.length;
+    int[] responsesByRank = new int[nResponses];
+    for (int j = 0; j < nResponses; j++) {
+      responsesByRank[responseRanks[j]] = j;
+    }
+    // first all the pairings ordered by response rank and then by key rank
+    int[] byRank = new int[size];
+    int n = 0;
+    long[] tmp = new long[16];
+    for (int r = 0; r < nResponses; r++) {
+      int j = responsesByRank[r];
+      int from = responseFrom[j];
+      int to = responseFrom[j + 1];
+      if (to - from == 1) {
+        byRank[n++] = responsePairings[from];
+      } else if (to - from > 1) {
+        if (tmp.length < to - from) {
+          tmp = new long[to - from];
+        }
+        for (int k = from; k < to; k++) {
+          int p = responsePairings[k];
+          tmp[k - from] = (((long) keyRanks[keyIndex[p]]) << 32) | p;
+        }
+        Arrays.sort(tmp, 0, to - from);
+        for (int k = 0; k < to - from; k++) {
+          byRank[n++] = (int) tmp[k];
+        }
+      }
+    }
+    if (size == 0) {
+      return byRank;
+    }
+    // now a stable counting sort by decreasing score
+    int minScore = score[0];
+    int maxScore = score[0];
+    for (int p = 1; p < size; p++) {
+      minScore = Math.min(minScore, score[p]);
+      maxScore = Math.max(maxScore, score[p]);
+    }
+    int[] bucketFrom = new int[maxScore - minScore + 2];
+    for (int p = 0; p < size; p++) {
+      bucketFrom[maxScore - score[p] + 1]++;
+    }
+    for (int b = 1; b < bucketFrom.length; b++) {
+      bucketFrom[b] += bucketFrom[b - 1];
+    }
+    int[] ret = new int[size];
+    for (int k = 0; k < size; k++) {
+      int p = byRank[k];
+      ret[bucketFrom[maxScore - score[p]]++] = p;
+    }
+    return ret;
+  }
+
+  /**
+   * Calculate the rank of each annotation in the tie-breaking order used by the greedy
+   * assignment: the annotations with the highest start offset come first, then the ones with 
+   * highest end offset, then the ones with highest id.
+   *
+   * @param starts start offsets
+   * @param ends end offsets
+   * @param ids annotation ids
+   * @return the rank for each annotation
+   */
+  static int[] tieRanks(final long[] starts, final long[] ends, final int[] ids) {
+    Integer[] tmp = new Integer[starts.length];
+    for (int i = 0; i < starts.length; i++) {
+      tmp[i] = i;
+    }
+    Arrays.sort(tmp, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer o1, Integer o2) {
+        int res = Long.compare(starts[o2], starts[o1]);
+        if (res == 0) {
+          res = Long.compare(ends[o2], ends[o1]);
+        }
+        if (res == 0) {
+          res = Integer.compare(ids[o2], ids[o1]);
+        }
+        return res;
+      }
+    });
+    int[] ranks = new int[starts.length];
+    for (int r = 0; r < tmp.length; r++) {
+      ranks[tmp[r]] = r;
+    }
+    return ranks;
+  }
+
+  private int[] fillFrom(int[] from, int[] indices, int n) {
+    if (from == null || from.length < n + 1) {
+      from = new int[n + 1];
+    } else {
+      Arrays.fill(from, 0, n + 1, 0);
+    }
+    for (int p = 0; p < size; p++) {
+      from[indices[p] + 1]++;
+    }
+    for (int i = 0; i < n; i++) {
+      from[i + 1] += from[i];
+    }
+    return from;
+  }
+
+  private int[] fillPairings(int[] pairings, int[] from, int[] indices, int n) {
+    if (pairings == null || pairings.length < size) {
+      pairings = new int[Math.max(size, 16)];
+    }
+    int[] next = Arrays.copyOf(from, n);
+    for (int p = 0; p < size; p++) {
+      pairings[next[indices[p]]++] = p;
+    }
+    return pairings;
+  }
+
+}
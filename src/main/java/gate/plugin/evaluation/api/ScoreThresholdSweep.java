@@ -0,0 +1,432 @@
+/*
+ * Copyright (c) 2015-2018 University of Sheffield.
+ *
+ * This file is part of gateplugin-Evaluation
+ * (see https://github.com/GateNLP/gateplugin-Evaluation).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.evaluation.api;
+
+import gate.AnnotationSet;
+import gate.util.GateRuntimeException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+
+/**
+ * Calculate the statistics for a whole set of score thresholds in one pass.
+ * <p>
+ * This produces exactly the same counts as running
+ * {@link AnnotationDifferTagging} separately for each threshold, but the candidate pairs
+ * and the comparison of the annotations are only done once. The responses are then added
+ * in order of decreasing score while the threshold moves down.
+ * <p>
+ * The greedy pairing used by the differ only ever lets pairings interact which share a key or
+ * a response, so the result for the whole document is the sum of the results for each
+ * connected component of the graph of key/response pairs. When new responses get added
+ * for a lower threshold, only the components which contain one of the new responses need to
+ * get re-calculated, the counts for all other components stay the same. The same is true for
+ * the optimal matching, which is done for each component anyway.
+ *
+ * @author Johann Petrak
+ */
+class ScoreThresholdSweep {
+
+  private final int nKeys;
+  private final int nResponses;
+  private final MatchingStrategy matchingStrategy;
+
+  // the annotations and the data we need for the tie-breaking of the greedy pairing,
+  // which is done by offsets and ids, exactly like in AnnotationDifferTagging
+  private final long[] keyStarts;
+  private final long[] keyEnds;
+  private final int[] keyIds;
+  private final long[] resStarts;
+  private final long[] resEnds;
+  private final int[] resIds;
+  private final double[] resScores;
+
+  // All the possible pairings: key index, response index and value
+  private int nPairs = 0;
+  private int[] pairKey;
+  private int[] pairRes;
+  private int[] pairValue;
+
+  // for each response, the indices of the pairs it participates in: pairs of response j
+  // are resPairs[resPairsFrom[j]] to resPairs[resPairsFrom[j+1]-1]
+  private int[] resPairsFrom;
+  private int[] resPairs;
+
+  // union-find over the nodes of the pair graph: the keys are nodes 0..nKeys-1, the
+  // responses are nodes nKeys..nKeys+nResponses-1
+  private final int[] parent;
+  // for each component root, the pairs which are currently in that component
+  private final int[][] compPairs;
+  private final int[] compSize;
+  // for each component root, the counts it currently contributes
+  private final int[] compCounts;
+  private static final int NCOUNTS = 4;
+  private static final int CS = 0; // correct strict
+  private static final int CP = 1; // correct partial
+  private static final int IS = 2; // incorrect strict
+  private static final int IP = 3; // incorrect partial
+
+  // the totals over all components
+  private final int[] totals = new int[NCOUNTS];
+  private int nActiveResponses = 0;
+  private int nTargetsWithStrictResponses = 0;
+  private int nTargetsWithLenientResponses = 0;
+  private final boolean[] haveStrictResponse;
+  private final boolean[] haveLenientResponse;
+
+  // scratch space for re-calculating the pairing of a component
+  private final int[] keyConflicts;
+  private final int[] resConflicts;
+  private final boolean[] keyUsed;
+  private final boolean[] resUsed;
+  private int[] pairScore;
+  private boolean[] pairSelected;
+  private final int[] localKeys;
+  private final int[] localResponses;
+
+  ScoreThresholdSweep(
+          AnnotationSet keyAnns,
+          AnnotationSet responseAnns,
+          Set<String> features,
+          FeatureComparison fcmp,
+          String scoreFeature,
+          AnnotationTypeSpecs typeSpecs,
+          MatchingStrategy matchingStrategy) {
+    this.matchingStrategy = matchingStrategy == null ? MatchingStrategy.GREEDY : matchingStrategy;
+    Map<String, Integer> typeIds = new HashMap<String, Integer>();
+    // The keys and responses get sorted like AnnotationDifferTagging sorts them, so the pairs
+    // are numbered in the same order, by key and then response, in the order of their offsets.
+    // The optimal matching of a component depends on the order of its pairs when several 
+    // matchings are best.
+    DocumentSpanSnapshot keys = new DocumentSpanSnapshot(keyAnns, typeIds, typeSpecs, false, null)
+            .sortedByOffset(features);
+    DocumentSpanSnapshot responses
+            = new DocumentSpanSnapshot(responseAnns, typeIds, typeSpecs, true, scoreFeature)
+            .sortedByOffset(features);
+    nKeys = keys.size();
+    nResponses = responses.size();
+    keyStarts = keys.getStarts();
+    keyEnds = keys.getEnds();
+    keyIds = keys.getIds();
+    resStarts = responses.getStarts();
+    resEnds = responses.getEnds();
+    resIds = responses.getIds();
+    resScores = responses.getScores();
+    for (int j = 0; j < nResponses; j++) {
+      if (Double.isNaN(resScores[j])) {
+        throw new GateRuntimeException("Response without a score feature: " + responses.getAnnotation(j));
+      }
+    }
+
+    // create all the pairings, using the same criteria as AnnotationDifferTagging
+    long[] candidatePairs = AnnotationDifferTagging.findCandidatePairs(keys, responses);
+    FeatureMatcher matcher = new FeatureMatcher(features, fcmp);
+    matcher.encode(keys, responses);
+    pairKey = new int[candidatePairs.length];
+    pairRes = new int[candidatePairs.length];
+    pairValue = new int[candidatePairs.length];
+    int[] nResPairs = new int[nResponses];
+    for (long candidatePair : candidatePairs) {
+      int i = (int) (candidatePair >>> 32);
+      int j = (int) candidatePair;
+      int value = AnnotationDifferTagging.pairingValue(keys, i, responses, j, matcher);
+      if (value < 0) {
+        // neither coextensive nor overlapping
+        continue;
+      }
+      pairKey[nPairs] = i;
+      pairRes[nPairs] = j;
+      pairValue[nPairs] = value;
+      nResPairs[j]++;
+      nPairs++;
+    }
+    resPairsFrom = new int[nResponses + 1];
+    for (int j = 0; j < nResponses; j++) {
+      resPairsFrom[j + 1] = resPairsFrom[j] + nResPairs[j];
+    }
+    resPairs = new int[nPairs];
+    int[] fill = Arrays.copyOf(resPairsFrom, nResponses);
+    for (int p = 0; p < nPairs; p++) {
+      resPairs[fill[pairRes[p]]++] = p;
+    }
+
+    int nNodes = nKeys + nResponses;
+    parent = new int[nNodes];
+    for (int n = 0; n < nNodes; n++) {
+      parent[n] = n;
+    }
+    compPairs = new int[nNodes][];
+    compSize = new int[nNodes];
+    compCounts = new int[nNodes * NCOUNTS];
+    haveStrictResponse = new boolean[nKeys];
+    haveLenientResponse = new boolean[nKeys];
+    keyConflicts = new int[nKeys];
+    resConflicts = new int[nResponses];
+    keyUsed = new boolean[nKeys];
+    resUsed = new boolean[nResponses];
+    pairScore = new int[nPairs];
+    pairSelected = new boolean[nPairs];
+    localKeys = new int[nKeys];
+    Arrays.fill(localKeys, -1);
+    localResponses = new int[nResponses];
+    Arrays.fill(localResponses, -1);
+  }
+
+  /**
+   * Calculate the statistics for all the given thresholds.
+   *
+   * @param thresholds the thresholds to use
+   * @return a map from each threshold to the statistics for that threshold
+   */
+  ByThEvalStatsTagging calculate(NavigableSet<Double> thresholds) {
+    // order the responses by decreasing score, so we can add them as the threshold goes down
+    Integer[] tmp = new Integer[nResponses];
+    for (int j = 0; j < nResponses; j++) {
+      tmp[j] = j;
+    }
+    Arrays.sort(tmp, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer o1, Integer o2) {
+        return Double.compare(resScores[o2], resScores[o1]);
+      }
+    });
+
+    // the statistics get calculated from the highest to the lowest threshold
+    EvalStatsTagging[] stats = new EvalStatsTagging[thresholds.size()];
+    int nStats = 0;
+    int next = 0;
+    int[] dirty = new int[nKeys + nResponses];
+    boolean[] isDirty = new boolean[nKeys + nResponses];
+    for (double th : thresholds.descendingSet()) {
+      int nDirty = 0;
+      while (next < nResponses && resScores[tmp[next]] >= th) {
+        int j = tmp[next++];
+        nActiveResponses++;
+        for (int idx = resPairsFrom[j]; idx < resPairsFrom[j + 1]; idx++) {
+          int p = resPairs[idx];
+          int i = pairKey[p];
+          int value = pairValue[p];
+          if (value == AnnotationDifferTagging.CORRECT_VALUE
+                  || value == AnnotationDifferTagging.MISMATCH_VALUE) {
+            if (!haveStrictResponse[i]) {
+              haveStrictResponse[i] = true;
+              nTargetsWithStrictResponses++;
+            }
+          }
+          if (!haveLenientResponse[i]) {
+            haveLenientResponse[i] = true;
+            nTargetsWithLenientResponses++;
+          }
+          // the component this key belongs to will change, so remove its counts from the totals
+          int root = find(i);
+          if (!isDirty[root]) {
+            isDirty[root] = true;
+            dirty[nDirty++] = root;
+            for (int c = 0; c < NCOUNTS; c++) {
+              totals[c] -= compCounts[root * NCOUNTS + c];
+              compCounts[root * NCOUNTS + c] = 0;
+            }
+          }
+          root = union(root, find(nKeys + j));
+          addToComponent(root, p);
+        }
+      }
+      // re-calculate the pairing for all the components which changed
+      for (int d = 0; d < nDirty; d++) {
+        isDirty[dirty[d]] = false;
+      }
+      for (int d = 0; d < nDirty; d++) {
+        int root = find(dirty[d]);
+        if (!isDirty[root]) {
+          isDirty[root] = true;
+          calculateComponent(root);
+          for (int c = 0; c < NCOUNTS; c++) {
+            totals[c] += compCounts[root * NCOUNTS + c];
+          }
+        }
+      }
+      for (int d = 0; d < nDirty; d++) {
+        isDirty[find(dirty[d])] = false;
+        isDirty[dirty[d]] = false;
+      }
+      EvalStatsTagging4Score es = new EvalStatsTagging4Score(th);
+      es.addTargets(nKeys);
+      es.addResponses(nActiveResponses);
+      es.addCorrectStrict(totals[CS]);
+      es.addCorrectPartial(totals[CP]);
+      es.addIncorrectStrict(totals[IS]);
+      es.addIncorrectPartial(totals[IP]);
+      es.addTargetsWithStrictResponses(nTargetsWithStrictResponses);
+      es.addTargetsWithLenientResponses(nTargetsWithLenientResponses);
+      stats[nStats++] = es;
+    }
+    // the map is fastest to fill by increasing threshold
+    ByThEvalStatsTagging newMap = new ByThEvalStatsTagging();
+    for (double th : thresholds) {
+      newMap.put(th, stats[--nStats]);
+    }
+    return newMap;
+  }
+
+  private int find(int n) {
+    while (parent[n] != n) {
+      parent[n] = parent[parent[n]];
+      n = parent[n];
+    }
+    return n;
+  }
+
+  // merge the two components and return the new root, the pairs of the smaller component
+  // get moved to the larger one
+  private int union(int r1, int r2) {
+    if (r1 == r2) {
+      return r1;
+    }
+    if (compSize[r1] < compSize[r2]) {
+      int t = r1;
+      r1 = r2;
+      r2 = t;
+    }
+    parent[r2] = r1;
+    for (int k = 0; k < compSize[r2]; k++) {
+      addToComponent(r1, compPairs[r2][k]);
+    }
+    compPairs[r2] = null;
+    compSize[r2] = 0;
+    return r1;
+  }
+
+  private void addToComponent(int root, int p) {
+    int[] pairs = compPairs[root];
+    if (pairs == null) {
+      pairs = new int[4];
+      compPairs[root] = pairs;
+    } else if (compSize[root] == pairs.length) {
+      pairs = Arrays.copyOf(pairs, pairs.length * 2);
+      compPairs[root] = pairs;
+    }
+    pairs[compSize[root]++] = p;
+  }
+
+  /**
+   * Run the greedy pairing for the pairs in one component. This does the same as the
+   * greedy pairing in AnnotationDifferTagging: the score of each pairing is its value minus
+   * the values of all other pairings which share the key or the response, and pairings are
+   * picked by decreasing score, ties broken by the response and then the key offsets and ids.
+   */
+  private void calculateComponent(int root) {
+    int n = compSize[root];
+    final int[] pairs = compPairs[root];
+    if (matchingStrategy == MatchingStrategy.OPTIMAL) {
+      // the pairs got added by decreasing score and by merging components, the differ matches
+      // them in the order of their numbers
+      Arrays.sort(pairs, 0, n);
+      OptimalMatching.matchComponent(pairs, 0, n, pairKey, pairRes, pairValue,
+              localKeys, localResponses, pairSelected);
+      for (int k = 0; k < n; k++) {
+        int p = pairs[k];
+        if (pairSelected[p]) {
+          pairSelected[p] = false;
+          countPairing(root, p);
+        }
+      }
+      return;
+    }
+    for (int k = 0; k < n; k++) {
+      int p = pairs[k];
+      keyConflicts[pairKey[p]] += pairValue[p];
+      resConflicts[pairRes[p]] += pairValue[p];
+    }
+    Integer[] order = new Integer[n];
+    for (int k = 0; k < n; k++) {
+      int p = pairs[k];
+      pairScore[p] = 3 * pairValue[p] - keyConflicts[pairKey[p]] - resConflicts[pairRes[p]];
+      order[k] = p;
+    }
+    for (int k = 0; k < n; k++) {
+      int p = pairs[k];
+      keyConflicts[pairKey[p]] = 0;
+      resConflicts[pairRes[p]] = 0;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer p1, Integer p2) {
+        // this is the reverse of the order of the PairingScoreComparator
+        int res = Integer.compare(pairScore[p2], pairScore[p1]);
+        if (res == 0) {
+          res = Long.compare(resStarts[pairRes[p2]], resStarts[pairRes[p1]]);
+        }
+        if (res == 0) {
+          res = Long.compare(resEnds[pairRes[p2]], resEnds[pairRes[p1]]);
+        }
+        if (res == 0) {
+          res = Integer.compare(resIds[pairRes[p2]], resIds[pairRes[p1]]);
+        }
+        if (res == 0) {
+          res = Long.compare(keyStarts[pairKey[p2]], keyStarts[pairKey[p1]]);
+        }
+        if (res == 0) {
+          res = Long.compare(keyEnds[pairKey[p2]], keyEnds[pairKey[p1]]);
+        }
+        if (res == 0) {
+          res = Integer.compare(keyIds[pairKey[p2]], keyIds[pairKey[p1]]);
+        }
+        return res;
+      }
+    });
+    for (int k = 0; k < n; k++) {
+      int p = order[k];
+      int i = pairKey[p];
+      int j = pairRes[p];
+      if (!keyUsed[i] && !resUsed[j]) {
+        keyUsed[i] = true;
+        resUsed[j] = true;
+        countPairing(root, p);
+      }
+    }
+    for (int k = 0; k < n; k++) {
+      int p = pairs[k];
+      keyUsed[pairKey[p]] = false;
+      resUsed[pairRes[p]] = false;
+    }
+  }
+
+  // add the chosen pairing p to the counts for the component
+  private void countPairing(int root, int p) {
+    int base = root * NCOUNTS;
+    switch (pairValue[p]) {
+      case AnnotationDifferTagging.CORRECT_VALUE:
+        compCounts[base + CS]++;
+        break;
+      case AnnotationDifferTagging.PARTIALLY_CORRECT_VALUE:
+        compCounts[base + CP]++;
+        break;
+      case AnnotationDifferTagging.MISMATCH_VALUE:
+        compCounts[base + IS]++;
+        break;
+      default:
+        compCounts[base + IP]++;
+    }
+  }
+
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2015-2018 University of Sheffield.
+ *
+ * This file is part of gateplugin-Evaluation
+ * (see https://github.com/GateNLP/gateplugin-Evaluation).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.evaluation.resources;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * An output stream which collects the bytes in large buffers and writes the full buffers to 
+ * the underlying stream in a background thread.
+ * <p>
+ * The evaluation PRs write their results line by line while processing documents, so without
+ * this, each line would be a separate write to the output file on the pipeline thread. 
+ * Only a small number of buffers can be waiting to get written, so if the underlying stream 
+ * is slower than the results are produced, writing blocks until a buffer becomes free again.
+ * <p>
+ * Like other output streams, this is not meant to be used by several threads at the same time
+ * without synchronization, e.g. by wrapping it in a PrintStream. Errors in the background thread,
+ * runtime exceptions wrapped in an IOException, are reported by the next write, flush or close. Flushing hands over the bytes written so far to 
+ * the background thread without waiting for them to get written, closing waits until everything 
+ * has been written and the underlying stream is closed.
+ *
+ * @author Johann Petrak
+ */
+public class BackgroundOutputStream extends OutputStream {
+
+  protected static final int BUFFER_SIZE = 256 * 1024;
+  protected static final int QUEUED_BUFFERS = 4;
+
+  protected static class Chunk {
+    byte[] bytes = new byte[BUFFER_SIZE];
+    int length = 0;
+  }
+  // handed over to the background thread to make it close the underlying stream and finish
+  protected static final Chunk END = new Chunk();
+
+  protected final OutputStream out;
+  protected final BlockingQueue<Chunk> toWrite = new ArrayBlockingQueue<Chunk>(QUEUED_BUFFERS);
+  protected final BlockingQueue<Chunk> written = new ArrayBlockingQueue<Chunk>(QUEUED_BUFFERS + 1);
+  protected final Thread writer;
+  protected volatile IOException error = null;
+  protected Chunk current = new Chunk();
+  protected boolean closed = false;
+
+  /**
+   * Create the stream and start the background thread.
+   *
+   * @param out the stream to write to, will be closed when this stream gets closed
+   * @param name the name of the background thread
+   */
+  public BackgroundOutputStream(OutputStream out, String name) {
+    this.out = out;
+    writer = new Thread(name) {
+      @Override
+      public void run() {
+        writeAll();
+      }
+    };
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  // Write the chunks until END. Whatever happens, this keeps taking the chunks from the queue 
+  // until END, otherwise the producer could block forever when the queue is full. Any error gets
+  // recorded, and after an error the chunks just get recycled.
+  protected void writeAll() {
+    while(true) {
+      Chunk chunk;
+      try {
+        chunk = toWrite.take();
+      } catch(InterruptedException ex) {
+        if(error == null) {
+          error = new InterruptedIOException("Interrupted while writing the results");
+        }
+        continue;
+      }
+      if(chunk == END) {
+        break;
+      }
+      if(error == null) {
+        try {
+          out.write(chunk.bytes, 0, chunk.length);
+        } catch(IOException ex) {
+          error = ex;
+        } catch(Throwable ex) {
+          error = new IOException("Error when writing the results", ex);
+        }
+      }
+      chunk.length = 0;
+      written.offer(chunk);
+    }
+    try {
+      out.close();
+    } catch(Throwable ex) {
+      if(error == null) {
+        error = ex instanceof IOException ? (IOException)ex 
+                : new IOException("Error when closing the results output", ex);
+      }
+    }
+  }
+
+  protected void checkState() throws IOException {
+    if(closed) {
+      throw new IOException("Stream is closed");
+    }
+    if(error != null) {
+      throw error;
+    }
+  }
+
+  // hand the current buffer over to the background thread and get an empty one
+  protected void handOver() throws IOException {
+    try {
+      toWrite.put(current);
+    } catch(InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while handing over the results");
+    }
+    current = written.poll();
+    if(current == null) {
+      current = new Chunk();
+    }
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    checkState();
+    if(current.length == BUFFER_SIZE) {
+      handOver();
+    }
+    current.bytes[current.length++] = (byte)b;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    checkState();
+    while(len > 0) {
+      if(current.length == BUFFER_SIZE) {
+        handOver();
+      }
+      int n = Math.min(len, BUFFER_SIZE - current.length);
+      System.arraycopy(b, off, current.bytes, current.length, n);
+      current.length += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    checkState();
+    if(current.length > 0) {
+      handOver();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if(closed) {
+      return;
+    }
+    try {
+      if(error == null && current.length > 0) {
+        handOver();
+      }
+    } finally {
+      closed = true;
+      boolean interrupted = false;
+      boolean ended = false;
+      while(!ended) {
+        try {
+          toWrite.put(END);
+          ended = true;
+        } catch(InterruptedException ex) {
+          interrupted = true;
+        }
+      }
+      while(writer.isAlive()) {
+        try {
+          writer.join();
+        } catch(InterruptedException ex) {
+          interrupted = true;
+        }
+      }
+      if(interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    if(error != null) {
+      throw error;
+    }
+  }
+
+}
@@ -23,7 +23,6 @@ import gate.plugin.evaluation.api.ContainmentType;
 import gate.plugin.evaluation.api.NilTreatment;
 import gate.Annotation;
 import gate.AnnotationSet;
-import gate.Controller;
 import gate.FeatureMap;
 import gate.Resource;
 import gate.Utils;
@@ -57,7 +56,6 @@ import org.apache.log4j.Logger;
         comment = "Calculate maximum recall for annotations with candidate lists")
 public class EvaluateMaxRecall extends EvaluateTaggingBase 
   implements ControllerAwarePR
-  //, CustomDuplication 
 {
 
   public final static long serialVersionUID = 1L;
@@ -282,16 +280,16 @@ public class EvaluateMaxRecall extends EvaluateTaggingBase
   public void execute() throws ExecutionException {
     //System.out.println("DEBUG: running tagging4lists execute");
     if(needInitialization) {
-      needInitialization = false;
       initializeCounts();
-      initializeForRunning();
     }
+    initializeIfNeeded();
     if(isInterrupted()) {
       throw new ExecutionException("PR was interrupted!");       
     }
     
     //System.out.println("DOC: "+document);
         
+    initializeContainmentFilter();
     // This should iterate exactly once because we created the annotationTypeSpecs from 
     // single key and list annotation types this PR uses.
     for(AnnotationTypeSpec typeSpec : annotationTypeSpecs.getSpecs()) {
@@ -309,28 +307,19 @@ public class EvaluateMaxRecall extends EvaluateTaggingBase
           AnnotationSet keySet, AnnotationSet responseSet, AnnotationSet referenceSet, AnnotationTypeSpec typeSpec) {
     String type = typeSpec.getKeyType();
     //System.out.println("DEBUG: evaluating for type "+typeSpec+" keysize="+keySet.size()+" resSize="+responseSet.size());
-    if(!expandedContainingNameAndType.isEmpty()) {
-      String[] setAndType = expandedContainingNameAndType.split(":",2);
-      if(setAndType.length != 2 || setAndType[0].isEmpty() || setAndType[1].isEmpty()) {
-        throw new GateRuntimeException("Runtime Parameter containingASAndName not of the form setname:typename");
-      }      
-      String containingSetName = setAndType[0];
-      String containingType = setAndType[1];
-      AnnotationSet containingSet = document.getAnnotations(setAndType[0]).get(setAndType[1]);
+    if(containmentFilter != null) {
       // now filter the keys and responses. If the containing set/type is the same as the key set/type,
       // do not filter the keys.
-      ContainmentType ct = containmentType;
-      if(ct == null) ct = ContainmentType.OVERLAPPING;
-      responseSet = selectOverlappingBy(responseSet,containingSet,ct);
+      responseSet = selectContained(responseSet);
       if(containingSetName.equals(expandedKeySetName) && containingType.equals(type)) {
         // no need to do anything for the key set
       } else {
-        keySet = selectOverlappingBy(keySet,containingSet,ct);
+        keySet = selectContained(keySet);
       }
       // if we have a reference set, we need to apply the same filtering to that one too
       // TODO: not used later, so commented out for now
       //if(referenceSet != null) {
-      //  referenceSet = selectOverlappingBy(referenceSet,containingSet,ct);
+      //  referenceSet = selectContained(referenceSet);
       //}
     } // have a containing set and type
     
@@ -647,9 +636,13 @@ public class EvaluateMaxRecall extends EvaluateTaggingBase
       outputASResName = "";
     }
 
-    mainTsvPrintStream = getOutputStream("maxrec");
+    if(firstCopy != null) {
+      mainTsvPrintStream = firstCopy.mainTsvPrintStream;
+    } else {
+      mainTsvPrintStream = getOutputStream("maxrec");
+    }
 
-    if(mainTsvPrintStream != null) {
+    if(mainTsvPrintStream != null && firstCopy == null) {
       mainTsvPrintStream.print("evaluationId"); mainTsvPrintStream.print("\t");
       mainTsvPrintStream.print("evaluationType"); mainTsvPrintStream.print("\t");
       mainTsvPrintStream.print("docName"); mainTsvPrintStream.print("\t");
@@ -675,6 +668,7 @@ public class EvaluateMaxRecall extends EvaluateTaggingBase
   
   
   
+  @Override
   public void finishRunning() {
     outputDefaultResults();
     if(mainTsvPrintStream != null) {
@@ -752,21 +746,24 @@ public class EvaluateMaxRecall extends EvaluateTaggingBase
     
     // Now also output the by rank recall strict and recall lenient for lists and overall
     
-    List<Double> maxrecS = getMaxRecallStrictByRank();
-    for(int i = 0; i<maxrecS.size(); i++) {
-      System.out.println(evaluationId+" MaxRecall strict at rank: "+i+" "+r4(maxrecS.get(i)));
-    }
-    List<Double> maxrecL = getMaxRecallLenientByRank();
-    for(int i = 0; i<maxrecL.size(); i++) {
-      System.out.println(evaluationId+" MaxRecall lenient at rank: "+i+" "+r4(maxrecL.get(i)));
-    }
-    List<Double> maxrecSL = getMaxRecallStrict4ListByRank();
-    for(int i = 0; i<maxrecSL.size(); i++) {
-      System.out.println(evaluationId+" MaxRecall4List strict at rank: "+i+" "+r4(maxrecSL.get(i)));
-    }
-    List<Double> maxrecLL = getMaxRecallLenient4ListByRank();
-    for(int i = 0; i<maxrecLL.size(); i++) {
-      System.out.println(evaluationId+" MaxRecall4List lenient at rank: "+i+" "+r4(maxrecLL.get(i)));
+    // These are the values for each rank, so only show them for the full output
+    if(isConsoleFull()) {
+      List<Double> maxrecS = getMaxRecallStrictByRank();
+      for(int i = 0; i<maxrecS.size(); i++) {
+        System.out.println(evaluationId+" MaxRecall strict at rank: "+i+" "+r4(maxrecS.get(i)));
+      }
+      List<Double> maxrecL = getMaxRecallLenientByRank();
+      for(int i = 0; i<maxrecL.size(); i++) {
+        System.out.println(evaluationId+" MaxRecall lenient at rank: "+i+" "+r4(maxrecL.get(i)));
+      }
+      List<Double> maxrecSL = getMaxRecallStrict4ListByRank();
+      for(int i = 0; i<maxrecSL.size(); i++) {
+        System.out.println(evaluationId+" MaxRecall4List strict at rank: "+i+" "+r4(maxrecSL.get(i)));
+      }
+      List<Double> maxrecLL = getMaxRecallLenient4ListByRank();
+      for(int i = 0; i<maxrecLL.size(); i++) {
+        System.out.println(evaluationId+" MaxRecall4List lenient at rank: "+i+" "+r4(maxrecLL.get(i)));
+      }
     }
 
     if(mainTsvPrintStream != null) {
@@ -816,52 +813,21 @@ public class EvaluateMaxRecall extends EvaluateTaggingBase
   }
   
   
-  ////////////////////////////////////////////
-  /// CONTROLLER AWARE PR methods
-  ////////////////////////////////////////////
-  
-  @Override
-  public void controllerExecutionStarted(Controller cntrlr) throws ExecutionException {
-    needInitialization = true;
-  }
-
-  @Override
-  public void controllerExecutionFinished(Controller cntrlr) throws ExecutionException {
-    // only do anything at all if we had actually been executed once. The callback gets also
-    // invoked if the PR was disabled, so we have to check ...
-    // needInitialization is set in the started callback and reset in execute, so if it is still
-    // on, we never were in execute.
-    if(!needInitialization) {
-      finishRunning();
-      needInitialization = true;
-    }
-  }
-
   @Override
-  public void controllerExecutionAborted(Controller cntrlr, Throwable thrwbl) throws ExecutionException {
-    if(!needInitialization) {
-      System.err.println("Processing was aborted: "+thrwbl.getMessage());
-      thrwbl.printStackTrace(System.err);
-      System.err.println("Here are the summary stats for what was processed: ");
-      finishRunning();
-      needInitialization = true;
+  protected void addResultsFrom(EvaluateTaggingBase other) {
+    EvaluateMaxRecall copy = (EvaluateMaxRecall)other;
+    nTargets += copy.nTargets;
+    nTargetsWithList += copy.nTargetsWithList;
+    nCorrectStrict += copy.nCorrectStrict;
+    nCorrectLenient += copy.nCorrectLenient;
+    nResponseLists += copy.nResponseLists;
+    nResponseListsWithTarget += copy.nResponseListsWithTarget;
+    for(int i = 0; i < copy.nCorrectStrictByRank.size(); i++) {
+      incCorrectStrictByRank(i, copy.nCorrectStrictByRank.get(i));
+    }
+    for(int i = 0; i < copy.nCorrectLenientByRank.size(); i++) {
+      incCorrectLenientByRank(i, copy.nCorrectLenientByRank.get(i));
     }
   }
-
-  /*
-  @Override
-  public Resource duplicate(Factory.DuplicationContext dc) throws ResourceInstantiationException {
-    throw new UnsupportedOperationException("At the moment, this PR may not be duplicated and must be run single-threaded"); 
-    // TODO: duplicate such that all duplicates get a flag set which indicates that they are 
-    // duplicates, and only the original has the flag not set.
-    // Also, use a shared object to give all PRs access to everyone elses's statistics objects.
-    // Also, use a shared obejcts to give all PRs access to a singleton object for writing to
-    // the output files.
-    // Finally, implement the controllerExecutionFinished() method such that only the original
-    // will do the actual summarization: it will access all stats objects from all other PRs and
-    // summarize them and 
-  }
-  */
-  
   
 }
@@ -20,28 +20,30 @@
 package gate.plugin.evaluation.resources;
 
 import gate.plugin.evaluation.api.AnnotationTypeSpec;
-import gate.plugin.evaluation.api.ContainmentType;
 import gate.plugin.evaluation.api.NilTreatment;
 import gate.Annotation;
 import gate.AnnotationSet;
-import gate.Controller;
 import gate.FeatureMap;
 import gate.Resource;
 import gate.Utils;
 import gate.annotation.AnnotationSetImpl;
+import gate.annotation.ImmutableAnnotationSetImpl;
 import gate.creole.ExecutionException;
 import gate.creole.metadata.CreoleParameter;
 import gate.creole.metadata.CreoleResource;
 import gate.creole.metadata.HiddenCreoleParameter;
 import gate.creole.metadata.Optional;
 import gate.creole.metadata.RunTime;
+import gate.plugin.evaluation.api.AllTypesStrategy;
 import gate.plugin.evaluation.api.AnnotationDifferTagging;
 import gate.plugin.evaluation.api.AnnotationTypeSpecs;
 import gate.plugin.evaluation.api.ByThEvalStatsTagging;
 import gate.plugin.evaluation.api.ContingencyTableInteger;
+import gate.plugin.evaluation.api.CrossTypeResidual;
 import gate.plugin.evaluation.api.EvalStatsTagging;
 import gate.plugin.evaluation.api.EvalStatsTagging4Score;
 import gate.plugin.evaluation.api.EvalStatsTaggingMacro;
+import gate.plugin.evaluation.api.MatchingStrategy;
 import gate.plugin.evaluation.api.ThresholdsToUse;
 import gate.util.GateRuntimeException;
 import java.util.ArrayList;
@@ -50,6 +52,9 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import org.apache.log4j.Logger;
 
 /**
@@ -61,8 +66,6 @@ import org.apache.log4j.Logger;
         helpURL ="https://github.com/GateNLP/gateplugin-Evaluation/wiki/EvaluateTagging-PR",
         comment = "Calculate P/R/F evalutation measures")
 public class EvaluateTagging extends EvaluateTaggingBase
-// TODO: need to properly implement this later!
-//  implements ControllerAwarePR, CustomDuplication  
 {
 
   public final static long serialVersionUID = 1L;
@@ -98,6 +101,27 @@ public class EvaluateTagging extends EvaluateTaggingBase
   public void setWhichThresholds(ThresholdsToUse value) { whichThresholds = value; }
   public ThresholdsToUse getWhichThresholds() { return whichThresholds; }
 
+  protected MatchingStrategy matchingStrategy;
+  @CreoleParameter(comment="How to choose the pairings between targets and responses: GREEDY or OPTIMAL (best total per group of overlapping annotations)",defaultValue="GREEDY")
+  @RunTime
+  @Optional  
+  public void setMatchingStrategy(MatchingStrategy value) { matchingStrategy = value; }
+  public MatchingStrategy getMatchingStrategy() { return matchingStrategy; }
+
+  protected AllTypesStrategy allTypesStrategy;
+  @CreoleParameter(comment="How to calculate the statistics over all types: COMPARE_ALL compares all keys and responses again, SUM_OF_TYPES adds up the statistics of the types, SUM_OF_TYPES_EXACT adds them up but compares again where keys and responses of different types overlap",defaultValue="COMPARE_ALL")
+  @RunTime
+  @Optional  
+  public void setAllTypesStrategy(AllTypesStrategy value) { allTypesStrategy = value; }
+  public AllTypesStrategy getAllTypesStrategy() { return allTypesStrategy; }
+
+  protected Integer typeThreads = 1;
+  @CreoleParameter(comment="Number of threads for comparing the keys and responses of the different annotation types of a document concurrently, 1 or less to compare them one after the other",defaultValue="1")
+  @RunTime
+  @Optional  
+  public void setTypeThreads(Integer value) { typeThreads = value; }
+  public Integer getTypeThreads() { return typeThreads; }
+
   
   // TODO: maybe separate parameter for user-specified score thresholds which would allow 
   // to evaluate for one specific singe score too?
@@ -120,7 +144,10 @@ public class EvaluateTagging extends EvaluateTaggingBase
   
   @Override
   public void cleanup() {
-    //
+    if(typeEvaluationPool != null) {
+      typeEvaluationPool.shutdown();
+      typeEvaluationPool = null;
+    }
   }
   
   
@@ -130,6 +157,10 @@ public class EvaluateTagging extends EvaluateTaggingBase
   
   protected ContingencyTableInteger correctnessTableStrict;
   protected ContingencyTableInteger correctnessTableLenient;
+  
+  // The pool for comparing the types of a document concurrently, null if they get compared in 
+  // the calling thread. 
+  protected transient ForkJoinPool typeEvaluationPool = null;
 
   // This will be initialized at the start of the run and be incremented in the AnnotationDifferTagging
   // for each document.
@@ -146,16 +177,18 @@ public class EvaluateTagging extends EvaluateTaggingBase
   protected static final String initialFeaturePrefixResponse = "evaluateTagging.response.";
   protected static final String initialFeaturePrefixReference = "evaluateTagging.reference.";
   
+  // The names of the document features for the response and reference set, for each type
+  // and for all types with the key null, created once when initializing
+  protected Map<AnnotationTypeSpec, String[]> responseFeatureNames;
+  protected Map<AnnotationTypeSpec, String[]> referenceFeatureNames;
+  
   
   protected static final Logger logger = Logger.getLogger(EvaluateTagging.class);
   
   @Override
   public void execute() throws ExecutionException {
     
-    if(needInitialization) {
-      needInitialization = false;
-      initializeForRunning();
-    }
+    initializeIfNeeded();
     if(isInterrupted()) {
       throw new ExecutionException("PR was interrupted!"); 
     }
@@ -164,75 +197,168 @@ public class EvaluateTagging extends EvaluateTaggingBase
     AnnotationSet responseSet = null;
     AnnotationSet referenceSet = null;
     
-    HashSet<String> keyTypes = new HashSet<>();
-    HashSet<String> responseTypes = new HashSet<>();
-    keyTypes.addAll(annotationTypeSpecs.getKeyTypes());
-    responseTypes.addAll(annotationTypeSpecs.getResponseTypes());
+    // Split the key, response and reference sets by type once, the sets for all types are the 
+    // unions of these
+    List<AnnotationSet> keySets = annotationTypeSpecs.splitByType(
+            document.getAnnotations(expandedKeySetName), false);
+    List<AnnotationSet> responseSets = annotationTypeSpecs.splitByType(
+            document.getAnnotations(expandedResponseSetName), true);
+    List<AnnotationSet> referenceSets = null;
+    if(!expandedReferenceSetName.isEmpty()) {
+      referenceSets = annotationTypeSpecs.splitByType(
+              document.getAnnotations(expandedReferenceSetName), true);
+    }
+    List<AnnotationTypeSpec> specs = annotationTypeSpecs.getSpecs();
+    
+    // If we have a containing set, restrict all the sets to the containing annotations using
+    // the same filter. Since the all types sets are the unions of the per type sets, each 
+    // annotation only needs to get checked once. If the containing set/type is the same as the 
+    // key set/type, do not filter the keys for that type, but still for all types. This is the
+    // one case where SUM_OF_TYPES_EXACT can differ from COMPARE_ALL, see AllTypesStrategy.
+    List<AnnotationSet> containedKeySets = keySets;
+    initializeContainmentFilter();
+    if(containmentFilter != null) {
+      containedKeySets = new ArrayList<>(specs.size());
+      for(int i = 0; i < specs.size(); i++) {
+        containedKeySets.add(selectContained(keySets.get(i)));
+        if(!(containingSetName.equals(expandedKeySetName) && 
+                containingType.equals(specs.get(i).getKeyType()))) {
+          keySets.set(i, containedKeySets.get(i));
+        }
+        responseSets.set(i, selectContained(responseSets.get(i)));
+        if(referenceSets != null) {
+          referenceSets.set(i, selectContained(referenceSets.get(i)));
+        }
+      }
+    }
+    
+    // First select the annotations for all the evaluations we need to do for the document, 
+    // then compare keys and responses for each, possibly concurrently, and finally record the 
+    // results in the order of the evaluations, which is the only step that changes the document.
+    List<TypeEvaluation> evaluations = new ArrayList<>();
+    TypeEvaluation allTypes = null;
     if(getAnnotationTypes().size() > 1) {
-      keySet = document.getAnnotations(expandedKeySetName).get(keyTypes);
-      responseSet = document.getAnnotations(expandedResponseSetName).get(responseTypes);
-      if(!expandedReferenceSetName.isEmpty()) {        
-        referenceSet = document.getAnnotations(expandedReferenceSetName).get(responseTypes);
+      if(allTypesStrategy == AllTypesStrategy.SUM_OF_TYPES) {
+        // nothing to compare, the statistics will just be the sum over the types
+        allTypes = new TypeEvaluation();
+        allTypes.type = "";
+      } else {
+        keySet = unionOf(containedKeySets);
+        responseSet = unionOf(responseSets);
+        if(referenceSets != null) {        
+          referenceSet = unionOf(referenceSets);
+        }
+        allTypes = selectForType(keySet,responseSet,referenceSet,null);
       }
-      evaluateForType(keySet,responseSet,referenceSet,null);
+      allTypes.derived = allTypesStrategy == AllTypesStrategy.SUM_OF_TYPES 
+              || allTypesStrategy == AllTypesStrategy.SUM_OF_TYPES_EXACT;
+      evaluations.add(allTypes);
     }
     // now do it for each typeSpec seperately
-    for(AnnotationTypeSpec typeSpec : annotationTypeSpecs.getSpecs()) {
-      keySet = document.getAnnotations(expandedKeySetName).get(typeSpec.getKeyType());
-      responseSet = document.getAnnotations(expandedResponseSetName).get(typeSpec.getResponseType());
-      if(!expandedReferenceSetName.isEmpty()) {
-        referenceSet = document.getAnnotations(expandedReferenceSetName).get(typeSpec.getResponseType());
+    for(int i = 0; i < specs.size(); i++) {
+      keySet = keySets.get(i);
+      responseSet = responseSets.get(i);
+      if(referenceSets != null) {
+        referenceSet = referenceSets.get(i);
       }
-      evaluateForType(keySet,responseSet,referenceSet,typeSpec);      
+      evaluations.add(selectForType(keySet,responseSet,referenceSet,specs.get(i)));
     }
     
+    if(typeEvaluationPool != null && evaluations.size() > 1) {
+      compareConcurrently(evaluations);
+    } else {
+      for(TypeEvaluation evaluation : evaluations) {
+        compareForType(evaluation);
+      }
+    }
+    
+    if(allTypes != null && allTypes.derived) {
+      deriveForAllTypes(allTypes, evaluations.subList(1, evaluations.size()));
+    }
     
+    for(TypeEvaluation evaluation : evaluations) {
+      recordForType(evaluation);
+    }
+    
+  }
+  
+  // The union of the sets of annotations of the different types
+  protected AnnotationSet unionOf(List<AnnotationSet> sets) {
+    List<Annotation> anns = new ArrayList<>();
+    for(AnnotationSet set : sets) {
+      anns.addAll(set);
+    }
+    return new ImmutableAnnotationSetImpl(document, anns);
+  }
+  
+  /**
+   * The annotations and comparison results for one typeSpec of the current document.
+   */
+  protected static class TypeEvaluation {
+    protected AnnotationSet keySet;
+    protected AnnotationSet responseSet;
+    protected AnnotationSet referenceSet;
+    // the typeSpec or null for the evaluation over all types
+    protected AnnotationTypeSpec typeSpec;
+    // the key of the typeSpec in the maps of statistics
+    protected String type;
+    // if the statistics get derived from the statistics of the types instead of comparing 
+    // the annotations, in that case there are no differs
+    protected boolean derived = false;
+    protected AnnotationDifferTagging docDiffer;
+    // the differ for the reference set, or null if there is no reference set
+    protected AnnotationDifferTagging docRefDiffer;
+    // the statistics for the response set and the reference set, null if there is no reference set
+    protected EvalStatsTagging es;
+    protected EvalStatsTagging res;
+    // the statistics by threshold for the document, null if there is no score feature
+    protected ByThEvalStatsTagging byThreshold;
+    // the changes between the reference and response set, null if there is no reference set
+    protected ContingencyTableInteger tableStrict;
+    protected ContingencyTableInteger tableLenient;
+    // for derived statistics, the evaluation over all types and the evaluations for each type
+    // of the cross-type residual
+    protected TypeEvaluation residual;
+    protected List<TypeEvaluation> residualByType;
   }
   
   // TODO: need to allow for key and response types, and for lists, list element types too!
   /**
    * Do the evaluation for one typeSpec, described by a AnnotationTypeSpec instance.
-   * If typeSpec is null, create the evaluation over all types.
+   * If typeSpec is null, create the evaluation over all types by comparing all the annotations.
+   * This runs the select, compare and record steps which execute runs for all the types of a 
+   * document in sequence. Unlike execute, this does not apply the containment filter, so
+   * the sets must already be restricted to the containing annotations if necessary.
    * @param keySet value
    * @param responseSet value
-   * @param referenceSet value
+   * @param referenceSet value, may be null
    * @param typeSpec  value
    */
   protected void evaluateForType(
           AnnotationSet keySet, AnnotationSet responseSet, AnnotationSet referenceSet,
           AnnotationTypeSpec typeSpec) {
+    TypeEvaluation evaluation = selectForType(keySet, responseSet, referenceSet, typeSpec);
+    compareForType(evaluation);
+    recordForType(evaluation);
+  }
+  
+  /**
+   * Select the annotations to use for the evaluation of one typeSpec. This removes NILs if
+   * necessary. Since this accesses the annotation sets of the document, it must not run 
+   * concurrently with anything else that uses the document.
+   * @param keySet value, already restricted to the containing annotations
+   * @param responseSet value, already restricted to the containing annotations
+   * @param referenceSet value, already restricted to the containing annotations
+   * @param typeSpec  value, null for the evaluation over all types
+   * @return the evaluation with the selected annotations
+   */
+  protected TypeEvaluation selectForType(
+          AnnotationSet keySet, AnnotationSet responseSet, AnnotationSet referenceSet,
+          AnnotationTypeSpec typeSpec) {
     
     // For accessing the type->EvalStats map we use the string type still ...
     String type = "";
     if(typeSpec != null) { type = typeSpec.getKeyType(); }
-    AnnotationSet containingSet = null;
-    String containingSetName = "";
-    String containingType = "";
-    if(!expandedContainingNameAndType.isEmpty()) {
-      String[] setAndType = expandedContainingNameAndType.split(":",2);
-      if(setAndType.length != 2 || setAndType[0].isEmpty() || setAndType[1].isEmpty()) {
-        throw new GateRuntimeException("Runtime Parameter containingASAndName not of the form setname:typename");
-      }      
-      containingSetName = setAndType[0];
-      containingType = setAndType[1];
-      containingSet = document.getAnnotations(setAndType[0]).get(setAndType[1]);
-      // now filter the keys and responses. If the containing set/type is the same as the key set/type,
-      // do not filter the keys.
-      ContainmentType ct = containmentType;
-      if(ct == null) ct = ContainmentType.OVERLAPPING;
-      responseSet = selectOverlappingBy(responseSet,containingSet,ct);
-      // TODO: at the moment this will never be true since we have changed the single typeSpec to a list
-      // of types. Think about when to not do this ...
-      if(containingSetName.equals(expandedKeySetName) && containingType.equals(type)) {
-        // no need to do anything for the key set
-      } else {
-        keySet = selectOverlappingBy(keySet,containingSet,ct);
-      }
-      // if we have a reference set, we need to apply the same filtering to that one too
-      if(referenceSet != null) {
-        referenceSet = selectOverlappingBy(referenceSet,containingSet,ct);
-      }
-    } // have a containing set and typeSpec
     
     
     // Now depending on the NIL processing strategy, do something with those annotations which 
@@ -264,50 +390,197 @@ public class EvaluateTagging extends EvaluateTaggingBase
       }
     }
     
-    
-    AnnotationDifferTagging docDiffer = new AnnotationDifferTagging(
-            keySet,
-            responseSet,
+    TypeEvaluation evaluation = new TypeEvaluation();
+    evaluation.keySet = keySet;
+    evaluation.responseSet = responseSet;
+    evaluation.referenceSet = referenceSet;
+    evaluation.typeSpec = typeSpec;
+    evaluation.type = type;
+    return evaluation;
+  }
+  
+  /**
+   * Compare the keys with the responses and the reference annotations for one typeSpec and 
+   * calculate the statistics for the document. This only reads the selected annotations
+   * and does not change anything else, so it can run concurrently for different typeSpecs of 
+   * the same document.
+   * @param evaluation the evaluation for the typeSpec
+   */
+  protected void compareForType(TypeEvaluation evaluation) {
+    if(evaluation.derived) {
+      if(allTypesStrategy == AllTypesStrategy.SUM_OF_TYPES_EXACT) {
+        compareCrossTypeResidual(evaluation);
+      }
+      return;
+    }
+    evaluation.docDiffer = new AnnotationDifferTagging(
+            evaluation.keySet,
+            evaluation.responseSet,
             featureSet,
             featureComparison,
-            annotationTypeSpecs
+            annotationTypeSpecs,
+            matchingStrategy
     );
-    EvalStatsTagging es = docDiffer.getEvalStatsTagging();
-
+    evaluation.es = evaluation.docDiffer.getEvalStatsTagging();
     if(doScoreEvaluation) {
-      ByThEvalStatsTagging bth = evalStatsByThreshold.get(type);
-      AnnotationDifferTagging.calculateByThEvalStatsTagging(
-                keySet, responseSet, featureSet, featureComparison, expandedScoreFeatureName, 
-              bth.getWhichThresholds(), bth, annotationTypeSpecs);
+      evaluation.byThreshold = AnnotationDifferTagging.calculateByThEvalStatsTagging(
+                evaluation.keySet, evaluation.responseSet, featureSet, featureComparison, expandedScoreFeatureName, 
+              getWhichThresholds(), null, annotationTypeSpecs, matchingStrategy);
     }
-    
+    if(evaluation.referenceSet != null) {
+      evaluation.docRefDiffer = new AnnotationDifferTagging(
+              evaluation.keySet,
+              evaluation.referenceSet,
+              featureSet,
+              featureComparison,
+              annotationTypeSpecs,
+              matchingStrategy
+      );
+      evaluation.res = evaluation.docRefDiffer.getEvalStatsTagging();
+      evaluation.tableStrict = new ContingencyTableInteger(2, 2);
+      evaluation.tableLenient = new ContingencyTableInteger(2, 2);
+      AnnotationDifferTagging.addChangesToContingenyTables(evaluation.docDiffer, evaluation.docRefDiffer, 
+              evaluation.tableStrict, evaluation.tableLenient);
+    }
+  }
+  
+  /**
+   * Find the cross-type residual of the annotations selected for the evaluation over all types
+   * and compare the annotations of the residual, both over all types and for each type. 
+   * @param evaluation the evaluation over all types
+   */
+  protected void compareCrossTypeResidual(TypeEvaluation evaluation) {
+    CrossTypeResidual crossType = new CrossTypeResidual(
+            evaluation.keySet, evaluation.responseSet, evaluation.referenceSet, annotationTypeSpecs);
+    if(crossType.isEmpty()) {
+      return;
+    }
+    evaluation.residual = new TypeEvaluation();
+    evaluation.residual.keySet = crossType.getKeys();
+    evaluation.residual.responseSet = crossType.getResponses();
+    evaluation.residual.referenceSet = crossType.getReferences();
+    evaluation.residual.type = evaluation.type;
+    compareForType(evaluation.residual);
+    evaluation.residualByType = new ArrayList<>();
+    for(AnnotationTypeSpec typeSpec : annotationTypeSpecs.getSpecs()) {
+      TypeEvaluation typeResidual = new TypeEvaluation();
+      typeResidual.keySet = crossType.getKeys(typeSpec.getKeyType());
+      typeResidual.responseSet = crossType.getResponses(typeSpec.getKeyType());
+      typeResidual.referenceSet = crossType.getReferences(typeSpec.getKeyType());
+      typeResidual.typeSpec = typeSpec;
+      typeResidual.type = typeSpec.getKeyType();
+      compareForType(typeResidual);
+      evaluation.residualByType.add(typeResidual);
+    }
+  }
+  
+  /**
+   * Calculate the statistics over all types for the document from the statistics of each type
+   * and, if there is one, the cross-type residual.
+   * @param allTypes the evaluation over all types
+   * @param byType the evaluations for each type 
+   */
+  protected void deriveForAllTypes(TypeEvaluation allTypes, List<TypeEvaluation> byType) {
+    allTypes.es = new EvalStatsTagging4Score(Double.NaN);
+    if(!expandedReferenceSetName.isEmpty()) {
+      allTypes.res = new EvalStatsTagging4Score(Double.NaN);
+      allTypes.tableStrict = new ContingencyTableInteger(2, 2);
+      allTypes.tableLenient = new ContingencyTableInteger(2, 2);
+    }
+    if(doScoreEvaluation) {
+      allTypes.byThreshold = new ByThEvalStatsTagging(getWhichThresholds());
+    }
+    for(TypeEvaluation evaluation : byType) {
+      addForAllTypes(allTypes, evaluation, false);
+    }
+    if(allTypes.residual != null) {
+      addForAllTypes(allTypes, allTypes.residual, false);
+      for(TypeEvaluation evaluation : allTypes.residualByType) {
+        addForAllTypes(allTypes, evaluation, true);
+      }
+    }
+  }
+  
+  private void addForAllTypes(TypeEvaluation allTypes, TypeEvaluation evaluation, boolean subtract) {
+    if(subtract) {
+      allTypes.es.subtract(evaluation.es);
+    } else {
+      allTypes.es.add(evaluation.es);
+    }
+    if(allTypes.res != null) {
+      if(subtract) {
+        allTypes.res.subtract(evaluation.res);
+        allTypes.tableStrict.subtract(evaluation.tableStrict);
+        allTypes.tableLenient.subtract(evaluation.tableLenient);
+      } else {
+        allTypes.res.add(evaluation.res);
+        allTypes.tableStrict.add(evaluation.tableStrict);
+        allTypes.tableLenient.add(evaluation.tableLenient);
+      }
+    }
+    if(allTypes.byThreshold != null) {
+      if(subtract) {
+        allTypes.byThreshold.subtract(evaluation.byThreshold);
+      } else {
+        allTypes.byThreshold.add(evaluation.byThreshold);
+      }
+    }
+  }
+  
+  /**
+   * Run compareForType for all the evaluations on the pool and wait until all are finished.
+   * @param evaluations the evaluations for the document
+   */
+  protected void compareConcurrently(List<TypeEvaluation> evaluations) {
+    List<Callable<Void>> tasks = new ArrayList<>(evaluations.size());
+    for(final TypeEvaluation evaluation : evaluations) {
+      tasks.add(new Callable<Void>() {
+        @Override
+        public Void call() {
+          compareForType(evaluation);
+          return null;
+        }
+      });
+    }
+    for(Future<Void> result : typeEvaluationPool.invokeAll(tasks)) {
+      try {
+        result.get();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new GateRuntimeException("Interrupted while evaluating the types", ex);
+      } catch (java.util.concurrent.ExecutionException ex) {
+        if(ex.getCause() instanceof RuntimeException) {
+          throw (RuntimeException)ex.getCause();
+        }
+        throw new GateRuntimeException("Error when evaluating the types", ex.getCause());
+      }
+    }
+  }
+  
+  /**
+   * Record the results of the comparison for one typeSpec: add them to the statistics over 
+   * all documents and, depending on the parameters, add document features, indicator 
+   * annotations and target id features and write the TSV lines. 
+   * @param evaluation the evaluation for the typeSpec
+   */
+  protected void recordForType(TypeEvaluation evaluation) {
+    AnnotationTypeSpec typeSpec = evaluation.typeSpec;
+    String type = evaluation.type;
+    // if the statistics have been derived, there is no differ and nothing gets added to the 
+    // annotations: the annotations get added for each of the types
+    AnnotationDifferTagging docDiffer = evaluation.docDiffer;
+    EvalStatsTagging es = evaluation.es;
+    if(docDiffer != null && getAddTargetIdFeatures()) {
+      docDiffer.addTargetIdFeatures();
+    }
+    if(evaluation.byThreshold != null) {
+      evalStatsByThreshold.get(type).add(evaluation.byThreshold);
+    }
+
     // Store the counts and measures as document feature values
     FeatureMap docFm = document.getFeatures();
     if (getAddDocumentFeatures()) {
-      String featurePrefixResponseT = featurePrefixResponse;
-      if (typeSpec == null) {
-        featurePrefixResponseT += "[ALL].";
-      } else {
-        featurePrefixResponseT += (typeSpec + ".");
-      }
-      docFm.put(featurePrefixResponseT + "FMeasureStrict", es.getFMeasureStrict(1.0));
-      docFm.put(featurePrefixResponseT + "FMeasureLenient", es.getFMeasureLenient(1.0));
-      docFm.put(featurePrefixResponseT + "PrecisionStrict", es.getPrecisionStrict());
-      docFm.put(featurePrefixResponseT + "PrecisionLenient", es.getPrecisionLenient());
-      docFm.put(featurePrefixResponseT + "RecallStrict", es.getRecallStrict());
-      docFm.put(featurePrefixResponseT + "RecallLenient", es.getRecallLenient());
-      docFm.put(featurePrefixResponseT + "SingleCorrectAccuracyStrict", es.getSingleCorrectAccuracyStrict());
-      docFm.put(featurePrefixResponseT + "SingleCorrectAccuracyLenient", es.getSingleCorrectAccuracyLenient());
-      docFm.put(featurePrefixResponseT + "CorrectStrict", es.getCorrectStrict());
-      docFm.put(featurePrefixResponseT + "CorrectPartial", es.getCorrectPartial());
-      docFm.put(featurePrefixResponseT + "IncorrectStrict", es.getIncorrectStrict());
-      docFm.put(featurePrefixResponseT + "IncorrectPartial", es.getIncorrectPartial());
-      docFm.put(featurePrefixResponseT + "TrueMissingStrict", es.getTrueMissingStrict());
-      docFm.put(featurePrefixResponseT + "TrueMissingLenient", es.getTrueMissingLenient());
-      docFm.put(featurePrefixResponseT + "TrueSpuriousStrict", es.getTrueSpuriousStrict());
-      docFm.put(featurePrefixResponseT + "TrueSpuriousLenient", es.getTrueSpuriousLenient());
-      docFm.put(featurePrefixResponseT + "Targets", es.getTargets());
-      docFm.put(featurePrefixResponseT + "Responses", es.getResponses());
+      putDocumentFeatures(docFm, responseFeatureNames.get(typeSpec), es);
     }
     
     logger.debug("DEBUG: type is "+typeSpec);
@@ -321,7 +594,7 @@ public class EvaluateTagging extends EvaluateTaggingBase
     // Now if we have parameters to record the matchings, get the information from the docDiffer
     // and create the apropriate annotations.
     AnnotationSet outputAnnotationSet = null;
-    if(!outputASResName.isEmpty()) {
+    if(docDiffer != null && !outputASResName.isEmpty()) {
       outputAnnotationSet = document.getAnnotations(outputASResName);
       docDiffer.addIndicatorAnnotations(outputAnnotationSet,"");
     }
@@ -329,21 +602,17 @@ public class EvaluateTagging extends EvaluateTaggingBase
     
     
     // If we have a reference set, also calculate the stats for the reference set
-    EvalStatsTagging res = null;
-    if(referenceSet != null) {
-      AnnotationDifferTagging docRefDiffer = new AnnotationDifferTagging(
-              keySet,
-              referenceSet,
-              featureSet,
-              featureComparison,
-              annotationTypeSpecs
-      );
-      res = docRefDiffer.getEvalStatsTagging();
+    EvalStatsTagging res = evaluation.res;
+    AnnotationDifferTagging docRefDiffer = evaluation.docRefDiffer;
+    if(res != null) {
+      if(docRefDiffer != null && getAddTargetIdFeatures()) {
+        docRefDiffer.addTargetIdFeatures();
+      }
       allDocumentsReferenceStats.get(type).add(res);
             
       // if we need to record the matchings, also add the annotations for how things changed
       // between the reference set and the response set.
-      if(!outputASRefName.isEmpty()) {
+      if(docRefDiffer != null && !outputASRefName.isEmpty()) {
         outputAnnotationSet = document.getAnnotations(outputASRefName);
         docRefDiffer.addIndicatorAnnotations(outputAnnotationSet,"");
         // Now add also the annotations that indicate the changes between the reference set and
@@ -354,41 +623,19 @@ public class EvaluateTagging extends EvaluateTaggingBase
       
       // TODO: increment the overall counts of how things changed
       
-      AnnotationDifferTagging.addChangesToContingenyTables(docDiffer, docRefDiffer, correctnessTableStrict, correctnessTableLenient);
+      correctnessTableStrict.add(evaluation.tableStrict);
+      correctnessTableLenient.add(evaluation.tableLenient);
       
       // add document features for the reference set
       if (getAddDocumentFeatures()) {
-        String featurePrefixReferenceT = featurePrefixReference;
-        if (typeSpec == null) {
-          featurePrefixReferenceT += "[ALL].";
-        } else {
-          featurePrefixReferenceT += (typeSpec + ".");
-        }
-        docFm.put(featurePrefixReferenceT + "FMeasureStrict", res.getFMeasureStrict(1.0));
-        docFm.put(featurePrefixReferenceT + "FMeasureLenient", res.getFMeasureLenient(1.0));
-        docFm.put(featurePrefixReferenceT + "PrecisionStrict", res.getPrecisionStrict());
-        docFm.put(featurePrefixReferenceT + "PrecisionLenient", res.getPrecisionLenient());
-        docFm.put(featurePrefixReferenceT + "RecallStrict", res.getRecallStrict());
-        docFm.put(featurePrefixReferenceT + "RecallLenient", res.getRecallLenient());
-        docFm.put(featurePrefixReferenceT + "SingleCorrectAccuracyStrict", res.getSingleCorrectAccuracyStrict());
-        docFm.put(featurePrefixReferenceT + "SingleCorrectAccuracyLenient", res.getSingleCorrectAccuracyLenient());
-        docFm.put(featurePrefixReferenceT + "CorrectStrict", res.getCorrectStrict());
-        docFm.put(featurePrefixReferenceT + "CorrectPartial", res.getCorrectPartial());
-        docFm.put(featurePrefixReferenceT + "IncorrectStrict", res.getIncorrectStrict());
-        docFm.put(featurePrefixReferenceT + "IncorrectPartial", res.getIncorrectPartial());
-        docFm.put(featurePrefixReferenceT + "TrueMissingStrict", res.getTrueMissingStrict());
-        docFm.put(featurePrefixReferenceT + "TrueMissingLenient", res.getTrueMissingLenient());
-        docFm.put(featurePrefixReferenceT + "TrueSpuriousStrict", res.getTrueSpuriousStrict());
-        docFm.put(featurePrefixReferenceT + "TrueSpuriousLenient", res.getTrueSpuriousLenient());
-        docFm.put(featurePrefixReferenceT + "Targets", res.getTargets());
-        docFm.put(featurePrefixReferenceT + "Responses", res.getResponses());
+        putDocumentFeatures(docFm, referenceFeatureNames.get(typeSpec), res);
       }
     }
     if(mainTsvPrintStream != null) {
       // a line for the response stats for that document
-      mainTsvPrintStream.println(outputTsvLine("normal", document.getName(), typeSpec, expandedResponseSetName, es));
+      outputResultsRow("normal", document.getName(), typeSpec, expandedResponseSetName, es);
       if(res != null) {
-        mainTsvPrintStream.println(outputTsvLine("normal", document.getName(), typeSpec, expandedReferenceSetName,  res));
+        outputResultsRow("normal", document.getName(), typeSpec, expandedReferenceSetName,  res);
       }
     }
   }
@@ -450,6 +697,27 @@ public class EvaluateTagging extends EvaluateTaggingBase
   }
   
   
+  /**
+   * Get the contingency table of the strict correctness in the reference set and in the 
+   * response set, over all documents and types. If no reference set was specified, null is
+   * returned.
+   * @return the contingency table
+   */
+  public ContingencyTableInteger getContingencyTableStrict() {
+    return correctnessTableStrict;
+  }
+  
+  /**
+   * Get the contingency table of the lenient correctness in the reference set and in the 
+   * response set, over all documents and types. If no reference set was specified, null is
+   * returned.
+   * @return the contingency table
+   */
+  public ContingencyTableInteger getContingencyTableLenient() {
+    return correctnessTableLenient;
+  }
+  
+  
   ////////////////////////////////////////////
   /// HELPER METHODS
   ////////////////////////////////////////////
@@ -527,7 +795,9 @@ public class EvaluateTagging extends EvaluateTaggingBase
       logger.debug("DEBUG: initializing alldocument stats for type "+t);
       allDocumentsStats.put(t,new EvalStatsTagging4Score(Double.NaN));
       if(evalStatsByThreshold != null) {
-        evalStatsByThreshold.put(t,new ByThEvalStatsTagging(getWhichThresholds()));
+        ByThEvalStatsTagging bth = new ByThEvalStatsTagging(getWhichThresholds());
+        bth.setMaxThresholds(getMaxThresholds());
+        evalStatsByThreshold.put(t,bth);
       }    
       if(allDocumentsReferenceStats != null) {
         allDocumentsReferenceStats.put(t,new EvalStatsTagging4Score(Double.NaN));
@@ -535,11 +805,38 @@ public class EvaluateTagging extends EvaluateTaggingBase
       
     }
     
+    int nThreads = getTypeThreads() == null ? 1 : getTypeThreads();
+    if(typesPlusEmpty.size() < 2 || nThreads < 2) {
+      if(typeEvaluationPool != null) {
+        typeEvaluationPool.shutdown();
+        typeEvaluationPool = null;
+      }
+    } else if(typeEvaluationPool == null || typeEvaluationPool.getParallelism() != nThreads) {
+      if(typeEvaluationPool != null) {
+        typeEvaluationPool.shutdown();
+      }
+      typeEvaluationPool = new ForkJoinPool(nThreads);
+    }
+    
     featurePrefixResponse = initialFeaturePrefixResponse + getExpandedEvaluationId() + "." + getResponseASName() + "." ;
     featurePrefixReference = initialFeaturePrefixReference + getExpandedEvaluationId() + "." + getReferenceASName() + ".";
+    responseFeatureNames = new HashMap<AnnotationTypeSpec, String[]>();
+    referenceFeatureNames = new HashMap<AnnotationTypeSpec, String[]>();
+    responseFeatureNames.put(null, documentFeatureNames(featurePrefixResponse + "[ALL]."));
+    referenceFeatureNames.put(null, documentFeatureNames(featurePrefixReference + "[ALL]."));
+    for(AnnotationTypeSpec typeSpec : annotationTypeSpecs.getSpecs()) {
+      responseFeatureNames.put(typeSpec, documentFeatureNames(featurePrefixResponse + typeSpec + "."));
+      referenceFeatureNames.put(typeSpec, documentFeatureNames(featurePrefixReference + typeSpec + "."));
+    }
     
-    mainTsvPrintStream = getOutputStream(null);
-    if(mainTsvPrintStream != null) {
+    if(firstCopy != null) {
+      mainTsvPrintStream = firstCopy.mainTsvPrintStream;
+      binaryResultsWriter = firstCopy.binaryResultsWriter;
+    } else {
+      mainTsvPrintStream = getOutputStream(null);
+      binaryResultsWriter = getBinaryResultsWriter();
+    }
+    if(mainTsvPrintStream != null && firstCopy == null) {
       mainTsvPrintStream.print("evaluationId"); mainTsvPrintStream.print("\t");
       mainTsvPrintStream.print("evaluationType"); mainTsvPrintStream.print("\t");
       mainTsvPrintStream.print("docName"); mainTsvPrintStream.print("\t");
@@ -552,11 +849,10 @@ public class EvaluateTagging extends EvaluateTaggingBase
   }
   
   
+  @Override
   public void finishRunning() {
     outputDefaultResults();
-    if(mainTsvPrintStream != null) {
-      mainTsvPrintStream.close();    
-    }
+    closeResultsOutput();
   }
   
   
@@ -570,44 +866,44 @@ public class EvaluateTagging extends EvaluateTaggingBase
       //System.out.println("DEBUG: alldocumentsStats="+allDocumentsStats+" typeSpec="+typeSpec+" expandedResponseSetName="+expandedResponseSetName);
       outputEvalStatsForType(System.out, allDocumentsStats.get(typeSpec.getKeyType()), typeSpec.toString(), expandedResponseSetName);
       if(mainTsvPrintStream != null) { 
-        mainTsvPrintStream.println(
-                outputTsvLine("normal",null, typeSpec, getResponseASName(), allDocumentsStats.get(typeSpec.getKeyType()))); }
+        outputResultsRow("normal",null, typeSpec, getResponseASName(), allDocumentsStats.get(typeSpec.getKeyType())); }
       if(!expandedReferenceSetName.isEmpty()) {
         outputEvalStatsForType(System.out, allDocumentsReferenceStats.get(typeSpec.getKeyType()), typeSpec.toString(), expandedReferenceSetName);
         if(mainTsvPrintStream != null) { 
-          mainTsvPrintStream.println(
-                  outputTsvLine("normal",null, typeSpec, expandedReferenceSetName,  allDocumentsReferenceStats.get(typeSpec.getKeyType()))); }
+          outputResultsRow("normal",null, typeSpec, expandedReferenceSetName,  allDocumentsReferenceStats.get(typeSpec.getKeyType())); }
       }
       if(evalStatsByThreshold != null) {
         ByThEvalStatsTagging bthes = evalStatsByThreshold.get(typeSpec.getKeyType());
         for(double th : bthes.getByThresholdEvalStats().navigableKeySet()) {
-          outputEvalStatsForType(System.out, bthes.get(th), typeSpec.toString(), expandedResponseSetName);
+          if(isConsoleFull()) {
+            outputEvalStatsForType(System.out, bthes.get(th), typeSpec.toString(), expandedResponseSetName);
+          }
           if(mainTsvPrintStream != null) { 
-            mainTsvPrintStream.println(
-                    outputTsvLine("score", null, typeSpec, expandedResponseSetName, bthes.get(th))); }
+            outputResultsRow("score", null, typeSpec, expandedResponseSetName, bthes.get(th)); }
         }
+        outputPRCurveMeasuresForType(System.out, bthes.getPRCurveMeasures(), typeSpec.toString(), expandedResponseSetName, expandedEvaluationId, false);
       }
     }
     // If there was more than one typeSpec, also output the summary stats over all types
     if(annotationTypeSpecs.size() > 1) {
       outputEvalStatsForType(System.out, allDocumentsStats.get(""), "all(micro)", expandedResponseSetName);
       if(mainTsvPrintStream != null) { 
-        mainTsvPrintStream.println(
-                outputTsvLine("normal", null, null, expandedResponseSetName, allDocumentsStats.get(""))); }
+        outputResultsRow("normal", null, null, expandedResponseSetName, allDocumentsStats.get("")); }
       if(!getStringOrElse(getReferenceASName(), "").isEmpty()) {
         outputEvalStatsForType(System.out, allDocumentsReferenceStats.get(""), "all(micro)", expandedReferenceSetName);
         if(mainTsvPrintStream != null) { 
-          mainTsvPrintStream.println(
-                  outputTsvLine("normal", null, null, expandedReferenceSetName, allDocumentsReferenceStats.get(""))); }
+          outputResultsRow("normal", null, null, expandedReferenceSetName, allDocumentsReferenceStats.get("")); }
       }      
       if(evalStatsByThreshold != null) {
         ByThEvalStatsTagging bthes = evalStatsByThreshold.get("");
         for(double th : bthes.getByThresholdEvalStats().navigableKeySet()) {
-          outputEvalStatsForType(System.out, bthes.get(th), "all(micro)", expandedResponseSetName);
+          if(isConsoleFull()) {
+            outputEvalStatsForType(System.out, bthes.get(th), "all(micro)", expandedResponseSetName);
+          }
           if(mainTsvPrintStream != null) { 
-            mainTsvPrintStream.println(
-                    outputTsvLine("score", null, null, expandedResponseSetName, bthes.get(th))); }
-        }        
+            outputResultsRow("score", null, null, expandedResponseSetName, bthes.get(th)); }
+        }
+        outputPRCurveMeasuresForType(System.out, bthes.getPRCurveMeasures(), "all(micro)", expandedResponseSetName, expandedEvaluationId, false);        
       }
       EvalStatsTaggingMacro esm = new EvalStatsTaggingMacro();
       for(String type : annotationTypeSpecs.getKeyTypes()) {
@@ -615,8 +911,7 @@ public class EvaluateTagging extends EvaluateTaggingBase
       }
       outputEvalStatsForType(System.out, esm, "all(macro)", expandedResponseSetName);
       if(mainTsvPrintStream != null) { 
-        mainTsvPrintStream.println(
-                outputTsvLine("normal", null, null, expandedResponseSetName, esm)); }
+        outputResultsRow("normal", null, null, expandedResponseSetName, esm); }
       if(!getStringOrElse(getReferenceASName(), "").isEmpty()) {
         esm = new EvalStatsTaggingMacro();
         for(String type : annotationTypeSpecs.getKeyTypes()) {
@@ -624,8 +919,7 @@ public class EvaluateTagging extends EvaluateTaggingBase
         }
         outputEvalStatsForType(System.out, esm, "all(macro)", expandedReferenceSetName);
         if(mainTsvPrintStream != null) { 
-          mainTsvPrintStream.println(
-                  outputTsvLine("normal", null, null, expandedReferenceSetName, esm)); }
+          outputResultsRow("normal", null, null, expandedReferenceSetName, esm); }
       }
     }
       
@@ -637,59 +931,24 @@ public class EvaluateTagging extends EvaluateTaggingBase
   }
   
   
-  ////////////////////////////////////////////
-  /// CONTROLLER AWARE PR methods
-  ////////////////////////////////////////////
-  
   @Override
-  public void controllerExecutionStarted(Controller cntrlr) throws ExecutionException {
-    needInitialization = true;
-  }
-
-  @Override
-  public void controllerExecutionFinished(Controller cntrlr) throws ExecutionException {
-    // only do anything at all if we had actually been executed once. The callback gets also
-    // invoked if the PR was disabled, so we have to check ...
-    // needInitialization is set in the started callback and reset in execute, so if it is still
-    // on, we never were in execute.
-    if(!needInitialization) {
-      finishRunning();
-      needInitialization = true;
+  protected void addResultsFrom(EvaluateTaggingBase other) {
+    EvaluateTagging copy = (EvaluateTagging)other;
+    for(Map.Entry<String,EvalStatsTagging> entry : allDocumentsStats.entrySet()) {
+      entry.getValue().add(copy.allDocumentsStats.get(entry.getKey()));
     }
-  }
-
-  @Override
-  public void controllerExecutionAborted(Controller cntrlr, Throwable thrwbl) throws ExecutionException {
-    if(!needInitialization) {
-      System.err.println("Processing was aborted: "+thrwbl.getMessage());
-      thrwbl.printStackTrace(System.err);
-      System.err.println("Here are the summary stats for what was processed: ");
-      finishRunning();
-      needInitialization = true;
+    if(allDocumentsReferenceStats != null) {
+      for(Map.Entry<String,EvalStatsTagging> entry : allDocumentsReferenceStats.entrySet()) {
+        entry.getValue().add(copy.allDocumentsReferenceStats.get(entry.getKey()));
+      }
+      correctnessTableStrict.add(copy.correctnessTableStrict);
+      correctnessTableLenient.add(copy.correctnessTableLenient);
+    }
+    if(evalStatsByThreshold != null) {
+      for(Map.Entry<String,ByThEvalStatsTagging> entry : evalStatsByThreshold.entrySet()) {
+        entry.getValue().add(copy.evalStatsByThreshold.get(entry.getKey()));
+      }
     }
   }
-
-  // TODO: just deactivate this for now, we need to properly handle this later
-  // Right now, we need the PR not to complain!
-  /*
-  @Override
-  public Resource duplicate(Factory.DuplicationContext dc) throws ResourceInstantiationException {
-    // Instead of throwing an exception, just log a warning. This allows to still use 
-    // pipelines where the Evalation PR is included to get duplicated, and all is fine as 
-    // long the PR is not RUN in that situation!
-    System.err.println("WARNING: duplication does not work yet for the Evaluation PRs, Evaluation should not be run!");
-    // throw new UnsupportedOperationException("At the moment, this PR may not be duplicated and must be run single-threaded"); 
-    
-    // TODO: duplicate such that all duplicates get a flag set which indicates that they are 
-    // duplicates, and only the original has the flag not set.
-    // Also, use a shared object to give all PRs access to everyone elses's statistics objects.
-    // Also, use a shared obejcts to give all PRs access to a singleton object for writing to
-    // the output files.
-    // Finally, implement the controllerExecutionFinished() method such that only the original
-    // will do the actual summarization: it will access all stats objects from all other PRs and
-    // summarize them and 
-    
-  }
-  */
   
 }
@@ -23,7 +23,6 @@ import gate.plugin.evaluation.api.ContainmentType;
 import gate.plugin.evaluation.api.NilTreatment;
 import gate.Annotation;
 import gate.AnnotationSet;
-import gate.Controller;
 import gate.FeatureMap;
 import gate.Resource;
 import gate.Utils;
@@ -74,7 +73,6 @@ import org.apache.log4j.Logger;
         comment = "Calculate P/R/F evalutation measures for annotations with candidate lists")
 public class EvaluateTagging4Lists extends EvaluateTaggingBase 
   implements ControllerAwarePR
-  //, CustomDuplication 
 {
   public final static long serialVersionUID = 1L;
   
@@ -217,6 +215,8 @@ public class EvaluateTagging4Lists extends EvaluateTaggingBase
   
   protected static final String initialFeaturePrefixResponse = "evaluateTagging4Lists.response.";
   protected static final String initialFeaturePrefixReference = "evaluateTagging4Lists.reference.";
+  // The names of the document features for the response set, created once when initializing
+  protected String[] responseFeatureNames;
   
   protected static final Logger logger = Logger.getLogger(EvaluateTagging4Lists.class);
   
@@ -244,16 +244,14 @@ public class EvaluateTagging4Lists extends EvaluateTaggingBase
   @Override
   public void execute() throws ExecutionException {
     //System.out.println("DEBUG: running tagging4lists execute");
-    if(needInitialization) {
-      needInitialization = false;
-      initializeForRunning();
-    }
+    initializeIfNeeded();
     if(isInterrupted()) {
       throw new ExecutionException("PR was interrupted!"); 
     }
     
     //System.out.println("DOC: "+document);
         
+    initializeContainmentFilter();
     // This should iterate exactly once because we created the annotationTypeSpecs from 
     // single key and list annotation types this PR uses.
     for(AnnotationTypeSpec typeSpec : annotationTypeSpecs.getSpecs()) {
@@ -271,28 +269,19 @@ public class EvaluateTagging4Lists extends EvaluateTaggingBase
           AnnotationSet keySet, AnnotationSet responseSet, AnnotationSet referenceSet, AnnotationTypeSpec typeSpec) {
     String type = typeSpec.getKeyType();
     //System.out.println("DEBUG: evaluating for type "+typeSpec+" keysize="+keySet.size()+" resSize="+responseSet.size());
-    if(!expandedContainingNameAndType.isEmpty()) {
-      String[] setAndType = expandedContainingNameAndType.split(":",2);
-      if(setAndType.length != 2 || setAndType[0].isEmpty() || setAndType[1].isEmpty()) {
-        throw new GateRuntimeException("Runtime Parameter containingASAndName not of the form setname:typename");
-      }      
-      String containingSetName = setAndType[0];
-      String containingType = setAndType[1];
-      AnnotationSet containingSet = document.getAnnotations(setAndType[0]).get(setAndType[1]);
+    if(containmentFilter != null) {
       // now filter the keys and responses. If the containing set/type is the same as the key set/type,
       // do not filter the keys.
-      ContainmentType ct = containmentType;
-      if(ct == null) ct = ContainmentType.OVERLAPPING;
-      responseSet = selectOverlappingBy(responseSet,containingSet,ct);
+      responseSet = selectContained(responseSet);
       if(containingSetName.equals(expandedKeySetName) && containingType.equals(type)) {
         // no need to do anything for the key set
       } else {
-        keySet = selectOverlappingBy(keySet,containingSet,ct);
+        keySet = selectContained(keySet);
       }
       // if we have a reference set, we need to apply the same filtering to that one too
       // TODO: we actually never use the refereceSet later, so commented out for now
       //if(referenceSet != null) {
-      //  referenceSet = selectOverlappingBy(referenceSet,containingSet,ct);
+      //  referenceSet = selectContained(referenceSet);
       //}
     } // have a containing set and type
     
@@ -333,6 +322,9 @@ public class EvaluateTagging4Lists extends EvaluateTaggingBase
             annotationTypeSpecs4Best  // for this eval, we need to compare key with element type, not list type!
     );
     EvalStatsTagging es = docDiffer.getEvalStatsTagging();
+    if(getAddTargetIdFeatures()) {
+      docDiffer.addTargetIdFeatures();
+    }
     //System.out.println("DEBUG: after differ for normal: featureSet="+featureSet+" typeSpecs="+annotationTypeSpecs+" featComp="+featureComparison);
     //System.out.println("DEBUG: after differ for normal: keys="+keySet.size()+" resp="+responseSet.size()+"\nEvalStats="+es);
 
@@ -478,26 +470,7 @@ public class EvaluateTagging4Lists extends EvaluateTaggingBase
     // Store the counts and measures as document feature values
     FeatureMap docFm = document.getFeatures();
     if (getAddDocumentFeatures()) {
-      String featurePrefixResponseT = featurePrefixResponse;
-      featurePrefixResponseT += type;
-      docFm.put(featurePrefixResponseT + "FMeasureStrict", es.getFMeasureStrict(1.0));
-      docFm.put(featurePrefixResponseT + "FMeasureLenient", es.getFMeasureLenient(1.0));
-      docFm.put(featurePrefixResponseT + "PrecisionStrict", es.getPrecisionStrict());
-      docFm.put(featurePrefixResponseT + "PrecisionLenient", es.getPrecisionLenient());
-      docFm.put(featurePrefixResponseT + "RecallStrict", es.getRecallStrict());
-      docFm.put(featurePrefixResponseT + "RecallLenient", es.getRecallLenient());
-      docFm.put(featurePrefixResponseT + "SingleCorrectAccuracyStrict", es.getSingleCorrectAccuracyStrict());
-      docFm.put(featurePrefixResponseT + "SingleCorrectAccuracyLenient", es.getSingleCorrectAccuracyLenient());
-      docFm.put(featurePrefixResponseT + "CorrectStrict", es.getCorrectStrict());
-      docFm.put(featurePrefixResponseT + "CorrectPartial", es.getCorrectPartial());
-      docFm.put(featurePrefixResponseT + "IncorrectStrict", es.getIncorrectStrict());
-      docFm.put(featurePrefixResponseT + "IncorrectPartial", es.getIncorrectPartial());
-      docFm.put(featurePrefixResponseT + "TrueMissingStrict", es.getTrueMissingStrict());
-      docFm.put(featurePrefixResponseT + "TrueMissingLenient", es.getTrueMissingLenient());
-      docFm.put(featurePrefixResponseT + "TrueSpuriousStrict", es.getTrueSpuriousStrict());
-      docFm.put(featurePrefixResponseT + "TrueSpuriousLenient", es.getTrueSpuriousLenient());
-      docFm.put(featurePrefixResponseT + "Targets", es.getTargets());
-      docFm.put(featurePrefixResponseT + "Responses", es.getResponses());
+      putDocumentFeatures(docFm, responseFeatureNames, es);
     }
     
     //logger.debug("DEBUG: type is "+type);
@@ -514,8 +487,8 @@ public class EvaluateTagging4Lists extends EvaluateTaggingBase
     
     if(mainTsvPrintStream != null) {
       // a line for the response stats for that document      
-      mainTsvPrintStream.println(outputTsvLine("list-best", document.getName(), typeSpec, 
-              expandedResponseSetName, es));
+      outputResultsRow("list-best", document.getName(), typeSpec, 
+              expandedResponseSetName, es);
     }
     
     // Now handle the list accuracy and per-list P/R statistics. In the previous code, we wanted
@@ -731,8 +704,8 @@ public class EvaluateTagging4Lists extends EvaluateTaggingBase
     //System.out.println("<----------------- tmpEs");
     // per document we only output the stats for rank 0
     if(mainTsvPrintStream!=null) {
-      mainTsvPrintStream.println(outputTsvLine("list-disamb-best", document.getName(), typeSpec, 
-              responseSet.getName(), tmpEs.get(0)));
+      outputResultsRow("list-disamb-best", document.getName(), typeSpec, 
+              responseSet.getName(), tmpEs.get(0));
     }
     
     
@@ -909,6 +882,7 @@ public class EvaluateTagging4Lists extends EvaluateTaggingBase
       allDocumentsStats = new EvalStatsTagging4Score(Double.NaN);      
       if(evaluate4AllScores) {
         evalStatsByThreshold = new ByThEvalStatsTagging(getWhichThresholds().getThresholdsToUse());
+        evalStatsByThreshold.setMaxThresholds(getMaxThresholds());
       } else {
         // same trick as for ranks above
         evalStatsByThreshold = new ByThEvalStatsTagging(ThresholdsToUse.USE_ALL);
@@ -963,6 +937,8 @@ public class EvaluateTagging4Lists extends EvaluateTaggingBase
     
     featurePrefixResponse = initialFeaturePrefixResponse + getExpandedEvaluationId() + "." + getResponseASName() + "." ;
     featurePrefixReference = initialFeaturePrefixReference + getExpandedEvaluationId() + "." + getReferenceASName() + ".";
+    responseFeatureNames = documentFeatureNames(
+            featurePrefixResponse + annotationTypeSpecs.getSpecs().get(0).getKeyType());
     
     if(!expandedOutputASPrefix.isEmpty()) {
       outputASListMaxName = expandedOutputASPrefix+"_ResListMax";
@@ -973,12 +949,27 @@ public class EvaluateTagging4Lists extends EvaluateTaggingBase
     }
     
     byRank4ListAcc = new ByRankEvalStatsTagging(ThresholdsOrRanksToUse.USE_RANKS_ALL);
+    nrListAnns = 0;
+    nrListAnnsWithKeys = 0;
+    nrListAnnsWithoutKeys = 0;
+    nrListAnnsNoMatch = 0;
+    nrListAnnsMatchLenient = 0;
+    nrListAnnsMatchStrict = 0;
+    nrListAnnsMatchPartial = 0;
+    nrListAnnsMatchStrictAt0 = 0;
+    nrListAnnsMatchPartialAt0 = 0;
     
-    matchesTsvPrintStream = getOutputStream("matches");
-    outputTsvLine4MatchesHeader(matchesTsvPrintStream);
-    
-    mainTsvPrintStream = getOutputStream(null);    
-    if(mainTsvPrintStream != null) {
+    if(firstCopy != null) {
+      matchesTsvPrintStream = ((EvaluateTagging4Lists)firstCopy).matchesTsvPrintStream;
+      mainTsvPrintStream = firstCopy.mainTsvPrintStream;
+      binaryResultsWriter = firstCopy.binaryResultsWriter;
+    } else {
+      matchesTsvPrintStream = getOutputStream("matches");
+      outputTsvLine4MatchesHeader(matchesTsvPrintStream);
+      mainTsvPrintStream = getOutputStream(null);    
+      binaryResultsWriter = getBinaryResultsWriter();
+    }
+    if(mainTsvPrintStream != null && firstCopy == null) {
       mainTsvPrintStream.print("evaluationId"); mainTsvPrintStream.print("\t");
       mainTsvPrintStream.print("evaluationType"); mainTsvPrintStream.print("\t");
       mainTsvPrintStream.print("docName"); mainTsvPrintStream.print("\t");
@@ -992,10 +983,12 @@ public class EvaluateTagging4Lists extends EvaluateTaggingBase
   
   
   
+  @Override
   public void finishRunning() {
     outputDefaultResults();
-    if(mainTsvPrintStream != null) {
-      mainTsvPrintStream.close();    
+    closeResultsOutput();
+    if(matchesTsvPrintStream != null) {
+      matchesTsvPrintStream.close();
     }
     /** not used yet
     if(scoreDistPrintStream != null) {
@@ -1022,33 +1015,35 @@ public class EvaluateTagging4Lists extends EvaluateTaggingBase
     AnnotationTypeSpec typeSpecList   = annotationTypeSpecs.getSpecs().get(0);
     outputEvalStatsForType(System.out, allDocumentsStats, typeSpecNormal.toString(), expandedResponseSetName);
     if(mainTsvPrintStream != null) { 
-      mainTsvPrintStream.println(
-              outputTsvLine("list-best", null, typeSpecNormal, getResponseASName(), allDocumentsStats)); 
+      outputResultsRow("list-best", null, typeSpecNormal, getResponseASName(), allDocumentsStats); 
     }
     if(evalStatsByThreshold != null) {
       for(double th : evalStatsByThreshold.getByThresholdEvalStats().navigableKeySet()) {
-        outputEvalStatsForType(System.out, evalStatsByThreshold.get(th), typeSpecList.toString(), expandedResponseSetName);
+        if(isConsoleFull()) {
+          outputEvalStatsForType(System.out, evalStatsByThreshold.get(th), typeSpecList.toString(), expandedResponseSetName);
+        }
         if(mainTsvPrintStream != null) { 
-          mainTsvPrintStream.println(
-                  outputTsvLine("list-score", null, typeSpecList, expandedResponseSetName, evalStatsByThreshold.get(th))); }
+          outputResultsRow("list-score", null, typeSpecList, expandedResponseSetName, evalStatsByThreshold.get(th)); }
       }
+      outputPRCurveMeasuresForType(System.out, evalStatsByThreshold.getPRCurveMeasures(), typeSpecList.toString(), expandedResponseSetName, expandedEvaluationId, false);
     } else {
       //System.out.println("Keyset for list-rank: "+evalStatsByRank.keySet());
       for(int rank : evalStatsByRank.getByRankEvalStats().navigableKeySet()) {
-        outputEvalStatsForType(System.out, evalStatsByRank.get(rank), typeSpecList.toString(), expandedResponseSetName);
+        if(isConsoleFull()) {
+          outputEvalStatsForType(System.out, evalStatsByRank.get(rank), typeSpecList.toString(), expandedResponseSetName);
+        }
         if(mainTsvPrintStream != null) { 
-          mainTsvPrintStream.println(
-                  outputTsvLine("list-rank", null, typeSpecList, expandedResponseSetName, evalStatsByRank.get(rank))); 
+          outputResultsRow("list-rank", null, typeSpecList, expandedResponseSetName, evalStatsByRank.get(rank)); 
         }
       }      
+      outputPRCurveMeasuresForType(System.out, evalStatsByRank.getPRCurveMeasures(), typeSpecList.toString(), expandedResponseSetName, expandedEvaluationId, true);
     }
       for(int rank : byRank4ListAcc.getByRankEvalStats().navigableKeySet()) {
         // TODO: need to first add eval type to that output before we can output this too
         // outputEvalStatsForType(System.out, evalStatsByRank.get(rank), typeSpecList.toString(), expandedResponseSetName);
         //System.err.println("Before writing list-disamb, stream is "+mainTsvPrintStream+" by rank object has thresholds: "+byRank4ListAcc.keySet());
         if(mainTsvPrintStream != null) { 
-          mainTsvPrintStream.println(
-                  outputTsvLine("list-disamb",null,typeSpecNormal, getResponseASName(), byRank4ListAcc.get(rank)));
+          outputResultsRow("list-disamb",null,typeSpecNormal, getResponseASName(), byRank4ListAcc.get(rank));
         }
       }      
 
@@ -1073,52 +1068,25 @@ public class EvaluateTagging4Lists extends EvaluateTaggingBase
   }
   
   
-  ////////////////////////////////////////////
-  /// CONTROLLER AWARE PR methods
-  ////////////////////////////////////////////
-  
   @Override
-  public void controllerExecutionStarted(Controller cntrlr) throws ExecutionException {
-    needInitialization = true;
-  }
-
-  @Override
-  public void controllerExecutionFinished(Controller cntrlr) throws ExecutionException {
-    // only do anything at all if we had actually been executed once. The callback gets also
-    // invoked if the PR was disabled, so we have to check ...
-    // needInitialization is set in the started callback and reset in execute, so if it is still
-    // on, we never were in execute.
-    if(!needInitialization) {
-      finishRunning();
-      needInitialization = true;
-    }
-  }
-
-  @Override
-  public void controllerExecutionAborted(Controller cntrlr, Throwable thrwbl) throws ExecutionException {
-    if(!needInitialization) {
-      System.err.println("Processing was aborted: "+thrwbl.getMessage());
-      thrwbl.printStackTrace(System.err);
-      System.err.println("Here are the summary stats for what was processed: ");
-      finishRunning();
-      needInitialization = true;
+  protected void addResultsFrom(EvaluateTaggingBase other) {
+    EvaluateTagging4Lists copy = (EvaluateTagging4Lists)other;
+    allDocumentsStats.add(copy.allDocumentsStats);
+    if(evalStatsByThreshold != null) {
+      evalStatsByThreshold.add(copy.evalStatsByThreshold);
+    } else {
+      evalStatsByRank.add(copy.evalStatsByRank);
     }
+    byRank4ListAcc.add(copy.byRank4ListAcc);
+    nrListAnns += copy.nrListAnns;
+    nrListAnnsWithKeys += copy.nrListAnnsWithKeys;
+    nrListAnnsWithoutKeys += copy.nrListAnnsWithoutKeys;
+    nrListAnnsNoMatch += copy.nrListAnnsNoMatch;
+    nrListAnnsMatchLenient += copy.nrListAnnsMatchLenient;
+    nrListAnnsMatchStrict += copy.nrListAnnsMatchStrict;
+    nrListAnnsMatchPartial += copy.nrListAnnsMatchPartial;
+    nrListAnnsMatchStrictAt0 += copy.nrListAnnsMatchStrictAt0;
+    nrListAnnsMatchPartialAt0 += copy.nrListAnnsMatchPartialAt0;
   }
-
-  /*
-  @Override
-  public Resource duplicate(Factory.DuplicationContext dc) throws ResourceInstantiationException {
-    throw new UnsupportedOperationException("At the moment, this PR may not be duplicated and must be run single-threaded"); 
-    // TODO: duplicate such that all duplicates get a flag set which indicates that they are 
-    // duplicates, and only the original has the flag not set.
-    // Also, use a shared object to give all PRs access to everyone elses's statistics objects.
-    // Also, use a shared obejcts to give all PRs access to a singleton object for writing to
-    // the output files.
-    // Finally, implement the controllerExecutionFinished() method such that only the original
-    // will do the actual summarization: it will access all stats objects from all other PRs and
-    // summarize them and 
-  }
-  */
-  
   
 }
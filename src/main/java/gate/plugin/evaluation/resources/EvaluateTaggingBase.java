@@ -22,13 +22,23 @@ package gate.plugin.evaluation.resources;
 import gate.plugin.evaluation.api.AnnotationTypeSpecs;
 import gate.plugin.evaluation.api.AnnotationTypeSpec;
 import gate.plugin.evaluation.api.ContainmentType;
+import gate.plugin.evaluation.api.ColumnarResultsWriter;
+import gate.plugin.evaluation.api.ContainmentFilter;
+import gate.plugin.evaluation.api.ConsoleVerbosity;
+import gate.plugin.evaluation.api.DocumentFeaturesFormat;
 import gate.plugin.evaluation.api.NilTreatment;
-import gate.Annotation;
 import gate.AnnotationSet;
+import gate.Controller;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.Resource;
 import gate.Utils;
 import gate.annotation.ImmutableAnnotationSetImpl;
 import gate.creole.AbstractLanguageAnalyser;
 import gate.creole.ControllerAwarePR;
+import gate.creole.CustomDuplication;
+import gate.creole.ExecutionException;
+import gate.creole.ResourceInstantiationException;
 import gate.creole.metadata.CreoleParameter;
 import gate.creole.metadata.Optional;
 import gate.creole.metadata.RunTime;
@@ -36,18 +46,23 @@ import gate.plugin.evaluation.api.ContingencyTableInteger;
 import gate.plugin.evaluation.api.EvalStatsTagging;
 import gate.plugin.evaluation.api.EvalStatsTagging4Rank;
 import gate.plugin.evaluation.api.EvalStatsTagging4Score;
+import gate.plugin.evaluation.api.EvalStatsTaggingMacro;
 import gate.plugin.evaluation.api.FeatureComparison;
+import gate.plugin.evaluation.api.PRCurveMeasures;
 import gate.util.Files;
 import gate.util.GateRuntimeException;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.zip.GZIPOutputStream;
 import org.apache.log4j.Logger;
 
 
@@ -55,10 +70,15 @@ import org.apache.log4j.Logger;
  * Common base class for the Evaluation PRs for Tagging. 
  * This processes the parameters that are common to both PRs and also does some basic
  * processing that is common.
+ * <p>
+ * The PRs can be duplicated for running in several threads. Each copy collects the statistics 
+ * for the documents it processes and all copies write to the same output files. When the 
+ * last copy finishes, the statistics of all copies get merged and only one report is 
+ * output for all documents.
  * @author Johann Petrak
  */
 public abstract class EvaluateTaggingBase extends AbstractLanguageAnalyser 
-  implements ControllerAwarePR {
+  implements ControllerAwarePR, CustomDuplication {
 
   public final static long serialVersionUID = 1L;
 
@@ -197,6 +217,56 @@ public abstract class EvaluateTaggingBase extends AbstractLanguageAnalyser
   public void setAddDocumentFeatures(Boolean value) { addDocumentFeatures = value; }
   public Boolean getAddDocumentFeatures() { return addDocumentFeatures; }
   
+  protected DocumentFeaturesFormat documentFeaturesFormat;
+  @CreoleParameter(comment="How the per document results are stored as document features: all MEASURES as separate features, or only the COUNTS as one list of integers per type and set",defaultValue="MEASURES")
+  @RunTime
+  @Optional  
+  public void setDocumentFeaturesFormat(DocumentFeaturesFormat value) { documentFeaturesFormat = value; }
+  public DocumentFeaturesFormat getDocumentFeaturesFormat() { return documentFeaturesFormat; }
+  
+  protected boolean addTargetIdFeatures = false;
+  @CreoleParameter(comment="If the id of the matched target should be added as feature gate.plugin.evaluation.targetId to the responses and missed targets",defaultValue="false")
+  @RunTime
+  @Optional  
+  public void setAddTargetIdFeatures(Boolean value) { addTargetIdFeatures = value == null ? false : value; }
+  public Boolean getAddTargetIdFeatures() { return addTargetIdFeatures; }
+  
+  protected boolean compressOutput = false;
+  @CreoleParameter(comment="If the output files should be compressed with gzip, this adds the extension .gz to the file names",defaultValue="false")
+  @RunTime
+  @Optional  
+  public void setCompressOutput(Boolean value) { compressOutput = value == null ? false : value; }
+  public Boolean getCompressOutput() { return compressOutput; }
+  
+  protected boolean binaryOutput = false;
+  @CreoleParameter(comment="If the rows of the main TSV file should also be written to a binary columnar file with extension .evb, which is much faster to read with ColumnarResultsReader. Not supported for the max recall evaluation.",defaultValue="false")
+  @RunTime
+  @Optional  
+  public void setBinaryOutput(Boolean value) { binaryOutput = value == null ? false : value; }
+  public Boolean getBinaryOutput() { return binaryOutput; }
+  
+  protected ConsoleVerbosity consoleVerbosity;
+  @CreoleParameter(comment="How much of the results to show on standard output: FULL or only a SUMMARY without the statistics for each threshold or rank",defaultValue="FULL")
+  @RunTime
+  @Optional  
+  public void setConsoleVerbosity(ConsoleVerbosity value) { consoleVerbosity = value; }
+  public ConsoleVerbosity getConsoleVerbosity() { return consoleVerbosity; }
+  
+  /**
+   * Check if the statistics for each threshold or rank should be shown on standard output.
+   * @return true unless the console verbosity is SUMMARY
+   */
+  protected boolean isConsoleFull() {
+    return consoleVerbosity != ConsoleVerbosity.SUMMARY;
+  }
+  
+  protected int maxThresholds = 0;
+  @CreoleParameter(comment="Maximum number of score thresholds to keep for the P/R curve over all documents, 0 means no limit",defaultValue="0")
+  @RunTime
+  @Optional  
+  public void setMaxThresholds(Integer value) { maxThresholds = value == null ? 0 : value; }
+  public Integer getMaxThresholds() { return maxThresholds; }
+  
   
   protected AnnotationTypeSpecs annotationTypeSpecs;
   
@@ -204,6 +274,8 @@ public abstract class EvaluateTaggingBase extends AbstractLanguageAnalyser
   protected String expandedResponseSetName;
   protected String expandedReferenceSetName;
   protected String expandedContainingNameAndType;
+  protected String containingSetName = "";
+  protected String containingType = "";
   protected String expandedScoreFeatureName;
   protected String expandedOutputASPrefix;
   protected String outputASResName = "";
@@ -227,16 +299,67 @@ public abstract class EvaluateTaggingBase extends AbstractLanguageAnalyser
   
   
   protected PrintStream mainTsvPrintStream;
+  protected ColumnarResultsWriter binaryResultsWriter;
   
   /** 
    * Create and open an print stream to the file where the Tsv rows should get written to.If no output directory was specified, this returns null.
    * Otherwise it returns a stream that writes to a file in the output directory that has
  the name "EvaluateTagging-ID.tsv" where "ID" is the value of the evaluationId parameter.
  If the evaluationId parameter is not set, the file name is "EvaluateTagging.tsv".
+   * If compressOutput is set, the file gets compressed with gzip and ".gz" is added to the name.
+   * The file gets written in a background thread, so the stream must get closed to make sure
+   * all rows are written.
    * @param suffix suffix
    * @return stream
    */
   protected PrintStream getOutputStream(String suffix) {
+    File outFile = getOutputFile(suffix, compressOutput ? ".tsv.gz" : ".tsv");
+    if(outFile == null) {
+      return null;
+    }
+    OutputStream os = null;
+    try {
+      os = new FileOutputStream(outFile);
+      if(compressOutput) {
+        os = new GZIPOutputStream(os, 64*1024);
+      }
+    } catch (IOException ex) {
+      throw new GateRuntimeException("Could not open output file "+outFile,ex);
+    }    
+    return new PrintStream(new BackgroundOutputStream(os, "Evaluation output "+outFile.getName()));
+  }
+  
+  /**
+   * Create and open a writer for the binary columnar results file, if binaryOutput is set and
+   * an output directory was specified, otherwise return null. The file has the same name as 
+   * the main TSV file, but with extension ".evb" instead of ".tsv".
+   * @return writer or null
+   */
+  protected ColumnarResultsWriter getBinaryResultsWriter() {
+    if(!binaryOutput) {
+      return null;
+    }
+    File outFile = getOutputFile(null, ".evb");
+    if(outFile == null) {
+      return null;
+    }
+    try {
+      return new ColumnarResultsWriter(
+              new BackgroundOutputStream(new FileOutputStream(outFile), "Evaluation output "+outFile.getName()),
+              expandedEvaluationId);
+    } catch (IOException ex) {
+      throw new GateRuntimeException("Could not open output file "+outFile,ex);
+    }    
+  }
+  
+  /**
+   * Get the output file with the given suffix and extension, or null if no output directory 
+   * was specified.
+   * @param suffix suffix added to the name after a dash, if not null or empty
+   * @param extension extension
+   * @return file
+   */
+  protected File getOutputFile(String suffix, String extension) {
     if(expandedOutputDirectoryUrl==null) {
       return null;
     }
@@ -252,19 +375,35 @@ public abstract class EvaluateTaggingBase extends AbstractLanguageAnalyser
     if(suffix != null && !suffix.isEmpty()) {
       fname += "-"+suffix;
     }
-    fname += ".tsv";
-    File outFile = new File(dir,fname);
-    FileOutputStream os = null;
-    try {
-      os = new FileOutputStream(outFile);
-    } catch (FileNotFoundException ex) {
-      throw new GateRuntimeException("Could not open output file "+outFile,ex);
-    }    
-    return new PrintStream(os);
+    fname += extension;
+    return new File(dir,fname);
   }
+
   
   protected boolean needInitialization = true;
   
+  // The state shared with all duplicates of this PR
+  protected EvaluationAggregator aggregator = new EvaluationAggregator();
+  
+  // The copy of this PR that got initialized first in the current run, or null if this is
+  // the first copy. All other copies use the output streams opened by the first copy.
+  protected EvaluateTaggingBase firstCopy = null;
+  
+  /**
+   * Initialize this copy of the PR for running, if necessary. This must be called at the
+   * start of execute. The copies of a duplicated PR get initialized one after the other, so
+   * the first copy can open the output streams before the other copies use them.
+   */
+  protected void initializeIfNeeded() {
+    if(needInitialization) {
+      needInitialization = false;
+      synchronized(aggregator) {
+        firstCopy = aggregator.initialized(this);
+        initializeForRunning();
+      }
+    }
+  }
+  
   
   // This needs to run as part of the first execute, since at the moment, the parametrization
   // does not work correctly with the controller callbacks. 
@@ -276,6 +415,16 @@ public abstract class EvaluateTaggingBase extends AbstractLanguageAnalyser
     expandedResponseSetName = getStringOrElse(getExpandedResponseASName(),"");
     expandedReferenceSetName = getStringOrElse(getExpandedReferenceASName(),"");
     expandedContainingNameAndType = getStringOrElse(getExpandedContainingASNameAndType(),"");
+    containingSetName = "";
+    containingType = "";
+    if(!expandedContainingNameAndType.isEmpty()) {
+      String[] setAndType = expandedContainingNameAndType.split(":",2);
+      if(setAndType.length != 2 || setAndType[0].isEmpty() || setAndType[1].isEmpty()) {
+        throw new GateRuntimeException("Runtime Parameter containingASAndName not of the form setname:typename");
+      }      
+      containingSetName = setAndType[0];
+      containingType = setAndType[1];
+    }
     expandedEvaluationId = getStringOrElse(getExpandedEvaluationId(),"");
     expandedNilValue = getStringOrElse(getExpandedNilValue(),"");
     expandedOutputASPrefix = getStringOrElse(getExpandedOutputASPrefix(),"");
@@ -340,33 +489,57 @@ public abstract class EvaluateTaggingBase extends AbstractLanguageAnalyser
     if(value == null) return elseValue; else return value;
   }
   
+  // The filter for the containing annotations of the current document, or null if there 
+  // is no containing set
+  protected transient ContainmentFilter containmentFilter;
+  
+  /**
+   * Prepare the filter for the containing annotations of the current document.
+   * This must be called once at the beginning of processing each document, the filter is
+   * then used for the key, response and reference annotations of all types, instead of fetching
+   * the containing annotations and sorting their offsets again for each of them.
+   */
+  protected void initializeContainmentFilter() {
+    if(containingSetName.isEmpty()) {
+      containmentFilter = null;
+    } else {
+      ContainmentType ct = containmentType;
+      if(ct == null) ct = ContainmentType.OVERLAPPING;
+      containmentFilter = new ContainmentFilter(
+              document.getAnnotations(containingSetName).get(containingType), ct);
+    }
+  }
+  
+  /**
+   * Restrict the annotations to those which are overlapping, contained in or coextensive with
+   * the containing annotations of the current document, as prepared by 
+   * initializeContainmentFilter.
+   * 
+   * @param set the annotations to restrict
+   * @return the set itself if there is no containing set, otherwise the selected annotations
+   */
+  protected AnnotationSet selectContained(AnnotationSet set) {
+    if(containmentFilter == null) return set;
+    return containmentFilter.select(set);
+  }
+  
   /**
    * Filter the annotations in the set toFilter and select only those which 
-   * overlap with any annotation in set by.
+   * overlap with, are contained in or are coextensive with any annotation in set by.
    * 
-   * @param toFilterSet todo
-   * @param bySet todo
-   * @param how todo
-   * @return  todo
+   * @param toFilterSet the annotations to filter
+   * @param bySet the containing annotations
+   * @param how how the selected annotations must relate to a containing annotation
+   * @return  the set toFilterSet if it is empty, otherwise an immutable set of the selected 
+   * annotations
    */
   protected static AnnotationSet selectOverlappingBy(AnnotationSet toFilterSet, AnnotationSet bySet, ContainmentType how) {
     if(toFilterSet.isEmpty()) return toFilterSet;
     if(bySet.isEmpty()) return new ImmutableAnnotationSetImpl(toFilterSet.getDocument(),null);
-    Set<Annotation> selected = new HashSet<Annotation>();
-    for(Annotation byAnn : bySet) {
-      AnnotationSet tmp = null;
-      if(how == ContainmentType.OVERLAPPING) {
-        tmp = gate.Utils.getOverlappingAnnotations(toFilterSet, byAnn);
-      } else if(how == ContainmentType.CONTAINING) {
-        tmp = gate.Utils.getContainedAnnotations(toFilterSet, byAnn);          
-      } else if(how == ContainmentType.COEXTENSIVE) {
-        tmp = gate.Utils.getCoextensiveAnnotations(toFilterSet, byAnn);        
-      } else {
-        throw new GateRuntimeException("Odd ContainmentType parameter value: "+how);
-      }
-      selected.addAll(tmp);
+    if(how == null) {
+      throw new GateRuntimeException("Odd ContainmentType parameter value: "+how);
     }
-    return new ImmutableAnnotationSetImpl(toFilterSet.getDocument(), selected);    
+    return new ContainmentFilter(bySet, how).select(toFilterSet);
   }
   
   /**
@@ -389,7 +562,7 @@ public abstract class EvaluateTaggingBase extends AbstractLanguageAnalyser
           String setName,
           EvalStatsTagging es
   ) {
-    StringBuilder sb = new StringBuilder();
+    StringBuilder sb = new StringBuilder(512);
     sb.append(expandedEvaluationId); sb.append("\t");
     sb.append(evalType); sb.append("\t");
     if(docName == null) {
@@ -410,11 +583,126 @@ public abstract class EvaluateTaggingBase extends AbstractLanguageAnalyser
       sb.append(typeSpec);
     }
     sb.append("\t");
-    sb.append(es.getTSVLine());
+    es.appendTSVLine(sb);
     return sb.toString();    
   }
   
   
+  // The names of the measures and counts stored as document features in the MEASURES format,
+  // after the feature name prefix for the set and type. 
+  protected static final String[] DOCUMENT_FEATURES = {
+    "FMeasureStrict", "FMeasureLenient", "PrecisionStrict", "PrecisionLenient", 
+    "RecallStrict", "RecallLenient", "SingleCorrectAccuracyStrict", "SingleCorrectAccuracyLenient",
+    "CorrectStrict", "CorrectPartial", "IncorrectStrict", "IncorrectPartial", 
+    "TrueMissingStrict", "TrueMissingLenient", "TrueSpuriousStrict", "TrueSpuriousLenient",
+    "Targets", "Responses"
+  };
+  
+  /**
+   * Create the full names of the document features for a feature name prefix. This should be
+   * done once when initializing, not for every document.
+   * @param prefix the prefix for the set and type
+   * @return the names for DOCUMENT_FEATURES, followed by the name of the feature for the 
+   * COUNTS format
+   */
+  protected static String[] documentFeatureNames(String prefix) {
+    String[] names = new String[DOCUMENT_FEATURES.length + 1];
+    for(int i = 0; i < DOCUMENT_FEATURES.length; i++) {
+      names[i] = prefix + DOCUMENT_FEATURES[i];
+    }
+    names[DOCUMENT_FEATURES.length] = prefix + "Counts";
+    return names;
+  }
+  
+  /**
+   * Store the statistics as document features, in the format given by documentFeaturesFormat.
+   * @param fm the document features
+   * @param names the feature names, as created by documentFeatureNames
+   * @param es the statistics
+   */
+  protected void putDocumentFeatures(FeatureMap fm, String[] names, EvalStatsTagging es) {
+    if(documentFeaturesFormat == DocumentFeaturesFormat.COUNTS) {
+      // A list and not an int array, so that the value can be saved as GATE XML and read back.
+      // The layout is described in DocumentFeaturesFormat.
+      int[] counts = es.getCounts();
+      List<Integer> value = new ArrayList<Integer>(counts.length + 1);
+      value.add(DocumentFeaturesFormat.COUNTS_VERSION);
+      for(int count : counts) {
+        value.add(count);
+      }
+      fm.put(names[DOCUMENT_FEATURES.length], value);
+      return;
+    }
+    fm.put(names[0], es.getFMeasureStrict(1.0));
+    fm.put(names[1], es.getFMeasureLenient(1.0));
+    fm.put(names[2], es.getPrecisionStrict());
+    fm.put(names[3], es.getPrecisionLenient());
+    fm.put(names[4], es.getRecallStrict());
+    fm.put(names[5], es.getRecallLenient());
+    fm.put(names[6], es.getSingleCorrectAccuracyStrict());
+    fm.put(names[7], es.getSingleCorrectAccuracyLenient());
+    fm.put(names[8], es.getCorrectStrict());
+    fm.put(names[9], es.getCorrectPartial());
+    fm.put(names[10], es.getIncorrectStrict());
+    fm.put(names[11], es.getIncorrectPartial());
+    fm.put(names[12], es.getTrueMissingStrict());
+    fm.put(names[13], es.getTrueMissingLenient());
+    fm.put(names[14], es.getTrueSpuriousStrict());
+    fm.put(names[15], es.getTrueSpuriousLenient());
+    fm.put(names[16], es.getTargets());
+    fm.put(names[17], es.getResponses());
+  }
+  
+  /**
+   * Output a row of the evaluation results to the main TSV file and to the binary results file,
+   * for those which are open. Rows for macro averaged statistics only go to the TSV file, since
+   * they cannot be represented in the binary file.
+   * The parameters are the same as for outputTsvLine.
+   * @param evalType evaluation type
+   * @param docName document name, null for the results over all documents
+   * @param typeSpec type specification, null for the results over all types
+   * @param setName annotation set name, if null or empty the response set name
+   * @param es the statistics
+   */
+  protected void outputResultsRow(
+          String evalType,
+          String docName,
+          AnnotationTypeSpec typeSpec,
+          String setName,
+          EvalStatsTagging es
+  ) {
+    if(mainTsvPrintStream != null) {
+      mainTsvPrintStream.println(outputTsvLine(evalType, docName, typeSpec, setName, es));
+    }
+    if(binaryResultsWriter != null && !(es instanceof EvalStatsTaggingMacro)) {
+      try {
+        binaryResultsWriter.add(evalType, 
+                docName == null ? "[doc:all:micro]" : docName,
+                setName == null || setName.isEmpty() ? expandedResponseSetName : setName,
+                typeSpec == null ? "[type:all:micro]" : typeSpec.toString(),
+                es);
+      } catch (IOException ex) {
+        throw new GateRuntimeException("Could not write to the binary results file",ex);
+      }
+    }
+  }
+  
+  /**
+   * Close the main TSV file and the binary results file, if they are open.
+   */
+  protected void closeResultsOutput() {
+    if(mainTsvPrintStream != null) {
+      mainTsvPrintStream.close();    
+    }
+    if(binaryResultsWriter != null) {
+      try {
+        binaryResultsWriter.close();
+      } catch (IOException ex) {
+        throw new GateRuntimeException("Could not write the binary results file",ex);
+      }
+    }
+  }
+  
   protected static double r4(double x) {
     return ((double) Math.round(x * 10000.0) / 10000.0);
   }
@@ -426,59 +714,187 @@ public abstract class EvaluateTaggingBase extends AbstractLanguageAnalyser
   }
     
   public static void outputEvalStatsForType(PrintStream out, EvalStatsTagging es, String type, String set, String expandedEvaluationId) {
-    
-    String ts = "none";
+    //System.out.println("DEBUG: Type of es is "+es.getClass());
+    // Collect all lines and write them at once, so the output does not get mixed up with 
+    // other output and does not need a synchronized write for each line. The prefix of the 
+    // lines is only built once, at the start of the builder, and copied from there.
+    StringBuilder sb = new StringBuilder(2048);
+    sb.append(expandedEvaluationId).append(" set=").append(set).append(", type=").append(type);
     if (es instanceof EvalStatsTagging4Score) {
+      sb.append(", th=");
       double th = ((EvalStatsTagging4Score) es).getThreshold();
-      if (!Double.isNaN(th)) {
-        if (Double.isInfinite(th)) {
-          if (th < 0) {
-            ts = "-Infinity";
-          } else {
-            ts = "+Infinity";
-          }
-        } else {
-          ts = "" + r4(th);
-        }
+      if (Double.isNaN(th)) {
+        sb.append("none");
+      } else {
+        appendThreshold(sb, th);
       }
-      ts = ", th=" + ts + ", ";
+      sb.append(", ");
     } else if (es instanceof EvalStatsTagging4Rank) {
-      int rank = ((EvalStatsTagging4Rank) es).getRank();
-      if (Integer.MAX_VALUE == rank) {
-        ts = "Max";
+      sb.append(", rank=").append(((EvalStatsTagging4Rank) es).getRank()).append(", ");
+    } else {
+      sb.append(", ");
+    }
+    int prefixLength = sb.length();
+    appendLine(sb, prefixLength, "Precision Strict: ", r4(es.getPrecisionStrict()));
+    appendLine(sb, prefixLength, "Recall Strict: ", r4(es.getRecallStrict()));
+    appendLine(sb, prefixLength, "F1.0 Strict: ", r4(es.getFMeasureStrict(1.0)));
+    appendLine(sb, prefixLength, "Accuracy Strict: ", r4(es.getSingleCorrectAccuracyStrict()));
+    appendLine(sb, prefixLength, "Precision Lenient: ", r4(es.getPrecisionLenient()));
+    appendLine(sb, prefixLength, "Recall Lenient: ", r4(es.getRecallLenient()));
+    appendLine(sb, prefixLength, "F1.0 Lenient: ", r4(es.getFMeasureLenient(1.0)));
+    appendLine(sb, prefixLength, "Accuracy Lenient: ", r4(es.getSingleCorrectAccuracyLenient()));
+    appendLine(sb, prefixLength, "Targets: ", es.getTargets());
+    appendLine(sb, prefixLength, "Responses: ", es.getResponses());
+    appendLine(sb, prefixLength, "Correct Strict: ", es.getCorrectStrict());
+    appendLine(sb, prefixLength, "Correct Partial: ", es.getCorrectPartial());
+    appendLine(sb, prefixLength, "Incorrect Strict: ", es.getIncorrectStrict());
+    appendLine(sb, prefixLength, "Incorrect Partial: ", es.getIncorrectPartial());
+    appendLine(sb, prefixLength, "Missing Strict: ", es.getMissingStrict());
+    appendLine(sb, prefixLength, "True Missing Strict: ", es.getTrueMissingStrict());
+    appendLine(sb, prefixLength, "Missing Lenient: ", es.getMissingLenient());
+    appendLine(sb, prefixLength, "True Missing Lenient: ", es.getTrueMissingLenient());
+    appendLine(sb, prefixLength, "Spurious Strict: ", es.getSpuriousStrict());
+    appendLine(sb, prefixLength, "True Spurious Strict: ", es.getTrueSpuriousStrict());
+    appendLine(sb, prefixLength, "Spurious Lenient: ", es.getSpuriousLenient());
+    appendLine(sb, prefixLength, "True Spurious Lenient: ", es.getTrueSpuriousLenient());
+    appendLine(sb, prefixLength, "Single Correct Strict: ", es.getSingleCorrectStrict());
+    appendLine(sb, prefixLength, "Single Correct Lenient: ", es.getSingleCorrectLenient());
+    out.print(sb);
+  }
+  
+  /**
+   * Start a new line in a builder whose first prefixLength characters are the prefix of all
+   * lines. The prefix is copied from the start of the builder, except for the first line, which
+   * already starts with it.
+   * @param sb builder
+   * @param prefixLength length of the prefix at the start of the builder
+   * @return the builder
+   */
+  protected static StringBuilder startLine(StringBuilder sb, int prefixLength) {
+    if(sb.length() > prefixLength) {
+      sb.append(sb, 0, prefixLength);
+    }
+    return sb;
+  }
+  
+  protected static void appendLine(StringBuilder sb, int prefixLength, String what, double value) {
+    startLine(sb, prefixLength).append(what).append(value).append(LINE_SEPARATOR);
+  }
+  
+  protected static void appendLine(StringBuilder sb, int prefixLength, String what, int value) {
+    startLine(sb, prefixLength).append(what).append(value).append(LINE_SEPARATOR);
+  }
+  
+  // Append a score threshold rounded to four digits, or the infinite threshold
+  private static void appendThreshold(StringBuilder sb, double th) {
+    if (Double.isInfinite(th)) {
+      sb.append(th < 0 ? "-Infinity" : "+Infinity");
+    } else {
+      sb.append(r4(th));
+    }
+  }
+  
+  protected static final String LINE_SEPARATOR = System.lineSeparator();
+  
+  // Output the measures calculated over the whole P/R curve, in the same format as the 
+  // EvalStats objects. If byRank is true, the curve is over ranks instead of score thresholds.
+  public static void outputPRCurveMeasuresForType(PrintStream out, PRCurveMeasures m, String type, String set, String expandedEvaluationId, boolean byRank) {
+    StringBuilder sb = new StringBuilder(1024);
+    sb.append(expandedEvaluationId).append(" set=").append(set).append(", type=").append(type).append(", ");
+    int prefixLength = sb.length();
+    String at = byRank ? " Rank: " : " Threshold: ";
+    appendLine(sb, prefixLength, "Highest F1.0 Strict: ", r4(m.getHighestFMeasureStrict()));
+    startLine(sb, prefixLength).append("Highest F1.0 Strict").append(at);
+    appendCurvePoint(sb, m.getHighestFMeasureStrictAt(), byRank);
+    appendLine(sb, prefixLength, "Area under PR Strict: ", r4(m.getAreaUnderPRStrict()));
+    appendLine(sb, prefixLength, "Average Precision Strict: ", r4(m.getAveragePrecisionStrict()));
+    appendLine(sb, prefixLength, "11-point Interpolated Average Precision Strict: ", r4(m.getInterpolatedAveragePrecisionStrict()));
+    appendLine(sb, prefixLength, "Highest F1.0 Lenient: ", r4(m.getHighestFMeasureLenient()));
+    startLine(sb, prefixLength).append("Highest F1.0 Lenient").append(at);
+    appendCurvePoint(sb, m.getHighestFMeasureLenientAt(), byRank);
+    appendLine(sb, prefixLength, "Area under PR Lenient: ", r4(m.getAreaUnderPRLenient()));
+    appendLine(sb, prefixLength, "Average Precision Lenient: ", r4(m.getAveragePrecisionLenient()));
+    appendLine(sb, prefixLength, "11-point Interpolated Average Precision Lenient: ", r4(m.getInterpolatedAveragePrecisionLenient()));
+    out.print(sb);
+  }
+  
+  // Append the rank or threshold where a measure of the curve is highest and end the line
+  private static void appendCurvePoint(StringBuilder sb, double at, boolean byRank) {
+    if (Double.isNaN(at)) {
+      sb.append("none");
+    } else if (byRank) {
+      if (at == Integer.MAX_VALUE) {
+        sb.append("Max");
       } else {
-        ts = "" + rank;
+        sb.append((int) at);
       }
-      ts = ", rank=" + rank + ", ";
-
     } else {
-      ts = ", ";
+      appendThreshold(sb, at);
     }
-    //System.out.println("DEBUG: Type of es is "+es.getClass());
-    out.println(expandedEvaluationId+" set="+set+", type="+type+ts+"Precision Strict: "+r4(es.getPrecisionStrict()));
-    out.println(expandedEvaluationId+" set="+set+", type="+type+ts+"Recall Strict: "+r4(es.getRecallStrict()));
-    out.println(expandedEvaluationId+" set="+set+", type="+type+ts+"F1.0 Strict: "+r4(es.getFMeasureStrict(1.0)));
-    out.println(expandedEvaluationId+" set="+set+", type="+type+ts+"Accuracy Strict: "+r4(es.getSingleCorrectAccuracyStrict()));
-    out.println(expandedEvaluationId+" set="+set+", type="+type+ts+"Precision Lenient: "+r4(es.getPrecisionLenient()));
-    out.println(expandedEvaluationId+" set="+set+", type="+type+ts+"Recall Lenient: "+r4(es.getRecallLenient()));
-    out.println(expandedEvaluationId+" set="+set+", type="+type+ts+"F1.0 Lenient: "+r4(es.getFMeasureLenient(1.0)));
-    out.println(expandedEvaluationId+" set="+set+", type="+type+ts+"Accuracy Lenient: "+r4(es.getSingleCorrectAccuracyLenient()));
-    out.println(expandedEvaluationId+" set="+set+", type="+type+ts+"Targets: "+es.getTargets());
-    out.println(expandedEvaluationId+" set="+set+", type="+type+ts+"Responses: "+es.getResponses());
-    out.println(expandedEvaluationId+" set="+set+", type="+type+ts+"Correct Strict: "+es.getCorrectStrict());
-    out.println(expandedEvaluationId+" set="+set+", type="+type+ts+"Correct Partial: "+es.getCorrectPartial());
-    out.println(expandedEvaluationId+" set="+set+", type="+type+ts+"Incorrect Strict: "+es.getIncorrectStrict());
-    out.println(expandedEvaluationId+" set="+set+", type="+type+ts+"Incorrect Partial: "+es.getIncorrectPartial());
-    out.println(expandedEvaluationId+" set="+set+", type="+type+ts+"Missing Strict: "+es.getMissingStrict());
-    out.println(expandedEvaluationId+" set="+set+", type="+type+ts+"True Missing Strict: "+es.getTrueMissingStrict());
-    out.println(expandedEvaluationId+" set="+set+", type="+type+ts+"Missing Lenient: "+es.getMissingLenient());
-    out.println(expandedEvaluationId+" set="+set+", type="+type+ts+"True Missing Lenient: "+es.getTrueMissingLenient());
-    out.println(expandedEvaluationId+" set="+set+", type="+type+ts+"Spurious Strict: "+es.getSpuriousStrict());
-    out.println(expandedEvaluationId+" set="+set+", type="+type+ts+"True Spurious Strict: "+es.getTrueSpuriousStrict());
-    out.println(expandedEvaluationId+" set="+set+", type="+type+ts+"Spurious Lenient: "+es.getSpuriousLenient());
-    out.println(expandedEvaluationId+" set="+set+", type="+type+ts+"True Spurious Lenient: "+es.getTrueSpuriousLenient());
-    out.println(expandedEvaluationId+" set="+set+", type="+type+ts+"Single Correct Strict: "+es.getSingleCorrectStrict());
-    out.println(expandedEvaluationId+" set="+set+", type="+type+ts+"Single Correct Lenient: "+es.getSingleCorrectLenient());
+    sb.append(LINE_SEPARATOR);
+  }
+  
+  ////////////////////////////////////////////
+  /// FINISHING AND DUPLICATION
+  ////////////////////////////////////////////
+  
+  /**
+   * Output the results over all processed documents and close the output streams.
+   */
+  public abstract void finishRunning();
+  
+  /**
+   * Add the statistics collected by another copy of this PR to the statistics of this copy.
+   * Both copies must have been initialized in the same run.
+   * @param other  another copy of this PR
+   */
+  protected abstract void addResultsFrom(EvaluateTaggingBase other);
+  
+  // If this is the last copy of the PR to finish, merge the results of all copies and output
+  // them.
+  protected void finishCopy() {
+    List<EvaluateTaggingBase> copies = aggregator.finished(this, !needInitialization);
+    needInitialization = true;
+    firstCopy = null;
+    if(copies != null && !copies.isEmpty()) {
+      EvaluateTaggingBase total = copies.get(0);
+      for(int i = 1; i < copies.size(); i++) {
+        total.addResultsFrom(copies.get(i));
+      }
+      total.finishRunning();
+    }
+  }
+  
+  @Override
+  public void controllerExecutionStarted(Controller cntrlr) throws ExecutionException {
+    needInitialization = true;
+    aggregator.started();
+  }
+
+  @Override
+  public void controllerExecutionFinished(Controller cntrlr) throws ExecutionException {
+    // The callback gets also invoked if the PR was disabled, so only copies which have been 
+    // executed contribute any results.
+    // needInitialization is set in the started callback and reset in execute, so if it is still
+    // on, we never were in execute.
+    finishCopy();
+  }
+
+  @Override
+  public void controllerExecutionAborted(Controller cntrlr, Throwable thrwbl) throws ExecutionException {
+    if(!needInitialization) {
+      System.err.println("Processing was aborted: "+thrwbl.getMessage());
+      thrwbl.printStackTrace(System.err);
+      System.err.println("Here are the summary stats for what was processed: ");
+    }
+    finishCopy();
+  }
+  
+  @Override
+  public Resource duplicate(Factory.DuplicationContext dc) throws ResourceInstantiationException {
+    EvaluateTaggingBase copy = (EvaluateTaggingBase)Factory.defaultDuplicate(this, dc);
+    copy.aggregator = aggregator;
+    return copy;
   }
   
   // TODO: make this work per type once we collect the tables per type!
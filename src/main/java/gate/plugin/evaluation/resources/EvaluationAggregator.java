@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2015-2018 University of Sheffield.
+ *
+ * This file is part of gateplugin-Evaluation
+ * (see https://github.com/GateNLP/gateplugin-Evaluation).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.evaluation.resources;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The state shared by an evaluation PR and all its duplicates.
+ * <p>
+ * Each copy of a duplicated evaluation PR runs in its own thread and only ever updates its
+ * own statistics, so no locking is needed while documents get processed. This object keeps
+ * track of which copies are running: the first copy which gets initialized opens the output
+ * files which are then also used by all other copies, and the last copy to finish gets all
+ * the copies which have processed documents, so their statistics can be merged for one single
+ * report over everything that was processed.
+ * <p>
+ * A run ends when all copies whose controller was started have finished, so if a copy
+ * gets started only after all other copies have already finished, this will produce a separate
+ * report.
+ *
+ * @author Johann Petrak
+ */
+class EvaluationAggregator {
+
+  // the number of copies where the controller has been started but not finished yet
+  private final AtomicInteger running = new AtomicInteger(0);
+  // the copies which have finished after processing at least one document
+  private final ConcurrentLinkedQueue<EvaluateTaggingBase> executed = new ConcurrentLinkedQueue<>();
+  // the copy which got initialized first in the current run
+  private EvaluateTaggingBase first = null;
+
+  /**
+   * Register that the controller of a copy has been started.
+   */
+  void started() {
+    running.incrementAndGet();
+  }
+
+  /**
+   * Register that a copy is getting initialized for running.
+   *
+   * @param copy the copy getting initialized
+   * @return the copy which was initialized first in this run or null if that is the given copy
+   */
+  synchronized EvaluateTaggingBase initialized(EvaluateTaggingBase copy) {
+    if(first == null) {
+      first = copy;
+      return null;
+    }
+    return first;
+  }
+
+  /**
+   * Register that the controller of a copy has finished.
+   *
+   * @param copy the copy which finished
+   * @param wasExecuted true if the copy has processed at least one document in this run
+   * @return null if there are still copies running, otherwise the list of all copies which
+   * have processed documents in this run, in the order in which they finished.
+   */
+  List<EvaluateTaggingBase> finished(EvaluateTaggingBase copy, boolean wasExecuted) {
+    if(wasExecuted) {
+      executed.add(copy);
+    }
+    int n;
+    do {
+      n = running.get();
+    } while(n > 0 && !running.compareAndSet(n, n-1));
+    if(n > 1) {
+      return null;
+    }
+    List<EvaluateTaggingBase> copies = new ArrayList<>();
+    EvaluateTaggingBase c;
+    while((c = executed.poll()) != null) {
+      copies.add(c);
+    }
+    synchronized(this) {
+      first = null;
+    }
+    return copies;
+  }
+
+}
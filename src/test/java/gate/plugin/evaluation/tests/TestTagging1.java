@@ -27,22 +27,47 @@ import gate.FeatureMap;
 import gate.Gate;
 import gate.creole.ResourceInstantiationException;
 import gate.plugin.evaluation.api.AnnotationDifferTagging;
+import gate.plugin.evaluation.api.AnnotationTypeSpec;
+import gate.plugin.evaluation.api.AnnotationTypeSpecs;
+import gate.plugin.evaluation.api.CrossTypeResidual;
 import gate.plugin.evaluation.api.EvalStatsTagging;
+import gate.plugin.evaluation.api.EvalStatsTagging4Score;
+import gate.plugin.evaluation.api.EvalStatsTagging4Rank;
+import gate.plugin.evaluation.api.FeatureComparison;
+import gate.plugin.evaluation.api.PRCurveMeasures;
+import gate.plugin.evaluation.api.MatchingStrategy;
 import org.junit.Test;
 import gate.test.GATEPluginTests;
 
 
 import gate.util.GateException;
+import gate.plugin.evaluation.resources.BackgroundOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
 import java.util.Set;
 import org.junit.Before;
 import static org.junit.Assert.*;
 import static gate.Utils.*;
+import gate.plugin.evaluation.api.ByRankEvalStatsTagging;
 import gate.plugin.evaluation.api.ByThEvalStatsTagging;
+import gate.plugin.evaluation.api.ColumnarResultsReader;
+import gate.plugin.evaluation.api.ColumnarResultsWriter;
+import gate.plugin.evaluation.api.ContainmentFilter;
+import gate.plugin.evaluation.api.ContainmentType;
+import gate.plugin.evaluation.api.ThresholdsOrRanksToUse;
 import gate.plugin.evaluation.api.ThresholdsToUse;
 import static gate.plugin.evaluation.tests.TestUtils.*;
 import java.io.OutputStreamWriter;
@@ -236,6 +261,22 @@ public class TestTagging1 extends GATEPluginTests {
     assertEquals("M_CS size",1,tmpSet.size());
     Annotation tmpAnn = getOnlyAnn(tmpSet);
     assertEquals("M_CS ann start",0,(long)start(tmpAnn));
+    // the final choices are one correct and one spurious pairing
+    List<AnnotationDifferTagging.Pairing> choices = ad.getFinalChoices();
+    assertEquals("final choices",2,choices.size());
+    assertEquals("first choice type",AnnotationDifferTagging.CORRECT_TYPE,choices.get(0).getPairingType());
+    assertEquals("second choice type",AnnotationDifferTagging.SPURIOUS_TYPE,choices.get(1).getPairingType());
+    assertNull("spurious choice key",choices.get(1).getKey());
+    // the pairing is recorded by the differ and on the indicator annotation, but only written
+    // to the response when requested
+    Annotation keyAnn = getOnlyAnn(t);
+    Annotation respAnn = choices.get(0).getResponse();
+    assertEquals("target ids size",1,ad.getTargetIds().size());
+    assertEquals("target id",keyAnn.getId(),ad.getTargetIds().get(respAnn.getId()));
+    assertEquals("M_CS target id",keyAnn.getId(),tmpAnn.getFeatures().get(AnnotationDifferTagging.TARGET_ID_FEATURE));
+    assertNull("response target id feature",respAnn.getFeatures().get(AnnotationDifferTagging.TARGET_ID_FEATURE));
+    ad.addTargetIdFeatures();
+    assertEquals("response target id feature",keyAnn.getId(),respAnn.getFeatures().get(AnnotationDifferTagging.TARGET_ID_FEATURE));
   }
 
   @Test
@@ -271,6 +312,504 @@ public class TestTagging1 extends GATEPluginTests {
     }
   }
 
+  // Check that only spans which really overlap get paired: spans which just touch 
+  // and spans which are far apart must not be considered.
+  @Test
+  public void testTagging1D05() throws ResourceInstantiationException {
+    Document doc = newD();
+    addA(doc,"Keys",0,10,"M","x");
+    addA(doc,"Keys",10,20,"M","y");
+    AnnotationSet t = addA(doc,"Keys",50,60,"M","x");
+    addA(doc,"Resp",0,10,"M","x");
+    addA(doc,"Resp",12,18,"M","y");
+    addA(doc,"Resp",60,70,"M","x");
+    AnnotationSet r = addA(doc,"Resp",500,510,"M","z");
+    AnnotationDifferTagging ad = new AnnotationDifferTagging(t, r, FS_ID, FC_EQU, null);
+    EvalStatsTagging es = ad.getEvalStatsTagging();
+    assertEquals("targets",3,es.getTargets());
+    assertEquals("responses",4,es.getResponses());
+    assertEquals("correct strict",1,es.getCorrectStrict());
+    assertEquals("correct partial",1,es.getCorrectPartial());
+    assertEquals("incorrect lenient",0,es.getIncorrectLenient());
+    assertEquals("true missing lenient",1,es.getTrueMissingLenient());
+    assertEquals("true spurious lenient",2,es.getTrueSpuriousLenient());
+    assertEquals("targets with strict responses",1,es.getTargetsWithStrictResponses());
+    assertEquals("targets with lenient responses",2,es.getTargetsWithLenientResponses());
+  }
+
+  // Greedy and optimal matching: the greedy matching pairs the first key with the second
+  // response and the third key with the first response, giving one correct partial and one
+  // incorrect strict, the optimal matching finds two correct partial pairings.
+  @Test
+  public void testTagging1D06() throws ResourceInstantiationException {
+    Document doc = newD();
+    addA(doc,"Keys",6,10,"M","y");
+    addA(doc,"Keys",4,7,"M","y");
+    AnnotationSet t = addA(doc,"Keys",6,9,"M","x");
+    addA(doc,"Resp",6,9,"M","y");
+    AnnotationSet r = addA(doc,"Resp",6,8,"M","y");
+    AnnotationDifferTagging ad = new AnnotationDifferTagging(t, r, FS_ID, FC_EQU, null, MatchingStrategy.GREEDY);
+    EvalStatsTagging es = ad.getEvalStatsTagging();
+    assertEquals("greedy correct partial",1,es.getCorrectPartial());
+    assertEquals("greedy incorrect strict",1,es.getIncorrectStrict());
+    ad = new AnnotationDifferTagging(t, r, FS_ID, FC_EQU, null, MatchingStrategy.OPTIMAL);
+    es = ad.getEvalStatsTagging();
+    assertEquals("optimal correct strict",0,es.getCorrectStrict());
+    assertEquals("optimal correct partial",2,es.getCorrectPartial());
+    assertEquals("optimal incorrect lenient",0,es.getIncorrectLenient());
+    assertEquals("optimal true missing lenient",1,es.getTrueMissingLenient());
+    assertEquals("optimal final choices",3,ad.getFinalChoices().size());
+  }
+
+  // The same as D06, but repeated often enough that the connected components of the
+  // pairings get processed in parallel, if there is more than one core.
+  @Test
+  public void testTagging1D07() throws ResourceInstantiationException {
+    int n = 3000;
+    Document doc = Factory.newDocument(new String(new char[10*n+10]).replace("\0", " "));
+    AnnotationSet t = doc.getAnnotations("Keys");
+    AnnotationSet r = doc.getAnnotations("Resp");
+    for(int b=0; b<n; b++) {
+      addA(doc,"Keys",10*b+6,10*b+10,"M","y");
+      addA(doc,"Keys",10*b+4,10*b+7,"M","y");
+      addA(doc,"Keys",10*b+6,10*b+9,"M","x");
+      addA(doc,"Resp",10*b+6,10*b+9,"M","y");
+      addA(doc,"Resp",10*b+6,10*b+8,"M","y");
+    }
+    AnnotationDifferTagging ad = new AnnotationDifferTagging(t, r, FS_ID, FC_EQU, null, MatchingStrategy.GREEDY);
+    EvalStatsTagging es = ad.getEvalStatsTagging();
+    assertEquals("greedy correct partial",n,es.getCorrectPartial());
+    assertEquals("greedy incorrect strict",n,es.getIncorrectStrict());
+    assertEquals("greedy true missing lenient",n,es.getTrueMissingLenient());
+    assertEquals("greedy targets with strict responses",n,es.getTargetsWithStrictResponses());
+    ad = new AnnotationDifferTagging(t, r, FS_ID, FC_EQU, null, MatchingStrategy.OPTIMAL);
+    es = ad.getEvalStatsTagging();
+    assertEquals("optimal correct partial",2*n,es.getCorrectPartial());
+    assertEquals("optimal incorrect lenient",0,es.getIncorrectLenient());
+    assertEquals("optimal true missing lenient",n,es.getTrueMissingLenient());
+    assertEquals("optimal final choices",3*n,ad.getFinalChoices().size());
+  }
+
+  // Optimal matching of one single large component: each key overlaps the response at the
+  // same position and the one before it, so all pairings are connected. The only matching
+  // which pairs all keys is the one which pairs each key with the response at its position.
+  @Test
+  public void testTagging1D08() throws ResourceInstantiationException {
+    int n = 20000;
+    Document doc = Factory.newDocument(new String(new char[10*n+10]).replace("\0", " "));
+    AnnotationSet t = doc.getAnnotations("Keys");
+    AnnotationSet r = doc.getAnnotations("Resp");
+    for(int b=0; b<n; b++) {
+      addA(doc,"Keys",10*b,10*b+10,"M","x");
+      addA(doc,"Resp",10*b+5,10*b+15,"M","x");
+    }
+    AnnotationDifferTagging ad = new AnnotationDifferTagging(t, r, FS_ID, FC_EQU, null, MatchingStrategy.OPTIMAL);
+    EvalStatsTagging es = ad.getEvalStatsTagging();
+    assertEquals("optimal correct partial",n,es.getCorrectPartial());
+    assertEquals("optimal true missing lenient",0,es.getTrueMissingLenient());
+    assertEquals("optimal true spurious lenient",0,es.getTrueSpuriousLenient());
+    assertEquals("optimal final choices",n,ad.getFinalChoices().size());
+  }
+
+  // Zero-length keys: a spurious response which starts at the key or which contains the key 
+  // overlaps it, so the correct response for the key is not a single correct one
+  @Test
+  public void testTagging1D09() throws ResourceInstantiationException {
+    Document doc = newD();
+    addA(doc,"Keys",20,20,"M","x");
+    addA(doc,"Keys",50,50,"M","x");
+    AnnotationSet keys = addA(doc,"Keys",80,80,"M","x");
+    addA(doc,"Resp",20,20,"M","x");
+    addA(doc,"Resp",20,30,"M","y");   // spurious, starts at the key
+    addA(doc,"Resp",50,50,"M","x");
+    addA(doc,"Resp",45,55,"M","y");   // spurious, contains the key
+    AnnotationSet resp = addA(doc,"Resp",80,80,"M","x");
+    EvalStatsTagging es = new AnnotationDifferTagging(keys, resp, FS_ID, FC_EQU, null).getEvalStatsTagging();
+    assertEquals("correct strict",3,es.getCorrectStrict());
+    assertEquals("true spurious strict",2,es.getTrueSpuriousStrict());
+    assertEquals("single correct strict",1,es.getSingleCorrectStrict());
+  }
+
+  // The greedy assignment must select the same pairings as before the pairings got bucketed
+  // by score: sorting all possible pairings by decreasing score and then by the offsets and 
+  // ids of the response and the key, and taking each pairing whose key and response are still
+  // free. The second document has enough pairings to get processed by component in parallel.
+  @Test
+  public void testTagging1D10() throws ResourceInstantiationException {
+    Random rnd = new Random(1);
+    for(int n : new int[] { 300, 3000 }) {
+      Document doc = Factory.newDocument(new String(new char[4*n]).replace("\0", " "));
+      AnnotationSet keys = doc.getAnnotations("Keys");
+      AnnotationSet resp = doc.getAnnotations("Resp");
+      addGridAnns(rnd, keys, n, 4*n);
+      addGridAnns(rnd, resp, n, 4*n);
+      AnnotationDifferTagging ad = new AnnotationDifferTagging(keys, resp, FS_ID, FC_EQU, null, MatchingStrategy.GREEDY);
+      assertEquals("greedy pairings for "+n+" annotations",
+              greedyPairingsAsBefore(keys, resp), pairingIds(ad));
+    }
+  }
+
+  // Add n annotations of type M with an id x or y and random offsets on a grid of three, so 
+  // that many of them overlap and some are coextensive
+  private static void addGridAnns(Random rnd, AnnotationSet set, int n, int maxEnd) {
+    for(int k=0; k<n; k++) {
+      int length = 3*(1+rnd.nextInt(5));
+      int from = 3*rnd.nextInt((maxEnd-length)/3);
+      addAnn(set, from, from+length, "M", featureMap("id", rnd.nextBoolean() ? "x" : "y"));
+    }
+  }
+
+  // The final pairings of the differ which have both a key and a response, as keyId/responseId
+  private static Set<String> pairingIds(AnnotationDifferTagging ad) {
+    Set<String> ret = new HashSet<String>();
+    for(AnnotationDifferTagging.Pairing p : ad.getFinalChoices()) {
+      if(p.getKey() != null && p.getResponse() != null) {
+        ret.add(p.getKey().getId()+"/"+p.getResponse().getId());
+      }
+    }
+    return ret;
+  }
+
+  // The pairings the greedy assignment selected before the pairings got bucketed by score, as 
+  // keyId/responseId. The values are those of the differ: 3 for correct, 2 for partially 
+  // correct, 1 for coextensive but not matching and 0 for overlapping but not matching. 
+  private static Set<String> greedyPairingsAsBefore(AnnotationSet keySet, AnnotationSet responseSet) {
+    final List<Annotation> keys = new ArrayList<Annotation>(keySet);
+    final List<Annotation> responses = new ArrayList<Annotation>(responseSet);
+    // the key index, response index, value and score of each possible pairing
+    List<int[]> pairings = new ArrayList<int[]>();
+    int[] keySums = new int[keys.size()];
+    int[] responseSums = new int[responses.size()];
+    for(int i=0; i<keys.size(); i++) {
+      for(int j=0; j<responses.size(); j++) {
+        Annotation key = keys.get(i);
+        Annotation response = responses.get(j);
+        boolean match = key.getFeatures().get("id").equals(response.getFeatures().get("id"));
+        int value;
+        if(key.coextensive(response)) {
+          value = match ? 3 : 1;
+        } else if(key.overlaps(response)) {
+          value = match ? 2 : 0;
+        } else {
+          continue;
+        }
+        pairings.add(new int[] { i, j, value, 0 });
+        keySums[i] += value;
+        responseSums[j] += value;
+      }
+    }
+    // the score is the value minus the values of all other pairings with the same key or response
+    for(int[] p : pairings) {
+      p[3] = p[2] - (keySums[p[0]] - p[2]) - (responseSums[p[1]] - p[2]);
+    }
+    Collections.sort(pairings, new Comparator<int[]>() {
+      @Override
+      public int compare(int[] p1, int[] p2) {
+        int res = Integer.compare(p2[3], p1[3]);
+        if(res == 0) {
+          res = compareOffsetsAndIds(responses.get(p2[1]), responses.get(p1[1]));
+        }
+        if(res == 0) {
+          res = compareOffsetsAndIds(keys.get(p2[0]), keys.get(p1[0]));
+        }
+        return res;
+      }
+    });
+    boolean[] keyTaken = new boolean[keys.size()];
+    boolean[] responseTaken = new boolean[responses.size()];
+    Set<String> ret = new HashSet<String>();
+    for(int[] p : pairings) {
+      if(!keyTaken[p[0]] && !responseTaken[p[1]]) {
+        keyTaken[p[0]] = true;
+        responseTaken[p[1]] = true;
+        ret.add(keys.get(p[0]).getId()+"/"+responses.get(p[1]).getId());
+      }
+    }
+    return ret;
+  }
+
+  private static int compareOffsetsAndIds(Annotation a1, Annotation a2) {
+    int res = a1.getStartNode().getOffset().compareTo(a2.getStartNode().getOffset());
+    if(res == 0) {
+      res = a1.getEndNode().getOffset().compareTo(a2.getEndNode().getOffset());
+    }
+    if(res == 0) {
+      res = a1.getId().compareTo(a2.getId());
+    }
+    return res;
+  }
+
+  // The result sets of the differ get created when they are first requested and must contain 
+  // the same annotations as the sets calculateDiff used to fill for the final pairings: the
+  // responses by pairing type, the missed keys, the spurious responses, all keys and the
+  // correct responses whose key does not overlap a spurious response.
+  @Test
+  public void testTagging1D11() throws ResourceInstantiationException {
+    Random rnd = new Random(2);
+    Document doc = Factory.newDocument(new String(new char[1200]).replace("\0", " "));
+    AnnotationSet keys = doc.getAnnotations("Keys");
+    AnnotationSet resp = doc.getAnnotations("Resp");
+    addGridAnns(rnd, keys, 150, 1200);
+    addGridAnns(rnd, resp, 150, 1200);
+    AnnotationDifferTagging ad = new AnnotationDifferTagging(keys, resp, FS_ID, FC_EQU, null);
+    Set<Integer> correctStrict = new HashSet<Integer>();
+    Set<Integer> correctPartial = new HashSet<Integer>();
+    Set<Integer> incorrectStrict = new HashSet<Integer>();
+    Set<Integer> incorrectPartial = new HashSet<Integer>();
+    Set<Integer> missing = new HashSet<Integer>();
+    Set<Integer> spurious = new HashSet<Integer>();
+    List<Annotation> spuriousAnns = new ArrayList<Annotation>();
+    for(AnnotationDifferTagging.Pairing p : ad.getFinalChoices()) {
+      switch(p.getPairingType()) {
+        case AnnotationDifferTagging.CORRECT_TYPE:
+          correctStrict.add(p.getResponse().getId());
+          break;
+        case AnnotationDifferTagging.PARTIALLY_CORRECT_TYPE:
+          correctPartial.add(p.getResponse().getId());
+          break;
+        case AnnotationDifferTagging.MISMATCH_TYPE:
+          if(p.getKey().coextensive(p.getResponse())) {
+            incorrectStrict.add(p.getResponse().getId());
+          } else {
+            incorrectPartial.add(p.getResponse().getId());
+          }
+          break;
+        case AnnotationDifferTagging.MISSING_TYPE:
+          missing.add(p.getKey().getId());
+          break;
+        case AnnotationDifferTagging.SPURIOUS_TYPE:
+          spurious.add(p.getResponse().getId());
+          spuriousAnns.add(p.getResponse());
+          break;
+        default:
+          fail("unexpected pairing type "+p.getPairingType());
+      }
+    }
+    Set<Integer> singleCorrectStrict = new HashSet<Integer>();
+    Set<Integer> singleCorrectPartial = new HashSet<Integer>();
+    for(AnnotationDifferTagging.Pairing p : ad.getFinalChoices()) {
+      if(p.getPairingType() != AnnotationDifferTagging.CORRECT_TYPE && 
+              p.getPairingType() != AnnotationDifferTagging.PARTIALLY_CORRECT_TYPE) {
+        continue;
+      }
+      boolean single = true;
+      for(Annotation s : spuriousAnns) {
+        single = single && !p.getKey().overlaps(s);
+      }
+      if(single && p.getPairingType() == AnnotationDifferTagging.CORRECT_TYPE) {
+        singleCorrectStrict.add(p.getResponse().getId());
+      } else if(single) {
+        singleCorrectPartial.add(p.getResponse().getId());
+      }
+    }
+    assertTrue("some correct strict",correctStrict.size() > 0);
+    assertTrue("some single correct",singleCorrectStrict.size() + singleCorrectPartial.size() > 0);
+    assertEquals("correct strict",correctStrict,idsOf(ad.getCorrectStrictAnnotations()));
+    assertEquals("correct partial",correctPartial,idsOf(ad.getCorrectPartialAnnotations()));
+    assertEquals("incorrect strict",incorrectStrict,idsOf(ad.getIncorrectStrictAnnotations()));
+    assertEquals("incorrect partial",incorrectPartial,idsOf(ad.getIncorrectPartialAnnotations()));
+    assertEquals("true missing lenient",missing,idsOf(ad.getTrueMissingLenientAnnotations()));
+    assertEquals("true spurious lenient",spurious,idsOf(ad.getTrueSpuriousLenientAnnotations()));
+    assertEquals("targets",idsOf(keys),idsOf(ad.getTargetAnnotations()));
+    assertEquals("single correct strict",singleCorrectStrict,idsOf(ad.getSingleCorrectStrictAnnotations()));
+    assertEquals("single correct partial",singleCorrectPartial,idsOf(ad.getSingleCorrectPartialAnnotations()));
+    EvalStatsTagging es = ad.getEvalStatsTagging();
+    assertEquals("correct strict count",es.getCorrectStrict(),correctStrict.size());
+    assertEquals("single correct strict count",es.getSingleCorrectStrict(),singleCorrectStrict.size());
+    assertEquals("single correct partial count",es.getSingleCorrectPartial(),singleCorrectPartial.size());
+    // once created, the same set is returned again
+    assertSame("correct strict again",ad.getCorrectStrictAnnotations(),ad.getCorrectStrictAnnotations());
+  }
+
+  private static Set<Integer> idsOf(AnnotationSet set) {
+    Set<Integer> ret = new HashSet<Integer>();
+    for(Annotation ann : set) {
+      ret.add(ann.getId());
+    }
+    return ret;
+  }
+
+  // The differ compares the features of single responses with a matcher which encodes the 
+  // feature values of each document. Each pairing must be correct exactly if 
+  // isAnnotationsMatch, which the differ used before, matches the annotations: for all feature
+  // comparisons, for one, two, no or null features, with and without type specs, and for values
+  // which are only equal as strings, null values and missing features.
+  @Test
+  public void testTagging1D12() throws ResourceInstantiationException {
+    Random rnd = new Random(3);
+    Object[] values = new Object[] { "1", 1, 1L, "x", null };
+    String[] types = new String[] { "M", "N", "O" };
+    Document doc = newD();
+    AnnotationSet keys = doc.getAnnotations("Keys");
+    AnnotationSet resp = doc.getAnnotations("Resp");
+    // each key is coextensive with exactly one response and does not overlap anything else
+    for(int p=0; p<100; p++) {
+      addAnn(keys, 10*p, 10*p+5, types[rnd.nextInt(2)], randomFeatures(rnd, values));
+      addAnn(resp, 10*p, 10*p+5, types[rnd.nextInt(3)], randomFeatures(rnd, values));
+    }
+    List<Set<String>> featureSets = Arrays.asList(FS_ID, 
+            new HashSet<String>(Arrays.asList("id","other")), new HashSet<String>(), null);
+    List<AnnotationTypeSpecs> typeSpecsList = Arrays.asList(null, 
+            new AnnotationTypeSpecs(newStringList("M","N=O")));
+    for(FeatureComparison fcmp : FeatureComparison.values()) {
+      for(Set<String> features : featureSets) {
+        for(AnnotationTypeSpecs typeSpecs : typeSpecsList) {
+          String msg = fcmp+", features "+features+", type specs "+typeSpecs;
+          AnnotationDifferTagging ad = new AnnotationDifferTagging(keys, resp, features, fcmp, typeSpecs);
+          int nPairings = 0;
+          for(AnnotationDifferTagging.Pairing p : ad.getFinalChoices()) {
+            if(p.getKey() != null && p.getResponse() != null) {
+              nPairings++;
+              assertEquals(msg+", key "+p.getKey()+", response "+p.getResponse(),
+                      AnnotationDifferTagging.isAnnotationsMatch(
+                              p.getKey(), p.getResponse(), features, fcmp, false, typeSpecs),
+                      p.getPairingType() == AnnotationDifferTagging.CORRECT_TYPE);
+            }
+          }
+          assertEquals(msg+", pairings",100,nPairings);
+        }
+      }
+    }
+  }
+
+  // A feature map with a random value or no value for each of the features id and other
+  private static FeatureMap randomFeatures(Random rnd, Object[] values) {
+    FeatureMap fm = Factory.newFeatureMap();
+    for(String name : new String[] { "id", "other" }) {
+      int v = rnd.nextInt(values.length+1);
+      if(v < values.length) {
+        fm.put(name, values[v]);
+      }
+    }
+    return fm;
+  }
+
+  // The visible candidates of a candidate list when the score threshold gets raised, lowered
+  // and set again after a rank limit, also to the same threshold as before the rank limit: 
+  // always those with a score at or above the threshold.
+  @Test
+  public void testTagging1CandidateList01() throws ResourceInstantiationException {
+    Document doc = newD();
+    AnnotationSet resp = doc.getAnnotations("Resp");
+    List<Integer> ids = newIntList();
+    ids.add(addAnn(resp, 0, 5, "M", featureMap("id","x","s",0.7)));
+    ids.add(addAnn(resp, 0, 5, "M", featureMap("id","y","s",0.9)));
+    ids.add(addAnn(resp, 0, 5, "M", featureMap("id","z","s",0.8)));
+    ids.add(addAnn(resp, 0, 5, "M", featureMap("id","w","s",0.8)));
+    Annotation listAnn = resp.get(addAnn(resp, 0, 5, "L", featureMap("ids",ids)));
+    AnnotationDifferTagging.CandidateList cl = 
+            new AnnotationDifferTagging.CandidateList(resp, listAnn, "ids", "s", "M", false, null, "id");
+    assertEquals("size all",4,cl.sizeAll());
+    assertEquals("first candidate","y",cl.get(0).getFeatures().get("id"));
+    cl.setThreshold(0.95);
+    assertEquals("size at 0.95",0,cl.size());
+    cl.setThreshold(0.8);
+    assertEquals("size at 0.8",3,cl.size());
+    cl.setThreshold(0.85);
+    assertEquals("size at 0.85",1,cl.size());
+    cl.setThreshold(0.7);
+    assertEquals("size at 0.7",4,cl.size());
+    cl.setThreshold(0.8);
+    assertEquals("size at 0.8 again",3,cl.size());
+    cl.setRank(0);
+    assertEquals("size at rank 0",1,cl.size());
+    cl.setThreshold(0.7);
+    assertEquals("size at 0.7 after rank",4,cl.size());
+    cl.setRank(1);
+    assertEquals("size at rank 1",2,cl.size());
+    cl.setThreshold(0.7);
+    assertEquals("size at the same threshold 0.7 after rank",4,cl.size());
+  }
+
+  // The statistics for all ranks of a list evaluation must be the same as those from running 
+  // the differ for each rank on its own. The lists overlap each other and several keys, the
+  // scores have many ties and the lists still have a score threshold set from before.
+  @Test
+  public void testTagging1ListRanks01() throws ResourceInstantiationException {
+    Document doc = newD();
+    AnnotationSet keys = doc.getAnnotations("Keys");
+    AnnotationSet resp = doc.getAnnotations("Resp");
+    Random rnd = new Random(1);
+    String[] ids = new String[] { "x", "y", "z" };
+    for(int k=0; k<40; k++) {
+      int from = rnd.nextInt(300);
+      addAnn(keys,from,from+1+rnd.nextInt(10),"M",featureMap("id",ids[rnd.nextInt(3)]));
+    }
+    List<AnnotationDifferTagging.CandidateList> lists = new ArrayList<AnnotationDifferTagging.CandidateList>();
+    for(int l=0; l<50; l++) {
+      int from = rnd.nextInt(300);
+      int to = from+1+rnd.nextInt(15);
+      List<Integer> cands = newIntList();
+      int n = 1+rnd.nextInt(6);
+      for(int c=0; c<n; c++) {
+        int cfrom = from+rnd.nextInt(to-from);
+        int cto = cfrom+1+rnd.nextInt(to-cfrom);
+        cands.add(addAnn(resp,cfrom,cto,"M",
+                featureMap("id",ids[rnd.nextInt(3)],"s",0.1*(1+rnd.nextInt(4)))));
+      }
+      Annotation listAnn = resp.get(addAnn(resp,from,to,"L",featureMap("ids",cands)));
+      AnnotationDifferTagging.CandidateList cl = 
+              new AnnotationDifferTagging.CandidateList(resp, listAnn, "ids", "s", "M", false, null, "id");
+      lists.add(cl);
+    }
+    AnnotationDifferTagging.CandidateList.setThreshold(lists, 0.25);
+    AnnotationSet listAnns = resp.get("L");
+    AnnotationTypeSpecs typeSpecs = new AnnotationTypeSpecs(Arrays.asList("M=L"));
+    ByRankEvalStatsTagging byRank = AnnotationDifferTagging.calculateListByRankEvalStatsTagging(
+            keys, listAnns, lists, FS_ID, FC_EQU, "ids", "s", ThresholdsOrRanksToUse.USE_RANKS_ALL, 
+            null, typeSpecs);
+    assertTrue("ranks evaluated",byRank.size() > 3);
+    // the single correct counts are only calculated by the differ for a single rank
+    for(int rank : byRank.keySet()) {
+      EvalStatsTagging es = AnnotationDifferTagging.calculateEvalStatsTagging4List(
+              keys, listAnns, lists, FS_ID, FC_EQU, "ids", "s", null, rank, typeSpecs)
+              .getEvalStatsTagging();
+      EvalStatsTagging esRank = byRank.get(rank);
+      assertEquals("targets, rank "+rank,es.getTargets(),esRank.getTargets());
+      assertEquals("responses, rank "+rank,es.getResponses(),esRank.getResponses());
+      assertEquals("correct strict, rank "+rank,es.getCorrectStrict(),esRank.getCorrectStrict());
+      assertEquals("correct partial, rank "+rank,es.getCorrectPartial(),esRank.getCorrectPartial());
+      assertEquals("incorrect strict, rank "+rank,es.getIncorrectStrict(),esRank.getIncorrectStrict());
+      assertEquals("incorrect partial, rank "+rank,es.getIncorrectPartial(),esRank.getIncorrectPartial());
+      assertEquals("targets with strict responses, rank "+rank,
+              es.getTargetsWithStrictResponses(),esRank.getTargetsWithStrictResponses());
+      assertEquals("targets with lenient responses, rank "+rank,
+              es.getTargetsWithLenientResponses(),esRank.getTargetsWithLenientResponses());
+    }
+  }
+
+  // Test that the by rank map can only be changed by its own methods
+  @Test
+  public void testTagging1ByRankModify01() {
+    ByRankEvalStatsTagging byRank = new ByRankEvalStatsTagging();
+    for(int rank = 1; rank <= 3; rank++) {
+      EvalStatsTagging4Rank es = new EvalStatsTagging4Rank(rank);
+      es.addTargets(2);
+      es.addResponses(rank);
+      es.addCorrectStrict(Math.min(rank, 2));
+      es.addIncorrectStrict(rank - Math.min(rank, 2));
+      byRank.put(rank, es);
+    }
+    PRCurveMeasures measures = byRank.getPRCurveMeasures();
+    assertEquals("rank polled last",3,byRank.pollLastEntry().getKey().intValue());
+    assertEquals("size after polling last",2,byRank.size());
+    assertEquals("last rank after polling last",2,byRank.lastKey().intValue());
+    assertNotSame("measures after polling last",measures,byRank.getPRCurveMeasures());
+    try {
+      byRank.headMap(2, true).clear();
+      fail("head map should not be modifiable");
+    } catch(UnsupportedOperationException ex) {
+      // expected
+    }
+    try {
+      byRank.entrySet().clear();
+      fail("entry set should not be modifiable");
+    } catch(UnsupportedOperationException ex) {
+      // expected
+    }
+    assertEquals("size after trying to modify the views",2,byRank.size());
+  }
+
   // Test P/R curve, 01
   @Test
   public void testTagging1PR01() throws ResourceInstantiationException {
@@ -378,6 +917,472 @@ public class TestTagging1 extends GATEPluginTests {
     assertEquals("Rec strict,  th=0.4",0.25,bth.get(0.4).getRecallStrict(),EPS);
   }
   
+  // Test P/R curve, 04
+  @Test
+  public void testTagging1PR04() throws ResourceInstantiationException {
+    // Overlapping and competing responses with different scores: the counts for each 
+    // threshold must be identical to what we get when running the differ for just that 
+    // threshold.
+    Document doc = newD();
+    addA(doc,"Keys",0, 10,"M",featureMap("id","x"));
+    addA(doc,"Keys",5, 15,"M",featureMap("id","y"));
+    addA(doc,"Keys",20,30,"M",featureMap("id","x"));
+    addA(doc,"Keys",40,50,"M",featureMap("id","x"));
+    AnnotationSet t = addA(doc,"Keys",100,110,"M",featureMap("id","z"));
+    addA(doc,"Resp",0,10,"M",featureMap("id","y","s","0.9"));
+    addA(doc,"Resp",0,10,"M",featureMap("id","x","s","0.3"));
+    addA(doc,"Resp",5,15,"M",featureMap("id","y","s","0.5"));
+    addA(doc,"Resp",2,12,"M",featureMap("id","y","s","0.7"));
+    addA(doc,"Resp",20,25,"M",featureMap("id","x","s","0.5"));
+    addA(doc,"Resp",20,30,"M",featureMap("id","x","s","0.2"));
+    addA(doc,"Resp",45,50,"M",featureMap("id","y","s","0.8"));
+    AnnotationSet r = addA(doc,"Resp",60,70,"M",featureMap("id","x","s","0.4"));
+    ByThEvalStatsTagging bth = 
+            AnnotationDifferTagging.calculateByThEvalStatsTagging(t, r, FS_ID, FC_EQU,"s",ThresholdsToUse.USE_ALL,null, null);
+    for(double th : new double[]{0.9,0.8,0.7,0.5,0.4,0.3,0.2}) {
+      EvalStatsTagging expected = 
+              new AnnotationDifferTagging(t, r, FS_ID, FC_EQU, "s", th, null).getEvalStatsTagging();
+      EvalStatsTagging actual = bth.get(th);
+      assertEquals("responses, th="+th,expected.getResponses(),actual.getResponses());
+      assertEquals("correct strict, th="+th,expected.getCorrectStrict(),actual.getCorrectStrict());
+      assertEquals("correct partial, th="+th,expected.getCorrectPartial(),actual.getCorrectPartial());
+      assertEquals("incorrect strict, th="+th,expected.getIncorrectStrict(),actual.getIncorrectStrict());
+      assertEquals("incorrect partial, th="+th,expected.getIncorrectPartial(),actual.getIncorrectPartial());
+      assertEquals("targets with strict, th="+th,expected.getTargetsWithStrictResponses(),actual.getTargetsWithStrictResponses());
+      assertEquals("targets with lenient, th="+th,expected.getTargetsWithLenientResponses(),actual.getTargetsWithLenientResponses());
+    }
+  }
+
+  // Test P/R curve with the optimal matching
+  @Test
+  public void testTagging1PR04Optimal() throws ResourceInstantiationException {
+    // Like PR04, but with the optimal matching. With two keys and two responses on the same
+    // spans, pairing correct strict with incorrect partial and pairing correct partial with 
+    // incorrect strict are both optimal, so the sweep over the thresholds must break such
+    // ties exactly like the differ for just one threshold.
+    Document doc = newD();
+    addA(doc,"Resp",5,15,"M",featureMap("id","x","s","0.6"));
+    addA(doc,"Resp",0,10,"M",featureMap("id","x","s","0.8"));
+    addA(doc,"Keys",0,10,"M",featureMap("id","y"));
+    addA(doc,"Keys",0,10,"M",featureMap("id","x"));
+    addA(doc,"Keys",20,30,"M",featureMap("id","x"));
+    addA(doc,"Keys",25,35,"M",featureMap("id","y"));
+    addA(doc,"Resp",25,30,"M",featureMap("id","x","s","0.5"));
+    addA(doc,"Resp",20,35,"M",featureMap("id","y","s","0.9"));
+    addA(doc,"Keys",40,50,"M",featureMap("id","x"));
+    AnnotationSet t = addA(doc,"Keys",40,50,"M",featureMap("id","y"));
+    addA(doc,"Resp",45,50,"M",featureMap("id","y","s","0.7"));
+    AnnotationSet r = addA(doc,"Resp",40,45,"M",featureMap("id","x","s","0.7"));
+    ByThEvalStatsTagging bth = AnnotationDifferTagging.calculateByThEvalStatsTagging(
+            t, r, FS_ID, FC_EQU,"s",ThresholdsToUse.USE_ALL,null, null, MatchingStrategy.OPTIMAL);
+    for(double th : new double[]{0.9,0.8,0.7,0.6,0.5}) {
+      EvalStatsTagging expected = new AnnotationDifferTagging(
+              t, r, FS_ID, FC_EQU, "s", th, null, MatchingStrategy.OPTIMAL).getEvalStatsTagging();
+      EvalStatsTagging actual = bth.get(th);
+      assertEquals("responses, th="+th,expected.getResponses(),actual.getResponses());
+      assertEquals("correct strict, th="+th,expected.getCorrectStrict(),actual.getCorrectStrict());
+      assertEquals("correct partial, th="+th,expected.getCorrectPartial(),actual.getCorrectPartial());
+      assertEquals("incorrect strict, th="+th,expected.getIncorrectStrict(),actual.getIncorrectStrict());
+      assertEquals("incorrect partial, th="+th,expected.getIncorrectPartial(),actual.getIncorrectPartial());
+      assertEquals("targets with strict, th="+th,expected.getTargetsWithStrictResponses(),actual.getTargetsWithStrictResponses());
+      assertEquals("targets with lenient, th="+th,expected.getTargetsWithLenientResponses(),actual.getTargetsWithLenientResponses());
+    }
+  }
+
+  // Test P/R curve with a maximum number of thresholds
+  @Test
+  public void testTagging1PR05() throws ResourceInstantiationException {
+    // 10 documents, each with one target and one correct response with its own score,
+    // added to a map that keeps at most 4 thresholds
+    ByThEvalStatsTagging bth = new ByThEvalStatsTagging(ThresholdsToUse.USE_ALL);
+    bth.setMaxThresholds(4);
+    for(int i = 1; i <= 10; i++) {
+      Document doc = newD();
+      AnnotationSet t = addA(doc,"Keys",0,10,"M",featureMap("id","x"));
+      AnnotationSet r = addA(doc,"Resp",0,10,"M",featureMap("id","x","s",""+(i/10.0)));
+      AnnotationDifferTagging.calculateByThEvalStatsTagging(t, r, FS_ID, FC_EQU,"s",ThresholdsToUse.USE_ALL,bth,null);
+      assertTrue("Number of thresholds: "+bth.size(),bth.size() <= 4);
+    }
+    // the lowest threshold is always kept and exact
+    assertEquals("Lowest threshold",0.1,bth.firstKey(),EPS);
+    assertEquals("Rec strict,  th=0.1",1.0,bth.get(0.1).getRecallStrict(),EPS);
+    assertEquals("Count error, th=0.1",0,bth.getCountError(0.1));
+    // for each threshold, the true number of correct responses is 11-10*th, which must be
+    // within the count error of what is stored for the next higher threshold
+    for(int i = 1; i <= 10; i++) {
+      double th = i/10.0;
+      int correct = bth.ceilingEntry(th).getValue().getCorrectStrict();
+      assertTrue("Correct strict, th="+th,correct <= 11-i);
+      assertTrue("Correct strict, th="+th,correct + bth.getCountError(th) >= 11-i);
+      assertTrue("Count error, th="+th,bth.getCountError(th) <= bth.getMaxCountError());
+    }
+  }
+
+  // Test measures of the whole P/R curve
+  @Test
+  public void testTagging1PR06() throws ResourceInstantiationException {
+    Document doc = newD();
+    // add 2 targets to the keys
+    addA(doc,"Keys",0, 10,"M",featureMap("id","x"));
+    AnnotationSet t = addA(doc,"Keys",60,70,"M",featureMap("id","x"));
+    // add 2 correct responses and one spurious response in between
+    addA(doc,"Resp",0,10,"M",featureMap("id","x","s","0.9"));
+    addA(doc,"Resp",30,40,"M",featureMap("id","x","s","0.7"));
+    AnnotationSet r = addA(doc,"Resp",60,70,"M",featureMap("id","x","s","0.5"));
+    ByThEvalStatsTagging bth =
+            AnnotationDifferTagging.calculateByThEvalStatsTagging(t, r, FS_ID, FC_EQU,"s",ThresholdsToUse.USE_ALL,null, null);
+    // the curve is P/R 1.0/0.5 at th=0.9, 0.5/0.5 at th=0.7 and 0.6667/1.0 at th=0.5
+    assertEquals("Highest F1.0 strict",0.8,bth.getPRCurveMeasures().getHighestFMeasureStrict(),EPS);
+    assertEquals("Highest F1.0 strict th",0.5,bth.highestFMeasureStrictThreshold(),EPS);
+    assertEquals("Area under PR strict",0.5*(0.5+2.0/3.0)/2.0,bth.areaUnderPRStrict(),EPS);
+    assertEquals("Average precision strict",0.5+0.5*2.0/3.0,bth.averagePrecisionStrict(),EPS);
+    assertEquals("Interpolated AP strict",(6.0+5.0*2.0/3.0)/11.0,bth.interpolatedAveragePrecisionStrict(),EPS);
+    // changing the map must invalidate the cached measures
+    bth.remove(0.7);
+    assertEquals("Area under PR strict",0.5*(1.0+2.0/3.0)/2.0,bth.areaUnderPRStrict(),EPS);
+  }
+
+  // Test merging P/R curves which have been compacted
+  @Test
+  public void testTagging1PR07() throws ResourceInstantiationException {
+    // Two maps which keep at most 4 thresholds, each with 10 documents with one target and one 
+    // correct response, with the odd and even multiples of 0.05 as scores. They get merged into
+    // a map without a maximum and into one of the compacted maps.
+    ByThEvalStatsTagging odd = new ByThEvalStatsTagging(ThresholdsToUse.USE_ALL);
+    odd.setMaxThresholds(4);
+    ByThEvalStatsTagging even = new ByThEvalStatsTagging(ThresholdsToUse.USE_ALL);
+    even.setMaxThresholds(4);
+    for(int i = 1; i <= 20; i++) {
+      Document doc = newD();
+      AnnotationSet t = addA(doc,"Keys",0,10,"M",featureMap("id","x"));
+      AnnotationSet r = addA(doc,"Resp",0,10,"M",featureMap("id","x","s",""+(i/20.0)));
+      AnnotationDifferTagging.calculateByThEvalStatsTagging(t, r, FS_ID, FC_EQU,"s",
+              ThresholdsToUse.USE_ALL,i % 2 == 1 ? odd : even,null);
+    }
+    assertTrue("Odd count error",odd.getMaxCountError() > 0);
+    assertTrue("Even count error",even.getMaxCountError() > 0);
+    ByThEvalStatsTagging all = new ByThEvalStatsTagging(ThresholdsToUse.USE_ALL);
+    all.add(odd);
+    all.add(even);
+    odd.add(even);
+    assertTrue("Number of thresholds: "+odd.size(),odd.size() <= 4);
+    // for each threshold, the true number of correct responses is 21-20*th, which must be 
+    // within the count error of what is stored for the next higher threshold
+    for(ByThEvalStatsTagging merged : new ByThEvalStatsTagging[]{all, odd}) {
+      for(int i = 1; i <= 20; i++) {
+        double th = i/20.0;
+        int correct = merged.ceilingEntry(th).getValue().getCorrectStrict();
+        assertTrue("Correct strict, th="+th,correct <= 21-i);
+        assertTrue("Correct strict, th="+th+" count error "+merged.getCountError(th),
+                correct + merged.getCountError(th) >= 21-i);
+        assertTrue("Count error, th="+th,merged.getCountError(th) <= merged.getMaxCountError());
+      }
+    }
+  }
+
+  // Test deriving the statistics over all types from the statistics for each type
+  @Test
+  public void testTagging1CrossType01() throws ResourceInstantiationException {
+    Document doc = newD();
+    AnnotationTypeSpecs specs = new AnnotationTypeSpecs(Arrays.asList("M","N"));
+    // a correct M, a key N with a coextensive M response, a key M with an overlapping N
+    // response and a spurious N response
+    addA(doc,"Keys",0, 10,"M",featureMap("id","x"));
+    addA(doc,"Keys",20,30,"N",featureMap("id","x"));
+    AnnotationSet keys = addA(doc,"Keys",50,60,"M",featureMap("id","x"));
+    addA(doc,"Resp",0,10,"M",featureMap("id","x"));
+    addA(doc,"Resp",20,30,"M",featureMap("id","x"));
+    addA(doc,"Resp",52,58,"N",featureMap("id","x"));
+    AnnotationSet resps = addA(doc,"Resp",100,110,"N",featureMap("id","x"));
+
+    CrossTypeResidual residual = new CrossTypeResidual(keys, resps, null, specs);
+    assertEquals("Residual keys",2,residual.getKeys().size());
+    assertEquals("Residual responses",2,residual.getResponses().size());
+    assertEquals("Residual M keys",1,residual.getKeys("M").size());
+    assertEquals("Residual M responses",1,residual.getResponses("M").size());
+
+    EvalStatsTagging all = new AnnotationDifferTagging(keys, resps, FS_ID, FC_EQU, specs).getEvalStatsTagging();
+    EvalStatsTagging sum = new EvalStatsTagging4Score(Double.NaN);
+    for(String type : specs.getKeyTypes()) {
+      sum.add(new AnnotationDifferTagging(keys.get(type), resps.get(type), FS_ID, FC_EQU, specs).getEvalStatsTagging());
+    }
+    assertEquals("Sum incorrect strict",0,sum.getIncorrectStrict());
+    assertEquals("Sum incorrect partial",0,sum.getIncorrectPartial());
+    sum.add(new AnnotationDifferTagging(residual.getKeys(), residual.getResponses(), FS_ID, FC_EQU, specs).getEvalStatsTagging());
+    for(String type : specs.getKeyTypes()) {
+      sum.subtract(new AnnotationDifferTagging(residual.getKeys(type), residual.getResponses(type), FS_ID, FC_EQU, specs).getEvalStatsTagging());
+    }
+    assertEquals("All correct strict",1,all.getCorrectStrict());
+    assertEquals("All incorrect strict",1,all.getIncorrectStrict());
+    assertEquals("All incorrect partial",1,all.getIncorrectPartial());
+    assertEquals("Exact sum",all.getTSVLine(),sum.getTSVLine());
+  }
+
+  // Splitting a set by the types of the specs in one pass must give the same annotations as
+  // getting the key or response type of each spec from the set, which execute did before, and
+  // the differ must give the same statistics for both. All the parts together must be the 
+  // annotations of all the types of the specs.
+  @Test
+  public void testTagging1SplitByType01() throws ResourceInstantiationException {
+    Random rnd = new Random(4);
+    String[] types = new String[] { "M", "N", "O", "P" };
+    Document doc = newD();
+    AnnotationSet keys = doc.getAnnotations("Keys");
+    AnnotationSet resp = doc.getAnnotations("Resp");
+    for(int k=0; k<200; k++) {
+      for(AnnotationSet set : new AnnotationSet[] { keys, resp }) {
+        int from = rnd.nextInt(980);
+        addAnn(set, from, from+1+rnd.nextInt(15), types[rnd.nextInt(4)], 
+                featureMap("id", rnd.nextBoolean() ? "x" : "y"));
+      }
+    }
+    AnnotationTypeSpecs typeSpecs = new AnnotationTypeSpecs(newStringList("M","N=O"));
+    List<AnnotationSet> keyParts = typeSpecs.splitByType(keys, false);
+    List<AnnotationSet> respParts = typeSpecs.splitByType(resp, true);
+    assertEquals("key parts",typeSpecs.size(),keyParts.size());
+    assertEquals("response parts",typeSpecs.size(),respParts.size());
+    Set<Integer> allKeys = new HashSet<Integer>();
+    Set<Integer> allResponses = new HashSet<Integer>();
+    for(int i=0; i<typeSpecs.size(); i++) {
+      AnnotationTypeSpec spec = typeSpecs.getSpecs().get(i);
+      AnnotationSet keysOfType = keys.get(spec.getKeyType());
+      AnnotationSet respOfType = resp.get(spec.getResponseType());
+      assertEquals("keys "+spec,idsOf(keysOfType),idsOf(keyParts.get(i)));
+      assertEquals("responses "+spec,idsOf(respOfType),idsOf(respParts.get(i)));
+      assertEquals("stats "+spec,
+              Arrays.toString(new AnnotationDifferTagging(keysOfType, respOfType, FS_ID, FC_EQU, typeSpecs)
+                      .getEvalStatsTagging().getCounts()),
+              Arrays.toString(new AnnotationDifferTagging(keyParts.get(i), respParts.get(i), FS_ID, FC_EQU, typeSpecs)
+                      .getEvalStatsTagging().getCounts()));
+      allKeys.addAll(idsOf(keyParts.get(i)));
+      allResponses.addAll(idsOf(respParts.get(i)));
+    }
+    assertEquals("all keys",idsOf(keys.get(new HashSet<String>(typeSpecs.getKeyTypes()))),allKeys);
+    assertEquals("all responses",
+            idsOf(resp.get(new HashSet<String>(typeSpecs.getResponseTypes()))),allResponses);
+  }
+
+  // Test selecting the responses which overlap, are contained in or are coextensive with
+  // the containing annotations, also for annotations of length zero
+  @Test
+  public void testTagging1Containment01() throws ResourceInstantiationException {
+    Document doc = newD();
+    addA(doc,"Cont",10,20,"C",featureMap());
+    AnnotationSet cont = addA(doc,"Cont",15,40,"C",featureMap());
+    addA(doc,"Resp",0,5,"M",featureMap());     // outside
+    addA(doc,"Resp",5,12,"M",featureMap());    // overlapping
+    addA(doc,"Resp",10,20,"M",featureMap());   // coextensive
+    addA(doc,"Resp",18,35,"M",featureMap());   // contained in the second only
+    addA(doc,"Resp",18,45,"M",featureMap());   // overlapping both
+    AnnotationSet resps = addA(doc,"Resp",40,50,"M",featureMap());  // just after the end
+    assertEquals("Overlapping",4,new ContainmentFilter(cont,ContainmentType.OVERLAPPING).select(resps).size());
+    assertEquals("Containing",2,new ContainmentFilter(cont,ContainmentType.CONTAINING).select(resps).size());
+    assertEquals("Coextensive",1,new ContainmentFilter(cont,ContainmentType.COEXTENSIVE).select(resps).size());
+    // zero-length annotations and containing annotations
+    cont = addA(doc,"Cont",60,60,"C",featureMap());
+    addA(doc,"Resp0",10,10,"M",featureMap());  // at the start of the first
+    addA(doc,"Resp0",40,40,"M",featureMap());  // at the end of the second
+    addA(doc,"Resp0",60,60,"M",featureMap());  // at the zero-length one
+    addA(doc,"Resp0",60,70,"M",featureMap());  // starting at the zero-length one
+    addA(doc,"Resp0",55,65,"M",featureMap());  // containing the zero-length one
+    resps = addA(doc,"Resp0",50,60,"M",featureMap());  // ending at the zero-length one
+    assertEquals("Overlapping zero-length",4,new ContainmentFilter(cont,ContainmentType.OVERLAPPING).select(resps).size());
+    assertEquals("Containing zero-length",1,new ContainmentFilter(cont,ContainmentType.CONTAINING).select(resps).size());
+    assertEquals("Coextensive zero-length",1,new ContainmentFilter(cont,ContainmentType.COEXTENSIVE).select(resps).size());
+  }
+  
+  // Test writing and reading back the binary columnar results file
+  @Test
+  public void testTagging1Columnar01() throws IOException {
+    File file = File.createTempFile("TestTagging1Columnar01", ".evb");
+    file.deleteOnExit();
+    int n = ColumnarResultsWriter.BLOCK_ROWS + 10;
+    writeColumnar(file, n);
+    try (ColumnarResultsReader reader = new ColumnarResultsReader(file)) {
+      assertEquals("Evaluation id","E",reader.getEvaluationId());
+      assertEquals("Blocks",2,reader.getNumberOfBlocks());
+      assertEquals("Rows",n,reader.getNumberOfRows());
+      ColumnarResultsReader.Block block = reader.getBlock(1);
+      assertEquals("Rows in last block",10,block.size());
+      int i = ColumnarResultsWriter.BLOCK_ROWS + 3;
+      EvalStatsTagging es = block.getEvalStats(3);
+      assertTrue("Rank",block.isRank(3));
+      assertEquals("Rank value",i,((EvalStatsTagging4Rank)es).getRank());
+      assertEquals("Document","doc"+(i % 100),block.getDocumentName(3));
+      assertEquals("Targets",i,es.getTargets());
+      assertEquals("Responses",i+1,es.getResponses());
+      assertEquals("Correct partial",i % 7,es.getCorrectPartial());
+      assertEquals("Threshold",0.4,((EvalStatsTagging4Score)reader.getBlock(0).getEvalStats(4)).getThreshold(),0.0);
+    }
+  }
+  
+  // Test reading broken binary columnar results files: each must give an IOException
+  @Test
+  public void testTagging1Columnar02() throws IOException {
+    File file = File.createTempFile("TestTagging1Columnar02", ".evb");
+    file.deleteOnExit();
+    writeColumnar(file, ColumnarResultsWriter.BLOCK_ROWS + 10);
+    byte[] bytes = Files.readAllBytes(file.toPath());
+    long indexOffset = ByteBuffer.wrap(bytes).getLong(bytes.length - 12);
+    int block0 = (int)ByteBuffer.wrap(bytes).getLong((int)indexOffset + 4);
+    
+    // the file is cut off in the middle
+    Files.write(file.toPath(), Arrays.copyOf(bytes, bytes.length / 2));
+    assertReadFails("Truncated file", file);
+    
+    // the index offset in the trailer is beyond the end of the file
+    byte[] broken = bytes.clone();
+    ByteBuffer.wrap(broken).putLong(bytes.length - 12, bytes.length + 100);
+    Files.write(file.toPath(), broken);
+    assertReadFails("Index offset", file);
+    
+    // the first block claims to be shorter than it is, so its compressed data is truncated
+    broken = bytes.clone();
+    ByteBuffer.wrap(broken).putInt(block0 + 8, ByteBuffer.wrap(bytes).getInt(block0 + 8) / 2);
+    Files.write(file.toPath(), broken);
+    assertReadFails("Truncated block", file);
+    
+    // the first block claims to be longer than the file
+    broken = bytes.clone();
+    ByteBuffer.wrap(broken).putInt(block0 + 8, bytes.length);
+    Files.write(file.toPath(), broken);
+    assertReadFails("Block length", file);
+  }
+  
+  private void writeColumnar(File file, int n) throws IOException {
+    try (ColumnarResultsWriter writer = new ColumnarResultsWriter(new FileOutputStream(file), "E")) {
+      for(int i = 0; i < n; i++) {
+        EvalStatsTagging es = i % 2 == 0 ? new EvalStatsTagging4Score(i / 10.0) : new EvalStatsTagging4Rank(i);
+        es.addTargets(i); 
+        es.addResponses(i+1);
+        es.addCorrectPartial(i % 7);
+        writer.add("score", "doc"+(i % 100), "Resp", "M", es);
+      }
+    }
+  }
+  
+  // Open the file and read all blocks, which must fail with an IOException
+  private void assertReadFails(String msg, File file) {
+    try (ColumnarResultsReader reader = new ColumnarResultsReader(file)) {
+      for(int b = 0; b < reader.getNumberOfBlocks(); b++) {
+        reader.getBlock(b);
+      }
+      fail(msg+": reading should fail");
+    } catch(IOException ex) {
+      // expected
+    }
+  }
+  
+  // Test writing and reading back names which are longer than what writeUTF can write
+  @Test
+  public void testTagging1Columnar03() throws IOException {
+    File file = File.createTempFile("TestTagging1Columnar03", ".evb");
+    file.deleteOnExit();
+    String longId = new String(new char[70000]).replace("\0", "e");
+    String longName = new String(new char[40000]).replace("\0", "\u00e4");
+    try (ColumnarResultsWriter writer = new ColumnarResultsWriter(new FileOutputStream(file), longId)) {
+      EvalStatsTagging es = new EvalStatsTagging4Score(0.5);
+      es.addTargets(1);
+      writer.add("normal", longName, "Resp", "M", es);
+    }
+    try (ColumnarResultsReader reader = new ColumnarResultsReader(file)) {
+      assertEquals("Evaluation id",longId,reader.getEvaluationId());
+      ColumnarResultsReader.Block block = reader.getBlock(0);
+      assertEquals("Document",longName,block.getDocumentName(0));
+      assertEquals("Set","Resp",block.getSetName(0));
+      assertEquals("Targets",1,block.getEvalStats(0).getTargets());
+    }
+  }
+  
+  // Test the output stream which writes the result files in a background thread
+  @Test
+  public void testTagging1Background01() throws IOException {
+    // the bytes arrive in order and closing writes what is left and closes the stream
+    final boolean[] closed = new boolean[1];
+    ByteArrayOutputStream target = new ByteArrayOutputStream() {
+      @Override
+      public void close() throws IOException {
+        closed[0] = true;
+        super.close();
+      }
+    };
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    Random rand = new Random(1);
+    BackgroundOutputStream out = new BackgroundOutputStream(target, "TestTagging1Background01");
+    while(expected.size() < 3*1024*1024) {
+      if(rand.nextInt(10) == 0) {
+        int b = rand.nextInt(256);
+        out.write(b);
+        expected.write(b);
+      } else {
+        byte[] bytes = new byte[rand.nextInt(100000)];
+        rand.nextBytes(bytes);
+        out.write(bytes, 0, bytes.length);
+        expected.write(bytes, 0, bytes.length);
+      }
+      if(rand.nextInt(20) == 0) {
+        out.flush();
+      }
+    }
+    out.write(42);
+    expected.write(42);
+    assertFalse("Not closed before close", closed[0]);
+    out.close();
+    assertTrue("Closed", closed[0]);
+    assertTrue("Bytes", Arrays.equals(expected.toByteArray(), target.toByteArray()));
+    
+    // an error while writing in the background gets thrown by close
+    OutputStream failing = new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        throw new IOException("Disk full");
+      }
+    };
+    out = new BackgroundOutputStream(failing, "TestTagging1Background01");
+    out.write(new byte[100], 0, 100);
+    out.flush();
+    try {
+      out.close();
+      fail("Close should throw the error from the background thread");
+    } catch(IOException ex) {
+      assertEquals("Error","Disk full",ex.getMessage());
+    }
+    try {
+      out.write(1);
+      fail("Write after close should throw");
+    } catch(IOException ex) {
+      assertEquals("Error after close","Stream is closed",ex.getMessage());
+    }
+  }
+  
+  // A runtime exception of the underlying stream in the background thread must not make 
+  // writing or closing block, but get thrown by the next write or by close
+  @Test(timeout=60000)
+  public void testTagging1Background02() throws IOException {
+    OutputStream failing = new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        throw new IllegalStateException("Codec failed");
+      }
+    };
+    BackgroundOutputStream out = new BackgroundOutputStream(failing, "TestTagging1Background02");
+    byte[] bytes = new byte[100000];
+    try {
+      // much more than all the buffers which can be waiting to get written
+      for(int i = 0; i < 100; i++) {
+        out.write(bytes, 0, bytes.length);
+      }
+    } catch(IOException ex) {
+      assertTrue("Error from write",ex.getCause() instanceof IllegalStateException);
+    }
+    try {
+      out.close();
+      fail("Close should throw the error from the background thread");
+    } catch(IOException ex) {
+      assertTrue("Error from close",ex.getCause() instanceof IllegalStateException);
+    }
+  }
+  
   // Test change indicator annotations
   @Test
   public void testTagging1Diff01() throws ResourceInstantiationException {
@@ -19,10 +19,12 @@
  */
 package gate.plugin.evaluation.tests;
 
+import gate.Annotation;
 import gate.AnnotationSet;
 import gate.Document;
 import gate.Factory;
 import gate.FeatureMap;
+import gate.annotation.ImmutableAnnotationSetImpl;
 import gate.Gate;
 import gate.creole.ResourceInstantiationException;
 import org.junit.Test;
@@ -32,10 +34,30 @@ import gate.util.GateException;
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
 import org.junit.Before;
 import static gate.Utils.*;
 import gate.creole.ExecutionException;
+import gate.plugin.evaluation.api.AllTypesStrategy;
+import gate.plugin.evaluation.api.AnnotationDifferTagging;
+import gate.plugin.evaluation.api.AnnotationTypeSpecs;
+import gate.plugin.evaluation.api.ByRankEvalStatsTagging;
+import gate.plugin.evaluation.api.ByThEvalStatsTagging;
+import gate.plugin.evaluation.api.ContainmentType;
+import gate.plugin.evaluation.api.DocumentFeaturesFormat;
 import gate.plugin.evaluation.api.EvalStatsTagging;
+import gate.plugin.evaluation.api.ThresholdsOrRanksToUse;
 import gate.plugin.evaluation.resources.EvaluateTagging;
 import gate.plugin.evaluation.resources.EvaluateTagging4Lists;
 import static gate.plugin.evaluation.tests.TestUtils.*;
@@ -346,4 +368,424 @@ public class TestTagging2 extends GATEPluginTests {
   
   
   
+  // Two lists whose pairings with the first key have the same score: the tie is broken on
+  // the offsets of the best candidate of each list, not of the list annotations. Taking the 
+  // pairing with the first list also blocks the wrong pairing of the second key with that list.
+  @Test
+  public void testTagging2ListEval04() throws ResourceInstantiationException, ExecutionException {
+    logger.debug("Running test testTagging2ListEval04");
+    Document doc = newD();
+    AnnotationSet keys = doc.getAnnotations("Key");
+    AnnotationSet resp = doc.getAnnotations("Resp");
+    addAnn(keys,0,8,"M",featureMap("id","y"));
+    addAnn(keys,10,20,"M",featureMap("id","x"));
+    List<Integer> ids = newIntList();
+    ids.add(addAnn(resp, 12, 20, "M", featureMap("id","x","s",0.9)));
+    ids.add(addAnn(resp, 5, 15, "M", featureMap("id","x","s",0.8)));
+    addListAnn(resp,5,20,"L",ids);
+    ids = newIntList();
+    ids.add(addAnn(resp, 10, 15, "M", featureMap("id","x","s",0.9)));
+    addListAnn(resp,10,20,"L",ids);
+    runETPR(prListEval1,doc);
+    EvalStatsTagging es = prListEval1.getByThEvalStatsTagging().get(0.8);
+    assertNotNull(es);
+    assertEquals("targets",2,es.getTargets());
+    assertEquals("responses",2,es.getResponses());
+    assertEquals("correct partial",1,es.getCorrectPartial());
+    assertEquals("incorrect partial",0,es.getIncorrectPartial());
+    assertEquals("true missing lenient",1,es.getTrueMissingLenient());
+    assertEquals("true spurious lenient",1,es.getTrueSpuriousLenient());
+  }
+  
+  
+  // Store the results for the document as one list of counts in the COUNTS format
+  @Test
+  public void testTagging2DocumentFeatures01() throws ResourceInstantiationException, ExecutionException {
+    logger.debug("Running test testTagging2DocumentFeatures01");
+    Document doc = newD();
+    AnnotationSet keys = doc.getAnnotations("Key");
+    AnnotationSet resp = doc.getAnnotations("Resp");
+    addAnn(keys,0,10,"M",featureMap("id","x"));
+    addAnn(keys,20,30,"M",featureMap("id","y"));
+    List<Integer> ids = newIntList();
+    ids.add(addAnn(resp, 0, 10, "M", featureMap("id","x","s",0.9)));
+    addListAnn(resp,0,10,"L",ids);
+    ids = newIntList();
+    ids.add(addAnn(resp, 25, 30, "M", featureMap("id","y","s",0.8)));
+    addListAnn(resp,25,30,"L",ids);
+    ids = newIntList();
+    ids.add(addAnn(resp, 40, 50, "M", featureMap("id","z","s",0.7)));
+    addListAnn(resp,40,50,"L",ids);
+    prListEval1.setDocumentFeaturesFormat(DocumentFeaturesFormat.COUNTS);
+    runETPR(prListEval1,doc);
+    String prefix = "evaluateTagging4Lists.response.EvaluataTagging1.Resp.M";
+    Object value = doc.getFeatures().get(prefix+"Counts");
+    assertTrue("Counts feature is a list", value instanceof List);
+    // the version, then targets, responses, correct strict and partial, incorrect strict and
+    // partial, single correct strict and partial, targets with strict and lenient responses
+    assertEquals("Counts feature", 
+            newIntList(DocumentFeaturesFormat.COUNTS_VERSION, 2, 3, 1, 1, 0, 0, 1, 1, 1, 2), value);
+    List<Integer> expected = newIntList(DocumentFeaturesFormat.COUNTS_VERSION);
+    for(int count : prListEval1.getEvalStatsTagging().getCounts()) {
+      expected.add(count);
+    }
+    assertEquals("Counts feature from the statistics", expected, value);
+    assertNull("No measures", doc.getFeatures().get(prefix+"FMeasureStrict"));
+  }
+  
+  // Evaluate a corpus with two copies of the PR which share the results like duplicates
+  // created for several threads do, and compare with evaluating the corpus with just one copy.
+  @Test
+  public void testTagging2Duplicate01() throws ResourceInstantiationException, ExecutionException, IOException {
+    logger.debug("Running test testTagging2Duplicate01");
+    for(ThresholdsOrRanksToUse which : new ThresholdsOrRanksToUse[]{
+            ThresholdsOrRanksToUse.USE_TH_ALL, ThresholdsOrRanksToUse.USE_RANKS_ALL}) {
+      prListEval1.setWhichThresholds(which);
+      
+      // one copy processes all documents
+      PrintStream origOut = System.out;
+      ByteArrayOutputStream console1 = new ByteArrayOutputStream();
+      System.setOut(new PrintStream(console1,true,"UTF-8"));
+      try {
+        runETPR(prListEval1,newListDocs(6));
+      } finally {
+        System.setOut(origOut);
+      }
+      List<String> tsv1 = readLines(new File(testingDir,"EvaluataTagging1.tsv"));
+      List<String> matches1 = readLines(new File(testingDir,"EvaluataTagging1-matches.tsv"));
+      int[] counts1 = prListEval1.getEvalStatsTagging().getCounts();
+      Map<Double,int[]> byTh1 = countsByTh(prListEval1.getByThEvalStatsTagging());
+      Map<Double,int[]> byRank1 = countsByRank(prListEval1.getByRankEvalStatsTagging());
+      Map<Double,int[]> byRank4ListAcc1 = countsByRank(prListEval1.getByRankEvalStats4ListAcc());
+      
+      // two copies process every other document, the results end up in the copy that 
+      // finished first
+      EvaluateTagging4Lists copy = (EvaluateTagging4Lists)Factory.duplicate(prListEval1);
+      Document[] docs = newListDocs(6);
+      ByteArrayOutputStream console2 = new ByteArrayOutputStream();
+      System.setOut(new PrintStream(console2,true,"UTF-8"));
+      try {
+        prListEval1.controllerExecutionStarted(null);
+        copy.controllerExecutionStarted(null);
+        for(int i = 0; i < docs.length; i++) {
+          EvaluateTagging4Lists pr = (i % 2 == 0) ? prListEval1 : copy;
+          pr.setDocument(docs[i]);
+          pr.execute();
+        }
+        prListEval1.controllerExecutionFinished(null);
+        copy.controllerExecutionFinished(null);
+      } finally {
+        System.setOut(origOut);
+      }
+      List<String> tsv2 = readLines(new File(testingDir,"EvaluataTagging1.tsv"));
+      
+      assertArrayEquals("totals "+which, counts1, prListEval1.getEvalStatsTagging().getCounts());
+      assertCountsEqual("by threshold "+which, byTh1, countsByTh(prListEval1.getByThEvalStatsTagging()));
+      assertCountsEqual("by rank "+which, byRank1, countsByRank(prListEval1.getByRankEvalStatsTagging()));
+      assertCountsEqual("list accuracy "+which, byRank4ListAcc1, countsByRank(prListEval1.getByRankEvalStats4ListAcc()));
+      assertEquals("list counters "+which, listCounterLines(console1.toString("UTF-8")), listCounterLines(console2.toString("UTF-8")));
+      assertEquals("summary rows "+which, summaryRows(tsv1), summaryRows(tsv2));
+      assertEquals("tsv headers "+which, 1, countHeaders(tsv2));
+      List<String> matches2 = readLines(new File(testingDir,"EvaluataTagging1-matches.tsv"));
+      assertEquals("matches headers "+which, 1, countHeaders(matches2));
+      assertEquals("matches rows "+which, matches1.size(), matches2.size());
+    }
+  }
+  
+  
+  // Evaluate a corpus with several types, a score feature and a reference set, comparing the 
+  // types of each document one after the other and concurrently: the results must be the same.
+  @Test
+  public void testTagging2TypeThreads01() throws ResourceInstantiationException, ExecutionException, IOException {
+    logger.debug("Running test testTagging2TypeThreads01");
+    EvaluateTagging pr = newTypesPR("EvaluateTaggingTypes1");
+    Document[] docs = newTypeDocs(4);
+    pr.setTypeThreads(1);
+    Map<String,Object> results1 = typesResults(pr, docs);
+    pr.setTypeThreads(4);
+    Map<String,Object> results4 = typesResults(pr, docs);
+    assertResultsEqual("type threads", results1, results4);
+  }
+  
+  
+  // Evaluate a corpus with several types, a score feature and a reference set, deriving the 
+  // statistics over all types from those of the types, with a comparison for the annotations 
+  // of different types which overlap: the results must be the same as when comparing all.
+  @Test
+  public void testTagging2AllTypes01() throws ResourceInstantiationException, ExecutionException, IOException {
+    logger.debug("Running test testTagging2AllTypes01");
+    EvaluateTagging pr = newTypesPR("EvaluateTaggingTypes2");
+    Document[] docs = newTypeDocs(4);
+    pr.setAllTypesStrategy(AllTypesStrategy.COMPARE_ALL);
+    Map<String,Object> resultsAll = typesResults(pr, docs);
+    pr.setAllTypesStrategy(AllTypesStrategy.SUM_OF_TYPES_EXACT);
+    Map<String,Object> resultsExact = typesResults(pr, docs);
+    assertResultsEqual("sum of types exact", resultsAll, resultsExact);
+  }
+  
+  
+  // Evaluate a corpus with several types, restricted to containing annotations one of which 
+  // has length zero, for each containment type, comparing the types of each document one after
+  // the other and concurrently. The statistics must be the same as those from restricting each
+  // type and set with the GATE utility methods for each containing annotation, as 
+  // evaluateForType did before the containing annotations got prepared once per document.
+  @Test
+  public void testTagging2Containment01() throws ResourceInstantiationException, ExecutionException, IOException {
+    logger.debug("Running test testTagging2Containment01");
+    EvaluateTagging pr = newTypesPR("EvaluateTaggingTypes3");
+    pr.setContainingASNameAndType("Cont:C");
+    Document[] docs = newTypeDocs(4);
+    for(Document doc : docs) {
+      AnnotationSet cont = doc.getAnnotations("Cont");
+      addAnn(cont,0,200,"C",featureMap());
+      addAnn(cont,300,320,"C",featureMap());
+      addAnn(cont,480,480,"C",featureMap());
+      addAnn(cont,600,900,"C",featureMap());
+    }
+    AnnotationTypeSpecs typeSpecs = new AnnotationTypeSpecs(newStringList("M","N","O"));
+    for(ContainmentType ct : ContainmentType.values()) {
+      pr.setContainmentType(ct);
+      pr.setTypeThreads(1);
+      Map<String,Object> results1 = typesResults(pr, docs);
+      for(String type : newStringList("","M","N","O")) {
+        Set<String> types = new HashSet<String>(
+                type.isEmpty() ? typeSpecs.getKeyTypes() : newStringList(type));
+        assertEquals(ct+" stats "+type,
+                Arrays.toString(containedCounts(docs, "Resp", types, ct, typeSpecs)),
+                results1.get("stats "+type));
+        assertEquals(ct+" reference stats "+type,
+                Arrays.toString(containedCounts(docs, "Ref", types, ct, typeSpecs)),
+                results1.get("reference stats "+type));
+      }
+      pr.setTypeThreads(4);
+      assertResultsEqual(ct+" type threads", results1, typesResults(pr, docs));
+    }
+  }
+  
+  // The counts of the statistics over all documents for the keys and the annotations of the 
+  // given set which have one of the types, each restricted to the annotations of type C in set
+  // Cont the way selectOverlappingBy did before it used a ContainmentFilter
+  private static int[] containedCounts(Document[] docs, String setName, Set<String> types, 
+          ContainmentType ct, AnnotationTypeSpecs typeSpecs) {
+    int[] ret = null;
+    for(Document doc : docs) {
+      AnnotationSet cont = doc.getAnnotations("Cont").get("C");
+      AnnotationSet keys = containedAsBefore(doc.getAnnotations("Key").get(types), cont, ct);
+      AnnotationSet responses = containedAsBefore(doc.getAnnotations(setName).get(types), cont, ct);
+      int[] counts = new AnnotationDifferTagging(keys, responses, FS_ID, FC_EQU, typeSpecs)
+              .getEvalStatsTagging().getCounts();
+      if(ret == null) {
+        ret = counts;
+      } else {
+        for(int k = 0; k < ret.length; k++) {
+          ret[k] += counts[k];
+        }
+      }
+    }
+    return ret;
+  }
+  
+  private static AnnotationSet containedAsBefore(AnnotationSet set, AnnotationSet cont, ContainmentType ct) {
+    Set<Annotation> selected = new HashSet<Annotation>();
+    for(Annotation contAnn : cont) {
+      if(ct == ContainmentType.OVERLAPPING) {
+        selected.addAll(gate.Utils.getOverlappingAnnotations(set, contAnn));
+      } else if(ct == ContainmentType.CONTAINING) {
+        selected.addAll(gate.Utils.getContainedAnnotations(set, contAnn));
+      } else {
+        selected.addAll(gate.Utils.getCoextensiveAnnotations(set, contAnn));
+      }
+    }
+    return new ImmutableAnnotationSetImpl(set.getDocument(), selected);
+  }
+  
+  // Create documents with keys and lists of candidates with random ids and scores. The random
+  // generator is seeded, so each call creates the same documents.
+  private Document[] newListDocs(int n) throws ResourceInstantiationException {
+    Random rand = new Random(1);
+    Document[] docs = new Document[n];
+    String[] idValues = new String[]{"x","y","z"};
+    for(int d = 0; d < n; d++) {
+      docs[d] = newD();
+      AnnotationSet keys = docs[d].getAnnotations("Key");
+      AnnotationSet resp = docs[d].getAnnotations("Resp");
+      for(int i = 0; i < 20; i++) {
+        int from = i*40 + rand.nextInt(10);
+        addAnn(keys,from,from+10,"M",featureMap("id",idValues[rand.nextInt(3)]));
+        if(rand.nextInt(5) != 0) {
+          int lfrom = from + rand.nextInt(10) - 5;
+          List<Integer> ids = newIntList();
+          for(int c = rand.nextInt(4); c >= 0; c--) {
+            ids.add(addAnn(resp,lfrom,lfrom+10,"M",
+                    featureMap("id",idValues[rand.nextInt(3)],"s",rand.nextInt(10)/10.0)));
+          }
+          addListAnn(resp,lfrom,lfrom+10,"L",ids);
+        }
+      }
+    }
+    return docs;
+  }
+  
+  private EvaluateTagging newTypesPR(String evaluationId) throws ResourceInstantiationException, IOException {
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("annotationTypes", newStringList("M","N","O"));
+    parms.put("evaluationId", evaluationId);
+    parms.put("featureNames", newStringList("id"));
+    parms.put("keyASName", "Key");
+    parms.put("responseASName", "Resp");
+    parms.put("referenceASName", "Ref");
+    parms.put("scoreFeatureName", "s");
+    parms.put("outputDirectoryUrl", testingDir.toURI().toURL());
+    return (EvaluateTagging)Factory.createResource(
+            "gate.plugin.evaluation.resources.EvaluateTagging", parms);
+  }
+  
+  // Create documents with keys of several types and responses and reference annotations with
+  // random ids and scores, some of them with a different type than the key they overlap. Some
+  // keys and annotations have length zero and some annotations only touch the start of a key.
+  // The random generator is seeded, so each call creates the same documents.
+  private Document[] newTypeDocs(int n) throws ResourceInstantiationException {
+    Random rand = new Random(2);
+    Document[] docs = new Document[n];
+    String[] types = new String[]{"M","N","O"};
+    String[] idValues = new String[]{"x","y"};
+    for(int d = 0; d < n; d++) {
+      docs[d] = newD();
+      AnnotationSet keys = docs[d].getAnnotations("Key");
+      AnnotationSet[] sets = new AnnotationSet[]{
+        docs[d].getAnnotations("Resp"), docs[d].getAnnotations("Ref")};
+      for(int i = 0; i < 20; i++) {
+        int from = i*45 + 3 + rand.nextInt(10);
+        int length = rand.nextInt(5) == 0 ? 0 : 10;
+        String type = types[rand.nextInt(3)];
+        addAnn(keys,from,from+length,type,featureMap("id",idValues[rand.nextInt(2)]));
+        for(AnnotationSet set : sets) {
+          if(rand.nextInt(4) != 0) {
+            int rfrom = from + rand.nextInt(7) - 3;
+            int rlength = length;
+            if(length == 0 && rand.nextInt(2) == 0) {
+              rfrom = from;
+            } else if(length == 0) {
+              rlength = 10;
+            }
+            String rtype = rand.nextInt(4) == 0 ? types[rand.nextInt(3)] : type;
+            addAnn(set,rfrom,rfrom+rlength,rtype,
+                    featureMap("id",idValues[rand.nextInt(2)],"s",rand.nextInt(10)/10.0));
+          }
+          // annotations which only touch the start of the key: zero-length ones at its start,
+          // or ones which start at a zero-length key
+          if(rand.nextInt(4) == 0) {
+            addAnn(set,from,from+(length == 0 ? 5 : 0),types[rand.nextInt(3)],
+                    featureMap("id",idValues[rand.nextInt(2)],"s",rand.nextInt(10)/10.0));
+          }
+          if(rand.nextInt(5) == 0) {
+            addAnn(set,from+20,from+25,types[rand.nextInt(3)],
+                    featureMap("id",idValues[rand.nextInt(2)],"s",rand.nextInt(10)/10.0));
+          }
+        }
+      }
+    }
+    return docs;
+  }
+  
+  // Run the PR on the documents and return the statistics for each type and over all types, 
+  // the contingency tables, the document features and the rows of the TSV file
+  private Map<String,Object> typesResults(EvaluateTagging pr, Document[] docs) throws ExecutionException, IOException {
+    for(Document doc : docs) {
+      doc.getFeatures().clear();
+    }
+    runETPR(pr, docs);
+    Map<String,Object> ret = new LinkedHashMap<String,Object>();
+    for(String type : newStringList("","M","N","O")) {
+      ret.put("stats "+type, Arrays.toString(pr.getEvalStatsTagging(type).getCounts()));
+      ret.put("reference stats "+type, Arrays.toString(pr.getEvalStatsTaggingReference(type).getCounts()));
+      ret.put("by threshold "+type, countsString(countsByTh(pr.getByThEvalStatsTagging(type))));
+    }
+    for(int i = 0; i < docs.length; i++) {
+      ret.put("document features "+i, new HashMap<Object,Object>(docs[i].getFeatures()));
+    }
+    ret.put("contingency table strict", pr.getContingencyTableStrict().toString());
+    ret.put("contingency table lenient", pr.getContingencyTableLenient().toString());
+    ret.put("tsv", readLines(new File(testingDir, pr.getEvaluationId()+".tsv")));
+    return ret;
+  }
+  
+  private static void assertResultsEqual(String msg, Map<String,Object> expected, Map<String,Object> actual) {
+    assertEquals(msg+" keys", expected.keySet(), actual.keySet());
+    for(String key : expected.keySet()) {
+      assertEquals(msg+" "+key, expected.get(key), actual.get(key));
+    }
+  }
+  
+  private static String countsString(Map<Double,int[]> counts) {
+    StringBuilder sb = new StringBuilder();
+    for(Map.Entry<Double,int[]> entry : counts.entrySet()) {
+      sb.append(entry.getKey()).append("=").append(Arrays.toString(entry.getValue())).append("\n");
+    }
+    return sb.toString();
+  }
+  
+  private static Map<Double,int[]> countsByTh(ByThEvalStatsTagging bth) {
+    Map<Double,int[]> ret = new TreeMap<Double,int[]>();
+    if(bth != null) {
+      for(Map.Entry<Double,EvalStatsTagging> entry : bth.getByThresholdEvalStats().entrySet()) {
+        ret.put(entry.getKey(), entry.getValue().getCounts());
+      }
+    }
+    return ret;
+  }
+  
+  private static Map<Double,int[]> countsByRank(ByRankEvalStatsTagging brk) {
+    Map<Double,int[]> ret = new TreeMap<Double,int[]>();
+    if(brk != null) {
+      for(int rank : brk.getByRankEvalStats().navigableKeySet()) {
+        ret.put((double)rank, brk.get(rank).getCounts());
+      }
+    }
+    return ret;
+  }
+  
+  private static void assertCountsEqual(String msg, Map<Double,int[]> expected, Map<Double,int[]> actual) {
+    assertEquals(msg+" keys", expected.keySet(), actual.keySet());
+    for(Double key : expected.keySet()) {
+      assertArrayEquals(msg+" at "+key, expected.get(key), actual.get(key));
+    }
+  }
+  
+  private static List<String> readLines(File file) throws IOException {
+    return java.nio.file.Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+  }
+  
+  private static int countHeaders(List<String> lines) {
+    int n = 0;
+    for(String line : lines) {
+      if(line.startsWith("evaluationId\t")) {
+        n++;
+      }
+    }
+    return n;
+  }
+  
+  // the rows for the whole corpus, the rows for the documents are written in the order in 
+  // which the documents got processed
+  private static List<String> summaryRows(List<String> lines) {
+    List<String> ret = new ArrayList<String>();
+    for(String line : lines) {
+      if(line.contains("\t[doc:all:micro]\t")) {
+        ret.add(line);
+      }
+    }
+    return ret;
+  }
+  
+  private static List<String> listCounterLines(String console) {
+    List<String> ret = new ArrayList<String>();
+    for(String line : console.split("\\r?\\n")) {
+      if(line.contains(" Number of lists")) {
+        ret.add(line);
+      }
+    }
+    return ret;
+  }
+  
 }